@@ -118,8 +118,9 @@ public class Transaction {
   }
 
   public boolean isVisible(long version) {
-    // either it was committed before or the change belongs to current tx
-    return (version <= getReadPointer() && !isExcluded(version)) || writePointer == version;
+    // either it was committed before or the change belongs to current tx, unless the current tx excludes its own
+    // write pointer, as a read-only tx does
+    return (version <= getReadPointer() || writePointer == version) && !isExcluded(version);
   }
 
   public boolean hasExcludes() {
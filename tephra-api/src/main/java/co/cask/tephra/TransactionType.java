@@ -27,5 +27,10 @@ public enum TransactionType {
   /**
    * Long running transactions do not detect conflicts during commit.
    */
-  LONG
+  LONG,
+  /**
+   * Read-only transactions are not tracked by the transaction manager, and neither need nor allow to be committed.
+   * They must not make any changes.
+   */
+  READ_ONLY
 }
@@ -0,0 +1,433 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra;
+
+import com.google.common.collect.Maps;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.Nullable;
+
+/**
+ * Inverted index over the committed change sets of the {@link TransactionManager}: maps each change key to the
+ * latest commit pointer under which it was committed. A transaction conflicts with a committed change if that
+ * change was committed after the transaction started, so checking a change set only needs one lookup per change,
+ * regardless of how many transactions committed in the meantime.
+ *
+ * <p>
+ * The changes are partitioned into shards, each with its own commit lock. A commit must hold the locks of all
+ * shards of its changes, acquired with {@link #lockShards(Collection)}, from checking for conflicts until its
+ * changes are added to the index. This makes the check and the update atomic with respect to any other commit
+ * with overlapping changes, while commits of changes in different shards can be checked in parallel. All other
+ * updates are expected to happen while holding the transaction manager lock, and
+ * {@link #hasConflicts(Transaction, Collection)} may also be called without any locking, to check for conflicts
+ * before committing.
+ * </p>
+ *
+ * <p>
+ * When the committed change sets exceed their heap budget, the oldest of them are spilled to disk, see
+ * {@link SpilledChangeSets}, and their changes are removed from the index, unless they were committed again later.
+ * Hence the changes that are not in the index are probed in the spilled change sets, but only in those committed
+ * after the transaction started, which are none for most transactions.
+ * </p>
+ */
+abstract class CommittedChangeIndex {
+  private static final int[] NO_SHARDS = { };
+  private static final SpilledChangeSets[] NO_SPILLED = { };
+
+  private final ReentrantLock[] commitLocks;
+  // whether a change in the spilled change sets with the same fingerprint as a change to check needs to be verified
+  private final boolean verifySpilled;
+  // the spilled change sets in the order of their commit pointers, replaced as a whole when modified
+  private volatile SpilledChangeSets[] spilled = NO_SPILLED;
+
+  /**
+   * Creates an index by full change key.
+   */
+  static CommittedChangeIndex byKey(int numShards) {
+    return new KeyIndex(numShards);
+  }
+
+  /**
+   * Creates an index by change fingerprint, see {@link FingerprintSet}.
+   * @param committedChangeSets the committed change sets with the full change keys, to verify whether a change
+   *                            with the same fingerprint actually is the same change; or {@code null} to consider
+   *                            every change with the same fingerprint a conflict
+   */
+  static CommittedChangeIndex byFingerprint(int numShards,
+                                            @Nullable NavigableMap<Long, Set<ChangeId>> committedChangeSets) {
+    return new FingerprintIndex(numShards, committedChangeSets);
+  }
+
+  private CommittedChangeIndex(int numShards, boolean verifySpilled) {
+    this.verifySpilled = verifySpilled;
+    this.commitLocks = new ReentrantLock[numShards];
+    for (int i = 0; i < numShards; i++) {
+      commitLocks[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Records the given changes as committed with the given commit pointer.
+   */
+  abstract void add(Collection<ChangeId> changes, long commitPointer);
+
+  /**
+   * Removes the given changes from the index, unless they were committed again at or after the given watermark.
+   * This must be called with the change sets that are pruned from the committed change sets once they are older
+   * than the first in-progress short transaction.
+   */
+  abstract void remove(Collection<ChangeId> changes, long watermark);
+
+  /**
+   * Returns whether any of the given changes was committed after the given transaction was started.
+   */
+  boolean hasConflicts(Transaction tx, Collection<ChangeId> changes) {
+    if (hasIndexedConflicts(tx, changes)) {
+      return true;
+    }
+    SpilledChangeSets[] spilledChangeSets = spilled;
+    for (int i = spilledChangeSets.length - 1;
+         i >= 0 && spilledChangeSets[i].getLastCommit() > tx.getWritePointer(); i--) {
+      if (spilledChangeSets[i].hasConflicts(tx, changes, verifySpilled)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether any of the given changes in the index was committed after the given transaction was started.
+   */
+  abstract boolean hasIndexedConflicts(Transaction tx, Collection<ChangeId> changes);
+
+  /**
+   * Adds change sets that were spilled to disk, which must all have been committed after the change sets that were
+   * spilled before. Their changes must be removed from the index only afterwards, so that conflicts with them are
+   * always found in one or the other.
+   */
+  void addSpilled(SpilledChangeSets changeSets) {
+    SpilledChangeSets[] updated = Arrays.copyOf(spilled, spilled.length + 1);
+    updated[spilled.length] = changeSets;
+    spilled = updated;
+  }
+
+  /**
+   * Removes the spilled change sets that were all committed before the given watermark.
+   * @return the removed change sets, whose files can be deleted
+   */
+  List<SpilledChangeSets> removeSpilled(long watermark) {
+    int removed = 0;
+    while (removed < spilled.length && spilled[removed].getLastCommit() < watermark) {
+      removed++;
+    }
+    if (removed == 0) {
+      return Collections.emptyList();
+    }
+    List<SpilledChangeSets> result = Arrays.asList(Arrays.copyOf(spilled, removed));
+    spilled = Arrays.copyOfRange(spilled, removed, spilled.length);
+    return result;
+  }
+
+  abstract int size();
+
+  abstract void clear();
+
+  /**
+   * Marks the shards of the given changes in the given set.
+   */
+  abstract void collectShards(Collection<ChangeId> changes, BitSet shards);
+
+  /**
+   * Acquires the commit locks of all shards of the given changes, in the order of the shards, so that two commits
+   * can never wait for each other.
+   * @return the shards that were locked, to be passed to {@link #unlockShards(int[])}
+   */
+  int[] lockShards(@Nullable Collection<ChangeId> changes) {
+    if (changes == null || changes.isEmpty()) {
+      return NO_SHARDS;
+    }
+    BitSet shardSet = new BitSet(commitLocks.length);
+    collectShards(changes, shardSet);
+    int[] shards = new int[shardSet.cardinality()];
+    int i = 0;
+    for (int shard = shardSet.nextSetBit(0); shard >= 0; shard = shardSet.nextSetBit(shard + 1)) {
+      commitLocks[shard].lock();
+      shards[i++] = shard;
+    }
+    return shards;
+  }
+
+  /**
+   * Releases the commit locks acquired with {@link #lockShards(Collection)}.
+   */
+  void unlockShards(int[] shards) {
+    for (int i = shards.length - 1; i >= 0; i--) {
+      commitLocks[shards[i]].unlock();
+    }
+  }
+
+  int getNumShards() {
+    return commitLocks.length;
+  }
+
+  static int getShard(int hash, int numShards) {
+    return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % numShards;
+  }
+
+  static int getShard(long fingerprint, int numShards) {
+    return getShard((int) (fingerprint ^ (fingerprint >>> 32)), numShards);
+  }
+
+  /**
+   * Index by full change key. A concurrent map does not need any further partitioning, so only the commit locks
+   * are sharded, by the hash code of the change.
+   */
+  private static final class KeyIndex extends CommittedChangeIndex {
+    private final ConcurrentMap<ChangeId, Long> latestCommits = Maps.newConcurrentMap();
+
+    KeyIndex(int numShards) {
+      super(numShards, true);
+    }
+
+    @Override
+    void add(Collection<ChangeId> changes, long commitPointer) {
+      for (ChangeId change : changes) {
+        Long previous = latestCommits.get(change);
+        // edits may be replayed out of order, never move a change back to an older commit
+        if (previous == null || previous < commitPointer) {
+          latestCommits.put(change, commitPointer);
+        }
+      }
+    }
+
+    @Override
+    void remove(Collection<ChangeId> changes, long watermark) {
+      for (ChangeId change : changes) {
+        Long latest = latestCommits.get(change);
+        if (latest != null && latest < watermark) {
+          latestCommits.remove(change, latest);
+        }
+      }
+    }
+
+    @Override
+    boolean hasIndexedConflicts(Transaction tx, Collection<ChangeId> changes) {
+      for (ChangeId change : changes) {
+        Long latest = latestCommits.get(change);
+        // If commit time is greater than tx write pointer, the change committed after the given tx was started
+        if (latest != null && latest > tx.getWritePointer()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    int size() {
+      return latestCommits.size();
+    }
+
+    @Override
+    void clear() {
+      latestCommits.clear();
+    }
+
+    @Override
+    void collectShards(Collection<ChangeId> changes, BitSet shards) {
+      for (ChangeId change : changes) {
+        shards.set(getShard(change.hashCode(), getNumShards()));
+      }
+    }
+  }
+
+  /**
+   * Index by change fingerprint, in primitive open addressing maps, one per shard. As these maps cannot be read
+   * while they are modified, each of them is guarded by a read-write lock.
+   */
+  private static final class FingerprintIndex extends CommittedChangeIndex {
+    private final Long2LongOpenHashMap[] latestCommits;
+    private final ReentrantReadWriteLock[] locks;
+    private final NavigableMap<Long, Set<ChangeId>> committedChangeSets;
+
+    FingerprintIndex(int numShards, @Nullable NavigableMap<Long, Set<ChangeId>> committedChangeSets) {
+      super(numShards, committedChangeSets != null);
+      this.latestCommits = new Long2LongOpenHashMap[numShards];
+      this.locks = new ReentrantReadWriteLock[numShards];
+      for (int i = 0; i < numShards; i++) {
+        latestCommits[i] = new Long2LongOpenHashMap();
+        // zero is never a valid commit pointer
+        latestCommits[i].defaultReturnValue(0L);
+        locks[i] = new ReentrantReadWriteLock();
+      }
+      this.committedChangeSets = committedChangeSets;
+    }
+
+    @Override
+    void add(Collection<ChangeId> changes, long commitPointer) {
+      if (changes instanceof FingerprintSet) {
+        LongIterator iterator = ((FingerprintSet) changes).fingerprintIterator();
+        while (iterator.hasNext()) {
+          add(iterator.nextLong(), commitPointer);
+        }
+      } else {
+        for (ChangeId change : changes) {
+          add(FingerprintSet.fingerprint(change.getKey()), commitPointer);
+        }
+      }
+    }
+
+    private void add(long fingerprint, long commitPointer) {
+      int shard = getShard(fingerprint, getNumShards());
+      locks[shard].writeLock().lock();
+      try {
+        // edits may be replayed out of order, never move a change back to an older commit
+        if (latestCommits[shard].get(fingerprint) < commitPointer) {
+          latestCommits[shard].put(fingerprint, commitPointer);
+        }
+      } finally {
+        locks[shard].writeLock().unlock();
+      }
+    }
+
+    @Override
+    void remove(Collection<ChangeId> changes, long watermark) {
+      if (changes instanceof FingerprintSet) {
+        LongIterator iterator = ((FingerprintSet) changes).fingerprintIterator();
+        while (iterator.hasNext()) {
+          remove(iterator.nextLong(), watermark);
+        }
+      } else {
+        for (ChangeId change : changes) {
+          remove(FingerprintSet.fingerprint(change.getKey()), watermark);
+        }
+      }
+    }
+
+    private void remove(long fingerprint, long watermark) {
+      int shard = getShard(fingerprint, getNumShards());
+      locks[shard].writeLock().lock();
+      try {
+        long latest = latestCommits[shard].get(fingerprint);
+        if (latest != 0L && latest < watermark) {
+          latestCommits[shard].remove(fingerprint);
+        }
+      } finally {
+        locks[shard].writeLock().unlock();
+      }
+    }
+
+    @Override
+    boolean hasIndexedConflicts(Transaction tx, Collection<ChangeId> changes) {
+      if (changes instanceof FingerprintSet) {
+        LongIterator iterator = ((FingerprintSet) changes).fingerprintIterator();
+        while (iterator.hasNext()) {
+          if (getLatestCommit(iterator.nextLong()) > tx.getWritePointer()) {
+            return true;
+          }
+        }
+        return false;
+      }
+      for (ChangeId change : changes) {
+        long latest = getLatestCommit(FingerprintSet.fingerprint(change.getKey()));
+        // If commit time is greater than tx write pointer, the change committed after the given tx was started
+        if (latest > tx.getWritePointer() && (committedChangeSets == null || isCommitted(change, tx, latest))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private long getLatestCommit(long fingerprint) {
+      int shard = getShard(fingerprint, getNumShards());
+      locks[shard].readLock().lock();
+      try {
+        return latestCommits[shard].get(fingerprint);
+      } finally {
+        locks[shard].readLock().unlock();
+      }
+    }
+
+    /**
+     * Returns whether the given change is in one of the committed change sets after the given transaction
+     * started, up to the given latest commit pointer of its fingerprint.
+     */
+    private boolean isCommitted(ChangeId change, Transaction tx, long latest) {
+      // most likely this is not a fingerprint collision, and the change was committed with the latest commit
+      Set<ChangeId> changes = committedChangeSets.get(latest);
+      if (changes != null && changes.contains(change)) {
+        return true;
+      }
+      for (Set<ChangeId> committed : committedChangeSets.subMap(tx.getWritePointer(), false, latest, false).values()) {
+        if (committed.contains(change)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    int size() {
+      int size = 0;
+      for (int shard = 0; shard < latestCommits.length; shard++) {
+        locks[shard].readLock().lock();
+        try {
+          size += latestCommits[shard].size();
+        } finally {
+          locks[shard].readLock().unlock();
+        }
+      }
+      return size;
+    }
+
+    @Override
+    void clear() {
+      for (int shard = 0; shard < latestCommits.length; shard++) {
+        locks[shard].writeLock().lock();
+        try {
+          latestCommits[shard].clear();
+        } finally {
+          locks[shard].writeLock().unlock();
+        }
+      }
+    }
+
+    @Override
+    void collectShards(Collection<ChangeId> changes, BitSet shards) {
+      if (changes instanceof FingerprintSet) {
+        LongIterator iterator = ((FingerprintSet) changes).fingerprintIterator();
+        while (iterator.hasNext()) {
+          shards.set(getShard(iterator.nextLong(), getNumShards()));
+        }
+      } else {
+        for (ChangeId change : changes) {
+          shards.set(getShard(FingerprintSet.fingerprint(change.getKey()), getNumShards()));
+        }
+      }
+    }
+  }
+}
@@ -40,6 +40,7 @@ public class DefaultTransactionExecutor extends AbstractTransactionExecutor {
   private final Collection<TransactionAware> txAwares;
   private final TransactionSystemClient txClient;
   private final RetryStrategy retryStrategy;
+  private final boolean readOnly;
 
   /**
    * Convenience constructor, has same affect as {@link #DefaultTransactionExecutor(TransactionSystemClient, Iterable)}
@@ -52,11 +53,23 @@ public class DefaultTransactionExecutor extends AbstractTransactionExecutor {
   public DefaultTransactionExecutor(TransactionSystemClient txClient,
                                     Iterable<TransactionAware> txAwares,
                                     RetryStrategy retryStrategy) {
+    this(txClient, txAwares, retryStrategy, false);
+  }
+
+  /**
+   * Constructor for a transaction executor.
+   * @param readOnly whether to execute in read-only transactions, see {@link TransactionSystemClient#startReadOnly()}
+   */
+  public DefaultTransactionExecutor(TransactionSystemClient txClient,
+                                    Iterable<TransactionAware> txAwares,
+                                    RetryStrategy retryStrategy,
+                                    boolean readOnly) {
 
     super(MoreExecutors.sameThreadExecutor());
     this.txAwares = ImmutableList.copyOf(txAwares);
     this.txClient = txClient;
     this.retryStrategy = retryStrategy;
+    this.readOnly = readOnly;
   }
 
   /**
@@ -130,7 +143,11 @@ public class DefaultTransactionExecutor extends AbstractTransactionExecutor {
 
   private <I, O> O executeOnce(Function<I, O> function, I input) throws TransactionFailureException {
     TransactionContext txContext = new TransactionContext(txClient, txAwares);
-    txContext.start();
+    if (readOnly) {
+      txContext.startReadOnly();
+    } else {
+      txContext.start();
+    }
     O o = null;
     try {
       o = function.apply(input);
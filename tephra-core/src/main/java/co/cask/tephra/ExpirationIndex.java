@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Index of the in-progress transactions of the {@link TransactionManager} by expiration time, so that finding the
+ * timed-out transactions only touches the ones that actually expired, instead of all transactions in progress.
+ *
+ * <p>
+ * All updates are expected to happen while holding the transaction manager lock, except for
+ * {@link #getNextExpiration()}, which may be called without any locking.
+ * </p>
+ */
+final class ExpirationIndex {
+  // expiration time -> write pointers of the transactions expiring at that time
+  private final NavigableMap<Long, LongArrayList> byExpiration = new TreeMap<Long, LongArrayList>();
+  private volatile long nextExpiration = Long.MAX_VALUE;
+
+  /**
+   * Adds a transaction with the given expiration time to the index.
+   */
+  void add(long writePointer, long expiration) {
+    LongArrayList txs = byExpiration.get(expiration);
+    if (txs == null) {
+      txs = new LongArrayList(1);
+      byExpiration.put(expiration, txs);
+    }
+    txs.add(writePointer);
+    if (expiration < nextExpiration) {
+      nextExpiration = expiration;
+    }
+  }
+
+  /**
+   * Removes a transaction with the given expiration time from the index.
+   */
+  void remove(long writePointer, long expiration) {
+    LongArrayList txs = byExpiration.get(expiration);
+    if (txs != null && txs.rem(writePointer) && txs.isEmpty()) {
+      byExpiration.remove(expiration);
+      if (expiration == nextExpiration) {
+        nextExpiration = byExpiration.isEmpty() ? Long.MAX_VALUE : byExpiration.firstKey();
+      }
+    }
+  }
+
+  /**
+   * Returns the write pointers of all transactions that expired before the given time, in order of expiration.
+   * This includes all transactions with a negative expiration time. The transactions are not removed from the index.
+   */
+  LongArrayList getExpired(long currentTime) {
+    LongArrayList expired = new LongArrayList();
+    for (Map.Entry<Long, LongArrayList> entry : byExpiration.headMap(currentTime, false).entrySet()) {
+      expired.addAll(entry.getValue());
+    }
+    return expired;
+  }
+
+  /**
+   * Returns the earliest expiration time of all transactions in the index, or {@code Long.MAX_VALUE} if it is empty.
+   */
+  long getNextExpiration() {
+    return nextExpiration;
+  }
+
+  void clear() {
+    byExpiration.clear();
+    nextExpiration = Long.MAX_VALUE;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A set of changes that only keeps a 64-bit fingerprint of each change key, in a primitive open addressing hash set.
+ * Two changes with the same fingerprint are considered equal, hence this must only be used where a collision is
+ * acceptable, such as for conflict detection, where it can only lead to a false conflict.
+ *
+ * <p>
+ * Iterating over the set yields changes with the 8-byte fingerprints as their keys. The fingerprint of an 8-byte key
+ * is the key itself, so that these changes can be written to the transaction log or a snapshot, and be read back
+ * into a set with the same fingerprints.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread-safe, but can be read concurrently once they are not modified anymore.
+ * </p>
+ */
+final class FingerprintSet extends AbstractSet<ChangeId> {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  // estimated heap size of a ChangeId and of a byte[], without the array contents
+  private static final int CHANGE_ID_SIZE = 24;
+  private static final int ARRAY_HEADER_SIZE = 16;
+
+  private final LongOpenHashSet fingerprints;
+  // estimated heap size of the change keys that were added, had they been kept in ChangeId objects
+  private long keyBytes;
+
+  FingerprintSet(int expectedSize) {
+    this.fingerprints = new LongOpenHashSet(expectedSize);
+  }
+
+  FingerprintSet(Collection<ChangeId> changes) {
+    this.fingerprints = new LongOpenHashSet(changes.size());
+    addAll(changes);
+  }
+
+  /**
+   * Returns the fingerprint of the given change key.
+   */
+  static long fingerprint(byte[] key) {
+    if (key.length == Longs.BYTES) {
+      return Longs.fromByteArray(key);
+    }
+    return HASH_FUNCTION.hashBytes(key).asLong();
+  }
+
+  /**
+   * Adds the given change key to this set.
+   * @return {@code true} if the set did not contain a change with the same fingerprint yet
+   */
+  boolean add(byte[] key) {
+    if (fingerprints.add(fingerprint(key))) {
+      keyBytes += CHANGE_ID_SIZE + ARRAY_HEADER_SIZE + ((key.length + 7) & ~7);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean add(ChangeId change) {
+    return add(change.getKey());
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends ChangeId> changes) {
+    if (!(changes instanceof FingerprintSet)) {
+      return super.addAll(changes);
+    }
+    FingerprintSet other = (FingerprintSet) changes;
+    int sizeBefore = fingerprints.size();
+    fingerprints.addAll(other.fingerprints);
+    if (fingerprints.size() == sizeBefore) {
+      return false;
+    }
+    // the merged fingerprints are not known individually, assume the average key size of the other set
+    keyBytes += other.keyBytes / other.size() * (fingerprints.size() - sizeBefore);
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof ChangeId && fingerprints.contains(fingerprint(((ChangeId) o).getKey()));
+  }
+
+  /**
+   * Returns an iterator over the fingerprints in this set.
+   */
+  LongIterator fingerprintIterator() {
+    return fingerprints.iterator();
+  }
+
+  @Override
+  public Iterator<ChangeId> iterator() {
+    final LongIterator iterator = fingerprints.iterator();
+    return new Iterator<ChangeId>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public ChangeId next() {
+        return new ChangeId(Longs.toByteArray(iterator.nextLong()));
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return fingerprints.size();
+  }
+
+  /**
+   * Returns the estimated number of heap bytes saved by keeping fingerprints instead of the full change keys.
+   */
+  long getSavedBytes() {
+    return keyBytes - (long) Longs.BYTES * fingerprints.size();
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds and checks large change sets with a pool of worker threads, splitting them into one part per thread.
+ *
+ * <p>
+ * With full change keys, every thread creates the {@link ChangeId}s of a contiguous range of the keys, which
+ * computes their hashes, and buckets them by the partition of their hash. Every thread then adds the buckets of
+ * one partition from all ranges into its own set, so that the sets are disjoint and duplicates are also removed
+ * in parallel. These sets are kept as the parts of a {@link PartitionedChangeSet}, without merging them. With
+ * fingerprints, every thread computes the fingerprints of a contiguous range of the keys into its own
+ * {@link FingerprintSet}, which are then merged, at the cost of adding one primitive long per change.
+ * </p>
+ *
+ * <p>
+ * The pool threads are daemon threads that terminate when they are idle, hence an instance costs nothing while no
+ * large change sets are submitted.
+ * </p>
+ */
+final class ParallelConflictChecker {
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  private final int parallelism;
+  private final boolean fingerprintChanges;
+  private final ThreadPoolExecutor executor;
+
+  ParallelConflictChecker(int parallelism, boolean fingerprintChanges) {
+    this.parallelism = parallelism;
+    this.fingerprintChanges = fingerprintChanges;
+    this.executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<Runnable>(),
+                                           new ThreadFactoryBuilder()
+                                             .setNameFormat("tx-conflict-check-%d")
+                                             .setDaemon(true)
+                                             .build());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Creates the change set for the given change keys.
+   * @param parts a list to which the parts of the change set are added, which together contain all changes, to be
+   *              passed to {@link #hasConflicts(CommittedChangeIndex, Transaction, List)}
+   */
+  Set<ChangeId> createChangeSet(Collection<byte[]> changeIds, List<Set<ChangeId>> parts) {
+    final byte[][] keys = changeIds.toArray(new byte[changeIds.size()][]);
+    if (fingerprintChanges) {
+      final FingerprintSet[] fingerprints = new FingerprintSet[parallelism];
+      invokeAll(keys.length, new RangeTask() {
+        @Override
+        void run(int part, int from, int to) {
+          FingerprintSet set = new FingerprintSet(to - from);
+          for (int i = from; i < to; i++) {
+            set.add(keys[i]);
+          }
+          fingerprints[part] = set;
+        }
+      });
+      FingerprintSet changes = new FingerprintSet(keys.length);
+      for (FingerprintSet set : fingerprints) {
+        changes.addAll(set);
+        parts.add(set);
+      }
+      return changes;
+    }
+
+    final PartitionedChangeSet changes = new PartitionedChangeSet(parallelism, keys.length);
+    // every thread buckets the changes of its range of keys by partition, and then adds the buckets of all
+    // ranges for its own partition, so that every change is only visited once in each pass
+    final List<ChangeId>[][] buckets = newBuckets(parallelism);
+    invokeAll(keys.length, new RangeTask() {
+      @Override
+      void run(int part, int from, int to) {
+        List<ChangeId>[] rangeBuckets = buckets[part];
+        for (int i = 0; i < rangeBuckets.length; i++) {
+          rangeBuckets[i] = Lists.newArrayListWithCapacity((to - from) / rangeBuckets.length + 1);
+        }
+        for (int i = from; i < to; i++) {
+          ChangeId change = new ChangeId(keys[i]);
+          rangeBuckets[changes.getPartition(change)].add(change);
+        }
+      }
+    });
+    invokeAll(parallelism, new RangeTask() {
+      @Override
+      void run(int part, int from, int to) {
+        Set<ChangeId> partition = changes.parts[part];
+        for (List<ChangeId>[] rangeBuckets : buckets) {
+          partition.addAll(rangeBuckets[part]);
+        }
+      }
+    });
+    Collections.addAll(parts, changes.parts);
+    return changes;
+  }
+
+  /**
+   * Returns whether any of the given parts of a change set has a conflict with the given transaction. This returns
+   * as soon as one conflict is found.
+   */
+  boolean hasConflicts(final CommittedChangeIndex index, final Transaction tx, List<Set<ChangeId>> parts) {
+    CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+    final AtomicBoolean conflict = new AtomicBoolean();
+    List<Future<Boolean>> futures = Lists.newArrayListWithCapacity(parts.size());
+    for (final Set<ChangeId> part : parts) {
+      futures.add(completion.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          if (!conflict.get() && index.hasConflicts(tx, part)) {
+            conflict.set(true);
+          }
+          return conflict.get();
+        }
+      }));
+    }
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        if (completion.take().get()) {
+          return true;
+        }
+      }
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      for (Future<Boolean> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<ChangeId>[][] newBuckets(int parallelism) {
+    return new List[parallelism][parallelism];
+  }
+
+  /**
+   * Stops the worker threads. Change sets that are still being built or checked fail.
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Splits the range from zero to the given size into one contiguous range per thread, and runs the given task
+   * for every range in the pool, waiting until all are done.
+   */
+  private void invokeAll(int size, final RangeTask task) {
+    List<Callable<Void>> callables = Lists.newArrayListWithCapacity(parallelism);
+    for (int part = 0; part < parallelism; part++) {
+      final int p = part;
+      final int from = (int) ((long) size * part / parallelism);
+      final int to = (int) ((long) size * (part + 1) / parallelism);
+      callables.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          task.run(p, from, to);
+          return null;
+        }
+      });
+    }
+    try {
+      for (Future<Void> future : executor.invokeAll(callables)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private abstract static class RangeTask {
+    abstract void run(int part, int from, int to);
+  }
+
+  /**
+   * A change set that consists of disjoint hash sets, each holding the changes of one partition of the hash codes.
+   * Like a {@link java.util.HashSet}, it is not thread-safe, but can be read concurrently once it is not modified
+   * anymore.
+   */
+  static final class PartitionedChangeSet extends AbstractSet<ChangeId> {
+    private final Set<ChangeId>[] parts;
+
+    @SuppressWarnings("unchecked")
+    PartitionedChangeSet(int numParts, int expectedSize) {
+      this.parts = new Set[numParts];
+      for (int i = 0; i < numParts; i++) {
+        parts[i] = Sets.newHashSetWithExpectedSize(expectedSize / numParts);
+      }
+    }
+
+    private int getPartition(ChangeId change) {
+      return CommittedChangeIndex.getShard(change.hashCode(), parts.length);
+    }
+
+    /**
+     * Returns the disjoint parts of this set.
+     */
+    List<Set<ChangeId>> getParts() {
+      return Collections.unmodifiableList(Arrays.asList(parts));
+    }
+
+    @Override
+    public boolean add(ChangeId change) {
+      return parts[getPartition(change)].add(change);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof ChangeId && parts[getPartition((ChangeId) o)].contains(o);
+    }
+
+    @Override
+    public Iterator<ChangeId> iterator() {
+      return Iterables.concat(parts).iterator();
+    }
+
+    @Override
+    public int size() {
+      int size = 0;
+      for (Set<ChangeId> part : parts) {
+        size += part.size();
+      }
+      return size;
+    }
+  }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra;
+
+import com.google.common.primitives.Longs;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * A range of committed change sets of the {@link TransactionManager} that was spilled from the heap to a file, which
+ * is memory-mapped for reading.
+ *
+ * <p>
+ * The file starts with a table of the fingerprints of all changes in the file, see {@link FingerprintSet}, sorted,
+ * each with the latest commit pointer under which a change with that fingerprint was committed. Checking a change
+ * for conflicts is a binary search in that table, similar to a lookup in the {@link CommittedChangeIndex}. The table
+ * is followed by a directory of the change sets, sorted by commit pointer, and by the change sets themselves, each
+ * with the sorted fingerprints of its changes and, unless only fingerprints are kept, the full change keys in the
+ * same order. Every change set is exposed as a read-only {@link Set} that decodes its changes from the file, which
+ * replaces the change set on the heap in the committed change sets, and can be written to snapshots.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and can be read concurrently. The file is deleted once all its change sets were pruned,
+ * while the mapping remains valid for the change sets that are still referenced, such as by a snapshot being taken.
+ * </p>
+ */
+final class SpilledChangeSets {
+  private static final Logger LOG = LoggerFactory.getLogger(SpilledChangeSets.class);
+
+  static final String FILE_PREFIX = "committed.";
+
+  private static final int MAGIC = 0x54584353;
+  private static final int HEADER_SIZE = 32;
+  private static final int ENTRY_SIZE = 2 * Longs.BYTES;
+  private static final int OFFSET_SIZE = 4;
+  // estimated heap size of a change set in the committed change sets, and of a change in a change set and in the
+  // committed change index, without the change key
+  private static final int CHANGE_SET_HEAP_SIZE = 96;
+  private static final int CHANGE_HEAP_SIZE = 120;
+  private static final int FINGERPRINT_HEAP_SIZE = 48;
+
+  private final File file;
+  private final ByteBuffer buffer;
+  private final boolean withKeys;
+  private final int numFingerprints;
+  private final int numChangeSets;
+  private final long firstCommit;
+  private final long lastCommit;
+  private final int directoryOffset;
+
+  private SpilledChangeSets(File file, ByteBuffer buffer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a file of spilled change sets: " + file);
+    }
+    this.withKeys = buffer.getInt(4) != 0;
+    this.numFingerprints = buffer.getInt(8);
+    this.numChangeSets = buffer.getInt(12);
+    this.firstCommit = buffer.getLong(16);
+    this.lastCommit = buffer.getLong(24);
+    this.directoryOffset = HEADER_SIZE + numFingerprints * ENTRY_SIZE;
+  }
+
+  /**
+   * Returns whether the given change set was spilled to disk.
+   */
+  static boolean isSpilled(Set<ChangeId> changes) {
+    return changes instanceof ChangeSet;
+  }
+
+  /**
+   * Returns the estimated heap size of a change set in the committed change sets, including its entries in the
+   * committed change index. A spilled change set does not take any heap.
+   */
+  static long estimateHeapBytes(Set<ChangeId> changes) {
+    if (changes instanceof ChangeSet) {
+      return 0;
+    }
+    if (changes instanceof FingerprintSet) {
+      return CHANGE_SET_HEAP_SIZE + (long) changes.size() * FINGERPRINT_HEAP_SIZE;
+    }
+    long bytes = CHANGE_SET_HEAP_SIZE;
+    for (ChangeId change : changes) {
+      bytes += CHANGE_HEAP_SIZE + ((change.getKey().length + 7) & ~7);
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes the given change sets to a file, and maps it for reading.
+   * @param file the file to write, which is replaced if it exists
+   * @param changeSets the change sets by commit pointer, which must not be empty
+   * @param withKeys whether to keep the full change keys, or only their fingerprints
+   */
+  static SpilledChangeSets write(File file, NavigableMap<Long, Set<ChangeId>> changeSets,
+                                 boolean withKeys) throws IOException {
+    SortedChanges[] sorted = new SortedChanges[changeSets.size()];
+    // the latest commit pointer of every fingerprint
+    Long2LongOpenHashMap latestCommits = new Long2LongOpenHashMap();
+    long offset = HEADER_SIZE;
+    int i = 0;
+    for (Map.Entry<Long, Set<ChangeId>> entry : changeSets.entrySet()) {
+      sorted[i] = new SortedChanges(entry.getValue(), withKeys);
+      for (long fingerprint : sorted[i].fingerprints) {
+        // the change sets are in the order of their commit pointers
+        latestCommits.put(fingerprint, entry.getKey().longValue());
+      }
+      offset += ENTRY_SIZE + sorted[i].getSize();
+      i++;
+    }
+    long[] table = latestCommits.keySet().toLongArray();
+    Arrays.sort(table);
+    offset += (long) table.length * ENTRY_SIZE;
+    if (offset > Integer.MAX_VALUE) {
+      throw new IOException("Too many changes to spill to a single file: " + offset + " bytes");
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(withKeys ? 1 : 0);
+      out.writeInt(table.length);
+      out.writeInt(changeSets.size());
+      out.writeLong(changeSets.firstKey());
+      out.writeLong(changeSets.lastKey());
+      for (long fingerprint : table) {
+        out.writeLong(fingerprint);
+        out.writeLong(latestCommits.get(fingerprint));
+      }
+      int setOffset = HEADER_SIZE + table.length * ENTRY_SIZE + changeSets.size() * ENTRY_SIZE;
+      i = 0;
+      for (Long commitPointer : changeSets.keySet()) {
+        out.writeLong(commitPointer);
+        out.writeInt(setOffset);
+        out.writeInt(sorted[i].fingerprints.length);
+        setOffset += sorted[i].getSize();
+        i++;
+      }
+      setOffset = HEADER_SIZE + table.length * ENTRY_SIZE + changeSets.size() * ENTRY_SIZE;
+      for (SortedChanges changes : sorted) {
+        changes.write(out, setOffset);
+        setOffset += changes.getSize();
+      }
+    } finally {
+      out.close();
+    }
+    return open(file);
+  }
+
+  private static SpilledChangeSets open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      // the mapping remains valid after the file is closed
+      return new SpilledChangeSets(file, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  long getFirstCommit() {
+    return firstCommit;
+  }
+
+  long getLastCommit() {
+    return lastCommit;
+  }
+
+  long getSize() {
+    return buffer.capacity();
+  }
+
+  /**
+   * Returns the change set committed with the given commit pointer, or {@code null} if there is none in this file.
+   */
+  @Nullable
+  Set<ChangeId> getChangeSet(long commitPointer) {
+    int index = lowerBound(directoryOffset, ENTRY_SIZE, numChangeSets, commitPointer);
+    if (index == numChangeSets || getCommit(index) != commitPointer) {
+      return null;
+    }
+    return new ChangeSet(index);
+  }
+
+  /**
+   * Returns whether any of the given changes was committed after the given transaction was started.
+   * @param verify whether to verify that a change with the same fingerprint as a committed change actually is the
+   *               same change, or to consider every change with the same fingerprint a conflict
+   */
+  boolean hasConflicts(Transaction tx, Collection<ChangeId> changes, boolean verify) {
+    long writePointer = tx.getWritePointer();
+    if (changes instanceof FingerprintSet) {
+      LongIterator iterator = ((FingerprintSet) changes).fingerprintIterator();
+      while (iterator.hasNext()) {
+        if (getLatestCommit(iterator.nextLong()) > writePointer) {
+          return true;
+        }
+      }
+      return false;
+    }
+    for (ChangeId change : changes) {
+      long latest = getLatestCommit(FingerprintSet.fingerprint(change.getKey()));
+      if (latest > writePointer && (!verify || isCommitted(change, writePointer, latest))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Deletes the file, which remains readable for the change sets that are still referenced.
+   */
+  void delete() {
+    if (!file.delete() && file.exists()) {
+      LOG.warn("Failed to delete file of spilled change sets {}", file);
+    }
+  }
+
+  /**
+   * Returns the latest commit pointer of a change with the given fingerprint, or zero if there is none.
+   */
+  private long getLatestCommit(long fingerprint) {
+    int index = lowerBound(HEADER_SIZE, ENTRY_SIZE, numFingerprints, fingerprint);
+    if (index == numFingerprints || buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE) != fingerprint) {
+      return 0L;
+    }
+    return buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE + Longs.BYTES);
+  }
+
+  /**
+   * Returns whether the given change is in one of the change sets committed after the given write pointer, up to
+   * the given latest commit pointer of its fingerprint.
+   */
+  private boolean isCommitted(ChangeId change, long writePointer, long latest) {
+    // most likely this is not a fingerprint collision, and the change was committed with the latest commit
+    for (int index = lowerBound(directoryOffset, ENTRY_SIZE, numChangeSets, latest);
+         index >= 0 && index < numChangeSets && getCommit(index) > writePointer; index--) {
+      if (new ChangeSet(index).contains(change)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private long getCommit(int index) {
+    return buffer.getLong(directoryOffset + index * ENTRY_SIZE);
+  }
+
+  /**
+   * Returns the index of the first of the given number of sorted entries of the given size, starting at the given
+   * offset, that starts with a value at least as large as the given value.
+   */
+  private int lowerBound(int offset, int entrySize, int count, long value) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (buffer.getLong(offset + mid * entrySize) < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * A spilled change set, which decodes its changes from the file.
+   */
+  private final class ChangeSet extends AbstractSet<ChangeId> {
+    private final int offset;
+    private final int size;
+
+    private ChangeSet(int index) {
+      this.offset = buffer.getInt(directoryOffset + index * ENTRY_SIZE + Longs.BYTES);
+      this.size = buffer.getInt(directoryOffset + index * ENTRY_SIZE + Longs.BYTES + OFFSET_SIZE);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof ChangeId)) {
+        return false;
+      }
+      byte[] key = ((ChangeId) o).getKey();
+      long fingerprint = FingerprintSet.fingerprint(key);
+      // two changes may have the same fingerprint, they are next to each other
+      for (int i = lowerBound(offset, Longs.BYTES, size, fingerprint);
+           i < size && buffer.getLong(offset + i * Longs.BYTES) == fingerprint; i++) {
+        if (!withKeys || keyEquals(i, key)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private int getKeyOffset(int i) {
+      return buffer.getInt(offset + size * Longs.BYTES + i * OFFSET_SIZE);
+    }
+
+    private boolean keyEquals(int i, byte[] key) {
+      int start = getKeyOffset(i);
+      if (getKeyOffset(i + 1) - start != key.length) {
+        return false;
+      }
+      for (int j = 0; j < key.length; j++) {
+        if (buffer.get(start + j) != key[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private byte[] getKey(int i) {
+      if (!withKeys) {
+        // the same as the changes of a fingerprint set
+        return Longs.toByteArray(buffer.getLong(offset + i * Longs.BYTES));
+      }
+      int start = getKeyOffset(i);
+      byte[] key = new byte[getKeyOffset(i + 1) - start];
+      ByteBuffer keyBuffer = buffer.duplicate();
+      keyBuffer.position(start);
+      keyBuffer.get(key);
+      return key;
+    }
+
+    @Override
+    public Iterator<ChangeId> iterator() {
+      return new Iterator<ChangeId>() {
+        private int next;
+
+        @Override
+        public boolean hasNext() {
+          return next < size;
+        }
+
+        @Override
+        public ChangeId next() {
+          if (next == size) {
+            throw new NoSuchElementException();
+          }
+          return new ChangeId(getKey(next++));
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /**
+   * The changes of a change set, sorted by their fingerprints, as written to the file.
+   */
+  private static final class SortedChanges {
+    private final long[] fingerprints;
+    private final byte[][] keys;
+    private final long keyBytes;
+
+    SortedChanges(Set<ChangeId> changes, boolean withKeys) {
+      fingerprints = new long[changes.size()];
+      int i = 0;
+      if (changes instanceof FingerprintSet) {
+        LongIterator iterator = ((FingerprintSet) changes).fingerprintIterator();
+        while (iterator.hasNext()) {
+          fingerprints[i++] = iterator.nextLong();
+        }
+      } else {
+        for (ChangeId change : changes) {
+          fingerprints[i++] = FingerprintSet.fingerprint(change.getKey());
+        }
+      }
+      if (!withKeys) {
+        Arrays.sort(fingerprints);
+        keys = null;
+        keyBytes = 0;
+        return;
+      }
+      keys = new byte[fingerprints.length][];
+      long bytes = 0;
+      i = 0;
+      for (ChangeId change : changes) {
+        keys[i++] = change.getKey();
+        bytes += change.getKey().length;
+      }
+      keyBytes = bytes;
+      it.unimi.dsi.fastutil.Arrays.quickSort(0, fingerprints.length, new AbstractIntComparator() {
+        @Override
+        public int compare(int k1, int k2) {
+          return Longs.compare(fingerprints[k1], fingerprints[k2]);
+        }
+      }, new Swapper() {
+        @Override
+        public void swap(int a, int b) {
+          long fingerprint = fingerprints[a];
+          fingerprints[a] = fingerprints[b];
+          fingerprints[b] = fingerprint;
+          byte[] key = keys[a];
+          keys[a] = keys[b];
+          keys[b] = key;
+        }
+      });
+    }
+
+    /**
+     * Returns the number of bytes of this change set in the file.
+     */
+    long getSize() {
+      long size = (long) fingerprints.length * Longs.BYTES;
+      if (keys != null) {
+        size += (long) (keys.length + 1) * OFFSET_SIZE + keyBytes;
+      }
+      return size;
+    }
+
+    /**
+     * Writes the sorted fingerprints, followed by the offsets of the keys relative to the start of the file, and by
+     * the keys themselves.
+     */
+    void write(DataOutputStream out, int offset) throws IOException {
+      for (long fingerprint : fingerprints) {
+        out.writeLong(fingerprint);
+      }
+      if (keys == null) {
+        return;
+      }
+      int keyOffset = offset + fingerprints.length * Longs.BYTES + (keys.length + 1) * OFFSET_SIZE;
+      for (byte[] key : keys) {
+        out.writeInt(keyOffset);
+        keyOffset += key.length;
+      }
+      out.writeInt(keyOffset);
+      for (byte[] key : keys) {
+        out.write(key);
+      }
+    }
+  }
+}
@@ -60,6 +60,20 @@ public class TransactionContext {
 
   public void start() throws TransactionFailureException {
     currentTx = txClient.startShort();
+    startTxAwares();
+  }
+
+  /**
+   * Starts a read-only transaction, see {@link TransactionSystemClient#startReadOnly()}. Finishing it does not
+   * involve the transaction system, but fails if any of the transaction-awares has changes, which are then rolled
+   * back.
+   */
+  public void startReadOnly() throws TransactionFailureException {
+    currentTx = txClient.startReadOnly();
+    startTxAwares();
+  }
+
+  private void startTxAwares() throws TransactionFailureException {
     for (TransactionAware txAware : txAwares) {
       try {
         txAware.startTx(currentTx);
@@ -67,7 +81,9 @@ public class TransactionContext {
         String message = String.format("Unable to start transaction-aware '%s' for transaction %d. ",
                                        txAware.getTransactionAwareName(), currentTx.getWritePointer());
         LOG.warn(message, e);
-        txClient.abort(currentTx);
+        if (!isReadOnly()) {
+          txClient.abort(currentTx);
+        }
         throw new TransactionFailureException(message, e);
       }
     }
@@ -102,7 +118,7 @@ public class TransactionContext {
    * is rethrown wrapped into a TransactionFailureException, after all remaining datasets have
    * completed rollback. If an existing exception is passed in, that exception is thrown in either
    * case, whether the rollback is successful or not. In other words, this method always throws the
-   * first exception that it encounters.
+   * first exception that it encounters. A read-only transaction is only rolled back in the transaction-awares.
    * @param cause the original exception that caused the abort
    * @throws TransactionFailureException for any exception that is encountered.
    */
@@ -128,7 +144,14 @@ public class TransactionContext {
           success = false;
         }
       }
-      if (success) {
+      if (isReadOnly()) {
+        // a read-only transaction is not known to the transaction system, and its write pointer is never the version
+        // of committed data, nor visible to any transaction, so that changes that were not rolled back are harmless
+        if (!success) {
+          LOG.warn("Unable to roll back changes of read-only transaction with read pointer {}.",
+                   currentTx.getReadPointer());
+        }
+      } else if (success) {
         txClient.abort(currentTx);
       } else {
         txClient.invalidate(currentTx.getWritePointer());
@@ -155,6 +178,16 @@ public class TransactionContext {
       }
     }
 
+    if (isReadOnly()) {
+      if (!changes.isEmpty()) {
+        String message = String.format("Read-only transaction with read pointer %d has changes.",
+                                       currentTx.getReadPointer());
+        abort(new TransactionFailureException(message));
+        // abort will throw that exception
+      }
+      return;
+    }
+
     boolean canCommit = false;
     try {
       canCommit = txClient.canCommit(currentTx, changes);
@@ -201,6 +234,10 @@ public class TransactionContext {
   }
 
   private void commit() throws TransactionFailureException {
+    if (isReadOnly()) {
+      // nothing to make visible
+      return;
+    }
     boolean commitSuccess = false;
     try {
       commitSuccess = txClient.commit(currentTx);
@@ -222,6 +259,10 @@ public class TransactionContext {
     }
   }
 
+  private boolean isReadOnly() {
+    return currentTx.getType() == TransactionType.READ_ONLY;
+  }
+
   private void postCommit() throws TransactionFailureException {
     TransactionFailureException cause = null;
     for (TransactionAware txAware : txAwares) {
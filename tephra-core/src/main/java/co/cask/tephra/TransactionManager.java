@@ -17,39 +17,63 @@
 package co.cask.tephra;
 
 import co.cask.tephra.metrics.TxMetricsCollector;
+import co.cask.tephra.persist.CorruptTransactionEditException;
+import co.cask.tephra.persist.EncodedChangeSet;
 import co.cask.tephra.persist.NoOpTransactionStateStorage;
 import co.cask.tephra.persist.TransactionEdit;
 import co.cask.tephra.persist.TransactionLog;
+import co.cask.tephra.persist.TransactionLogPrefetcher;
 import co.cask.tephra.persist.TransactionLogReader;
 import co.cask.tephra.persist.TransactionSnapshot;
+import co.cask.tephra.persist.TransactionSnapshotDelta;
+import co.cask.tephra.persist.TransactionStateManifest;
 import co.cask.tephra.persist.TransactionStateStorage;
 import co.cask.tephra.snapshot.SnapshotCodecProvider;
+import co.cask.tephra.util.InvalidTxSet;
+import co.cask.tephra.util.MapCapture;
 import co.cask.tephra.util.TxUtils;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.Inject;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongRBTreeSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
 import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.annotation.Nonnull;
@@ -107,27 +131,97 @@ public class TransactionManager extends AbstractService {
 
   // poll every 1 second to check whether a snapshot is needed
   private static final long SNAPSHOT_POLL_INTERVAL = 1000L;
+  // replay rate assumed to estimate the replay time of the log, until one is measured on startup
+  private static final long DEFAULT_REPLAY_EDITS_PER_SEC = 100000L;
+  // minimum number of replayed edits to measure the replay rate
+  private static final long MIN_REPLAY_EDITS_FOR_RATE = 10000L;
+  // estimated size of an edit in the log, without its changes, and of the length of a change
+  private static final int EDIT_OVERHEAD_BYTES = 24;
+  private static final int CHANGE_OVERHEAD_BYTES = 1;
 
   //poll every 10 second to emit metrics
   private static final long METRICS_POLL_INTERVAL = 10000L;
 
-  private static final long[] NO_INVALID_TX = { };
+  // poll every 100 milliseconds to check whether the group committer was stopped
+  private static final long GROUP_COMMIT_POLL_INTERVAL = 100L;
+
+  // poll every 1 second to check whether committed change sets need to be spilled to disk
+  private static final long SPILL_POLL_INTERVAL = 1000L;
+
+  private static final long[] NO_IN_PROGRESS_TX = { };
+
+  // the write pointer of all read-only transactions, which is never the version of any data
+  private static final long READ_ONLY_WRITE_POINTER = Long.MAX_VALUE - 1;
 
   // Transactions that are in progress, with their info.
   private final NavigableMap<Long, InProgressTx> inProgress = new ConcurrentSkipListMap<Long, InProgressTx>();
-
-  // the list of transactions that are invalid (not properly committed/aborted, or timed out)
-  // TODO: explain usage of two arrays
-  private final LongArrayList invalid = new LongArrayList();
-  private long[] invalidArray = NO_INVALID_TX;
+  // sorted ids of the in-progress transactions. This is never modified but replaced whenever a transaction starts
+  // or finishes, such that the same array can be shared by all transactions started in between.
+  private long[] inProgressArray = NO_IN_PROGRESS_TX;
+  // the invalid ids of read-only transactions, which also exclude their write pointer, shared by all read-only
+  // transactions until the invalid ids they were copied from change
+  private long[] readOnlyInvalid;
+  private long[] readOnlyInvalidSource;
+  // ids of the in-progress transactions that are not long-running, in order
+  private final LongSortedSet shortInProgress = new LongRBTreeSet();
+  // the id of the first in-progress transaction that is not long-running, this is the first of shortInProgress
+  private long firstShortInProgress = Transaction.NO_TX_IN_PROGRESS;
+  // the in-progress transactions by expiration time, to find timed-out transactions without scanning all of them
+  private final ExpirationIndex expirationIndex = new ExpirationIndex();
+  // captures of the state that are not turned into snapshots yet, which must see every modification of the state
+  private final List<StateCapture> captures = new CopyOnWriteArrayList<StateCapture>();
+
+  // the sorted set of transactions that are invalid (not properly committed/aborted, or timed out)
+  private final InvalidTxSet invalid = new InvalidTxSet();
 
   // todo: use moving array instead (use Long2ObjectMap<byte[]> in fastutil)
   // todo: should this be consolidated with inProgress?
   // commit time next writePointer -> changes made by this tx
-  private final NavigableMap<Long, Set<ChangeId>> committedChangeSets =
+  private final ConcurrentNavigableMap<Long, Set<ChangeId>> committedChangeSets =
     new ConcurrentSkipListMap<Long, Set<ChangeId>>();
   // not committed yet
   private final Map<Long, Set<ChangeId>> committingChangeSets = Maps.newConcurrentMap();
+  // change key -> latest commit pointer, over all of the committed change sets, used for conflict detection
+  private final CommittedChangeIndex committedChangeIndex;
+  // whether the committing and committed change sets only keep fingerprints of the change keys
+  private final boolean fingerprintChanges;
+  // whether any of the recovered change sets were persisted as fingerprints of the change keys
+  private boolean recoveredChangeFingerprints;
+  // change sets of at least this size are built and checked for conflicts by the parallel conflict checker
+  private final int parallelConflictThreshold;
+  private final int parallelConflictThreads;
+  private volatile ParallelConflictChecker parallelConflictChecker;
+  // whether pruning of the committed change sets is deferred until the current transaction log is replayed
+  private boolean deferPruning;
+  // change sets committed in the transaction log that is being replayed, by commit pointer, which are only added to
+  // the committed change sets once the log is replayed, and only if they are not pruned right away
+  private final NavigableMap<Long, List<Set<ChangeId>>> replayedCommits = Maps.newTreeMap();
+  // number of threads that read the transaction logs ahead of replaying them
+  private final int replayThreads;
+
+  // the estimated heap size of the committed change sets, beyond which the oldest of them are spilled to disk
+  private final long committedHeapBudget;
+  private final String configuredSpillDir;
+  private File spillDir;
+  private DaemonThreadExecutor spillThread;
+  // serializes spilling, so that the same change sets are never spilled twice
+  private final Object spillLock = new Object();
+  // guarded by this: the estimated heap size of the committed change sets that are not spilled, the commit pointer
+  // of the last spilled change set, and how often the committed change sets were cleared
+  private long committedHeapBytes;
+  private long lastSpilledCommit;
+  private long committedClears;
+
+  private final long standbyPollMillis;
+  // the position of a hot standby in the transaction logs, guarded by this: the timestamp of the log that is tailed,
+  // or of the restored snapshot until a log was tailed, the number of edits that were applied from that log, and the
+  // reader that is kept open to continue after them
+  private boolean standby;
+  private boolean tailingLog;
+  private long tailLogTimestamp;
+  private long tailLogEdits;
+  private TransactionLogReader tailReader;
+  private DaemonThreadExecutor standbyThread;
 
   private long readPointer;
   private long lastWritePointer;
@@ -136,6 +230,9 @@ public class TransactionManager extends AbstractService {
   private final TransactionStateStorage persistor;
 
   private final int cleanupInterval;
+  private final boolean cleanupPrecise;
+  // the time at which the cleanup thread is scheduled to run next
+  private volatile long nextCleanupTime = Long.MAX_VALUE;
   private final int defaultTimeout;
   private final int defaultLongTimeout;
   private DaemonThreadExecutor cleanupThread = null;
@@ -148,9 +245,37 @@ public class TransactionManager extends AbstractService {
   private final long snapshotFrequencyInSeconds;
   // number of most recent snapshots to retain
   private final int snapshotRetainCount;
+  // snapshots are also taken once the edits logged since the last snapshot exceed any of these, if positive
+  private final long snapshotLogEdits;
+  private final long snapshotLogBytes;
+  private final long snapshotReplayMillis;
+  // whether to skip periodic snapshots if nothing was logged since the last snapshot
+  private final boolean snapshotSkipUnchanged;
+  // edits logged since the last snapshot, including those replayed on startup, and their estimated size
+  private final AtomicLong logEditsSinceSnapshot = new AtomicLong();
+  private final AtomicLong logBytesSinceSnapshot = new AtomicLong();
+  // time of the last periodic snapshot that was skipped as nothing changed
+  private volatile long lastSkippedSnapshotTime;
+  // frequency in seconds to write the visibility state in between snapshots, or 0 to use the snapshot frequency
+  private final long visibilityStateIntervalSeconds;
+  // timestamp of the last visibility state written, either with a snapshot or on its own
+  private volatile long lastVisibilityStateTime;
+  // number of delta snapshots to take between full snapshots, and the number taken since the last full snapshot
+  private final int snapshotDeltas;
+  private int deltasSinceFullSnapshot;
+  private boolean deltaSnapshotsSupported = true;
+  // capture of the last snapshot, which tracks the keys updated since then for the next delta snapshot
+  private StateCapture lastSnapshotCapture;
+  private volatile long replayEditsPerSec = DEFAULT_REPLAY_EDITS_PER_SEC;
   private DaemonThreadExecutor snapshotThread;
   private DaemonThreadExecutor metricsThread;
 
+  // whether to apply state changes in batches, with one log sync per batch
+  private final boolean groupCommitEnabled;
+  private final int groupCommitBatchSize;
+  private final long groupCommitLingerMicros;
+  private volatile GroupCommitter groupCommitter;
+
   // lock guarding change of the current transaction log
   private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
   private final Lock logReadLock = logLock.readLock();
@@ -167,6 +292,8 @@ public class TransactionManager extends AbstractService {
     this.persistor = persistor;
     cleanupInterval = conf.getInt(TxConstants.Manager.CFG_TX_CLEANUP_INTERVAL,
                                   TxConstants.Manager.DEFAULT_TX_CLEANUP_INTERVAL);
+    cleanupPrecise = conf.getBoolean(TxConstants.Manager.CFG_TX_CLEANUP_PRECISE,
+                                     TxConstants.Manager.DEFAULT_TX_CLEANUP_PRECISE);
     defaultTimeout = conf.getInt(TxConstants.Manager.CFG_TX_TIMEOUT,
                                  TxConstants.Manager.DEFAULT_TX_TIMEOUT);
     defaultLongTimeout = conf.getInt(TxConstants.Manager.CFG_TX_LONG_TIMEOUT,
@@ -176,16 +303,88 @@ public class TransactionManager extends AbstractService {
     // must always keep at least 1 snapshot
     snapshotRetainCount = Math.max(conf.getInt(TxConstants.Manager.CFG_TX_SNAPSHOT_RETAIN,
                                                TxConstants.Manager.DEFAULT_TX_SNAPSHOT_RETAIN), 1);
+    snapshotLogEdits = conf.getLong(TxConstants.Manager.CFG_TX_SNAPSHOT_LOG_EDITS,
+                                    TxConstants.Manager.DEFAULT_TX_SNAPSHOT_LOG_EDITS);
+    snapshotLogBytes = conf.getLong(TxConstants.Manager.CFG_TX_SNAPSHOT_LOG_BYTES,
+                                    TxConstants.Manager.DEFAULT_TX_SNAPSHOT_LOG_BYTES);
+    snapshotReplayMillis = conf.getLong(TxConstants.Manager.CFG_TX_SNAPSHOT_REPLAY_TIME,
+                                        TxConstants.Manager.DEFAULT_TX_SNAPSHOT_REPLAY_TIME);
+    snapshotSkipUnchanged = conf.getBoolean(TxConstants.Manager.CFG_TX_SNAPSHOT_SKIP_UNCHANGED,
+                                            TxConstants.Manager.DEFAULT_TX_SNAPSHOT_SKIP_UNCHANGED);
+    visibilityStateIntervalSeconds = conf.getLong(TxConstants.Manager.CFG_TX_VISIBILITY_STATE_INTERVAL,
+                                                  TxConstants.Manager.DEFAULT_TX_VISIBILITY_STATE_INTERVAL);
+    snapshotDeltas = conf.getInt(TxConstants.Manager.CFG_TX_SNAPSHOT_DELTAS,
+                                 TxConstants.Manager.DEFAULT_TX_SNAPSHOT_DELTAS);
+    groupCommitEnabled = conf.getBoolean(TxConstants.Manager.CFG_TX_GROUP_COMMIT_ENABLED,
+                                         TxConstants.Manager.DEFAULT_TX_GROUP_COMMIT_ENABLED);
+    groupCommitBatchSize = Math.max(conf.getInt(TxConstants.Manager.CFG_TX_GROUP_COMMIT_BATCH_SIZE,
+                                                TxConstants.Manager.DEFAULT_TX_GROUP_COMMIT_BATCH_SIZE), 1);
+    groupCommitLingerMicros = conf.getLong(TxConstants.Manager.CFG_TX_GROUP_COMMIT_LINGER,
+                                           TxConstants.Manager.DEFAULT_TX_GROUP_COMMIT_LINGER);
+    int conflictShards = Math.max(conf.getInt(TxConstants.Manager.CFG_TX_CONFLICT_SHARDS,
+                                              TxConstants.Manager.DEFAULT_TX_CONFLICT_SHARDS), 1);
+    if (conf.getBoolean(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_ENABLED,
+                        TxConstants.Manager.DEFAULT_TX_CHANGE_FINGERPRINT_ENABLED)) {
+      String collisions = conf.get(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS,
+                                   TxConstants.Manager.DEFAULT_TX_CHANGE_FINGERPRINT_COLLISIONS);
+      if (TxConstants.Manager.FINGERPRINT_COLLISIONS_CONFLICT.equals(collisions)) {
+        // only this snapshot codec records that the change sets of a snapshot hold fingerprints
+        if (new SnapshotCodecProvider(conf).getVersion() < 3) {
+          throw new IllegalArgumentException(TxConstants.Manager.FINGERPRINT_COLLISIONS_CONFLICT + " for " +
+                                               TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS +
+                                               " requires snapshot codec version 3 in " +
+                                               TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES);
+        }
+        fingerprintChanges = true;
+        committedChangeIndex = CommittedChangeIndex.byFingerprint(conflictShards, null);
+      } else if (TxConstants.Manager.FINGERPRINT_COLLISIONS_VERIFY.equals(collisions)) {
+        fingerprintChanges = false;
+        committedChangeIndex = CommittedChangeIndex.byFingerprint(conflictShards, committedChangeSets);
+      } else {
+        throw new IllegalArgumentException("Invalid value for " +
+                                             TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS + ": " +
+                                             collisions);
+      }
+    } else {
+      fingerprintChanges = false;
+      committedChangeIndex = CommittedChangeIndex.byKey(conflictShards);
+    }
+    parallelConflictThreshold = conf.getInt(TxConstants.Manager.CFG_TX_CONFLICT_PARALLEL_THRESHOLD,
+                                            TxConstants.Manager.DEFAULT_TX_CONFLICT_PARALLEL_THRESHOLD);
+    int threads = conf.getInt(TxConstants.Manager.CFG_TX_CONFLICT_PARALLEL_THREADS,
+                              TxConstants.Manager.DEFAULT_TX_CONFLICT_PARALLEL_THREADS);
+    parallelConflictThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    replayThreads = Math.max(conf.getInt(TxConstants.Manager.CFG_TX_REPLAY_THREADS,
+                                         TxConstants.Manager.DEFAULT_TX_REPLAY_THREADS), 1);
+    standbyPollMillis = Math.max(conf.getLong(TxConstants.Manager.CFG_TX_STANDBY_POLL_INTERVAL,
+                                              TxConstants.Manager.DEFAULT_TX_STANDBY_POLL_INTERVAL), 1L);
+    committedHeapBudget = conf.getLong(TxConstants.Manager.CFG_TX_COMMITTED_HEAP_BUDGET,
+                                       TxConstants.Manager.DEFAULT_TX_COMMITTED_HEAP_BUDGET);
+    configuredSpillDir = conf.get(TxConstants.Manager.CFG_TX_COMMITTED_SPILL_DIR);
     this.txMetricsCollector = txMetricsCollector;
     clear();
   }
 
   private void clear() {
+    for (StateCapture capture : captures) {
+      capture.beforeClear();
+    }
     invalid.clear();
-    invalidArray = NO_INVALID_TX;
     inProgress.clear();
+    inProgressArray = NO_IN_PROGRESS_TX;
+    shortInProgress.clear();
+    firstShortInProgress = Transaction.NO_TX_IN_PROGRESS;
+    expirationIndex.clear();
     committedChangeSets.clear();
+    committedChangeIndex.clear();
+    for (SpilledChangeSets spilled : committedChangeIndex.removeSpilled(Long.MAX_VALUE)) {
+      spilled.delete();
+    }
+    committedHeapBytes = 0;
+    lastSpilledCommit = 0;
+    committedClears++;
     committingChangeSets.clear();
+    recoveredChangeFingerprints = false;
     lastWritePointer = 0;
     readPointer = 0;
     lastSnapshotTime = 0;
@@ -198,18 +397,27 @@ public class TransactionManager extends AbstractService {
   @Override
   public synchronized void doStart() {
     LOG.info("Starting transaction manager.");
-    // start up the persistor
-    persistor.startAndWait();
-    // establish defaults in case there is no persistence
-    clear();
-    // attempt to recover state from last run
-    recoverState();
+    if (standby) {
+      // the state was kept up to date as a hot standby, only the last edits need to be applied
+      promoteStandby();
+    } else {
+      // start up the persistor
+      persistor.startAndWait();
+      // establish defaults in case there is no persistence
+      clear();
+      // attempt to recover state from last run
+      recoverState();
+    }
+    checkRecoveredChangeFingerprints();
     // start the periodic cleanup thread
     startCleanupThread();
     startSnapshotThread();
     startMetricsThread();
     // initialize the WAL if we did not force a snapshot in recoverState()
     initLog();
+    startGroupCommitter();
+    startParallelConflictChecker();
+    startSpillThread();
     // initialize next write pointer if needed
     if (lastWritePointer == 0) {
       lastWritePointer = getNextWritePointer();
@@ -234,7 +442,8 @@ public class TransactionManager extends AbstractService {
       return;
     }
     LOG.info("Starting periodic timed-out transaction cleanup every " + cleanupInterval +
-               " seconds with default timeout of " + defaultTimeout + " seconds.");
+               " seconds with default timeout of " + defaultTimeout + " seconds" +
+               (cleanupPrecise ? ", and at the expiration time of each transaction." : "."));
     this.cleanupThread = new DaemonThreadExecutor("tx-clean-timeout") {
       @Override
       public void doRun() {
@@ -243,26 +452,159 @@ public class TransactionManager extends AbstractService {
 
       @Override
       public long getSleepMillis() {
-        return cleanupInterval * 1000;
+        long sleepMillis = cleanupInterval * 1000L;
+        if (cleanupPrecise) {
+          // a transaction times out once the current time is past its expiration
+          long untilExpiration = expirationIndex.getNextExpiration() - System.currentTimeMillis() + 1;
+          sleepMillis = Math.max(1L, Math.min(sleepMillis, untilExpiration));
+        }
+        nextCleanupTime = System.currentTimeMillis() + sleepMillis;
+        return sleepMillis;
       }
     };
     cleanupThread.start();
   }
 
+  private void startParallelConflictChecker() {
+    if (parallelConflictThreshold <= 0 || parallelConflictThreads <= 1) {
+      return;
+    }
+    LOG.info("Checking change sets of at least " + parallelConflictThreshold + " changes for conflicts with " +
+               parallelConflictThreads + " threads.");
+    parallelConflictChecker = new ParallelConflictChecker(parallelConflictThreads, fingerprintChanges);
+  }
+
+  private void startSpillThread() {
+    if (committedHeapBudget <= 0) {
+      return;
+    }
+    spillDir = configuredSpillDir != null ? new File(configuredSpillDir) : Files.createTempDir();
+    if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+      throw new IllegalStateException("Unable to create directory for spilled change sets " + spillDir);
+    }
+    // the files of a previous run are not needed, the committed change sets were recovered without them
+    File[] files = spillDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith(SpilledChangeSets.FILE_PREFIX) && !file.delete()) {
+          LOG.warn("Failed to delete file of spilled change sets {}", file);
+        }
+      }
+    }
+    LOG.info("Spilling committed change sets beyond an estimated heap size of " + committedHeapBudget +
+               " bytes to " + spillDir);
+    spillThread = new DaemonThreadExecutor("tx-spill") {
+      @Override
+      public void doRun() {
+        try {
+          spillCommittedChangeSets();
+        } catch (IOException e) {
+          LOG.warn("Failed to spill committed change sets, will retry", e);
+        }
+      }
+
+      @Override
+      protected long getSleepMillis() {
+        return SPILL_POLL_INTERVAL;
+      }
+    };
+    spillThread.start();
+  }
+
+  /**
+   * Spills the oldest committed change sets that are on the heap to a file, if the committed change sets exceed
+   * their heap budget, until they take at most half of it. The file is written without holding the lock, as change
+   * sets are never modified once they were added, and the latest change set, which commits may still be merged into,
+   * is never spilled. Once the file is written, the spilled change sets replace those on the heap, and their changes
+   * are removed from the committed change index.
+   */
+  void spillCommittedChangeSets() throws IOException {
+    synchronized (spillLock) {
+      doSpillCommittedChangeSets();
+    }
+  }
+
+  private void doSpillCommittedChangeSets() throws IOException {
+    NavigableMap<Long, Set<ChangeId>> toSpill = new TreeMap<Long, Set<ChangeId>>();
+    long clears;
+    synchronized (this) {
+      if (committedHeapBytes <= committedHeapBudget || deferPruning || committedChangeSets.isEmpty()) {
+        return;
+      }
+      clears = committedClears;
+      long toRelease = committedHeapBytes - committedHeapBudget / 2;
+      long released = 0;
+      for (Map.Entry<Long, Set<ChangeId>> entry : committedChangeSets.subMap(
+        lastSpilledCommit, false, committedChangeSets.lastKey(), false).entrySet()) {
+        if (released >= toRelease) {
+          break;
+        }
+        toSpill.put(entry.getKey(), entry.getValue());
+        released += SpilledChangeSets.estimateHeapBytes(entry.getValue());
+      }
+    }
+    if (toSpill.isEmpty()) {
+      return;
+    }
+    Stopwatch timer = new Stopwatch().start();
+    SpilledChangeSets spilled = SpilledChangeSets.write(
+      new File(spillDir, SpilledChangeSets.FILE_PREFIX + toSpill.firstKey()), toSpill, !fingerprintChanges);
+    synchronized (this) {
+      if (committedClears != clears) {
+        // the committed change sets were restored from a snapshot in the meantime
+        spilled.delete();
+        return;
+      }
+      // conflicts with the spilled changes must be found in the spilled change sets before they are removed from
+      // the index
+      committedChangeIndex.addSpilled(spilled);
+      for (Map.Entry<Long, Set<ChangeId>> entry : toSpill.entrySet()) {
+        // the spilled change set has the same changes, hence captures of the state need not be notified; change sets
+        // that were pruned in the meantime stay pruned
+        if (committedChangeSets.replace(entry.getKey(), entry.getValue(), spilled.getChangeSet(entry.getKey()))) {
+          committedHeapBytes -= SpilledChangeSets.estimateHeapBytes(entry.getValue());
+        }
+        // changes that were committed again after the spilled change sets stay in the index
+        committedChangeIndex.remove(entry.getValue(), spilled.getLastCommit() + 1);
+      }
+      lastSpilledCommit = spilled.getLastCommit();
+    }
+    LOG.info("Spilled " + toSpill.size() + " committed change sets to " + spilled.getFile() + " (" +
+               spilled.getSize() + " bytes) in " + timer.elapsedMillis() + " ms");
+  }
+
+  private void startGroupCommitter() {
+    if (!groupCommitEnabled) {
+      return;
+    }
+    LOG.info("Starting group commit with batch size " + groupCommitBatchSize + " and linger time of " +
+               groupCommitLingerMicros + " microseconds.");
+    this.groupCommitter = new GroupCommitter(groupCommitBatchSize, groupCommitLingerMicros);
+    groupCommitter.start();
+  }
+
   private void startSnapshotThread() {
-    if (snapshotFrequencyInSeconds > 0) {
+    if (snapshotFrequencyInSeconds > 0 || snapshotLogEdits > 0 || snapshotLogBytes > 0 || snapshotReplayMillis > 0 ||
+      visibilityStateIntervalSeconds > 0) {
       LOG.info("Starting periodic snapshot thread, frequency = " + snapshotFrequencyInSeconds +
-          " seconds, location = " + persistor.getLocation());
+          " seconds, log edits = " + snapshotLogEdits + ", log bytes = " + snapshotLogBytes +
+          ", replay time = " + snapshotReplayMillis + " ms, visibility state frequency = " +
+          visibilityStateIntervalSeconds + " seconds, location = " + persistor.getLocation());
       this.snapshotThread = new DaemonThreadExecutor("tx-snapshot") {
         @Override
         public void doRun() {
-          long currentTime = System.currentTimeMillis();
-          if (lastSnapshotTime < (currentTime - snapshotFrequencyInSeconds * 1000)) {
+          long now = System.currentTimeMillis();
+          String trigger = getSnapshotTrigger(now);
+          if (trigger != null) {
+            txMetricsCollector.gauge("snapshot.trigger." + trigger, 1);
             try {
               doSnapshot(false);
             } catch (IOException ioe) {
               LOG.error("Periodic snapshot failed!", ioe);
             }
+          } else if (isVisibilityStateDue(now)) {
+            // also keeps the visibility state fresh for the coprocessors if periodic snapshots are skipped
+            writeVisibilityState();
           }
         }
 
@@ -286,15 +628,62 @@ public class TransactionManager extends AbstractService {
     }
   }
 
+  /**
+   * Returns why a snapshot should be taken now, as the suffix of the metric for that reason, or {@code null} if no
+   * snapshot is needed.
+   */
+  private String getSnapshotTrigger(long currentTime) {
+    long edits = logEditsSinceSnapshot.get();
+    if (snapshotLogEdits > 0 && edits >= snapshotLogEdits) {
+      return "edits";
+    }
+    if (snapshotLogBytes > 0 && logBytesSinceSnapshot.get() >= snapshotLogBytes) {
+      return "bytes";
+    }
+    if (snapshotReplayMillis > 0 && edits * 1000 / replayEditsPerSec >= snapshotReplayMillis) {
+      return "replay";
+    }
+    long intervalMillis = snapshotFrequencyInSeconds * 1000;
+    if (snapshotFrequencyInSeconds > 0 && Math.max(lastSnapshotTime, lastSkippedSnapshotTime) < currentTime -
+      intervalMillis) {
+      if (snapshotSkipUnchanged && edits == 0 && lastSnapshotTime > 0) {
+        LOG.debug("Skipping periodic snapshot, as nothing was logged since the last snapshot");
+        lastSkippedSnapshotTime = currentTime;
+        txMetricsCollector.gauge("snapshot.skipped", 1);
+        return null;
+      }
+      return "interval";
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether the visibility state should be written now, because neither a snapshot nor a visibility state
+   * was written within the visibility state interval, or the snapshot interval if that is not configured.
+   */
+  private boolean isVisibilityStateDue(long currentTime) {
+    long intervalSeconds = visibilityStateIntervalSeconds > 0 ? visibilityStateIntervalSeconds
+      : snapshotFrequencyInSeconds;
+    return intervalSeconds > 0 && lastVisibilityStateTime < currentTime - intervalSeconds * 1000;
+  }
+
   // Emits Transaction Data structures size as metrics
   private void startMetricsThread() {
     LOG.info("Starting periodic Metrics Emitter thread, frequency = " + METRICS_POLL_INTERVAL);
     this.metricsThread = new DaemonThreadExecutor("tx-metrics") {
       @Override
       public void doRun() {
+        txMetricsCollector.gauge("log.edits.since.snapshot",
+                                 (int) Math.min(logEditsSinceSnapshot.get(), Integer.MAX_VALUE));
+        txMetricsCollector.gauge("log.kb.since.snapshot",
+                                 (int) Math.min(logBytesSinceSnapshot.get() / 1024, Integer.MAX_VALUE));
         txMetricsCollector.gauge("committing.size", committingChangeSets.size());
         txMetricsCollector.gauge("committed.size", committedChangeSets.size());
-        txMetricsCollector.gauge("invalid.size", invalidArray.length);
+        txMetricsCollector.gauge("committed.index.size", committedChangeIndex.size());
+        txMetricsCollector.gauge("invalid.size", invalid.size());
+        if (fingerprintChanges) {
+          txMetricsCollector.gauge("change.fingerprint.saved.kb", (int) (getFingerprintSavedBytes() / 1024));
+        }
       }
 
       @Override
@@ -302,7 +691,11 @@ public class TransactionManager extends AbstractService {
         // perform a final metrics emit
         txMetricsCollector.gauge("committing.size", committingChangeSets.size());
         txMetricsCollector.gauge("committed.size", committedChangeSets.size());
-        txMetricsCollector.gauge("invalid.size", invalidArray.length);
+        txMetricsCollector.gauge("committed.index.size", committedChangeIndex.size());
+        txMetricsCollector.gauge("invalid.size", invalid.size());
+        if (fingerprintChanges) {
+          txMetricsCollector.gauge("change.fingerprint.saved.kb", (int) (getFingerprintSavedBytes() / 1024));
+        }
       }
 
       @Override
@@ -313,6 +706,20 @@ public class TransactionManager extends AbstractService {
     metricsThread.start();
   }
 
+  /**
+   * Returns the estimated number of heap bytes saved by only keeping fingerprints of the committing and committed
+   * changes.
+   */
+  private long getFingerprintSavedBytes() {
+    long savedBytes = 0;
+    for (Set<ChangeId> changes : Iterables.concat(committingChangeSets.values(), committedChangeSets.values())) {
+      if (changes instanceof FingerprintSet) {
+        savedBytes += ((FingerprintSet) changes).getSavedBytes();
+      }
+    }
+    return savedBytes;
+  }
+
   private void cleanupTimedOutTransactions() {
     List<TransactionEdit> invalidEdits = null;
     this.logReadLock.lock();
@@ -323,32 +730,25 @@ public class TransactionManager extends AbstractService {
         }
 
         long currentTime = System.currentTimeMillis();
-        List<Long> timedOut = Lists.newArrayList();
-        for (Map.Entry<Long, InProgressTx> tx : inProgress.entrySet()) {
-          long expiration = tx.getValue().getExpiration();
-          if (expiration >= 0L && currentTime > expiration) {
-            // timed out, remember tx id (can't remove while iterating over entries)
-            timedOut.add(tx.getKey());
-            LOG.info("Tx invalid list: added tx {} because of timeout", tx.getKey());
-          } else if (expiration < 0) {
+        LongArrayList timedOut = expirationIndex.getExpired(currentTime);
+        for (long tx : timedOut) {
+          long expiration = inProgress.get(tx).getExpiration();
+          if (expiration >= 0L) {
+            LOG.info("Tx invalid list: added tx {} because of timeout", tx);
+          } else {
             LOG.warn("Transaction {} has negative expiration time {}. Likely cause is the transaction was not " +
                        "migrated correctly, this transaction will be expired immediately",
-                     tx.getKey(), expiration);
-            timedOut.add(tx.getKey());
+                     tx, expiration);
           }
         }
         if (!timedOut.isEmpty()) {
           invalidEdits = Lists.newArrayListWithCapacity(timedOut.size());
           invalid.addAll(timedOut);
           for (long tx : timedOut) {
-            committingChangeSets.remove(tx);
-            inProgress.remove(tx);
+            removeCommittingChangeSet(tx);
+            removeInProgress(tx);
             invalidEdits.add(TransactionEdit.createInvalid(tx));
           }
-
-          // todo: find a more efficient way to keep this sorted. Could it just be an array?
-          Collections.sort(invalid);
-          invalidArray = invalid.toLongArray();
           LOG.info("Invalidated {} transactions due to timeout.", timedOut.size());
         }
       }
@@ -360,8 +760,22 @@ public class TransactionManager extends AbstractService {
     }
   }
 
-  public synchronized TransactionSnapshot getSnapshot() throws IOException {
-    TransactionSnapshot snapshot = null;
+  public TransactionSnapshot getSnapshot() throws IOException {
+    StateCapture capture = captureSnapshotState();
+    if (capture == null) {
+      return null;
+    }
+    try {
+      return toSnapshot(capture);
+    } finally {
+      captures.remove(capture);
+    }
+  }
+
+  /**
+   * Captures the state for a snapshot, or returns {@code null} if the transaction manager is not running.
+   */
+  private synchronized StateCapture captureSnapshotState() {
     if (!isRunning() && !isStopping()) {
       return null;
     }
@@ -373,14 +787,45 @@ public class TransactionManager extends AbstractService {
         TimeUnit.MILLISECONDS.sleep(1);
       } catch (InterruptedException ie) { }
     }
-    // copy in memory state
-    snapshot = getCurrentState();
+    return captureState();
+  }
+
+  /**
+   * Captures the current state in constant time. Modifications of the state after this call save the previous
+   * values in the capture, until the capture is turned into a snapshot with {@link #toSnapshot(StateCapture)},
+   * which can then happen without holding the lock.
+   */
+  private synchronized StateCapture captureState() {
+    StateCapture capture = new StateCapture(System.currentTimeMillis());
+    captures.add(capture);
+    return capture;
+  }
 
+  /**
+   * Creates a snapshot of the state at the time of the given capture.
+   */
+  private TransactionSnapshot toSnapshot(StateCapture capture) {
+    Stopwatch timer = new Stopwatch().start();
+    TransactionSnapshot snapshot = capture.toSnapshot();
+    txMetricsCollector.gauge("snapshot.copy.latency", (int) timer.elapsedMillis());
     LOG.info("Starting snapshot of transaction state with timestamp {}", snapshot.getTimestamp());
     LOG.info("Returning snapshot of state: " + snapshot);
     return snapshot;
   }
 
+  /**
+   * Creates a delta snapshot of the changes between the capture of the previous snapshot, which must no longer
+   * be notified of updates, and the given capture.
+   */
+  private TransactionSnapshotDelta toDelta(StateCapture previous, StateCapture capture) {
+    Stopwatch timer = new Stopwatch().start();
+    TransactionSnapshotDelta delta = capture.deltaSince(previous);
+    txMetricsCollector.gauge("snapshot.copy.latency", (int) timer.elapsedMillis());
+    LOG.info("Starting delta snapshot of transaction state with timestamp {}", delta.getTimestamp());
+    LOG.info("Returning delta snapshot of state: " + delta);
+    return delta;
+  }
+
   /**
    * Take a snapshot of the transaction state and serialize it into the given output stream.
    * @return whether a snapshot was taken.
@@ -397,26 +842,39 @@ public class TransactionManager extends AbstractService {
 
   private void doSnapshot(boolean closing) throws IOException {
     long snapshotTime = 0L;
-    TransactionSnapshot snapshot = null;
+    StateCapture capture = null;
+    StateCapture previousCapture = null;
     TransactionLog oldLog = null;
     try {
       this.logWriteLock.lock();
       try {
+        Stopwatch timer = new Stopwatch().start();
         synchronized (this) {
-          snapshot = getSnapshot();
-          if (snapshot == null && !closing) {
+          // only the state is captured with the lock held, it is copied and serialized after releasing the lock
+          capture = captureSnapshotState();
+          if (capture == null && !closing) {
             return;
           }
-          if (snapshot != null) {
-            snapshotTime = snapshot.getTimestamp();
+          if (capture != null) {
+            snapshotTime = capture.timestamp;
+            // the capture of the previous snapshot has now seen all updates that make up a delta snapshot
+            previousCapture = lastSnapshotCapture;
+            lastSnapshotCapture = null;
+            if (previousCapture != null) {
+              captures.remove(previousCapture);
+            }
           }
 
           // roll WAL
           oldLog = currentLog;
           if (!closing) {
-            currentLog = persistor.createLog(snapshot.getTimestamp());
+            currentLog = persistor.createLog(snapshotTime);
+            // no edits can be appended while the write lock is held
+            logEditsSinceSnapshot.set(0);
+            logBytesSinceSnapshot.set(0);
           }
         }
+        txMetricsCollector.gauge("snapshot.capture.latency", (int) timer.elapsedMillis());
         // there may not be an existing log on startup
         if (oldLog != null) {
           oldLog.close();
@@ -426,9 +884,35 @@ public class TransactionManager extends AbstractService {
       }
 
       // save snapshot
-      if (snapshot != null) {
-        persistor.writeSnapshot(snapshot);
+      if (capture != null) {
+        TransactionSnapshot visibilityState = null;
+        if (previousCapture != null && deltasSinceFullSnapshot < snapshotDeltas && deltaSnapshotsSupported) {
+          try {
+            persistor.writeDeltaSnapshot(toDelta(previousCapture, capture));
+            deltasSinceFullSnapshot++;
+            visibilityState = capture.toVisibilityState();
+          } catch (UnsupportedOperationException e) {
+            LOG.warn("Delta snapshots are not supported by the transaction state storage, taking full snapshots " +
+                       "instead: " + e.getMessage());
+            deltaSnapshotsSupported = false;
+          }
+        }
+        if (visibilityState == null) {
+          TransactionSnapshot snapshot = toSnapshot(capture);
+          persistor.writeSnapshot(snapshot);
+          deltasSinceFullSnapshot = 0;
+          visibilityState = snapshot;
+        }
         lastSnapshotTime = snapshotTime;
+        writeVisibilityState(visibilityState);
+        if (snapshotDeltas > 0 && !closing) {
+          // keep the capture to track the keys that are updated until the next snapshot
+          capture.discardValues();
+          synchronized (this) {
+            lastSnapshotCapture = capture;
+          }
+          capture = null;
+        }
 
         // clean any obsoleted snapshots and WALs
         long oldestRetainedTimestamp = persistor.deleteOldSnapshots(snapshotRetainCount);
@@ -436,12 +920,50 @@ public class TransactionManager extends AbstractService {
       }
     } catch (IOException ioe) {
       abortService("Snapshot (timestamp " + snapshotTime + ") failed due to: " + ioe.getMessage(), ioe);
+    } finally {
+      if (capture != null) {
+        // in case the snapshot was not created
+        captures.remove(capture);
+      }
+    }
+  }
+
+  /**
+   * Writes the visibility state of the current state, without taking a snapshot.
+   */
+  private void writeVisibilityState() {
+    StateCapture capture = captureState();
+    TransactionSnapshot state;
+    try {
+      state = capture.toVisibilityState();
+    } finally {
+      captures.remove(capture);
+    }
+    writeVisibilityState(state);
+  }
+
+  private void writeVisibilityState(TransactionSnapshot state) {
+    if (state.getTimestamp() <= lastVisibilityStateTime) {
+      return;
+    }
+    try {
+      Stopwatch timer = new Stopwatch().start();
+      persistor.writeVisibilityState(state);
+      lastVisibilityStateTime = state.getTimestamp();
+      txMetricsCollector.gauge("visibility.state.latency", (int) timer.elapsedMillis());
+    } catch (IOException ioe) {
+      // readers fall back to the latest snapshot if it is more recent than the latest visibility state
+      LOG.warn("Failed writing visibility state with timestamp " + state.getTimestamp(), ioe);
     }
   }
 
-  public synchronized TransactionSnapshot getCurrentState() {
-    return TransactionSnapshot.copyFrom(System.currentTimeMillis(), readPointer, lastWritePointer,
-                                        invalid, inProgress, committingChangeSets, committedChangeSets);
+  public TransactionSnapshot getCurrentState() {
+    StateCapture capture = captureState();
+    try {
+      return capture.toSnapshot();
+    } finally {
+      captures.remove(capture);
+    }
   }
 
   public synchronized void recoverState() {
@@ -462,6 +984,245 @@ public class TransactionManager extends AbstractService {
     }
   }
 
+  /**
+   * Starts this transaction manager as a hot standby of a transaction manager that is active in another process,
+   * with the same transaction state storage.  The standby restores the latest snapshot, and then keeps its state up
+   * to date by applying the edits that the active transaction manager appends to the transaction logs.  When this
+   * transaction manager is started, it then only applies the edits that it did not apply yet, instead of recovering
+   * the whole state.  This must be called before this transaction manager is started, and if it is never started,
+   * {@link #stopStandby()} must be called instead of stopping it.
+   */
+  public synchronized void startStandby() {
+    Preconditions.checkState(state() == State.NEW, "Transaction manager was already started");
+    Preconditions.checkState(!standby, "Transaction manager is already a hot standby");
+    LOG.info("Starting transaction manager as hot standby, applying new edits every " + standbyPollMillis + " ms.");
+    persistor.startAndWait();
+    try {
+      restoreStandbySnapshot();
+      catchUp(false);
+    } catch (IOException e) {
+      LOG.error("Unable to read back transaction state:", e);
+      throw Throwables.propagate(e);
+    }
+    standby = true;
+    standbyThread = new DaemonThreadExecutor("tx-standby") {
+      @Override
+      public void doRun() {
+        try {
+          catchUp(false);
+        } catch (IOException e) {
+          LOG.warn("Failed to apply new edits of the transaction logs, will retry", e);
+        }
+      }
+
+      @Override
+      protected long getSleepMillis() {
+        return standbyPollMillis;
+      }
+    };
+    standbyThread.start();
+  }
+
+  /**
+   * Stops a hot standby that was never started.
+   */
+  public void stopStandby() {
+    DaemonThreadExecutor thread;
+    synchronized (this) {
+      if (!standby) {
+        return;
+      }
+      standby = false;
+      thread = standbyThread;
+      standbyThread = null;
+    }
+    thread.shutdown();
+    try {
+      thread.join(30000L);
+    } catch (InterruptedException ie) {
+      LOG.warn("Interrupted waiting for standby thread to stop");
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      closeTailReader();
+    }
+    persistor.stopAndWait();
+  }
+
+  /**
+   * Stops applying edits in the background as a hot standby, and applies the remaining edits of the transaction logs.
+   * The active transaction manager is gone at this point, so that the last log can be recovered from its writer.
+   */
+  private void promoteStandby() {
+    standbyThread.shutdown();
+    // the standby thread may be waiting for this lock to apply new edits, so it must not be joined while holding it
+    while (standbyThread.isAlive()) {
+      try {
+        wait(10L);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw Throwables.propagate(ie);
+      }
+    }
+    standbyThread = null;
+    standby = false;
+    // the last log is read again to recover it from the writer
+    closeTailReader();
+    Stopwatch timer = new Stopwatch().start();
+    long editCnt;
+    try {
+      editCnt = catchUp(true);
+    } catch (IOException e) {
+      LOG.error("Unable to read back transaction state:", e);
+      throw Throwables.propagate(e);
+    }
+    // the change sets that are still committing were kept as read from the logs
+    for (Map.Entry<Long, Set<ChangeId>> entry : committingChangeSets.entrySet()) {
+      committingChangeSets.put(entry.getKey(), compact(entry.getValue()));
+    }
+    LOG.info("Applied the last " + editCnt + " edits as hot standby in " + timer.elapsedMillis() + " ms");
+  }
+
+  /**
+   * Clears the state of a hot standby, and restores the latest snapshot, to apply the transaction logs since then.
+   */
+  private void restoreStandbySnapshot() throws IOException {
+    clear();
+    logEditsSinceSnapshot.set(0);
+    TransactionSnapshot snapshot = persistor.getLatestSnapshot();
+    if (snapshot != null) {
+      restoreSnapshot(snapshot);
+    }
+    closeTailReader();
+    tailingLog = false;
+    tailLogTimestamp = lastSnapshotTime;
+    tailLogEdits = 0;
+  }
+
+  /**
+   * Applies the edits that were appended to the transaction logs since the last catch up of a hot standby.  A log is
+   * only left for the next log once the next log was listed before reading it, as the active transaction manager
+   * does not append to a log anymore after creating the next one.
+   * @param recover whether the active transaction manager is gone, so that the logs are read with the readers used
+   *                for recovery, which also recover a log from a failed writer
+   * @return the number of edits that were applied
+   */
+  private synchronized long catchUp(boolean recover) throws IOException {
+    List<TransactionLog> logs = persistor.getLogsSince(tailLogTimestamp);
+    while (!isTailRetained(logs)) {
+      LOG.info("Transaction logs were removed before their edits were applied, restoring the latest snapshot again");
+      restoreStandbySnapshot();
+      logs = persistor.getLogsSince(tailLogTimestamp);
+    }
+    long editCnt = 0;
+    try {
+      for (int i = 0; i < logs.size(); i++) {
+        TransactionLog log = logs.get(i);
+        if (!tailingLog || log.getTimestamp() != tailLogTimestamp) {
+          closeTailReader();
+          tailingLog = true;
+          tailLogTimestamp = log.getTimestamp();
+          tailLogEdits = 0;
+        }
+        editCnt += applyTail(log, recover, i == logs.size() - 1);
+      }
+    } finally {
+      // the applied edits have to be replayed again until the next snapshot
+      logEditsSinceSnapshot.addAndGet(editCnt);
+    }
+    return editCnt;
+  }
+
+  /**
+   * Returns whether the given logs, listed since the position of a hot standby, still include all edits after that
+   * position, or whether some were removed because the active transaction manager took newer snapshots since then.
+   */
+  private boolean isTailRetained(List<TransactionLog> logs) throws IOException {
+    if (tailingLog) {
+      // logs are removed in the order of their timestamps
+      return !logs.isEmpty() && logs.get(0).getTimestamp() == tailLogTimestamp;
+    }
+    // the logs since the restored snapshot are only removed after all full snapshots up to it were removed
+    long oldestSnapshot = Long.MAX_VALUE;
+    for (String name : persistor.listSnapshots()) {
+      TransactionStateManifest.Entry entry = TransactionStateManifest.parse(name, 0);
+      if (entry != null && entry.getType() == TransactionStateManifest.FileType.SNAPSHOT) {
+        oldestSnapshot = Math.min(oldestSnapshot, entry.getTimestamp());
+      }
+    }
+    return oldestSnapshot == Long.MAX_VALUE || oldestSnapshot <= tailLogTimestamp;
+  }
+
+  /**
+   * Applies the edits of the given log after those that a hot standby already applied.  The tail reader of the log is
+   * kept open to continue after them with the next catch up, so that the edits are only read once.
+   */
+  private long applyTail(TransactionLog log, boolean recover, boolean lastLog) throws IOException {
+    TransactionLogReader reader = recover ? null : tailReader;
+    // a reader that is opened reads the edits from the start of the log
+    long toSkip = 0;
+    if (reader == null) {
+      reader = recover ? log.getReader() : log.getTailReader();
+      // reader may be null in the case of an empty file
+      if (reader == null) {
+        return 0;
+      }
+      if (!recover) {
+        tailReader = reader;
+      }
+      toSkip = tailLogEdits;
+    }
+    long editCnt = 0;
+    boolean applied = false;
+    deferPruning = true;
+    try {
+      TransactionEdit edit;
+      while ((edit = reader.next(new TransactionEdit())) != null) {
+        if (toSkip > 0) {
+          toSkip--;
+          continue;
+        }
+        replayEdit(edit);
+        tailLogEdits++;
+        editCnt++;
+      }
+      applied = true;
+    } catch (CorruptTransactionEditException e) {
+      // a log that is still written is read again with the next catch up
+      if (!recover) {
+        throw e;
+      }
+      ignoreCorruptEdit(log, lastLog, e);
+      applied = true;
+    } catch (InvalidTruncateTimeException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      deferPruning = false;
+      if (!applied) {
+        // the edit that failed to be read or applied is read again by a new reader
+        tailReader = null;
+      }
+      if (reader != tailReader) {
+        reader.close();
+      }
+      addReplayedCommits(firstShortInProgress);
+      pruneCommittedChangeSets(firstShortInProgress);
+    }
+    return editCnt;
+  }
+
+  private void closeTailReader() {
+    if (tailReader == null) {
+      return;
+    }
+    try {
+      tailReader.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close the reader of transaction log " + tailLogTimestamp, e);
+    }
+    tailReader = null;
+  }
+
   /**
    * Restore the initial in-memory transaction state from a snapshot.
    */
@@ -481,8 +1242,51 @@ public class TransactionManager extends AbstractService {
     lastWritePointer = snapshot.getWritePointer();
     invalid.addAll(snapshot.getInvalid());
     inProgress.putAll(txnBackwardsCompatCheck(snapshot.getInProgress()));
-    committingChangeSets.putAll(snapshot.getCommittingChangeSets());
-    committedChangeSets.putAll(snapshot.getCommittedChangeSets());
+    inProgressArray = toLongArray(inProgress.keySet());
+    for (Map.Entry<Long, InProgressTx> entry : inProgress.entrySet()) {
+      expirationIndex.add(entry.getKey(), entry.getValue().getExpiration());
+      if (!entry.getValue().isLongRunning()) {
+        shortInProgress.add(entry.getKey().longValue());
+      }
+    }
+    updateFirstShortInProgress();
+    recoveredChangeFingerprints |= snapshot.hasChangeFingerprints();
+    for (Map.Entry<Long, Set<ChangeId>> entry : snapshot.getCommittingChangeSets().entrySet()) {
+      committingChangeSets.put(entry.getKey(), compact(entry.getValue()));
+    }
+    for (Map.Entry<Long, Set<ChangeId>> entry : snapshot.getCommittedChangeSets().entrySet()) {
+      committedChangeSets.put(entry.getKey(), compact(entry.getValue()));
+    }
+    for (Map.Entry<Long, Set<ChangeId>> entry : committedChangeSets.entrySet()) {
+      committedChangeIndex.add(entry.getValue(), entry.getKey());
+      committedHeapBytes += SpilledChangeSets.estimateHeapBytes(entry.getValue());
+    }
+  }
+
+  /**
+   * Checks that the recovered change sets can be used for conflict detection. Change sets that were persisted as
+   * fingerprints of the changes can only be compared with fingerprints, hence if this transaction manager keeps the
+   * full change keys, it fails to start unless no transaction is in progress, which could conflict with them.
+   * Otherwise they are not needed anymore and are discarded.
+   */
+  private void checkRecoveredChangeFingerprints() {
+    if (!recoveredChangeFingerprints || fingerprintChanges) {
+      return;
+    }
+    if (!inProgress.isEmpty()) {
+      throw new IllegalStateException(
+        "The transaction state holds fingerprints of the changes of " + inProgress.size() + " transactions in " +
+          "progress, which requires " + TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS + " to be " +
+          TxConstants.Manager.FINGERPRINT_COLLISIONS_CONFLICT + ". Restart with that setting, and change it once " +
+          "no transactions are in progress.");
+    }
+    LOG.info("Discarding " + (committingChangeSets.size() + committedChangeSets.size()) + " recovered change sets " +
+               "that hold fingerprints of the changes, as no transactions are in progress");
+    committingChangeSets.clear();
+    committedChangeSets.clear();
+    committedChangeIndex.clear();
+    committedHeapBytes = 0;
+    recoveredChangeFingerprints = false;
   }
 
   /**
@@ -532,92 +1336,163 @@ public class TransactionManager extends AbstractService {
   }
 
   /**
-   * Replay all logged edits from the given transaction logs.
+   * Ends the replay of a log at a corrupt edit if it is the last log, which the failed transaction manager may not
+   * have written completely, and fails otherwise.
    */
-  private void replayLogs(Collection<TransactionLog> logs) {
-    for (TransactionLog log : logs) {
-      LOG.info("Replaying edits from transaction log " + log.getName());
-      int editCnt = 0;
-      try {
-        TransactionLogReader reader = log.getReader();
-        // reader may be null in the case of an empty file
-        if (reader == null) {
-          continue;
-        }
-        TransactionEdit edit = null;
-        while ((edit = reader.next()) != null) {
-          editCnt++;
-          switch (edit.getState()) {
-            case INPROGRESS:
-              long expiration = edit.getExpiration();
-              TransactionType type = edit.getType();
-              // Check if transaction needs to be migrated to have expiration and type. Previous version of 
-              // long running transactions were represented with expiration time as -1.
-              // This can be removed when we stop supporting TransactionEditCodecV2.
-              if (expiration < 0) {
-                expiration = getTxExpirationFromWritePointer(edit.getWritePointer(), defaultLongTimeout);
-                type = TransactionType.LONG;
-              } else if (type == null) {
-                type = TransactionType.SHORT;
-              }
-              addInProgressAndAdvance(edit.getWritePointer(), edit.getVisibilityUpperBound(),
-                                      expiration, type);
-              break;
-            case COMMITTING:
-              addCommittingChangeSet(edit.getWritePointer(), edit.getChanges());
-              break;
-            case COMMITTED:
-              doCommit(edit.getWritePointer(), edit.getChanges(),
-                       edit.getCommitPointer(), edit.getCanCommit());
-              break;
-            case INVALID:
-              doInvalidate(edit.getWritePointer());
-              break;
-            case ABORTED:
-              type = edit.getType();
-              // Check if transaction edit needs to be migrated to have type. Previous versions of
-              // ABORTED edits did not contain type.
-              // This can be removed when we stop supporting TransactionEditCodecV2.
-              if (type == null) {
-                InProgressTx inProgressTx = inProgress.get(edit.getWritePointer());
-                if (inProgressTx != null) {
-                  type = inProgressTx.getType();
-                } else {
-                  // If transaction is not in-progress, then it has either been already aborted or invalidated.
-                  // We cannot determine the transaction's state based on current information, to be safe invalidate it.
-                  LOG.warn("Invalidating transaction {} as it's type cannot be determined during replay",
-                           edit.getWritePointer());
-                  doInvalidate(edit.getWritePointer());
-                  break;
-                }
-              }
-              doAbort(edit.getWritePointer(), type);
-              break;
-            case TRUNCATE_INVALID_TX:
-              if (edit.getTruncateInvalidTxTime() != 0) {
-                doTruncateInvalidTxBefore(edit.getTruncateInvalidTxTime());
-              } else {
-                doTruncateInvalidTx(edit.getTruncateInvalidTx());
-              }
-              break;
-            default:
-              // unknown type!
-              throw new IllegalArgumentException("Invalid state for WAL entry: " + edit.getState());
-          }
-        }
-      } catch (IOException ioe) {
-        throw Throwables.propagate(ioe);
-      } catch (InvalidTruncateTimeException e) {
-        throw Throwables.propagate(e);
-      }
-      LOG.info("Read " + editCnt + " edits from log " + log.getName());
+  private static void ignoreCorruptEdit(TransactionLog log, boolean lastLog, CorruptTransactionEditException e) {
+    if (!lastLog) {
+      throw Throwables.propagate(e);
     }
+    LOG.warn("Ignoring the edits of transaction log " + log.getName() + " from an edit that was not completely " +
+               "written: " + e.getMessage());
   }
 
-  @Override
+  /**
+   * Replay all logged edits from the given transaction logs. The logs are opened and decoded ahead by a
+   * {@link TransactionLogPrefetcher}, while the edits are applied in order by the calling thread.
+   */
+  private void replayLogs(Collection<TransactionLog> logs) {
+    Stopwatch timer = new Stopwatch().start();
+    long totalEditCnt = 0;
+    TransactionLogPrefetcher prefetcher = new TransactionLogPrefetcher(replayThreads);
+    try {
+      Iterator<TransactionLog> logIterator = logs.iterator();
+      int logIndex = 0;
+      for (TransactionLogReader reader : prefetcher.prefetch(logs)) {
+        TransactionLog log = logIterator.next();
+        boolean lastLog = ++logIndex == logs.size();
+        LOG.info("Replaying edits from transaction log " + log.getName());
+        int editCnt = 0;
+        // prune the committed change sets once after the whole log was replayed, rather than after every commit
+        deferPruning = true;
+        try {
+          TransactionEdit edit;
+          while ((edit = reader.next()) != null) {
+            editCnt++;
+            replayEdit(edit);
+          }
+        } catch (CorruptTransactionEditException e) {
+          ignoreCorruptEdit(log, lastLog, e);
+        } catch (IOException ioe) {
+          throw Throwables.propagate(ioe);
+        } catch (InvalidTruncateTimeException e) {
+          throw Throwables.propagate(e);
+        } finally {
+          deferPruning = false;
+        }
+        addReplayedCommits(firstShortInProgress);
+        pruneCommittedChangeSets(firstShortInProgress);
+        LOG.info("Read " + editCnt + " edits from log " + log.getName());
+        totalEditCnt += editCnt;
+      }
+    } finally {
+      prefetcher.close();
+    }
+    // the change sets that are still committing were kept as read from the logs
+    for (Map.Entry<Long, Set<ChangeId>> entry : committingChangeSets.entrySet()) {
+      committingChangeSets.put(entry.getKey(), compact(entry.getValue()));
+    }
+    long elapsedMillis = timer.elapsedMillis();
+    // the replayed edits have to be replayed again until the next snapshot
+    logEditsSinceSnapshot.addAndGet(totalEditCnt);
+    if (totalEditCnt >= MIN_REPLAY_EDITS_FOR_RATE) {
+      replayEditsPerSec = Math.max(totalEditCnt * 1000 / Math.max(elapsedMillis, 1), 1);
+    }
+    LOG.info("Replayed " + totalEditCnt + " edits from " + logs.size() + " logs in " + elapsedMillis + " ms");
+    txMetricsCollector.gauge("recovery.replay.latency", (int) elapsedMillis);
+    txMetricsCollector.gauge("recovery.replay.edits", (int) Math.min(totalEditCnt, Integer.MAX_VALUE));
+    txMetricsCollector.gauge("recovery.replay.edits.per.sec",
+                             (int) Math.min(totalEditCnt * 1000 / Math.max(elapsedMillis, 1), Integer.MAX_VALUE));
+  }
+
+  /**
+   * Applies a single edit read from a transaction log to the in-memory state.
+   */
+  private void replayEdit(TransactionEdit edit) throws InvalidTruncateTimeException {
+    switch (edit.getState()) {
+      case INPROGRESS:
+        long expiration = edit.getExpiration();
+        TransactionType type = edit.getType();
+        // Check if transaction needs to be migrated to have expiration and type. Previous version of 
+        // long running transactions were represented with expiration time as -1.
+        // This can be removed when we stop supporting TransactionEditCodecV2.
+        if (expiration < 0) {
+          expiration = getTxExpirationFromWritePointer(edit.getWritePointer(), defaultLongTimeout);
+          type = TransactionType.LONG;
+        } else if (type == null) {
+          type = TransactionType.SHORT;
+        }
+        addInProgressAndAdvance(edit.getWritePointer(), edit.getVisibilityUpperBound(),
+                                expiration, type);
+        break;
+      case COMMITTING:
+        // most committing change sets are removed by a later edit in the same log, they are compacted at the end
+        committingChangeSets.put(edit.getWritePointer(), edit.getChanges());
+        recoveredChangeFingerprints |= edit.hasChangeFingerprints();
+        break;
+      case COMMITTED:
+        committingChangeSets.remove(edit.getWritePointer());
+        recoveredChangeFingerprints |= edit.hasChangeFingerprints();
+        if (edit.getCanCommit() && !edit.getChanges().isEmpty()) {
+          List<Set<ChangeId>> commits = replayedCommits.get(edit.getCommitPointer());
+          if (commits == null) {
+            commits = Lists.newArrayListWithCapacity(1);
+            replayedCommits.put(edit.getCommitPointer(), commits);
+          }
+          commits.add(edit.getChanges());
+        }
+        completeCommit(edit.getWritePointer());
+        break;
+      case INVALID:
+        doInvalidate(edit.getWritePointer());
+        break;
+      case ABORTED:
+        type = edit.getType();
+        // Check if transaction edit needs to be migrated to have type. Previous versions of
+        // ABORTED edits did not contain type.
+        // This can be removed when we stop supporting TransactionEditCodecV2.
+        if (type == null) {
+          InProgressTx inProgressTx = inProgress.get(edit.getWritePointer());
+          if (inProgressTx != null) {
+            type = inProgressTx.getType();
+          } else {
+            // If transaction is not in-progress, then it has either been already aborted or invalidated.
+            // We cannot determine the transaction's state based on current information, to be safe invalidate it.
+            LOG.warn("Invalidating transaction {} as it's type cannot be determined during replay",
+                     edit.getWritePointer());
+            doInvalidate(edit.getWritePointer());
+            break;
+          }
+        }
+        doAbort(edit.getWritePointer(), type);
+        break;
+      case TRUNCATE_INVALID_TX:
+        if (edit.getTruncateInvalidTxTime() != 0) {
+          doTruncateInvalidTxBefore(edit.getTruncateInvalidTxTime());
+        } else {
+          doTruncateInvalidTx(edit.getTruncateInvalidTx());
+        }
+        break;
+      default:
+        // unknown type!
+        throw new IllegalArgumentException("Invalid state for WAL entry: " + edit.getState());
+    }
+  }
+
+  @Override
   public void doStop() {
     Stopwatch timer = new Stopwatch().start();
     LOG.info("Shutting down gracefully...");
+    // stop accepting state changes, any change that is still queued will be rejected
+    if (groupCommitter != null) {
+      groupCommitter.shutdown();
+      try {
+        groupCommitter.join(30000L);
+      } catch (InterruptedException ie) {
+        LOG.warn("Interrupted waiting for group commit thread to stop");
+        Thread.currentThread().interrupt();
+      }
+    }
     // signal the cleanup thread to stop
     if (cleanupThread != null) {
       cleanupThread.shutdown();
@@ -648,6 +1523,27 @@ public class TransactionManager extends AbstractService {
       }
     }
 
+    if (parallelConflictChecker != null) {
+      parallelConflictChecker.shutdown();
+    }
+    if (spillThread != null) {
+      spillThread.shutdown();
+      try {
+        spillThread.join(30000L);
+      } catch (InterruptedException ie) {
+        LOG.warn("Interrupted waiting for spill thread to stop");
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        for (SpilledChangeSets spilled : committedChangeIndex.removeSpilled(Long.MAX_VALUE)) {
+          spilled.delete();
+        }
+      }
+      if (configuredSpillDir == null && !spillDir.delete()) {
+        LOG.warn("Failed to delete directory for spilled change sets {}", spillDir);
+      }
+    }
+
     persistor.stopAndWait();
     timer.stop();
     LOG.info("Took " + timer + " to stop");
@@ -719,42 +1615,178 @@ public class TransactionManager extends AbstractService {
     return tx;
   }
 
-  private Transaction startTx(long expiration, TransactionType type) {
-    Transaction tx = null;
-    long txid;
-    // guard against changes to the transaction log while processing
-    this.logReadLock.lock();
-    try {
-      synchronized (this) {
+  /**
+   * Start a read-only transaction. A read-only transaction is a snapshot of the current state that is not
+   * registered as in progress and not written to the transaction log, hence it is as cheap as a read of the
+   * state. It does not get a write pointer of its own, and it does not need to be committed or aborted.
+   */
+  public Transaction startReadOnly() {
+    txMetricsCollector.gauge("start.readonly", 1);
+    // the read pointer, the invalid and in-progress transactions must be consistent with each other
+    synchronized (this) {
+      ensureAvailable();
+      // as for the detached clients, the write pointer can never be the version of any data, so that writes made
+      // by mistake in a read-only transaction never overwrite committed data, and it is excluded as invalid, so that
+      // such writes are not visible to any read-only transaction until they are rolled back
+      long[] invalids = invalid.toSortedArray();
+      if (readOnlyInvalidSource != invalids) {
+        readOnlyInvalid = Arrays.copyOf(invalids, invalids.length + 1);
+        readOnlyInvalid[invalids.length] = READ_ONLY_WRITE_POINTER;
+        readOnlyInvalidSource = invalids;
+      }
+      return new Transaction(readPointer, READ_ONLY_WRITE_POINTER, readOnlyInvalid, inProgressArray,
+                             firstShortInProgress, TransactionType.READ_ONLY);
+    }
+  }
+
+  private Transaction startTx(final long expiration, final TransactionType type) {
+    return applyAndLog(new StateUpdate<Transaction, RuntimeException>() {
+      @Override
+      public Transaction apply(List<TransactionEdit> edits) {
         ensureAvailable();
-        txid = getNextWritePointer();
-        tx = createTransaction(txid, type);
+        long txid = getNextWritePointer();
+        Transaction tx = createTransaction(txid, type);
         addInProgressAndAdvance(tx.getWritePointer(), tx.getVisibilityUpperBound(), expiration, type);
+        edits.add(TransactionEdit.createStarted(tx.getWritePointer(), tx.getVisibilityUpperBound(),
+                                                expiration, type));
+        return tx;
       }
-      // appending to WAL out of global lock for concurrent performance
-      // we should still be able to arrive at the same state even if log entries are out of order
-      appendToLog(TransactionEdit.createStarted(tx.getWritePointer(), tx.getVisibilityUpperBound(), expiration, type));
-    } finally {
-      this.logReadLock.unlock();
+    });
+  }
+
+  /**
+   * Adds a transaction to the in-progress transactions, keeping the in-progress array, the first short
+   * in-progress transaction and the expiration index up to date.
+   */
+  private void addInProgress(long writePointer, InProgressTx tx) {
+    for (StateCapture capture : captures) {
+      capture.inProgress.beforeUpdate(writePointer);
     }
-    return tx;
+    InProgressTx previous = inProgress.put(writePointer, tx);
+    if (previous == null) {
+      inProgressArray = insert(inProgressArray, writePointer);
+    } else {
+      expirationIndex.remove(writePointer, previous.getExpiration());
+    }
+    expirationIndex.add(writePointer, tx.getExpiration());
+    if (cleanupPrecise && cleanupThread != null && tx.getExpiration() < nextCleanupTime) {
+      // the cleanup thread would miss the expiration of this transaction, wake it up to reschedule
+      cleanupThread.wakeUp();
+    }
+    if (previous != null && !previous.isLongRunning()) {
+      shortInProgress.remove(writePointer);
+    }
+    if (!tx.isLongRunning()) {
+      shortInProgress.add(writePointer);
+    }
+    updateFirstShortInProgress();
+  }
+
+  /**
+   * Removes a transaction from the in-progress transactions, keeping the in-progress array, the first short
+   * in-progress transaction and the expiration index up to date.
+   * @return the removed transaction, or {@code null} if it was not in progress
+   */
+  private InProgressTx removeInProgress(long writePointer) {
+    for (StateCapture capture : captures) {
+      capture.inProgress.beforeUpdate(writePointer);
+    }
+    InProgressTx removed = inProgress.remove(writePointer);
+    if (removed != null) {
+      inProgressArray = remove(inProgressArray, writePointer);
+      expirationIndex.remove(writePointer, removed.getExpiration());
+      if (!removed.isLongRunning()) {
+        shortInProgress.remove(writePointer);
+        updateFirstShortInProgress();
+      }
+    }
+    return removed;
+  }
+
+  private void updateFirstShortInProgress() {
+    long previous = firstShortInProgress;
+    firstShortInProgress = shortInProgress.isEmpty() ? Transaction.NO_TX_IN_PROGRESS : shortInProgress.firstLong();
+    // All committed change sets that are smaller than the earliest started transaction can be removed.
+    // here we ignore transactions that have no timeout, they are long-running and don't participate in
+    // conflict detection.
+    if (firstShortInProgress > previous && !deferPruning) {
+      pruneCommittedChangeSets(firstShortInProgress);
+    }
+  }
+
+  /**
+   * Returns a copy of the given sorted array, with the given value inserted in order.
+   */
+  private static long[] insert(long[] sorted, long value) {
+    int length = sorted.length;
+    long[] result = new long[length + 1];
+    // new transactions are (almost) always the latest one
+    if (length == 0 || sorted[length - 1] < value) {
+      System.arraycopy(sorted, 0, result, 0, length);
+      result[length] = value;
+      return result;
+    }
+    int pos = -(Arrays.binarySearch(sorted, value) + 1);
+    System.arraycopy(sorted, 0, result, 0, pos);
+    result[pos] = value;
+    System.arraycopy(sorted, pos, result, pos + 1, length - pos);
+    return result;
+  }
+
+  /**
+   * Returns a copy of the given sorted array, with the given value removed, or the array itself if it does not
+   * contain the value.
+   */
+  private static long[] remove(long[] sorted, long value) {
+    int pos = Arrays.binarySearch(sorted, value);
+    if (pos < 0) {
+      return sorted;
+    }
+    if (sorted.length == 1) {
+      return NO_IN_PROGRESS_TX;
+    }
+    long[] result = new long[sorted.length - 1];
+    System.arraycopy(sorted, 0, result, 0, pos);
+    System.arraycopy(sorted, pos + 1, result, pos, result.length - pos);
+    return result;
+  }
+
+  private static long[] toLongArray(Collection<Long> values) {
+    if (values.isEmpty()) {
+      return NO_IN_PROGRESS_TX;
+    }
+    long[] result = new long[values.size()];
+    int i = 0;
+    for (long value : values) {
+      result[i++] = value;
+    }
+    return result;
   }
 
   private void addInProgressAndAdvance(long writePointer, long visibilityUpperBound,
                                        long expiration, TransactionType type) {
-    inProgress.put(writePointer, new InProgressTx(visibilityUpperBound, expiration, type));
+    addInProgress(writePointer, new InProgressTx(visibilityUpperBound, expiration, type));
     // don't move the write pointer back if we have out of order transaction log entries
     if (writePointer > lastWritePointer) {
       lastWritePointer = writePointer;
     }
   }
 
-  public boolean canCommit(Transaction tx, Collection<byte[]> changeIds) throws TransactionNotInProgressException {
+  public boolean canCommit(final Transaction tx, Collection<byte[]> changeIds)
+    throws TransactionNotInProgressException {
     txMetricsCollector.gauge("canCommit", 1);
+    if (tx.getType() == TransactionType.READ_ONLY) {
+      // a read-only transaction is not in progress, and it cannot commit any changes
+      return changeIds.isEmpty();
+    }
     Stopwatch timer = new Stopwatch().start();
     if (inProgress.get(tx.getWritePointer()) == null) {
+      boolean isInvalid;
+      synchronized (this) {
+        isInvalid = invalid.contains(tx.getWritePointer());
+      }
       // invalid transaction, either this has timed out and moved to invalid, or something else is wrong.
-      if (invalid.contains(tx.getWritePointer())) {
+      if (isInvalid) {
         throw new TransactionNotInProgressException(
           String.format("canCommit() is called for transaction %d that is not in progress (it is known to be invalid)",
                         tx.getWritePointer()));
@@ -764,78 +1796,147 @@ public class TransactionManager extends AbstractService {
       }
     }
 
-    Set<ChangeId> set = Sets.newHashSetWithExpectedSize(changeIds.size());
-    for (byte[] change : changeIds) {
-      set.add(new ChangeId(change));
+    final Set<ChangeId> set;
+    ParallelConflictChecker checker = parallelConflictChecker;
+    if (checker != null && changeIds.size() >= parallelConflictThreshold) {
+      // hash, deduplicate and check the changes in parallel, one part of the change set per thread
+      txMetricsCollector.gauge("canCommit.parallel", 1);
+      List<Set<ChangeId>> parts = Lists.newArrayList();
+      set = checker.createChangeSet(changeIds, parts);
+      if (checker.hasConflicts(committedChangeIndex, tx, parts)) {
+        return false;
+      }
+    } else {
+      if (fingerprintChanges) {
+        FingerprintSet fingerprints = new FingerprintSet(changeIds.size());
+        for (byte[] change : changeIds) {
+          fingerprints.add(change);
+        }
+        set = fingerprints;
+      } else {
+        set = Sets.newHashSetWithExpectedSize(changeIds.size());
+        for (byte[] change : changeIds) {
+          set.add(new ChangeId(change));
+        }
+      }
+      if (hasConflicts(tx, set)) {
+        return false;
+      }
     }
 
-    if (hasConflicts(tx, set)) {
-      return false;
-    }
-    // guard against changes to the transaction log while processing
-    this.logReadLock.lock();
-    try {
-      synchronized (this) {
+    applyAndLog(new StateUpdate<Void, RuntimeException>() {
+      @Override
+      public Void apply(List<TransactionEdit> edits) {
         ensureAvailable();
         addCommittingChangeSet(tx.getWritePointer(), set);
+        edits.add(TransactionEdit.createCommitting(tx.getWritePointer(), set, fingerprintChanges));
+        return null;
       }
-      appendToLog(TransactionEdit.createCommitting(tx.getWritePointer(), set));
-    } finally {
-      this.logReadLock.unlock();
-    }
+    });
     txMetricsCollector.gauge("canCommit.latency", (int) timer.elapsedMillis());
     return true;
   }
 
   private void addCommittingChangeSet(long writePointer, Set<ChangeId> changes) {
-    committingChangeSets.put(writePointer, changes);
+    for (StateCapture capture : captures) {
+      capture.committing.beforeUpdate(writePointer);
+    }
+    committingChangeSets.put(writePointer, compact(changes));
   }
 
-  public boolean commit(Transaction tx) throws TransactionNotInProgressException {
+  private Set<ChangeId> removeCommittingChangeSet(long writePointer) {
+    for (StateCapture capture : captures) {
+      capture.committing.beforeUpdate(writePointer);
+    }
+    return committingChangeSets.remove(writePointer);
+  }
+
+  /**
+   * Returns the given change set in the form it is kept in the committing and committed change sets, that is,
+   * as a {@link FingerprintSet} if only the fingerprints of the changes are kept, and otherwise with all changes
+   * materialized.
+   */
+  private Set<ChangeId> compact(Set<ChangeId> changes) {
+    if (fingerprintChanges) {
+      return changes instanceof FingerprintSet ? changes : new FingerprintSet(changes);
+    }
+    return changes instanceof EncodedChangeSet ? Sets.newHashSet(changes) : changes;
+  }
+
+  /**
+   * Adds the change sets committed in the replayed transaction log to the committed change sets, except for those
+   * that would be pruned with the given watermark.
+   */
+  private void addReplayedCommits(long watermark) {
+    for (Map.Entry<Long, List<Set<ChangeId>>> entry : replayedCommits.tailMap(watermark, true).entrySet()) {
+      for (Set<ChangeId> changes : entry.getValue()) {
+        addCommittedChangeSet(changes, entry.getKey());
+      }
+    }
+    replayedCommits.clear();
+  }
+
+  public boolean commit(final Transaction tx) throws TransactionNotInProgressException {
     txMetricsCollector.gauge("commit", 1);
+    if (tx.getType() == TransactionType.READ_ONLY) {
+      return true;
+    }
     Stopwatch timer = new Stopwatch().start();
-    Set<ChangeId> changeSet = null;
-    boolean addToCommitted = true;
-    long commitPointer;
-    // guard against changes to the transaction log while processing
-    this.logReadLock.lock();
+    final Set<ChangeId> lockedChangeSet = committingChangeSets.get(tx.getWritePointer());
+    // Checking for conflicts and adding the changes to the committed change index must be atomic with respect to
+    // all other commits with overlapping changes. Holding the locks of the shards of the changes guarantees that,
+    // and allows to check for conflicts without holding the transaction manager lock.
+    int[] shards = committedChangeIndex.lockShards(lockedChangeSet);
+    boolean committed;
     try {
-      synchronized (this) {
-        ensureAvailable();
-        // we record commits at the first not-yet assigned transaction id to simplify clearing out change sets that
-        // are no longer visible by any in-progress transactions
-        commitPointer = lastWritePointer + 1;
-        if (inProgress.get(tx.getWritePointer()) == null) {
-          // invalid transaction, either this has timed out and moved to invalid, or something else is wrong.
-          if (invalid.contains(tx.getWritePointer())) {
-            throw new TransactionNotInProgressException(
-              String.format("canCommit() is called for transaction %d that is not in progress " +
-                              "(it is known to be invalid)", tx.getWritePointer()));
-          } else {
-            throw new TransactionNotInProgressException(
-              String.format("canCommit() is called for transaction %d that is not in progress", tx.getWritePointer()));
+      // double-checking if there are conflicts: someone may have committed since canCommit check
+      final boolean conflict = lockedChangeSet != null && hasConflicts(tx, lockedChangeSet);
+      committed = applyAndLog(new StateUpdate<Boolean, TransactionNotInProgressException>() {
+        @Override
+        public Boolean apply(List<TransactionEdit> edits) throws TransactionNotInProgressException {
+          ensureAvailable();
+          // we record commits at the first not-yet assigned transaction id to simplify clearing out change sets that
+          // are no longer visible by any in-progress transactions
+          long commitPointer = lastWritePointer + 1;
+          if (inProgress.get(tx.getWritePointer()) == null) {
+            // invalid transaction, either this has timed out and moved to invalid, or something else is wrong.
+            if (invalid.contains(tx.getWritePointer())) {
+              throw new TransactionNotInProgressException(
+                String.format("canCommit() is called for transaction %d that is not in progress " +
+                                "(it is known to be invalid)", tx.getWritePointer()));
+            } else {
+              throw new TransactionNotInProgressException(
+                String.format("canCommit() is called for transaction %d that is not in progress",
+                              tx.getWritePointer()));
+            }
           }
-        }
 
-        // these should be atomic
-        // NOTE: whether we succeed or not we don't need to keep changes in committing state: same tx cannot
-        //       be attempted to commit twice
-        changeSet = committingChangeSets.remove(tx.getWritePointer());
+          // these should be atomic
+          // NOTE: whether we succeed or not we don't need to keep changes in committing state: same tx cannot
+          //       be attempted to commit twice
+          Set<ChangeId> changeSet = removeCommittingChangeSet(tx.getWritePointer());
+          boolean addToCommitted = true;
 
-        if (changeSet != null) {
-          // double-checking if there are conflicts: someone may have committed since canCommit check
-          if (hasConflicts(tx, changeSet)) {
-            return false;
+          if (changeSet != null) {
+            // if a concurrent call to canCommit() replaced the changes, the shards of the new ones are not locked
+            if (conflict || changeSet != lockedChangeSet) {
+              return false;
+            }
+          } else {
+            // no changes
+            addToCommitted = false;
           }
-        } else {
-          // no changes
-          addToCommitted = false;
+          doCommit(tx.getWritePointer(), changeSet, commitPointer, addToCommitted);
+          edits.add(TransactionEdit.createCommitted(tx.getWritePointer(), changeSet, commitPointer, addToCommitted,
+                                                    fingerprintChanges));
+          return true;
         }
-        doCommit(tx.getWritePointer(), changeSet, commitPointer, addToCommitted);
-      }
-      appendToLog(TransactionEdit.createCommitted(tx.getWritePointer(), changeSet, commitPointer, addToCommitted));
+      });
     } finally {
-      this.logReadLock.unlock();
+      committedChangeIndex.unlockShards(shards);
+    }
+    if (!committed) {
+      return false;
     }
     txMetricsCollector.gauge("commit.latency", (int) timer.elapsedMillis());
     return true;
@@ -843,59 +1944,106 @@ public class TransactionManager extends AbstractService {
 
   private void doCommit(long writePointer, Set<ChangeId> changes, long commitPointer, boolean addToCommitted) {
     // In case this method is called when loading a previous WAL, we need to remove the tx from these sets
-    committingChangeSets.remove(writePointer);
+    removeCommittingChangeSet(writePointer);
     if (addToCommitted && !changes.isEmpty()) {
       // No need to add empty changes to the committed change sets, they will never trigger any conflict
+      addCommittedChangeSet(changes, commitPointer);
+    }
+    completeCommit(writePointer);
+  }
 
-      // Record the committed change set with the next writePointer as the commit time.
-      // NOTE: we use current next writePointer as key for the map, hence we may have multiple txs changesets to be
-      //       stored under one key
-      Set<ChangeId> changeIds = committedChangeSets.get(commitPointer);
-      if (changeIds != null) {
-        // NOTE: we modify the new set to prevent concurrent modification exception, as other threads (e.g. in
-        // canCommit) use it unguarded
-        changes.addAll(changeIds);
-      }
-      committedChangeSets.put(commitPointer, changes);
+  private void addCommittedChangeSet(Set<ChangeId> changes, long commitPointer) {
+    changes = compact(changes);
+
+    // Record the committed change set with the next writePointer as the commit time.
+    // NOTE: we use current next writePointer as key for the map, hence we may have multiple txs changesets to be
+    //       stored under one key
+    Set<ChangeId> changeIds = committedChangeSets.get(commitPointer);
+    if (changeIds != null) {
+      committedHeapBytes -= SpilledChangeSets.estimateHeapBytes(changeIds);
+      // NOTE: we merge into a new set, as change sets are never modified once they were added: other threads
+      // (e.g. in canCommit) use them unguarded, and they are shared with snapshots that are being taken
+      Set<ChangeId> merged = fingerprintChanges
+        ? new FingerprintSet(changeIds.size() + changes.size())
+        : Sets.<ChangeId>newHashSetWithExpectedSize(changeIds.size() + changes.size());
+      merged.addAll(changeIds);
+      merged.addAll(changes);
+      changes = merged;
     }
+    for (StateCapture capture : captures) {
+      capture.committed.beforeUpdate(commitPointer);
+    }
+    committedChangeSets.put(commitPointer, changes);
+    committedChangeIndex.add(changes, commitPointer);
+    committedHeapBytes += SpilledChangeSets.estimateHeapBytes(changes);
+    if (spillThread != null && committedHeapBytes > committedHeapBudget) {
+      spillThread.wakeUp();
+    }
+  }
+
+  /**
+   * Removes a committed transaction from the in-progress transactions, and moves the read pointer.
+   */
+  private void completeCommit(long writePointer) {
     // remove from in-progress set, so that it does not get excluded in the future
-    InProgressTx previous = inProgress.remove(writePointer);
+    InProgressTx previous = removeInProgress(writePointer);
     if (previous == null) {
       // tx was not in progress! perhaps it timed out and is invalid? try to remove it there.
       if (invalid.rem(writePointer)) {
-        invalidArray = invalid.toLongArray();
         LOG.info("Tx invalid list: removed committed tx {}", writePointer);
       }
     }
     // moving read pointer
     moveReadPointerIfNeeded(writePointer);
+  }
 
-    // All committed change sets that are smaller than the earliest started transaction can be removed.
-    // here we ignore transactions that have no timeout, they are long-running and don't participate in
-    // conflict detection.
-    // TODO: for efficiency, can we do this once per-log in replayLogs instead of once per edit?
-    committedChangeSets.headMap(TxUtils.getFirstShortInProgress(inProgress)).clear();
+  /**
+   * Removes all committed change sets with a commit pointer smaller than the given watermark, from both the
+   * committed change sets and the committed change index. This is only needed when the watermark advances, and
+   * checking whether there is anything to prune only looks at the first committed change set, so the cost of
+   * pruning is proportional to the number of change sets removed.
+   */
+  private void pruneCommittedChangeSets(long watermark) {
+    if (committedChangeSets.isEmpty() || committedChangeSets.firstKey() >= watermark) {
+      return;
+    }
+    Map<Long, Set<ChangeId>> obsolete = committedChangeSets.headMap(watermark, false);
+    for (Map.Entry<Long, Set<ChangeId>> entry : obsolete.entrySet()) {
+      for (StateCapture capture : captures) {
+        capture.committed.beforeUpdate(entry.getKey());
+      }
+      // the changes of spilled change sets were already removed from the index
+      if (!SpilledChangeSets.isSpilled(entry.getValue())) {
+        committedChangeIndex.remove(entry.getValue(), watermark);
+        committedHeapBytes -= SpilledChangeSets.estimateHeapBytes(entry.getValue());
+      }
+    }
+    obsolete.clear();
+    for (SpilledChangeSets spilled : committedChangeIndex.removeSpilled(watermark)) {
+      spilled.delete();
+    }
   }
 
-  public void abort(Transaction tx) {
-    // guard against changes to the transaction log while processing
+  public void abort(final Transaction tx) {
     txMetricsCollector.gauge("abort", 1);
+    if (tx.getType() == TransactionType.READ_ONLY) {
+      return;
+    }
     Stopwatch timer = new Stopwatch().start();
-    this.logReadLock.lock();
-    try {
-      synchronized (this) {
+    applyAndLog(new StateUpdate<Void, RuntimeException>() {
+      @Override
+      public Void apply(List<TransactionEdit> edits) {
         ensureAvailable();
         doAbort(tx.getWritePointer(), tx.getType());
+        edits.add(TransactionEdit.createAborted(tx.getWritePointer(), tx.getType()));
+        return null;
       }
-      appendToLog(TransactionEdit.createAborted(tx.getWritePointer(), tx.getType()));
-      txMetricsCollector.gauge("abort.latency", (int) timer.elapsedMillis());
-    } finally {
-      this.logReadLock.unlock();
-    }
+    });
+    txMetricsCollector.gauge("abort.latency", (int) timer.elapsedMillis());
   }
 
   private void doAbort(long writePointer, TransactionType type) {
-    committingChangeSets.remove(writePointer);
+    removeCommittingChangeSet(writePointer);
     
     if (type == TransactionType.LONG) {
       // Long running transactions cannot be aborted as their change sets are not saved, 
@@ -906,11 +2054,10 @@ public class TransactionManager extends AbstractService {
     
     // makes tx visible (assumes that all operations were rolled back)
     // remove from in-progress set, so that it does not get excluded in the future
-    InProgressTx removed = inProgress.remove(writePointer);
+    InProgressTx removed = removeInProgress(writePointer);
     if (removed == null) {
       // tx was not in progress! perhaps it timed out and is invalid? try to remove it there.
       if (invalid.rem(writePointer)) {
-        invalidArray = invalid.toLongArray();
         LOG.info("Tx invalid list: removed aborted tx {}", writePointer);
         // removed a tx from excludes: must move read pointer
         moveReadPointerIfNeeded(writePointer);
@@ -941,9 +2088,9 @@ public class TransactionManager extends AbstractService {
   }
 
   private boolean doInvalidate(long writePointer) {
-    Set<ChangeId> previousChangeSet = committingChangeSets.remove(writePointer);
+    Set<ChangeId> previousChangeSet = removeCommittingChangeSet(writePointer);
     // remove from in-progress set, so that it does not get excluded in the future
-    InProgressTx previous = inProgress.remove(writePointer);
+    InProgressTx previous = removeInProgress(writePointer);
     // This check is to prevent from invalidating committed transactions
     if (previous != null || previousChangeSet != null) {
       if (previous == null) {
@@ -952,9 +2099,6 @@ public class TransactionManager extends AbstractService {
       // add tx to invalids
       invalid.add(writePointer);
       LOG.info("Tx invalid list: added tx {} because of invalidate", writePointer);
-      // todo: find a more efficient way to keep this sorted. Could it just be an array?
-      Collections.sort(invalid);
-      invalidArray = invalid.toLongArray();
       if (previous != null && !previous.isLongRunning()) {
         // tx was short-running: must move read pointer
         moveReadPointerIfNeeded(writePointer);
@@ -990,11 +2134,7 @@ public class TransactionManager extends AbstractService {
 
   private boolean doTruncateInvalidTx(Set<Long> invalidTxIds) {
     LOG.info("Removing tx ids {} from invalid list", invalidTxIds);
-    boolean success = invalid.removeAll(invalidTxIds);
-    if (success) {
-      invalidArray = invalid.toLongArray();
-    }
-    return success;
+    return invalid.removeAll(invalidTxIds);
   }
 
   /**
@@ -1032,7 +2172,7 @@ public class TransactionManager extends AbstractService {
     
     // Find all invalid transactions earlier than truncateWp
     Set<Long> toTruncate = Sets.newHashSet();
-    for (long wp : invalid) {
+    for (long wp : invalid.toSortedArray()) {
       // invalid list is sorted, hence can stop as soon as we reach a wp >= truncateWp
       if (wp >= truncateWp) {
         break;
@@ -1062,35 +2202,15 @@ public class TransactionManager extends AbstractService {
     if (changeIds.isEmpty()) {
       return false;
     }
-
-    for (Map.Entry<Long, Set<ChangeId>> changeSet : committedChangeSets.entrySet()) {
-      // If commit time is greater than tx read-pointer,
-      // basically not visible but committed means "tx committed after given tx was started"
-      if (changeSet.getKey() > tx.getWritePointer()) {
-        if (overlap(changeSet.getValue(), changeIds)) {
-          return true;
-        }
-      }
-    }
-    return false;
-  }
-
-  private boolean overlap(Set<ChangeId> a, Set<ChangeId> b) {
-    // iterate over the smaller set, and check for every element in the other set
-    if (a.size() > b.size()) {
-      for (ChangeId change : b) {
-        if (a.contains(change)) {
-          return true;
-        }
-      }
-    } else {
-      for (ChangeId change : a) {
-        if (b.contains(change)) {
-          return true;
-        }
-      }
+    ParallelConflictChecker checker = parallelConflictChecker;
+    if (checker != null && changeIds instanceof ParallelConflictChecker.PartitionedChangeSet) {
+      // a large change set that was built in parallel, check its parts in parallel again
+      return checker.hasConflicts(committedChangeIndex, tx,
+                                  ((ParallelConflictChecker.PartitionedChangeSet) changeIds).getParts());
     }
-    return false;
+    // the index holds the latest commit pointer of every change in the committed change sets, hence this only
+    // costs one lookup per change, no matter how many transactions committed since tx was started
+    return committedChangeIndex.hasConflicts(tx, changeIds);
   }
 
   private void moveReadPointerIfNeeded(long committedWritePointer) {
@@ -1104,25 +2224,48 @@ public class TransactionManager extends AbstractService {
    * synchronized.
    */
   private Transaction createTransaction(long writePointer, TransactionType type) {
-    // For holding the first in progress short transaction Id (with timeout >= 0).
-    long firstShortTx = Transaction.NO_TX_IN_PROGRESS;
-    long[] array = new long[inProgress.size()];
-    int i = 0;
-    for (Map.Entry<Long, InProgressTx> entry : inProgress.entrySet()) {
-      long txId = entry.getKey();
-      array[i++] = txId;
-      if (firstShortTx == Transaction.NO_TX_IN_PROGRESS && !entry.getValue().isLongRunning()) {
-        firstShortTx = txId;
+    // the invalid and in-progress arrays are immutable, hence it is safe to share them with other transactions
+    return new Transaction(readPointer, writePointer, invalid.toSortedArray(), inProgressArray,
+                           firstShortInProgress, type);
+  }
+
+  /**
+   * Applies a change to the transaction state while holding the manager lock, and appends the resulting edits to
+   * the transaction log. If group commit is enabled, the change is applied by the group committer instead, and
+   * this only returns once the batch that contains the change has been synced to the transaction log.
+   */
+  private <T, E extends Exception> T applyAndLog(StateUpdate<T, E> update) throws E {
+    GroupCommitter committer = groupCommitter;
+    if (committer != null) {
+      return committer.submit(update);
+    }
+    List<TransactionEdit> edits = Lists.newArrayListWithCapacity(1);
+    T result;
+    // guard against changes to the transaction log while processing
+    this.logReadLock.lock();
+    try {
+      synchronized (this) {
+        result = update.apply(edits);
       }
+      // appending to WAL out of global lock for concurrent performance
+      // we should still be able to arrive at the same state even if log entries are out of order
+      if (!edits.isEmpty()) {
+        appendToLog(edits);
+      }
+    } finally {
+      this.logReadLock.unlock();
     }
-
-    return new Transaction(readPointer, writePointer, invalidArray, array, firstShortTx, type);
+    return result;
   }
 
   private void appendToLog(TransactionEdit edit) {
     try {
       Stopwatch timer = new Stopwatch().start();
       currentLog.append(edit);
+      logEditsSinceSnapshot.incrementAndGet();
+      if (snapshotLogBytes > 0) {
+        logBytesSinceSnapshot.addAndGet(estimateLogBytes(edit));
+      }
       txMetricsCollector.gauge("append.edit", (int) timer.elapsedMillis());
     } catch (IOException ioe) {
       abortService("Error appending to transaction log", ioe);
@@ -1133,12 +2276,35 @@ public class TransactionManager extends AbstractService {
     try {
       Stopwatch timer = new Stopwatch().start();
       currentLog.append(edits);
+      logEditsSinceSnapshot.addAndGet(edits.size());
+      if (snapshotLogBytes > 0) {
+        long bytes = 0;
+        for (TransactionEdit edit : edits) {
+          bytes += estimateLogBytes(edit);
+        }
+        logBytesSinceSnapshot.addAndGet(bytes);
+      }
       txMetricsCollector.gauge("append.edit", (int) timer.elapsedMillis());
     } catch (IOException ioe) {
       abortService("Error appending to transaction log", ioe);
     }
   }
 
+  /**
+   * Returns the estimated size of an edit in the transaction log, which is dominated by its changes.
+   */
+  private static long estimateLogBytes(TransactionEdit edit) {
+    Set<ChangeId> changes = edit.getChanges();
+    if (changes instanceof FingerprintSet) {
+      return EDIT_OVERHEAD_BYTES + (long) changes.size() * (Longs.BYTES + CHANGE_OVERHEAD_BYTES);
+    }
+    long bytes = EDIT_OVERHEAD_BYTES;
+    for (ChangeId change : changes) {
+      bytes += change.getKey().length + CHANGE_OVERHEAD_BYTES;
+    }
+    return bytes;
+  }
+
   /**
    * Called from the tx service every 10 seconds.
    * This hack is needed because current metrics system is not flexible when it comes to adding new metrics.
@@ -1189,6 +2355,285 @@ public class TransactionManager extends AbstractService {
         }
       }
     }
+
+    /**
+     * Ends the current sleep, so that {@link #doRun()} runs right away and the sleep time is computed again.
+     */
+    public void wakeUp() {
+      synchronized (stopped) {
+        stopped.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * A change to the transaction state. It is applied while holding the transaction manager lock, and adds the
+   * edits that need to be written to the transaction log for it to the given list.
+   * @param <T> the type of the result
+   * @param <E> the type of checked exception thrown if the change cannot be applied
+   */
+  private interface StateUpdate<T, E extends Exception> {
+    T apply(List<TransactionEdit> edits) throws E;
+  }
+
+  /**
+   * A {@link StateUpdate} that is queued for the {@link GroupCommitter}, along with its outcome.
+   */
+  private static final class PendingUpdate<T, E extends Exception> {
+    private final StateUpdate<T, E> update;
+    private final long submitTime = System.nanoTime();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private T result;
+    private Throwable error;
+
+    PendingUpdate(StateUpdate<T, E> update) {
+      this.update = update;
+    }
+
+    void apply(List<TransactionEdit> edits) {
+      try {
+        result = update.apply(edits);
+      } catch (Throwable t) {
+        error = t;
+      }
+    }
+
+    void release() {
+      done.countDown();
+    }
+
+    void fail(Throwable t) {
+      error = t;
+      done.countDown();
+    }
+
+    @SuppressWarnings("unchecked")
+    T await() throws E {
+      Uninterruptibles.awaitUninterruptibly(done);
+      if (error != null) {
+        Throwables.propagateIfPossible(error);
+        // a state update can only throw checked exceptions of type E
+        throw (E) error;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Applies the state changes of concurrent callers in batches. A single thread applies all changes of a batch in
+   * one pass while holding the manager lock, then appends all of their edits to the transaction log at once, which
+   * needs only one sync. Callers are released once the batch that contains their change has been synced.
+   */
+  private final class GroupCommitter extends Thread {
+    private final BlockingQueue<PendingUpdate<?, ?>> queue = new LinkedBlockingQueue<PendingUpdate<?, ?>>();
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private volatile boolean stopped;
+
+    GroupCommitter(int maxBatchSize, long lingerMicros) {
+      super("tx-group-commit");
+      setDaemon(true);
+      this.maxBatchSize = maxBatchSize;
+      this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+    }
+
+    <T, E extends Exception> T submit(StateUpdate<T, E> update) throws E {
+      PendingUpdate<T, E> pending = new PendingUpdate<T, E>(update);
+      if (stopped) {
+        pending.fail(new IllegalStateException("Transaction Manager is not running."));
+      } else {
+        queue.add(pending);
+        // the queue may have been drained for shutdown after we checked, in which case nobody will apply this
+        if (stopped && queue.remove(pending)) {
+          pending.fail(new IllegalStateException("Transaction Manager is not running."));
+        }
+      }
+      return pending.await();
+    }
+
+    @Override
+    public void run() {
+      List<PendingUpdate<?, ?>> batch = Lists.newArrayListWithCapacity(maxBatchSize);
+      try {
+        while (!stopped) {
+          PendingUpdate<?, ?> first = queue.poll(GROUP_COMMIT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          queue.drainTo(batch, maxBatchSize - batch.size());
+          // give more changes the chance to join the batch
+          long lingerEnd = System.nanoTime() + lingerNanos;
+          while (batch.size() < maxBatchSize) {
+            long remaining = lingerEnd - System.nanoTime();
+            PendingUpdate<?, ?> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+          }
+          process(batch);
+          batch.clear();
+        }
+      } catch (InterruptedException ie) {
+        LOG.info("Interrupted thread " + getName());
+      }
+      // the manager is no longer running, reject anything that is still queued
+      List<PendingUpdate<?, ?>> rejected = Lists.newArrayList();
+      queue.drainTo(rejected);
+      for (PendingUpdate<?, ?> pending : rejected) {
+        pending.fail(new IllegalStateException("Transaction Manager is not running."));
+      }
+      LOG.info("Exiting thread " + getName());
+    }
+
+    private void process(List<PendingUpdate<?, ?>> batch) {
+      List<TransactionEdit> edits = Lists.newArrayListWithCapacity(batch.size());
+      // guard against changes to the transaction log while processing
+      logReadLock.lock();
+      try {
+        synchronized (TransactionManager.this) {
+          for (PendingUpdate<?, ?> pending : batch) {
+            pending.apply(edits);
+          }
+        }
+        if (!edits.isEmpty()) {
+          appendToLog(edits);
+        }
+      } finally {
+        logReadLock.unlock();
+      }
+      long now = System.nanoTime();
+      long maxWait = 0;
+      for (PendingUpdate<?, ?> pending : batch) {
+        maxWait = Math.max(maxWait, now - pending.submitTime);
+        pending.release();
+      }
+      txMetricsCollector.gauge("group.commit.batch.size", batch.size());
+      txMetricsCollector.gauge("group.commit.wait.latency", (int) TimeUnit.NANOSECONDS.toMillis(maxWait));
+    }
+
+    void shutdown() {
+      stopped = true;
+    }
+  }
+
+  /**
+   * A capture of the transaction state, which is created in constant time with the lock held, and is turned into a
+   * {@link TransactionSnapshot} later, without holding the lock. The sorted array of invalid ids is never modified, and
+   * the change sets and in-progress transactions are never modified once they were added, hence only the values
+   * replaced in the maps after the capture need to be saved.
+   */
+  private final class StateCapture {
+    private final long timestamp;
+    private final long readPointer;
+    private final long writePointer;
+    private final long[] invalid;
+    private final MapCapture<Long, InProgressTx> inProgress;
+    private final MapCapture<Long, Set<ChangeId>> committing;
+    private final MapCapture<Long, Set<ChangeId>> committed;
+
+    private StateCapture(long timestamp) {
+      this.timestamp = timestamp;
+      this.readPointer = TransactionManager.this.readPointer;
+      this.writePointer = lastWritePointer;
+      // shares the sorted array of the invalid set
+      this.invalid = TransactionManager.this.invalid.toSortedArray();
+      this.inProgress = new MapCapture<Long, InProgressTx>(TransactionManager.this.inProgress);
+      this.committing = new MapCapture<Long, Set<ChangeId>>(committingChangeSets);
+      this.committed = new MapCapture<Long, Set<ChangeId>>(committedChangeSets);
+    }
+
+    private void beforeClear() {
+      inProgress.beforeClear();
+      committing.beforeClear();
+      committed.beforeClear();
+    }
+
+    private TransactionSnapshot toSnapshot() {
+      return new TransactionSnapshot(timestamp, readPointer, writePointer, LongArrayList.wrap(invalid),
+                                     inProgress.copyTo(new TreeMap<Long, InProgressTx>()),
+                                     committing.copyTo(new HashMap<Long, Set<ChangeId>>()),
+                                     committed.copyTo(new TreeMap<Long, Set<ChangeId>>()), fingerprintChanges);
+    }
+
+    /**
+     * Returns the changes since the given capture of the previous snapshot, which must no longer be notified of
+     * updates, and must have been created before this capture.
+     */
+    private TransactionSnapshotDelta deltaSince(StateCapture previous) {
+      LongArrayList addedInvalid = new LongArrayList();
+      LongArrayList removedInvalid = new LongArrayList();
+      diffSorted(previous.invalid, invalid, addedInvalid, removedInvalid);
+      NavigableMap<Long, InProgressTx> inProgressUpdates = new TreeMap<Long, InProgressTx>();
+      long[] removedInProgress = diff(previous.inProgress, inProgress, inProgressUpdates);
+      Map<Long, Set<ChangeId>> committingUpdates = new HashMap<Long, Set<ChangeId>>();
+      long[] removedCommitting = diff(previous.committing, committing, committingUpdates);
+      NavigableMap<Long, Set<ChangeId>> committedUpdates = new TreeMap<Long, Set<ChangeId>>();
+      long[] removedCommitted = diff(previous.committed, committed, committedUpdates);
+      return new TransactionSnapshotDelta(timestamp, previous.timestamp, readPointer, writePointer,
+                                          addedInvalid.toLongArray(), removedInvalid.toLongArray(),
+                                          inProgressUpdates, removedInProgress, committingUpdates, removedCommitting,
+                                          committedUpdates, removedCommitted);
+    }
+
+    /**
+     * Discards the values saved by this capture, once it was turned into a snapshot, such that it only tracks the
+     * keys that are updated afterwards.
+     */
+    private void discardValues() {
+      inProgress.discardValues();
+      committing.discardValues();
+      committed.discardValues();
+    }
+
+    private TransactionSnapshot toVisibilityState() {
+      Map<Long, Set<ChangeId>> noChanges = Collections.emptyMap();
+      return new TransactionSnapshot(timestamp, readPointer, writePointer, LongArrayList.wrap(invalid),
+                                     inProgress.copyTo(new TreeMap<Long, InProgressTx>()), noChanges, noChanges);
+    }
+  }
+
+  /**
+   * Adds the entries that were updated between two captures to {@code updated}, with their values at the time of
+   * the later capture, and returns the keys that were removed.
+   */
+  private static <V> long[] diff(MapCapture<Long, V> previous, MapCapture<Long, V> current, Map<Long, V> updated) {
+    LongArrayList removed = new LongArrayList();
+    for (Long key : previous.getUpdatedKeys()) {
+      V value = current.get(key);
+      if (value != null) {
+        updated.put(key, value);
+      } else if (previous.containedKey(key)) {
+        // keys that were added and removed again in between are not in either capture
+        removed.add(key);
+      }
+    }
+    return removed.toLongArray();
+  }
+
+  /**
+   * Adds the ids that are only in {@code current} to {@code added}, and those only in {@code previous} to
+   * {@code removed}, where both arrays must be sorted.
+   */
+  private static void diffSorted(long[] previous, long[] current, LongArrayList added, LongArrayList removed) {
+    if (previous == current) {
+      // the invalid set shares its sorted array until it is modified
+      return;
+    }
+    int i = 0;
+    int j = 0;
+    while (i < previous.length || j < current.length) {
+      if (j == current.length || (i < previous.length && previous[i] < current[j])) {
+        removed.add(previous[i++]);
+      } else if (i == previous.length || previous[i] > current[j]) {
+        added.add(current[j++]);
+      } else {
+        i++;
+        j++;
+      }
+    }
   }
 
   /**
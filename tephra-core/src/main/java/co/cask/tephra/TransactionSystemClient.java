@@ -46,6 +46,17 @@ public interface TransactionSystemClient {
    */
   Transaction startLong();
 
+  /**
+   * Starts new read-only transaction. A read-only transaction sees the same committed state as a short transaction
+   * started at the same time, but it is not registered with the transaction manager: it has no write pointer of
+   * its own, is never logged, and does not need to be committed or aborted. It must not make any changes: they
+   * cannot be committed, and they are invisible to it and to any other transaction, until they are rolled back. As
+   * it is not tracked, it also does not prevent old versions that it could read from being cleaned up, hence it
+   * should be short-lived.
+   * @return instance of {@link Transaction}
+   */
+  Transaction startReadOnly();
+
   // this pre-commit detects conflicts with other transactions committed so far
   // NOTE: the changes set should not change after this operation, this may help us do some extra optimizations
   // NOTE: there should be time constraint on how long does it take to commit changes by the client after this operation
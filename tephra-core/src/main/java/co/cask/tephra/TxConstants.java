@@ -18,6 +18,7 @@ package co.cask.tephra;
 
 import co.cask.tephra.snapshot.DefaultSnapshotCodec;
 import co.cask.tephra.snapshot.SnapshotCodecV2;
+import co.cask.tephra.snapshot.SnapshotCodecV3;
 
 import java.util.concurrent.TimeUnit;
 
@@ -101,6 +102,13 @@ public class TxConstants {
     public static final String CFG_TX_HDFS_USER = "data.tx.hdfs.user";
     /** Default value for how often to check in-progress transactions for expiration, in seconds. */
     public static final int DEFAULT_TX_CLEANUP_INTERVAL = 10;
+    /**
+     * Whether to also clean up timed out transactions as soon as they expire, instead of only once per cleanup
+     * interval.
+     */
+    public static final String CFG_TX_CLEANUP_PRECISE = "data.tx.cleanup.precise";
+    /** Default value for whether timed out transactions are cleaned up as soon as they expire. */
+    public static final boolean DEFAULT_TX_CLEANUP_PRECISE = false;
     /**
      * The timeout for a transaction, in seconds. If the transaction is not finished in that time,
      * it is marked invalid.
@@ -123,6 +131,185 @@ public class TxConstants {
     public static final String CFG_TX_SNAPSHOT_RETAIN = "data.tx.snapshot.retain";
     /** Default value for number of most recent snapshots to retain. */
     public static final int DEFAULT_TX_SNAPSHOT_RETAIN = 10;
+    /**
+     * The number of edits written to the transaction log since the last snapshot after which a snapshot is taken,
+     * regardless of the snapshot interval, or 0 to not take snapshots by the number of edits.
+     */
+    public static final String CFG_TX_SNAPSHOT_LOG_EDITS = "data.tx.snapshot.log.edits";
+    /** Default value for the number of logged edits that trigger a snapshot. */
+    public static final long DEFAULT_TX_SNAPSHOT_LOG_EDITS = 0;
+    /**
+     * The estimated size, in bytes, of the edits written to the transaction log since the last snapshot after which
+     * a snapshot is taken, regardless of the snapshot interval, or 0 to not take snapshots by log size.
+     */
+    public static final String CFG_TX_SNAPSHOT_LOG_BYTES = "data.tx.snapshot.log.bytes";
+    /** Default value for the estimated log size that triggers a snapshot. */
+    public static final long DEFAULT_TX_SNAPSHOT_LOG_BYTES = 0;
+    /**
+     * The estimated time, in milliseconds, to replay the edits written to the transaction log since the last
+     * snapshot, after which a snapshot is taken to bound the recovery time, or 0 to not take snapshots by replay
+     * time. The estimate is based on the replay rate measured when the transaction manager started.
+     */
+    public static final String CFG_TX_SNAPSHOT_REPLAY_TIME = "data.tx.snapshot.replay.time.millis";
+    /** Default value for the estimated replay time that triggers a snapshot. */
+    public static final long DEFAULT_TX_SNAPSHOT_REPLAY_TIME = 0;
+    /**
+     * Whether to skip periodic snapshots if no edits were written to the transaction log since the last one. The
+     * visibility state is still written at its interval, which is what the coprocessors read to tell that the
+     * transaction state is current.
+     */
+    public static final String CFG_TX_SNAPSHOT_SKIP_UNCHANGED = "data.tx.snapshot.skip.unchanged";
+    /** Default value for whether periodic snapshots are skipped if the state did not change. */
+    public static final boolean DEFAULT_TX_SNAPSHOT_SKIP_UNCHANGED = false;
+    /**
+     * The frequency (in seconds) to write the visibility state, which the coprocessors read instead of the full
+     * snapshot, in between snapshots. If 0, the visibility state is written with every snapshot, and also at the
+     * snapshot interval when periodic snapshots are skipped because the state did not change.
+     */
+    public static final String CFG_TX_VISIBILITY_STATE_INTERVAL = "data.tx.visibility.state.interval";
+    /** Default value for the frequency of writing the visibility state. */
+    public static final long DEFAULT_TX_VISIBILITY_STATE_INTERVAL = 0;
+    /**
+     * The number of delta snapshots to take between two full snapshots, or 0 to only take full snapshots. A delta
+     * snapshot only holds the changes since the previous snapshot, and requires the
+     * {@link co.cask.tephra.snapshot.SnapshotCodecV3} codec to be configured in
+     * {@link TxConstants.Persist#CFG_TX_SNAPHOT_CODEC_CLASSES}; full snapshots are taken otherwise.
+     */
+    public static final String CFG_TX_SNAPSHOT_DELTAS = "data.tx.snapshot.deltas";
+    /** Default value for the number of delta snapshots between full snapshots. */
+    public static final int DEFAULT_TX_SNAPSHOT_DELTAS = 0;
+    /**
+     * Whether to apply transaction state changes (start, canCommit, commit and abort) in batches, with a single
+     * sync of the transaction log for each batch.
+     */
+    public static final String CFG_TX_GROUP_COMMIT_ENABLED = "data.tx.group.commit.enabled";
+    /** Default value for whether group commit is enabled. */
+    public static final boolean DEFAULT_TX_GROUP_COMMIT_ENABLED = false;
+    /** The maximum number of state changes applied and synced to the transaction log as one batch. */
+    public static final String CFG_TX_GROUP_COMMIT_BATCH_SIZE = "data.tx.group.commit.batch.size";
+    /** Default value for the maximum group commit batch size. */
+    public static final int DEFAULT_TX_GROUP_COMMIT_BATCH_SIZE = 256;
+    /**
+     * How long to wait for more state changes to join a batch before applying it, in microseconds, or 0 to apply
+     * whatever is queued right away.
+     */
+    public static final String CFG_TX_GROUP_COMMIT_LINGER = "data.tx.group.commit.linger.micros";
+    /** Default value for the group commit linger time, in microseconds. */
+    public static final long DEFAULT_TX_GROUP_COMMIT_LINGER = 0;
+    /**
+     * The number of slots of the ring buffer through which edits are appended to the transaction log, see
+     * {@link co.cask.tephra.persist.RingBufferTransactionLog}. A value of zero or less appends edits to the log
+     * directly.
+     */
+    public static final String CFG_TX_LOG_RING_BUFFER_SIZE = "data.tx.log.ring.buffer.size";
+    /** Default value for the size of the transaction log ring buffer. */
+    public static final int DEFAULT_TX_LOG_RING_BUFFER_SIZE = 0;
+    /**
+     * The number of stripe files that transaction logs in HDFS are written to in parallel, see
+     * {@link co.cask.tephra.persist.StripedHDFSTransactionLog}. A value of one or less writes every log to a single
+     * file, through the ring buffer if one is configured.
+     */
+    public static final String CFG_TX_LOG_HDFS_STRIPES = "data.tx.log.hdfs.stripes";
+    /** Default value for the number of stripes of transaction logs in HDFS. */
+    public static final int DEFAULT_TX_LOG_HDFS_STRIPES = 1;
+    /**
+     * The number of threads that recover the leases of the files of the transaction logs in HDFS that are read on
+     * startup, and open them, see {@link co.cask.tephra.persist.HDFSTransactionLogRecovery}.
+     */
+    public static final String CFG_TX_LOG_HDFS_RECOVERY_THREADS = "data.tx.log.hdfs.recovery.threads";
+    /** Default value for the number of threads that recover transaction logs in HDFS. */
+    public static final int DEFAULT_TX_LOG_HDFS_RECOVERY_THREADS = 8;
+    /**
+     * The size, in bytes, of the preallocated segments of transaction logs on the local filesystem, see
+     * {@link co.cask.tephra.persist.SegmentedLocalTransactionLog}. A value of zero or less writes every log to a
+     * single file instead, which is not synced to disk.
+     */
+    public static final String CFG_TX_LOG_LOCAL_SEGMENT_SIZE = "data.tx.log.local.segment.size";
+    /** Default value for the size of local transaction log segments. */
+    public static final int DEFAULT_TX_LOG_LOCAL_SEGMENT_SIZE = 0;
+    /**
+     * The maximum number of segments of deleted local transaction logs kept for reuse by new logs, so that these
+     * do not have to be preallocated again.
+     */
+    public static final String CFG_TX_LOG_LOCAL_RECYCLED_SEGMENTS = "data.tx.log.local.recycled.segments";
+    /** Default value for the maximum number of recycled local transaction log segments. */
+    public static final int DEFAULT_TX_LOG_LOCAL_RECYCLED_SEGMENTS = 4;
+    /**
+     * The number of threads that open and decode the transaction logs replayed on startup, ahead of the thread that
+     * applies their edits in order.
+     */
+    public static final String CFG_TX_REPLAY_THREADS = "data.tx.replay.threads";
+    /** Default value for the number of threads that read the transaction logs replayed on startup. */
+    public static final int DEFAULT_TX_REPLAY_THREADS = 4;
+    /**
+     * The estimated heap size, in bytes, that the committed change sets may take before the oldest of them are
+     * spilled to memory-mapped files, which are still checked for conflicts, see
+     * {@link co.cask.tephra.SpilledChangeSets}. A value of zero or less keeps all committed change sets on the heap.
+     */
+    public static final String CFG_TX_COMMITTED_HEAP_BUDGET = "data.tx.committed.heap.budget.bytes";
+    /** Default value for the heap budget of the committed change sets. */
+    public static final long DEFAULT_TX_COMMITTED_HEAP_BUDGET = 0;
+    /**
+     * The local directory to which committed change sets are spilled. If not set, a temporary directory is used.
+     */
+    public static final String CFG_TX_COMMITTED_SPILL_DIR = "data.tx.committed.spill.dir";
+    /**
+     * The interval, in milliseconds, at which a transaction manager that runs as a hot standby applies the edits
+     * appended to the transaction logs by the active transaction manager.
+     */
+    public static final String CFG_TX_STANDBY_POLL_INTERVAL = "data.tx.standby.poll.interval.ms";
+    /** Default value for the interval at which a hot standby applies new edits of the transaction logs. */
+    public static final long DEFAULT_TX_STANDBY_POLL_INTERVAL = 200;
+    /**
+     * The number of shards of the index used for conflict detection. Commits of transactions with changes in
+     * different shards check for conflicts in parallel.
+     */
+    public static final String CFG_TX_CONFLICT_SHARDS = "data.tx.conflict.shards";
+    /** Default value for the number of conflict detection shards. */
+    public static final int DEFAULT_TX_CONFLICT_SHARDS = 16;
+    /**
+     * The minimum number of changes submitted with canCommit() for which the change set is built and checked for
+     * conflicts in parallel. Smaller change sets are always handled by the calling thread. A value of zero or less
+     * disables parallel conflict checks.
+     */
+    public static final String CFG_TX_CONFLICT_PARALLEL_THRESHOLD = "data.tx.conflict.parallel.threshold";
+    /** Default value for the minimum size of a change set to check for conflicts in parallel. */
+    public static final int DEFAULT_TX_CONFLICT_PARALLEL_THRESHOLD = 50000;
+    /**
+     * The number of threads used to check large change sets for conflicts in parallel. A value of zero or less
+     * uses one thread per available processor.
+     */
+    public static final String CFG_TX_CONFLICT_PARALLEL_THREADS = "data.tx.conflict.parallel.threads";
+    /** Default value for the number of threads used for parallel conflict checks. */
+    public static final int DEFAULT_TX_CONFLICT_PARALLEL_THREADS = 0;
+    /**
+     * Whether to keep only 64-bit fingerprints of the change keys for conflict detection, to reduce the memory used
+     * by the committed change sets. If the change sets were persisted as fingerprints with
+     * {@link #FINGERPRINT_COLLISIONS_CONFLICT}, the transaction manager only starts without that setting if no
+     * transactions were in progress when it stopped, as their conflicts could not be detected otherwise.
+     */
+    public static final String CFG_TX_CHANGE_FINGERPRINT_ENABLED = "data.tx.change.fingerprint.enabled";
+    /** Default value for whether only fingerprints of the change keys are kept. */
+    public static final boolean DEFAULT_TX_CHANGE_FINGERPRINT_ENABLED = false;
+    /**
+     * How to handle two different changes with the same fingerprint, either {@link #FINGERPRINT_COLLISIONS_CONFLICT}
+     * or {@link #FINGERPRINT_COLLISIONS_VERIFY}.
+     */
+    public static final String CFG_TX_CHANGE_FINGERPRINT_COLLISIONS = "data.tx.change.fingerprint.collisions";
+    /**
+     * Treat changes with the same fingerprint as a conflict. Only the fingerprints of the committing and committed
+     * changes are kept, a collision can only cause a transaction to fail with a conflict that it did not have.
+     * This requires {@link co.cask.tephra.snapshot.SnapshotCodecV3} in {@link Persist#CFG_TX_SNAPHOT_CODEC_CLASSES},
+     * which records that the change sets of a snapshot hold fingerprints.
+     */
+    public static final String FINGERPRINT_COLLISIONS_CONFLICT = "conflict";
+    /**
+     * Verify a conflict found by fingerprint against the full change keys. Only the conflict detection index uses
+     * fingerprints, the committing and committed change sets still keep the full change keys.
+     */
+    public static final String FINGERPRINT_COLLISIONS_VERIFY = "verify";
+    /** Default value for how to handle changes with the same fingerprint. */
+    public static final String DEFAULT_TX_CHANGE_FINGERPRINT_COLLISIONS = FINGERPRINT_COLLISIONS_CONFLICT;
   }
 
   /**
@@ -180,6 +367,17 @@ public class TxConstants {
     public static final int DEFAULT_DATA_TX_THRIFT_MAX_READ_BUFFER
       = 16 * 1024 * 1024;
 
+    /**
+     * Whether a tx server that is not the leader keeps the transaction state of the leader in memory, as a hot
+     * standby, so that it only needs to apply the last few edits of the transaction log when it becomes the leader.
+     */
+    public static final String CFG_DATA_TX_STANDBY_ENABLED
+      = "data.tx.standby.enabled";
+
+    /** default is to recover the transaction state only when becoming the leader. */
+    public static final boolean DEFAULT_DATA_TX_STANDBY_ENABLED
+      = false;
+
     // Configuration key names and defaults used by tx client.
 
     /** to specify the tx client socket timeout in ms. */
@@ -273,11 +471,18 @@ public class TxConstants {
    */
   public static final class Persist {
     /**
-     * The class names of all known transaction snapshot codecs.
+     * The class names of all known transaction snapshot codecs. Snapshots are written with the codec of the highest
+     * version. {@link SnapshotCodecV3} is not registered by default, as older releases cannot read the snapshots it
+     * writes: to use it, upgrade all transaction servers and clients, then add it to this list.
      */
     public static final String CFG_TX_SNAPHOT_CODEC_CLASSES = "data.tx.snapshot.codecs";
     public static final Class[] DEFAULT_TX_SNAPHOT_CODEC_CLASSES = 
       { DefaultSnapshotCodec.class, SnapshotCodecV2.class };
+    /**
+     * Whether the sections of snapshots written with {@link SnapshotCodecV3} are compressed.
+     */
+    public static final String CFG_TX_SNAPSHOT_COMPRESSION = "data.tx.snapshot.compression";
+    public static final boolean DEFAULT_TX_SNAPSHOT_COMPRESSION = false;
   }
 
 }
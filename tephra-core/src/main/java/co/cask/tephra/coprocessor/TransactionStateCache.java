@@ -32,8 +32,9 @@ import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Periodically refreshes transaction state from the latest stored snapshot.  This is implemented as a singleton
- * to allow a single cache to be shared by all regions on a regionserver.
+ * Periodically refreshes transaction state from the latest stored visibility state, which holds the invalid and
+ * in-progress transactions of a snapshot, but not its change sets.  This is implemented as a singleton to allow a
+ * single cache to be shared by all regions on a regionserver.
  */
 public class TransactionStateCache extends AbstractIdleService implements Configurable {
   private static final Log LOG = LogFactory.getLog(TransactionStateCache.class);
@@ -87,8 +88,14 @@ public class TransactionStateCache extends AbstractIdleService implements Config
       if (conf != null) {
         this.storage = new HDFSTransactionStateStorage(conf, new SnapshotCodecProvider(conf));
         this.storage.startAndWait();
-        this.snapshotRefreshFrequency = conf.getLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL,
-                                                     TxConstants.Manager.DEFAULT_TX_SNAPSHOT_INTERVAL) * 1000;
+        // the visibility state is written at its own interval if configured, otherwise with every snapshot
+        long refreshSeconds = conf.getLong(TxConstants.Manager.CFG_TX_VISIBILITY_STATE_INTERVAL,
+                                           TxConstants.Manager.DEFAULT_TX_VISIBILITY_STATE_INTERVAL);
+        if (refreshSeconds <= 0) {
+          refreshSeconds = conf.getLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL,
+                                        TxConstants.Manager.DEFAULT_TX_SNAPSHOT_INTERVAL);
+        }
+        this.snapshotRefreshFrequency = refreshSeconds * 1000;
         this.initialized = true;
       } else {
         LOG.info("Could not load configuration");
@@ -145,14 +152,14 @@ public class TransactionStateCache extends AbstractIdleService implements Config
     // only continue if initialization was successful
     if (initialized) {
       long now = System.currentTimeMillis();
-      TransactionSnapshot currentSnapshot = storage.getLatestSnapshot();
+      TransactionSnapshot currentSnapshot = storage.getLatestVisibilityState();
       if (currentSnapshot != null) {
         if (currentSnapshot.getTimestamp() < (now - 2 * snapshotRefreshFrequency)) {
           LOG.info("Current snapshot is old, will force a refresh on next run.");
           reset();
         } else {
           latestState = currentSnapshot;
-          LOG.info("Transaction state reloaded with snapshot from " + latestState.getTimestamp());
+          LOG.info("Transaction state reloaded with visibility state from " + latestState.getTimestamp());
           lastRefresh = now;
         }
       } else {
@@ -40,10 +40,16 @@ public final class TransactionConverterUtils {
   }
 
   private static TransactionType getTransactionType(TTransactionType tType) {
-    return tType == TTransactionType.SHORT ? TransactionType.SHORT : TransactionType.LONG;
+    if (tType == TTransactionType.SHORT) {
+      return TransactionType.SHORT;
+    }
+    return tType == TTransactionType.READ_ONLY ? TransactionType.READ_ONLY : TransactionType.LONG;
   }
 
   private static TTransactionType getTTransactionType(TransactionType type) {
-    return type == TransactionType.SHORT ? TTransactionType.SHORT : TTransactionType.LONG;
+    if (type == TransactionType.SHORT) {
+      return TTransactionType.SHORT;
+    }
+    return type == TransactionType.READ_ONLY ? TTransactionType.READ_ONLY : TTransactionType.LONG;
   }
 }
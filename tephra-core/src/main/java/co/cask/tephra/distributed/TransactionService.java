@@ -17,6 +17,7 @@
 package co.cask.tephra.distributed;
 
 import co.cask.tephra.TransactionManager;
+import co.cask.tephra.TxConstants;
 import co.cask.tephra.distributed.thrift.TTransactionServer;
 import co.cask.tephra.inmemory.InMemoryTransactionService;
 import co.cask.tephra.rpc.ThriftRPCServer;
@@ -45,6 +46,10 @@ public final class TransactionService extends InMemoryTransactionService {
   private static final Logger LOG = LoggerFactory.getLogger(TransactionService.class);
   private LeaderElection leaderElection;
   private final ZKClient zkClient;
+  private final boolean standbyEnabled;
+  // the transaction manager that is kept up to date as a hot standby until this becomes the leader
+  private volatile TransactionManager standbyTxManager;
+  private volatile boolean stopping;
 
   private ThriftRPCServer<TransactionServiceThriftHandler, TTransactionServer> server;
 
@@ -55,6 +60,8 @@ public final class TransactionService extends InMemoryTransactionService {
                             Provider<TransactionManager> txManagerProvider) {
     super(conf, discoveryService, txManagerProvider);
     this.zkClient = zkClient;
+    this.standbyEnabled = conf.getBoolean(TxConstants.Service.CFG_DATA_TX_STANDBY_ENABLED,
+                                          TxConstants.Service.DEFAULT_DATA_TX_STANDBY_ENABLED);
   }
 
   @Override
@@ -64,11 +71,18 @@ public final class TransactionService extends InMemoryTransactionService {
 
   @Override
   protected void doStart() {
+    if (standbyEnabled) {
+      startStandby();
+    }
     leaderElection = new LeaderElection(zkClient, "/tx.service/leader", new ElectionHandler() {
       @Override
       public void leader() {
+        // a hot standby only needs to apply the last edits of the transaction log when it is started, otherwise a
+        // new transaction manager is used, as the one of an earlier leadership cannot be started again
+        TransactionManager standby = standbyTxManager;
+        standbyTxManager = null;
+        txManager = standby != null ? standby : txManagerProvider.get();
         // if the txManager fails, we should stop the server
-        txManager = txManagerProvider.get();
         txManager.addListener(new ServiceListenerAdapter() {
           @Override
           public void failed(State from, Throwable failure) {
@@ -99,8 +113,13 @@ public final class TransactionService extends InMemoryTransactionService {
       public void follower() {
         undoRegiser();
         if (server != null && server.isRunning()) {
+          // also stops the transaction manager
           server.stopAndWait();
         }
+        // a new transaction manager is kept up to date as a hot standby, until this becomes the leader again
+        if (standbyEnabled && standbyTxManager == null && !stopping) {
+          startStandby();
+        }
       }
     });
     leaderElection.start();
@@ -120,7 +139,19 @@ public final class TransactionService extends InMemoryTransactionService {
     notifyFailed(cause);
   }
 
+  private void startStandby() {
+    TransactionManager standby = txManagerProvider.get();
+    try {
+      standby.startStandby();
+      standbyTxManager = standby;
+    } catch (Throwable t) {
+      // the transaction manager recovers its state from scratch when this becomes the leader
+      LOG.error("Failed to start transaction manager as hot standby", t);
+    }
+  }
+
   protected void internalStop() {
+    stopping = true;
     if (leaderElection != null) {
       // NOTE: if was a leader this will cause loosing of leadership which in callback above will
       //       de-register service in discovery service and stop the service if needed
@@ -132,5 +163,10 @@ public final class TransactionService extends InMemoryTransactionService {
         LOG.error("Exception when cancelling leader election.", e);
       }
     }
+    TransactionManager standby = standbyTxManager;
+    if (standby != null) {
+      standbyTxManager = null;
+      standby.stopStandby();
+    }
   }
 }
@@ -300,6 +300,22 @@ public class TransactionServiceClient implements TransactionSystemClient {
     }
   }
 
+  @Override
+  public Transaction startReadOnly() {
+    try {
+      return execute(
+        new Operation<Transaction>("startReadOnly") {
+          @Override
+          public Transaction execute(TransactionServiceThriftClient client)
+            throws TException {
+            return client.startReadOnly();
+          }
+        });
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
   @Override
   public boolean canCommit(final Transaction tx, final Collection<byte[]> changeIds)
     throws TransactionNotInProgressException {
@@ -90,6 +90,10 @@ public class TransactionServiceThriftClient {
       return TransactionConverterUtils.unwrap(client.startShortTimeout(timeout));
   }
 
+  public Transaction startReadOnly() throws TException {
+    return TransactionConverterUtils.unwrap(client.startReadOnly());
+  }
+
   public boolean canCommit(Transaction tx, Collection<byte[]> changeIds) throws TException {
 
       return client.canCommitTx(TransactionConverterUtils.wrap(tx),
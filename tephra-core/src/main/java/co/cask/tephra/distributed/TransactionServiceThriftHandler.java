@@ -74,6 +74,11 @@ public class TransactionServiceThriftHandler implements TTransactionServer.Iface
     return TransactionConverterUtils.wrap(txManager.startShort(timeout));
   }
 
+  @Override
+  public TTransaction startReadOnly() throws TException {
+    return TransactionConverterUtils.wrap(txManager.startReadOnly());
+  }
+
 
   @Override
   public TBoolean canCommitTx(TTransaction tx, Set<ByteBuffer> changes) throws TException {
@@ -25,7 +25,8 @@ package co.cask.tephra.distributed.thrift;
 
 public enum TTransactionType implements org.apache.thrift.TEnum {
   SHORT(1),
-  LONG(2);
+  LONG(2),
+  READ_ONLY(3);
 
   private final int value;
 
@@ -50,6 +51,8 @@ public enum TTransactionType implements org.apache.thrift.TEnum {
         return SHORT;
       case 2:
         return LONG;
+      case 3:
+        return READ_ONLY;
       default:
         return null;
     }
@@ -74,6 +74,14 @@ public class DetachedTxSystemClient implements TransactionSystemClient {
     return startShort();
   }
 
+  @Override
+  public Transaction startReadOnly() {
+    // a read-only transaction has its read pointer as its write pointer, it never writes with that, and excludes it
+    return new Transaction(
+      Long.MAX_VALUE - 1, Long.MAX_VALUE - 1, new long[] { Long.MAX_VALUE - 1 }, new long[0],
+      Transaction.NO_TX_IN_PROGRESS, TransactionType.READ_ONLY);
+  }
+
   @Override
   public boolean canCommit(Transaction tx, Collection<byte[]> changeIds) {
     return true;
@@ -63,6 +63,11 @@ public class InMemoryTxSystemClient implements TransactionSystemClient {
     return txManager.startShort(timeout);
   }
 
+  @Override
+  public Transaction startReadOnly() {
+    return txManager.startReadOnly();
+  }
+
   @Override
   public boolean canCommit(Transaction tx, Collection<byte[]> changeIds) throws TransactionNotInProgressException {
     return changeIds.isEmpty() || txManager.canCommit(tx, changeIds);
@@ -0,0 +1,29 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an edit of a transaction log has an invalid length or fails its checksum, as the last edit of a log
+ * may when its writer failed while the edit was written.
+ */
+public class CorruptTransactionEditException extends IOException {
+  public CorruptTransactionEditException(String s) {
+    super(s);
+  }
+}
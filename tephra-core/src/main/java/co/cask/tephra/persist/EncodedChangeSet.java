@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import co.cask.tephra.ChangeId;
+import com.google.common.base.Throwables;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of changes that are kept in their encoded form, as a slice of the buffer of the
+ * {@link TransactionEdit} they were read with, each as its length followed by its key. A {@link ChangeId} is only
+ * created for a change when the set is iterated, hence the changes of an edit that is replayed from the log, but
+ * that is not needed afterwards, are never materialized.
+ *
+ * <p>
+ * Copying the set into a {@link java.util.HashSet} materializes its changes once. Lookups scan the encoded changes,
+ * and are not meant for large sets.
+ * </p>
+ */
+public final class EncodedChangeSet extends AbstractSet<ChangeId> {
+  private final byte[] bytes;
+  private final int offset;
+  private final int end;
+  private final int size;
+
+  /**
+   * Creates a set from the encoded changes in the given range of the given buffer, which must not be modified
+   * anymore.
+   */
+  EncodedChangeSet(byte[] bytes, int offset, int end, int size) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.end = end;
+    this.size = size;
+  }
+
+  @Override
+  public Iterator<ChangeId> iterator() {
+    return new Iterator<ChangeId>() {
+      private int position = offset;
+
+      @Override
+      public boolean hasNext() {
+        return position < end;
+      }
+
+      @Override
+      public ChangeId next() {
+        if (position >= end) {
+          throw new NoSuchElementException();
+        }
+        int length = readLength(position);
+        position += WritableUtils.decodeVIntSize(bytes[position]);
+        ChangeId change = new ChangeId(Arrays.copyOfRange(bytes, position, position + length));
+        position += length;
+        return change;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Encoded change sets are immutable");
+      }
+    };
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof ChangeId)) {
+      return false;
+    }
+    byte[] key = ((ChangeId) o).getKey();
+    int position = offset;
+    while (position < end) {
+      int length = readLength(position);
+      position += WritableUtils.decodeVIntSize(bytes[position]);
+      if (length == key.length && WritableComparator.compareBytes(bytes, position, length, key, 0, length) == 0) {
+        return true;
+      }
+      position += length;
+    }
+    return false;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  private int readLength(int position) {
+    try {
+      return WritableComparator.readVInt(bytes, position);
+    } catch (IOException e) {
+      // only thrown for a truncated buffer, which was verified when the edit was read
+      throw Throwables.propagate(e);
+    }
+  }
+}
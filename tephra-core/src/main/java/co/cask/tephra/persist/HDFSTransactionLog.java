@@ -16,18 +16,29 @@
 
 package co.cask.tephra.persist;
 
-import com.google.common.base.Throwables;
+import com.google.common.primitives.Longs;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.client.HdfsDataInputStream;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * Allows reading from and writing to a transaction write-ahead log stored in HDFS.
@@ -38,6 +49,8 @@ public class HDFSTransactionLog extends AbstractTransactionLog {
   private final FileSystem fs;
   private final Configuration hConf;
   private final Path logPath;
+  // recovers the log together with the logs listed with it, if it was listed for reading
+  private final HDFSTransactionLogRecovery recovery;
 
   /**
    * Creates a new HDFS-backed write-ahead log for storing transaction state.
@@ -47,10 +60,19 @@ public class HDFSTransactionLog extends AbstractTransactionLog {
    */
   public HDFSTransactionLog(final FileSystem fs, final Configuration hConf,
                             final Path logPath, long timestamp) {
+    this(fs, hConf, logPath, timestamp, null);
+  }
+
+  HDFSTransactionLog(FileSystem fs, Configuration hConf, Path logPath, long timestamp,
+                     @Nullable HDFSTransactionLogRecovery recovery) {
     super(timestamp);
     this.fs = fs;
     this.hConf = hConf;
     this.logPath = logPath;
+    this.recovery = recovery;
+    if (recovery != null) {
+      recovery.addLog(logPath, timestamp);
+    }
   }
 
   @Override
@@ -65,6 +87,25 @@ public class HDFSTransactionLog extends AbstractTransactionLog {
 
   @Override
   public TransactionLogReader getReader() throws IOException {
+    if (recovery != null) {
+      List<LogReader> readers = recovery.open(logPath);
+      if (readers != null) {
+        return readers.isEmpty() ? null : readers.get(0);
+      }
+    }
+    return openReader();
+  }
+
+  @Override
+  public TransactionLogReader getTailReader() throws IOException {
+    return openTailReader();
+  }
+
+  /**
+   * Opens a reader that also returns the sequence numbers of the edits, after recovering the lease of the log file.
+   * @return the reader, or {@code null} if the log file is empty
+   */
+  LogReader openReader() throws IOException {
     FileStatus status = fs.getFileStatus(logPath);
     long length = status.getLen();
 
@@ -106,13 +147,56 @@ public class HDFSTransactionLog extends AbstractTransactionLog {
     return reader;
   }
 
-  private static final class LogWriter implements TransactionLogWriter {
+  /**
+   * Opens a reader for the edits that were synced so far, without recovering the lease of a log file that is still
+   * being written.  Once it reached the end of the synced edits, the reader reopens the file to continue with the
+   * edits that were synced since then.
+   * @return the reader, or {@code null} if the log file does not exist or its header was not synced yet
+   */
+  LogReader openTailReader() throws IOException {
+    SequenceFile.Reader reader = openSyncedReader();
+    return reader == null ? null : new LogReader(reader, this);
+  }
+
+  /**
+   * Opens the log file up to the length that is synced so far.
+   * @return the reader, or {@code null} if the log file does not exist or its header was not synced yet
+   */
+  @Nullable
+  private SequenceFile.Reader openSyncedReader() throws IOException {
+    FSDataInputStream in;
+    try {
+      in = fs.open(logPath);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    // the length of a file that is being written only includes the synced bytes of its last block
+    long length = in instanceof HdfsDataInputStream ?
+      ((HdfsDataInputStream) in).getVisibleLength() : fs.getFileStatus(logPath).getLen();
+    try {
+      return new SequenceFile.Reader(hConf, SequenceFile.Reader.stream(in), SequenceFile.Reader.length(length));
+    } catch (EOFException e) {
+      in.close();
+      return null;
+    }
+  }
+
+  static final class LogWriter implements TransactionLogWriter {
     private final SequenceFile.Writer internalWriter;
+    private final DataOutputBuffer rawKey = new DataOutputBuffer(Longs.BYTES);
+    private final RawValueBytes rawValue = new RawValueBytes();
+    // only set if values are compressed one by one, as raw values must then be compressed before they are appended
+    private final CompressionCodec recordCodec;
+    private Compressor compressor;
+    private DataOutputBuffer compressedValue;
+    private CompressionOutputStream deflateFilter;
 
-    public LogWriter(FileSystem fs, Configuration hConf, Path logPath) throws IOException {
+    LogWriter(FileSystem fs, Configuration hConf, Path logPath) throws IOException {
       // TODO: retry a few times to ride over transient failures?
       this.internalWriter =
         SequenceFile.createWriter(fs, hConf, logPath, LongWritable.class, TransactionEdit.class);
+      this.recordCodec = SequenceFile.getDefaultCompressionType(hConf) == SequenceFile.CompressionType.RECORD
+        ? internalWriter.getCompressionCodec() : null;
       LOG.info("Created a new TransactionLog writer for " + logPath);
     }
 
@@ -121,6 +205,35 @@ public class HDFSTransactionLog extends AbstractTransactionLog {
       internalWriter.append(entry.getKey(), entry.getEdit());
     }
 
+    @Override
+    public void appendRaw(long sequence, byte[] edit, int offset, int length) throws IOException {
+      // same as the serialized LongWritable key of an entry
+      rawKey.reset();
+      rawKey.writeLong(sequence);
+      if (recordCodec != null) {
+        compress(edit, offset, length);
+        rawValue.set(compressedValue.getData(), 0, compressedValue.getLength());
+      } else {
+        rawValue.set(edit, offset, length);
+      }
+      internalWriter.appendRaw(rawKey.getData(), 0, rawKey.getLength(), rawValue);
+    }
+
+    /**
+     * Compresses a value the same way as the sequence file writer does with record compression.
+     */
+    private void compress(byte[] edit, int offset, int length) throws IOException {
+      if (deflateFilter == null) {
+        compressor = CodecPool.getCompressor(recordCodec);
+        compressedValue = new DataOutputBuffer();
+        deflateFilter = recordCodec.createOutputStream(compressedValue, compressor);
+      }
+      compressedValue.reset();
+      deflateFilter.resetState();
+      deflateFilter.write(edit, offset, length);
+      deflateFilter.finish();
+    }
+
     @Override
     public void sync() throws IOException {
       internalWriter.syncFs();
@@ -128,27 +241,78 @@ public class HDFSTransactionLog extends AbstractTransactionLog {
 
     @Override
     public void close() throws IOException {
-      internalWriter.close();
+      try {
+        internalWriter.close();
+      } finally {
+        if (compressor != null) {
+          CodecPool.returnCompressor(compressor);
+          compressor = null;
+        }
+      }
     }
   }
 
-  private static final class LogReader implements TransactionLogReader {
+  /**
+   * A value of a sequence file, from a range of a byte array. The bytes are written as they are, and must already
+   * be compressed if the sequence file writer asks for compressed bytes.
+   */
+  private static final class RawValueBytes implements SequenceFile.ValueBytes {
+    private byte[] bytes;
+    private int offset;
+    private int length;
+
+    void set(byte[] bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public void writeUncompressedBytes(DataOutputStream out) throws IOException {
+      out.write(bytes, offset, length);
+    }
 
+    @Override
+    public void writeCompressedBytes(DataOutputStream out) throws IOException {
+      out.write(bytes, offset, length);
+    }
+
+    @Override
+    public int getSize() {
+      return length;
+    }
+  }
+
+  static final class LogReader implements TransactionLogReader {
+    // the log that is tailed, if the file is reopened to read the edits that were synced after the end was reached
+    private final HDFSTransactionLog tailed;
     private boolean closed;
     private SequenceFile.Reader reader;
     private LongWritable key = new LongWritable();
+    // the position after the last edit that was read, and whether the end of the synced edits was reached
+    private long position;
+    private boolean ended;
 
-    public LogReader(SequenceFile.Reader reader) {
+    LogReader(SequenceFile.Reader reader) throws IOException {
+      this(reader, null);
+    }
+
+    LogReader(SequenceFile.Reader reader, @Nullable HDFSTransactionLog tailed) throws IOException {
       this.reader = reader;
+      this.tailed = tailed;
+      this.position = reader.getPosition();
+    }
+
+    /**
+     * Returns the sequence number of the edit that was read last.
+     */
+    long getSequence() {
+      return key.get();
     }
 
     @Override
-    public TransactionEdit next() {
-      try {
-        return next(new TransactionEdit());
-      } catch (IOException ioe) {
-        throw Throwables.propagate(ioe);
-      }
+    public TransactionEdit next() throws IOException {
+      return next(new TransactionEdit());
     }
 
     @Override
@@ -156,13 +320,45 @@ public class HDFSTransactionLog extends AbstractTransactionLog {
       if (closed) {
         return null;
       }
-      boolean successful = reader.next(key, reuse);
+      if (ended) {
+        if (tailed == null || !reopen()) {
+          return null;
+        }
+        ended = false;
+      }
+      boolean successful;
+      try {
+        successful = reader.next(key, reuse);
+      } catch (EOFException e) {
+        if (tailed == null) {
+          throw e;
+        }
+        // the next edit was only partially synced, and is read again once the file is reopened
+        successful = false;
+      }
       if (successful) {
+        position = reader.getPosition();
         return reuse;
       }
+      ended = true;
       return null;
     }
 
+    /**
+     * Reopens the tailed file with the length that is synced now, at the position after the last edit that was read.
+     * @return whether the file was reopened
+     */
+    private boolean reopen() throws IOException {
+      SequenceFile.Reader reopened = tailed.openSyncedReader();
+      if (reopened == null) {
+        return false;
+      }
+      reader.close();
+      reader = reopened;
+      reader.seek(position);
+      return true;
+    }
+
     @Override
     public void close() throws IOException {
       if (closed) {
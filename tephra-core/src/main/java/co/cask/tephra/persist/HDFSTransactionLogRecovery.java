@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+/**
+ * Recovers the leases of the files of a batch of transaction logs in HDFS and opens them for reading, with a
+ * bounded pool of threads.
+ *
+ * <p>
+ * The logs listed together by {@link HDFSTransactionStateStorage#getLogsSince(long)} share a recovery. The first
+ * time that the reader of any of these logs is requested, the recovery of all their files is started, one task per
+ * log file or stripe file, so that a log whose lease takes seconds to recover does not delay the others. The reader
+ * of every log is returned as soon as its own files are opened, hence the replay of the first log starts while the
+ * later logs are still recovered. Reading the logs as they are still written, with
+ * {@link TransactionLog#getTailReader()}, never starts the recovery, which would revoke the lease of the writer.
+ * </p>
+ *
+ * <p>
+ * The files of each log are opened for one reader only. As on startup, every log of the batch is expected to be
+ * read once its recovery was started, as a reader that is never requested is not closed.
+ * </p>
+ */
+final class HDFSTransactionLogRecovery {
+  private final FileSystem fs;
+  private final Configuration hConf;
+  private final ExecutorService executor;
+
+  // guarded by this: the logs of the batch by their path, with the filter for their files if they are striped
+  private final Map<Path, Long> timestamps = Maps.newLinkedHashMap();
+  private final Map<Path, PathFilter> stripeFilters = Maps.newHashMap();
+  // guarded by this: the files of every log that was not read yet, after the recovery was started
+  private Map<Path, List<Future<HDFSTransactionLog.LogReader>>> openedFiles;
+
+  HDFSTransactionLogRecovery(FileSystem fs, Configuration hConf, ExecutorService executor) {
+    this.fs = fs;
+    this.hConf = hConf;
+    this.executor = executor;
+  }
+
+  /**
+   * Adds a log that is written to a single file.
+   */
+  synchronized void addLog(Path logPath, long timestamp) {
+    timestamps.put(logPath, timestamp);
+  }
+
+  /**
+   * Adds a log that is written to the stripe files in its directory that are accepted by the given filter.
+   */
+  synchronized void addStripedLog(Path logDir, long timestamp, PathFilter stripeFilter) {
+    timestamps.put(logDir, timestamp);
+    stripeFilters.put(logDir, stripeFilter);
+  }
+
+  /**
+   * Returns the readers of the files of a log, after starting the recovery of all logs if it was not started yet.
+   * @param path the path of the log file, or of the directory of a striped log
+   * @return the readers of the non-empty files of the log, or {@code null} if the log is not part of the batch or
+   *         its files were already opened for another reader
+   * @throws IOException if any file of the log cannot be recovered or opened
+   */
+  @Nullable
+  List<HDFSTransactionLog.LogReader> open(Path path) throws IOException {
+    List<Future<HDFSTransactionLog.LogReader>> files;
+    synchronized (this) {
+      if (openedFiles == null) {
+        startRecovery();
+      }
+      files = openedFiles.remove(path);
+    }
+    if (files == null) {
+      return null;
+    }
+    List<HDFSTransactionLog.LogReader> readers = Lists.newArrayListWithCapacity(files.size());
+    try {
+      for (Future<HDFSTransactionLog.LogReader> file : files) {
+        HDFSTransactionLog.LogReader reader = file.get();
+        // reader may be null in the case of an empty file
+        if (reader != null) {
+          readers.add(reader);
+        }
+      }
+      return readers;
+    } catch (InterruptedException e) {
+      close(readers, files);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while recovering transaction log " + path);
+    } catch (ExecutionException e) {
+      close(readers, files);
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private void startRecovery() {
+    openedFiles = Maps.newHashMap();
+    for (Map.Entry<Path, Long> log : timestamps.entrySet()) {
+      Path path = log.getKey();
+      List<Future<HDFSTransactionLog.LogReader>> files;
+      PathFilter stripeFilter = stripeFilters.get(path);
+      if (stripeFilter == null) {
+        files = Collections.singletonList(submit(path, log.getValue()));
+      } else {
+        try {
+          FileStatus[] stripes = fs.listStatus(path, stripeFilter);
+          files = Lists.newArrayListWithCapacity(stripes.length);
+          for (FileStatus stripe : stripes) {
+            files.add(submit(stripe.getPath(), log.getValue()));
+          }
+        } catch (IOException e) {
+          // reported to the reader of the log
+          files = Collections.<Future<HDFSTransactionLog.LogReader>>singletonList(
+            Futures.<HDFSTransactionLog.LogReader>immediateFailedFuture(e));
+        }
+      }
+      openedFiles.put(path, files);
+    }
+  }
+
+  private Future<HDFSTransactionLog.LogReader> submit(final Path file, final long timestamp) {
+    return executor.submit(new Callable<HDFSTransactionLog.LogReader>() {
+      @Override
+      public HDFSTransactionLog.LogReader call() throws Exception {
+        return new HDFSTransactionLog(fs, hConf, file, timestamp).openReader();
+      }
+    });
+  }
+
+  /**
+   * Closes the readers that were opened for a log that cannot be read, and stops opening its other files.
+   */
+  private static void close(List<HDFSTransactionLog.LogReader> readers,
+                            List<Future<HDFSTransactionLog.LogReader>> files) {
+    for (Future<HDFSTransactionLog.LogReader> file : files) {
+      file.cancel(true);
+    }
+    for (HDFSTransactionLog.LogReader reader : readers) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        // the log cannot be read anyway
+      }
+    }
+  }
+}
@@ -17,30 +17,39 @@
 package co.cask.tephra.persist;
 
 import co.cask.tephra.TxConstants;
+import co.cask.tephra.persist.TransactionStateManifest.Entry;
+import co.cask.tephra.persist.TransactionStateManifest.FileType;
 import co.cask.tephra.snapshot.SnapshotCodecProvider;
 import co.cask.tephra.util.ConfigurationFactory;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 import javax.annotation.Nullable;
 
 /**
@@ -49,29 +58,35 @@ import javax.annotation.Nullable;
  * The directory used for file storage is configured using the {@code data.tx.snapshot.dir} configuration property.
  * Both snapshot and transaction log files are suffixed with a timestamp to allow easy ordering.  Snapshot files
  * are written with the filename "snapshot.&lt;timestamp&gt;".  Transaction log files are written with the filename
- * "txlog.&lt;timestamp&gt;".
+ * "txlog.&lt;timestamp&gt;".  The visibility state, which is read by the coprocessors instead of the full snapshot,
+ * is written with the filename "visibility.&lt;timestamp&gt;", and delta snapshots, which hold the changes since the
+ * previous full or delta snapshot, with the filename "delta.&lt;timestamp&gt;".  The files are cataloged by the
+ * {@link TransactionStateManifest}, so that they are found without listing the directory.
  */
 public class HDFSTransactionStateStorage extends AbstractTransactionStateStorage {
   private static final Logger LOG = LoggerFactory.getLogger(HDFSTransactionStateStorage.class);
 
-  private static final String SNAPSHOT_FILE_PREFIX = "snapshot.";
   private static final String TMP_SNAPSHOT_FILE_PREFIX = ".in-progress.snapshot.";
-  private static final String LOG_FILE_PREFIX = "txlog.";
-
-  private static final PathFilter SNAPSHOT_FILE_FILTER = new PathFilter() {
-    @Override
-    public boolean accept(Path path) {
-      return path.getName().startsWith(SNAPSHOT_FILE_PREFIX);
-    }
-  };
+  private static final String TMP_DELTA_FILE_PREFIX = ".in-progress.delta.";
+  private static final String TMP_VISIBILITY_FILE_PREFIX = ".in-progress.visibility.";
+  // the previous visibility state is kept, so that it can still be read by clients that read the manifest before
+  private static final int VISIBILITY_FILES_TO_KEEP = 2;
 
   // buffer size used for HDFS reads and writes
   private static final int BUFFER_SIZE = 16384;
 
+  // serializes the updates of the manifest
+  private final Object manifestLock = new Object();
+
   private FileSystem fs;
   private Configuration hConf;
   private String configuredSnapshotDir;
+  private int logRingBufferSize;
+  private int logStripes;
+  private int logRecoveryThreads;
   private Path snapshotDir;
+  // recovers the leases of the logs listed for reading, and opens them
+  private ExecutorService logRecoveryExecutor;
 
   @Inject
   public HDFSTransactionStateStorage(Configuration hConf,
@@ -79,6 +94,16 @@ public class HDFSTransactionStateStorage extends AbstractTransactionStateStorage
     super(codecProvider);
     this.hConf = hConf;
     configuredSnapshotDir = hConf.get(TxConstants.Manager.CFG_TX_SNAPSHOT_DIR);
+    logRingBufferSize = hConf.getInt(TxConstants.Manager.CFG_TX_LOG_RING_BUFFER_SIZE,
+                                     TxConstants.Manager.DEFAULT_TX_LOG_RING_BUFFER_SIZE);
+    logStripes = hConf.getInt(TxConstants.Manager.CFG_TX_LOG_HDFS_STRIPES,
+                              TxConstants.Manager.DEFAULT_TX_LOG_HDFS_STRIPES);
+    logRecoveryThreads = Math.max(hConf.getInt(TxConstants.Manager.CFG_TX_LOG_HDFS_RECOVERY_THREADS,
+                                               TxConstants.Manager.DEFAULT_TX_LOG_HDFS_RECOVERY_THREADS), 1);
+    if (logStripes > 1 && logRingBufferSize > 0) {
+      LOG.warn("Ignoring configuration {}={}, transaction logs are written to {} stripes",
+               TxConstants.Manager.CFG_TX_LOG_RING_BUFFER_SIZE, logRingBufferSize, logStripes);
+    }
   }
 
   @Override
@@ -104,10 +129,15 @@ public class HDFSTransactionStateStorage extends AbstractTransactionStateStorage
       LOG.info("Creating snapshot dir at {}", snapshotDir);
       fs.mkdirs(snapshotDir);
     }
+    logRecoveryExecutor = Executors.newFixedThreadPool(logRecoveryThreads, new ThreadFactoryBuilder()
+      .setNameFormat("tx-log-recovery-%d")
+      .setDaemon(true)
+      .build());
   }
 
   @Override
   protected void shutDown() throws Exception {
+    logRecoveryExecutor.shutdownNow();
     fs.close();
   }
 
@@ -118,42 +148,164 @@ public class HDFSTransactionStateStorage extends AbstractTransactionStateStorage
     LOG.info("Writing snapshot to temporary file {}", snapshotTmpFile);
 
     FSDataOutputStream out = fs.create(snapshotTmpFile, false, BUFFER_SIZE);
+    CRC32 checksum = new CRC32();
+    CountingOutputStream counted = new CountingOutputStream(new CheckedOutputStream(out, checksum));
     // encode the snapshot and stream the serialized version to the file
     try {
-      codecProvider.encode(out, snapshot);
+      codecProvider.encode(counted, snapshot);
+      counted.flush();
     } finally {
       out.close();
     }
 
     // move the temporary file into place with the correct filename
-    Path finalFile = new Path(snapshotDir, SNAPSHOT_FILE_PREFIX + snapshot.getTimestamp());
-    fs.rename(snapshotTmpFile, finalFile);
+    Path finalFile = getPath(FileType.SNAPSHOT, snapshot.getTimestamp());
+    if (!fs.rename(snapshotTmpFile, finalFile)) {
+      throw new IOException("Failed renaming temporary snapshot file " + snapshotTmpFile + " to " + finalFile);
+    }
+    addToManifest(new Entry(FileType.SNAPSHOT, snapshot.getTimestamp(), counted.getCount(), checksum.getValue()));
     LOG.info("Completed snapshot to file {}", finalFile);
   }
 
+  @Override
+  public void writeDeltaSnapshot(TransactionSnapshotDelta delta) throws IOException {
+    Path tmpFile = new Path(snapshotDir, TMP_DELTA_FILE_PREFIX + delta.getTimestamp());
+    LOG.info("Writing delta snapshot to temporary file {}", tmpFile);
+    FSDataOutputStream out = fs.create(tmpFile, false, BUFFER_SIZE);
+    CRC32 checksum = new CRC32();
+    CountingOutputStream counted = new CountingOutputStream(new CheckedOutputStream(out, checksum));
+    try {
+      codecProvider.encodeDelta(counted, delta);
+      counted.flush();
+    } finally {
+      out.close();
+    }
+
+    Path finalFile = getPath(FileType.DELTA, delta.getTimestamp());
+    if (!fs.rename(tmpFile, finalFile)) {
+      throw new IOException("Failed renaming temporary delta snapshot file " + tmpFile + " to " + finalFile);
+    }
+    addToManifest(new Entry(FileType.DELTA, delta.getTimestamp(), counted.getCount(), checksum.getValue()));
+    LOG.info("Completed delta snapshot to file {}", finalFile);
+  }
+
   @Override
   public TransactionSnapshot getLatestSnapshot() throws IOException {
-    InputStream in = getLatestSnapshotInputStream();
-    if (in == null) {
+    TransactionStateManifest manifest = readManifest();
+    Entry latest = manifest.getLatest(FileType.SNAPSHOT);
+    if (latest == null) {
+      LOG.info("No snapshot files found in {}", snapshotDir);
       return null;
     }
+    TransactionSnapshot snapshot;
+    CheckedInputStream in = open(latest);
     try {
-      return readSnapshotInputStream(in);
+      snapshot = readSnapshotInputStream(in);
+      latest.verify(in);
     } finally {
       in.close();
     }
+    return applyDeltas(manifest, snapshot, true);
+  }
+
+  /**
+   * Applies the chain of delta snapshots that follows the given snapshot.  The chain ends before the first delta
+   * that is not based on the snapshot or delta before it, which can only be left by a failed snapshot, after which
+   * the state is recovered from the transaction logs instead.  The checksums of the deltas are only verified if they
+   * are read with their change sets, as the codec skips the change sets without reading them otherwise.
+   */
+  private TransactionSnapshot applyDeltas(TransactionStateManifest manifest, TransactionSnapshot snapshot,
+                                          boolean withChangeSets) throws IOException {
+    for (Entry entry : manifest.getEntries(FileType.DELTA, snapshot.getTimestamp() + 1, Long.MAX_VALUE)) {
+      TransactionSnapshotDelta delta;
+      CheckedInputStream in = open(entry);
+      try {
+        delta = codecProvider.decodeDelta(in, withChangeSets);
+        if (withChangeSets) {
+          entry.verify(in);
+        }
+      } finally {
+        in.close();
+      }
+      if (delta.getBaseTimestamp() != snapshot.getTimestamp()) {
+        LOG.warn("Delta snapshot {} is not based on snapshot {}, ignoring it and all later delta snapshots",
+                 getPath(entry), snapshot.getTimestamp());
+        break;
+      }
+      snapshot = delta.applyTo(snapshot);
+    }
+    return snapshot;
   }
 
-  private InputStream getLatestSnapshotInputStream() throws IOException {
-    TimestampedFilename[] snapshots = listSnapshotFiles();
-    Arrays.sort(snapshots);
-    if (snapshots.length > 0) {
-      // last is the most recent
-      return fs.open(snapshots[snapshots.length - 1].getPath(), BUFFER_SIZE);
+  @Override
+  public void writeVisibilityState(TransactionSnapshot snapshot) throws IOException {
+    Path tmpFile = new Path(snapshotDir, TMP_VISIBILITY_FILE_PREFIX + snapshot.getTimestamp());
+    FSDataOutputStream out = fs.create(tmpFile, true, BUFFER_SIZE);
+    CRC32 checksum = new CRC32();
+    CountingOutputStream counted = new CountingOutputStream(new CheckedOutputStream(out, checksum));
+    try {
+      codecProvider.encode(counted, snapshot.withoutChangeSets());
+      counted.flush();
+    } finally {
+      out.close();
     }
 
-    LOG.info("No snapshot files found in {}", snapshotDir);
-    return null;
+    Path finalFile = getPath(FileType.VISIBILITY, snapshot.getTimestamp());
+    if (!fs.rename(tmpFile, finalFile)) {
+      fs.delete(tmpFile, false);
+      throw new IOException("Failed renaming temporary visibility state file " + tmpFile + " to " + finalFile);
+    }
+
+    List<Entry> toRemove;
+    synchronized (manifestLock) {
+      TransactionStateManifest manifest = readManifest();
+      manifest.add(new Entry(FileType.VISIBILITY, snapshot.getTimestamp(), counted.getCount(), checksum.getValue()));
+      List<Entry> states = manifest.getEntries(FileType.VISIBILITY);
+      toRemove = states.subList(0, Math.max(0, states.size() - VISIBILITY_FILES_TO_KEEP));
+      manifest.removeAll(toRemove);
+      writeManifest(manifest);
+    }
+    LOG.debug("Completed visibility state to file {}", finalFile);
+
+    for (Entry entry : toRemove) {
+      LOG.debug("Removing old visibility state file {}", getPath(entry));
+      fs.delete(getPath(entry), false);
+    }
+  }
+
+  @Override
+  public TransactionSnapshot getLatestVisibilityState() throws IOException {
+    TransactionStateManifest manifest = readManifest();
+    Entry latestState = manifest.getLatest(FileType.VISIBILITY);
+    Entry latestSnapshot = manifest.getLatest(FileType.SNAPSHOT);
+    Entry latestDelta = manifest.getLatest(FileType.DELTA);
+    long snapshotTime = latestSnapshot == null ? -1 : latestSnapshot.getTimestamp();
+    if (latestSnapshot != null && latestDelta != null) {
+      snapshotTime = Math.max(snapshotTime, latestDelta.getTimestamp());
+    }
+    if (latestState != null && latestState.getTimestamp() >= snapshotTime) {
+      CheckedInputStream in = open(latestState);
+      try {
+        TransactionSnapshot state = codecProvider.decodeWithoutChangeSets(in);
+        latestState.verify(in);
+        return state;
+      } finally {
+        in.close();
+      }
+    }
+    if (latestSnapshot == null) {
+      LOG.info("No visibility state or snapshot files found in {}", snapshotDir);
+      return null;
+    }
+    // a snapshot written without a visibility state, e.g. by an older version, is read without its change sets
+    TransactionSnapshot snapshot;
+    FSDataInputStream in = fs.open(getPath(latestSnapshot), BUFFER_SIZE);
+    try {
+      snapshot = codecProvider.decodeWithoutChangeSets(in);
+    } finally {
+      in.close();
+    }
+    return applyDeltas(manifest, snapshot, false);
   }
 
   private TransactionSnapshot readSnapshotInputStream(InputStream in) throws IOException {
@@ -169,87 +321,193 @@ public class HDFSTransactionStateStorage extends AbstractTransactionStateStorage
     }
   }
 
-  private TimestampedFilename[] listSnapshotFiles() throws IOException {
-    FileStatus[] snapshotFileStatuses = fs.listStatus(snapshotDir, SNAPSHOT_FILE_FILTER);
-    TimestampedFilename[] snapshotFiles = new TimestampedFilename[snapshotFileStatuses.length];
-    for (int i = 0; i < snapshotFileStatuses.length; i++) {
-      snapshotFiles[i] = new TimestampedFilename(snapshotFileStatuses[i].getPath());
+  private Path getPath(FileType type, long timestamp) {
+    return new Path(snapshotDir, type.getFileName(timestamp));
+  }
+
+  private Path getPath(Entry entry) {
+    return new Path(snapshotDir, entry.getFileName());
+  }
+
+  /**
+   * Opens a cataloged file, computing the checksum of everything read from it.
+   */
+  private CheckedInputStream open(Entry entry) throws IOException {
+    return new CheckedInputStream(fs.open(getPath(entry), BUFFER_SIZE), new CRC32());
+  }
+
+  /**
+   * Reads the manifest.  If there is no manifest yet, e.g. because the files were written by an older version, or if
+   * the manifest cannot be read, the files in the snapshot directory are cataloged instead.  The manifest is then
+   * written with the next update by the transaction manager.
+   */
+  private TransactionStateManifest readManifest() throws IOException {
+    Path manifestFile = new Path(snapshotDir, TransactionStateManifest.FILE_NAME);
+    FSDataInputStream in;
+    try {
+      in = fs.open(manifestFile, BUFFER_SIZE);
+    } catch (FileNotFoundException e) {
+      LOG.debug("No manifest found in {}, listing the directory", snapshotDir);
+      return catalogFiles();
+    }
+    try {
+      return TransactionStateManifest.read(in);
+    } catch (IOException e) {
+      LOG.warn("Failed reading manifest {}, listing the directory", manifestFile, e);
+      return catalogFiles();
+    } finally {
+      in.close();
+    }
+  }
+
+  private TransactionStateManifest catalogFiles() throws IOException {
+    TransactionStateManifest manifest = new TransactionStateManifest();
+    for (FileStatus status : fs.listStatus(snapshotDir)) {
+      Entry entry = TransactionStateManifest.parse(status.getPath().getName(), status.getLen());
+      if (entry != null) {
+        manifest.add(entry);
+      }
+    }
+    return manifest;
+  }
+
+  private void writeManifest(TransactionStateManifest manifest) throws IOException {
+    Path tmpFile = new Path(snapshotDir, TransactionStateManifest.TMP_FILE_NAME);
+    FSDataOutputStream out = fs.create(tmpFile, true, BUFFER_SIZE);
+    try {
+      manifest.write(out);
+    } finally {
+      out.close();
+    }
+
+    Path manifestFile = new Path(snapshotDir, TransactionStateManifest.FILE_NAME);
+    if (fs instanceof DistributedFileSystem) {
+      // replaces the previous manifest atomically, so that readers always find a complete manifest
+      ((DistributedFileSystem) fs).rename(tmpFile, manifestFile, Options.Rename.OVERWRITE);
+    } else {
+      // other file systems cannot replace a file atomically, readers that miss the manifest list the directory
+      fs.delete(manifestFile, false);
+      if (!fs.rename(tmpFile, manifestFile)) {
+        throw new IOException("Failed renaming temporary manifest file " + tmpFile + " to " + manifestFile);
+      }
+    }
+  }
+
+  private void addToManifest(Entry entry) throws IOException {
+    synchronized (manifestLock) {
+      TransactionStateManifest manifest = readManifest();
+      manifest.add(entry);
+      writeManifest(manifest);
+    }
+  }
+
+  private void removeFromManifest(List<Entry> entries) throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    synchronized (manifestLock) {
+      TransactionStateManifest manifest = readManifest();
+      manifest.removeAll(entries);
+      writeManifest(manifest);
     }
-    return snapshotFiles;
   }
 
   @Override
   public long deleteOldSnapshots(int numberToKeep) throws IOException {
-    TimestampedFilename[] snapshots = listSnapshotFiles();
-    if (snapshots.length == 0) {
+    TransactionStateManifest manifest = readManifest();
+    List<Entry> snapshots = manifest.getEntries(FileType.SNAPSHOT);
+    if (snapshots.isEmpty()) {
       return -1;
     }
-    Arrays.sort(snapshots, Collections.reverseOrder());
-    if (snapshots.length <= numberToKeep) {
-      // nothing to remove, oldest timestamp is the last snapshot
-      return snapshots[snapshots.length - 1].getTimestamp();
+    int toRemoveCount = Math.max(0, snapshots.size() - numberToKeep);
+    // the oldest timestamp is the oldest snapshot that is kept
+    long oldestTimestamp = snapshots.get(toRemoveCount).getTimestamp();
+    List<Entry> toRemove = Lists.newArrayList(snapshots.subList(0, toRemoveCount));
+    // the delta snapshots based on the removed snapshots
+    toRemove.addAll(manifest.getEntries(FileType.DELTA, 0, oldestTimestamp));
+    // files are removed from the manifest first, so that readers never find a deleted file
+    removeFromManifest(toRemove);
+
+    int removedDeltaCnt = 0;
+    for (Entry entry : toRemove) {
+      if (entry.getType() == FileType.SNAPSHOT) {
+        LOG.debug("Removing old snapshot file {}", getPath(entry));
+      } else {
+        LOG.debug("Removing old delta snapshot file {}", getPath(entry));
+        removedDeltaCnt++;
+      }
+      fs.delete(getPath(entry), false);
+    }
+    if (toRemoveCount > 0) {
+      LOG.info("Removed {} old snapshot files prior to {}", toRemoveCount, oldestTimestamp);
     }
-    int toRemoveCount = snapshots.length - numberToKeep;
-    TimestampedFilename[] toRemove = new TimestampedFilename[toRemoveCount];
-    System.arraycopy(snapshots, numberToKeep, toRemove, 0, toRemoveCount);
-
-    for (TimestampedFilename f : toRemove) {
-      LOG.debug("Removing old snapshot file {}", f.getPath());
-      fs.delete(f.getPath(), false);
+    if (removedDeltaCnt > 0) {
+      LOG.info("Removed {} old delta snapshot files prior to {}", removedDeltaCnt, oldestTimestamp);
     }
-    long oldestTimestamp = snapshots[numberToKeep - 1].getTimestamp();
-    LOG.info("Removed {} old snapshot files prior to {}", toRemoveCount, oldestTimestamp);
     return oldestTimestamp;
   }
 
   @Override
   public List<String> listSnapshots() throws IOException {
-    FileStatus[] files = fs.listStatus(snapshotDir, SNAPSHOT_FILE_FILTER);
-    return Lists.transform(Arrays.asList(files), new Function<FileStatus, String>() {
+    return getFileNames(readManifest().getEntries(FileType.SNAPSHOT));
+  }
+
+  private static List<String> getFileNames(List<Entry> entries) {
+    return Lists.transform(entries, new Function<Entry, String>() {
       @Nullable
       @Override
-      public String apply(@Nullable FileStatus input) {
-        return input.getPath().getName();
+      public String apply(@Nullable Entry input) {
+        return input.getFileName();
       }
     });
   }
 
   @Override
   public List<TransactionLog> getLogsSince(long timestamp) throws IOException {
-    FileStatus[] statuses = fs.listStatus(snapshotDir, new LogFileFilter(timestamp, Long.MAX_VALUE));
-    TimestampedFilename[] timestampedFiles = new TimestampedFilename[statuses.length];
-    for (int i = 0; i < statuses.length; i++) {
-      timestampedFiles[i] = new TimestampedFilename(statuses[i].getPath());
-    }
-    return Lists.transform(Arrays.asList(timestampedFiles), new Function<TimestampedFilename, TransactionLog>() {
-      @Nullable
-      @Override
-      public TransactionLog apply(@Nullable TimestampedFilename input) {
-        return openLog(input.getPath(), input.getTimestamp());
+    List<TransactionLog> logs = Lists.newArrayList();
+    // the first log that is read recovers all the listed logs in parallel
+    HDFSTransactionLogRecovery recovery = new HDFSTransactionLogRecovery(fs, hConf, logRecoveryExecutor);
+    for (Entry entry : readManifest().getEntries(FileType.LOG, timestamp, Long.MAX_VALUE)) {
+      Path path = getPath(entry);
+      // logs are written as stripes or as a single file, depending on the configuration when they were created
+      if (fs.isDirectory(path)) {
+        logs.add(new StripedHDFSTransactionLog(fs, hConf, path, entry.getTimestamp(), logStripes, recovery));
+      } else {
+        logs.add(new HDFSTransactionLog(fs, hConf, path, entry.getTimestamp(), recovery));
       }
-    });
+    }
+    return logs;
   }
 
   @Override
   public TransactionLog createLog(long timestamp) throws IOException {
-    Path newLog = new Path(snapshotDir, LOG_FILE_PREFIX + timestamp);
-    return openLog(newLog, timestamp);
+    Path newLog = getPath(FileType.LOG, timestamp);
+    addToManifest(new Entry(FileType.LOG, timestamp, TransactionStateManifest.UNKNOWN_SIZE,
+                            TransactionStateManifest.NO_CHECKSUM));
+    if (logStripes > 1) {
+      return new StripedHDFSTransactionLog(fs, hConf, newLog, timestamp, logStripes);
+    }
+    HDFSTransactionLog log = openLog(newLog, timestamp);
+    return logRingBufferSize > 0 ? new RingBufferTransactionLog(log, logRingBufferSize) : log;
   }
 
-  private TransactionLog openLog(Path path, long timestamp) {
+  private HDFSTransactionLog openLog(Path path, long timestamp) {
     return new HDFSTransactionLog(fs, hConf, path, timestamp);
   }
 
   @Override
   public void deleteLogsOlderThan(long timestamp) throws IOException {
-    FileStatus[] statuses = fs.listStatus(snapshotDir, new LogFileFilter(0, timestamp));
+    List<Entry> logs = readManifest().getEntries(FileType.LOG, 0, timestamp);
+    removeFromManifest(logs);
     int removedCnt = 0;
-    for (FileStatus status : statuses) {
-      LOG.debug("Removing old transaction log {}", status.getPath());
-      if (fs.delete(status.getPath(), false)) {
+    for (Entry entry : logs) {
+      Path path = getPath(entry);
+      LOG.debug("Removing old transaction log {}", path);
+      // striped logs are directories
+      if (fs.delete(path, true)) {
         removedCnt++;
       } else {
-        LOG.error("Failed to delete transaction log file {}", status.getPath());
+        LOG.error("Failed to delete transaction log file {}", path);
       }
     }
     LOG.info("Removed {} transaction logs older than {}", removedCnt, timestamp);
@@ -257,14 +515,7 @@ public class HDFSTransactionStateStorage extends AbstractTransactionStateStorage
 
   @Override
   public List<String> listLogs() throws IOException {
-    FileStatus[] files = fs.listStatus(snapshotDir, new LogFileFilter(0, Long.MAX_VALUE));
-    return Lists.transform(Arrays.asList(files), new Function<FileStatus, String>() {
-      @Nullable
-      @Override
-      public String apply(@Nullable FileStatus input) {
-        return input.getPath().getName();
-      }
-    });
+    return getFileNames(readManifest().getEntries(FileType.LOG));
   }
 
   @Override
@@ -272,34 +523,6 @@ public class HDFSTransactionStateStorage extends AbstractTransactionStateStorage
     return snapshotDir.toString();
   }
 
-  private static class LogFileFilter implements PathFilter {
-    // starting time of files to include (inclusive)
-    private final long startTime;
-    // ending time of files to include (exclusive)
-    private final long endTime;
-
-    public LogFileFilter(long startTime, long endTime) {
-      this.startTime = startTime;
-      this.endTime = endTime;
-    }
-
-    @Override
-    public boolean accept(Path path) {
-      if (path.getName().startsWith(LOG_FILE_PREFIX)) {
-        String[] parts = path.getName().split("\\.");
-        if (parts.length == 2) {
-          try {
-            long fileTime = Long.parseLong(parts[1]);
-            return fileTime >= startTime && fileTime < endTime;
-          } catch (NumberFormatException ignored) {
-            LOG.warn("Filename {} did not match the expected pattern prefix.<timestamp>", path.getName());
-          }
-        }
-      }
-      return false;
-    }
-  }
-
   /**
    * Represents a filename composed of a prefix and a ".timestamp" suffix.  This is useful for manipulating both
    * snapshot and transaction log filenames.
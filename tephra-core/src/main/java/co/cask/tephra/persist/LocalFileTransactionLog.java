@@ -16,6 +16,8 @@
 
 package co.cask.tephra.persist;
 
+import com.google.common.io.CountingInputStream;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
@@ -53,7 +55,20 @@ public class LocalFileTransactionLog extends AbstractTransactionLog {
 
   @Override
   public TransactionLogReader getReader() throws IOException {
-    return new LogReader(logFile);
+    // the file is only created with the first append
+    if (!logFile.exists()) {
+      return null;
+    }
+    return new LogReader(logFile, false);
+  }
+
+  @Override
+  public TransactionLogReader getTailReader() throws IOException {
+    if (!logFile.exists()) {
+      return null;
+    }
+    // a partially written edit at the end of the file is read as the end of file
+    return new LogReader(logFile, true);
   }
 
   private static final class LogWriter implements TransactionLogWriter {
@@ -70,6 +85,13 @@ public class LocalFileTransactionLog extends AbstractTransactionLog {
       entry.write(out);
     }
 
+    @Override
+    public void appendRaw(long sequence, byte[] edit, int offset, int length) throws IOException {
+      // same as the LongWritable key of an entry
+      out.writeLong(sequence);
+      out.write(edit, offset, length);
+    }
+
     @Override
     public void sync() throws IOException {
       out.flush();
@@ -85,35 +107,48 @@ public class LocalFileTransactionLog extends AbstractTransactionLog {
 
   private static final class LogReader implements TransactionLogReader {
     private final FileInputStream fin;
-    private final DataInputStream in;
+    // whether the file is read again after the last complete edit once the end was reached, to continue with the
+    // edits that are appended to it later
+    private final boolean tail;
+    private CountingInputStream counter;
+    private DataInputStream in;
+    // the position in the file after the last edit that was read
+    private long position;
     private Entry reuseEntry = new Entry();
 
-    public LogReader(File logFile) throws IOException {
+    public LogReader(File logFile, boolean tail) throws IOException {
       this.fin = new FileInputStream(logFile);
-      this.in = new DataInputStream(new BufferedInputStream(fin, LocalFileTransactionStateStorage.BUFFER_SIZE));
+      this.tail = tail;
+      openStream();
+    }
+
+    private void openStream() {
+      counter = new CountingInputStream(new BufferedInputStream(fin, LocalFileTransactionStateStorage.BUFFER_SIZE));
+      in = new DataInputStream(counter);
     }
 
     @Override
     public TransactionEdit next() throws IOException {
-      Entry entry = new Entry();
-      try {
-        entry.readFields(in);
-      } catch (EOFException eofe) {
-        // signal end of file by returning null
-        return null;
-      }
-      return entry.getEdit();
+      // only the edit is returned, the key can be reused
+      return next(new TransactionEdit());
     }
 
     @Override
     public TransactionEdit next(TransactionEdit reuse) throws IOException {
+      long start = counter.getCount();
       try {
         reuseEntry.getKey().readFields(in);
         reuse.readFields(in);
       } catch (EOFException eofe) {
+        if (tail) {
+          // drop the buffered bytes of a partially written edit, which is read again with the next call
+          fin.getChannel().position(position);
+          openStream();
+        }
         // signal end of file by returning null
         return null;
       }
+      position += counter.getCount() - start;
       return reuse;
     }
 
@@ -17,53 +17,66 @@
 package co.cask.tephra.persist;
 
 import co.cask.tephra.TxConstants;
+import co.cask.tephra.persist.TransactionStateManifest.Entry;
+import co.cask.tephra.persist.TransactionStateManifest.FileType;
 import co.cask.tephra.snapshot.SnapshotCodecProvider;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
-import com.google.common.primitives.Longs;
 import com.google.inject.Inject;
 import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FilenameFilter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 import javax.annotation.Nullable;
 
 /**
- * Persists transaction snapshots and write-ahead logs to files on the local filesystem.
+ * Persists transaction snapshots and write-ahead logs to files on the local filesystem.  The files are cataloged by
+ * the {@link TransactionStateManifest}, so that they are found without listing the directory.
  */
 public class LocalFileTransactionStateStorage extends AbstractTransactionStateStorage {
   private static final String TMP_SNAPSHOT_FILE_PREFIX = ".in-progress.";
-  private static final String SNAPSHOT_FILE_PREFIX = "snapshot.";
-  private static final String LOG_FILE_PREFIX = "txlog.";
+  private static final String TMP_DELTA_FILE_PREFIX = ".in-progress.delta.";
+  private static final String TMP_VISIBILITY_FILE_PREFIX = ".in-progress.visibility.";
+  // the previous visibility state is kept, so that it can still be read by clients that read the manifest before
+  private static final int VISIBILITY_FILES_TO_KEEP = 2;
+  private static final String RECYCLED_SEGMENTS_DIR = ".recycled-segments";
   private static final Logger LOG = LoggerFactory.getLogger(LocalFileTransactionStateStorage.class);
   static final int BUFFER_SIZE = 16384;
 
-  private static final FilenameFilter SNAPSHOT_FILE_FILTER = new FilenameFilter() {
-    @Override
-    public boolean accept(File file, String s) {
-      return s.startsWith(SNAPSHOT_FILE_PREFIX);
-    }
-  };
-
+  // serializes the updates of the manifest
+  private final Object manifestLock = new Object();
   private final String configuredSnapshotDir;
+  private final int logRingBufferSize;
+  private final int logSegmentSize;
+  private final int maxRecycledSegments;
   private File snapshotDir;
+  private File recycleDir;
 
   @Inject
   public LocalFileTransactionStateStorage(Configuration conf, SnapshotCodecProvider codecProvider) {
     super(codecProvider);
     this.configuredSnapshotDir = conf.get(TxConstants.Manager.CFG_TX_SNAPSHOT_LOCAL_DIR);
+    this.logRingBufferSize = conf.getInt(TxConstants.Manager.CFG_TX_LOG_RING_BUFFER_SIZE,
+                                         TxConstants.Manager.DEFAULT_TX_LOG_RING_BUFFER_SIZE);
+    this.logSegmentSize = conf.getInt(TxConstants.Manager.CFG_TX_LOG_LOCAL_SEGMENT_SIZE,
+                                      TxConstants.Manager.DEFAULT_TX_LOG_LOCAL_SEGMENT_SIZE);
+    this.maxRecycledSegments = conf.getInt(TxConstants.Manager.CFG_TX_LOG_LOCAL_RECYCLED_SEGMENTS,
+                                           TxConstants.Manager.DEFAULT_TX_LOG_LOCAL_RECYCLED_SEGMENTS);
   }
 
   @Override
@@ -84,6 +97,12 @@ public class LocalFileTransactionStateStorage extends AbstractTransactionStateSt
       Preconditions.checkState(snapshotDir.canWrite(),
           "Configured snapshot directory " + configuredSnapshotDir + " exists but is not writable!");
     }
+    if (logSegmentSize > 0 && maxRecycledSegments > 0) {
+      recycleDir = new File(snapshotDir, RECYCLED_SEGMENTS_DIR);
+      if (!recycleDir.isDirectory() && !recycleDir.mkdirs()) {
+        throw new IOException("Failed to create directory " + recycleDir + " for recycled transaction log segments");
+      }
+    }
   }
 
   @Override
@@ -102,136 +121,361 @@ public class LocalFileTransactionStateStorage extends AbstractTransactionStateSt
     File snapshotTmpFile = new File(snapshotDir, TMP_SNAPSHOT_FILE_PREFIX + snapshot.getTimestamp());
     LOG.info("Writing snapshot to temporary file {}", snapshotTmpFile);
     OutputStream out = Files.newOutputStreamSupplier(snapshotTmpFile).getOutput();
+    CRC32 checksum = new CRC32();
+    CountingOutputStream counted = new CountingOutputStream(new CheckedOutputStream(out, checksum));
     boolean threw = true;
     try {
-      codecProvider.encode(out, snapshot);
+      codecProvider.encode(counted, snapshot);
+      counted.flush();
       threw = false;
     } finally {
       Closeables.close(out, threw);
     }
 
     // move the temporary file into place with the correct filename
-    File finalFile = new File(snapshotDir, SNAPSHOT_FILE_PREFIX + snapshot.getTimestamp());
+    File finalFile = getFile(FileType.SNAPSHOT, snapshot.getTimestamp());
     if (!snapshotTmpFile.renameTo(finalFile)) {
       throw new IOException("Failed renaming temporary snapshot file " + snapshotTmpFile.getName() + " to " +
           finalFile.getName());
     }
+    addToManifest(new Entry(FileType.SNAPSHOT, snapshot.getTimestamp(), counted.getCount(), checksum.getValue()));
 
     LOG.info("Completed snapshot to file {}", finalFile);
   }
 
+  @Override
+  public void writeDeltaSnapshot(TransactionSnapshotDelta delta) throws IOException {
+    File tmpFile = new File(snapshotDir, TMP_DELTA_FILE_PREFIX + delta.getTimestamp());
+    LOG.info("Writing delta snapshot to temporary file {}", tmpFile);
+    OutputStream out = Files.newOutputStreamSupplier(tmpFile).getOutput();
+    CRC32 checksum = new CRC32();
+    CountingOutputStream counted = new CountingOutputStream(new CheckedOutputStream(out, checksum));
+    boolean threw = true;
+    try {
+      codecProvider.encodeDelta(counted, delta);
+      counted.flush();
+      threw = false;
+    } finally {
+      Closeables.close(out, threw);
+    }
+
+    File finalFile = getFile(FileType.DELTA, delta.getTimestamp());
+    if (!tmpFile.renameTo(finalFile)) {
+      throw new IOException("Failed renaming temporary delta snapshot file " + tmpFile.getName() + " to " +
+          finalFile.getName());
+    }
+    addToManifest(new Entry(FileType.DELTA, delta.getTimestamp(), counted.getCount(), checksum.getValue()));
+    LOG.info("Completed delta snapshot to file {}", finalFile);
+  }
+
   @Override
   public TransactionSnapshot getLatestSnapshot() throws IOException {
-    InputStream is = getLatestSnapshotInputStream();
-    if (is == null) {
+    TransactionStateManifest manifest = readManifest();
+    Entry latest = manifest.getLatest(FileType.SNAPSHOT);
+    if (latest == null) {
+      LOG.info("No snapshot files found in {}", snapshotDir.getAbsolutePath());
       return null;
     }
+    TransactionSnapshot snapshot;
+    CheckedInputStream is = open(latest);
     try {
-      return readSnapshotFile(is);
+      snapshot = readSnapshotFile(is);
+      latest.verify(is);
     } finally {
       is.close();
     }
+    return applyDeltas(manifest, snapshot, true);
   }
 
-  private InputStream getLatestSnapshotInputStream() throws IOException {
-    File[] snapshotFiles = snapshotDir.listFiles(SNAPSHOT_FILE_FILTER);
-    TimestampedFilename mostRecent = null;
-    for (File file : snapshotFiles) {
-      TimestampedFilename tsFile = new TimestampedFilename(file);
-      if (mostRecent == null || tsFile.compareTo(mostRecent) > 0) {
-        mostRecent = tsFile;
+  /**
+   * Applies the chain of delta snapshots that follows the given snapshot.  The chain ends before the first delta
+   * that is not based on the snapshot or delta before it, which can only be left by a failed snapshot, after which
+   * the state is recovered from the transaction logs instead.  The checksums of the deltas are only verified if they
+   * are read with their change sets, as the codec skips the change sets without reading them otherwise.
+   */
+  private TransactionSnapshot applyDeltas(TransactionStateManifest manifest, TransactionSnapshot snapshot,
+                                          boolean withChangeSets) throws IOException {
+    for (Entry entry : manifest.getEntries(FileType.DELTA, snapshot.getTimestamp() + 1, Long.MAX_VALUE)) {
+      TransactionSnapshotDelta delta;
+      CheckedInputStream is = open(entry);
+      try {
+        delta = codecProvider.decodeDelta(is, withChangeSets);
+        if (withChangeSets) {
+          entry.verify(is);
+        }
+      } finally {
+        is.close();
       }
+      if (delta.getBaseTimestamp() != snapshot.getTimestamp()) {
+        LOG.warn("Delta snapshot {} is not based on snapshot {}, ignoring it and all later delta snapshots",
+                 getFile(entry).getAbsolutePath(), snapshot.getTimestamp());
+        break;
+      }
+      snapshot = delta.applyTo(snapshot);
     }
+    return snapshot;
+  }
 
-    if (mostRecent == null) {
-      LOG.info("No snapshot files found in {}", snapshotDir.getAbsolutePath());
-      return null;
+  @Override
+  public void writeVisibilityState(TransactionSnapshot snapshot) throws IOException {
+    File tmpFile = new File(snapshotDir, TMP_VISIBILITY_FILE_PREFIX + snapshot.getTimestamp());
+    OutputStream out = Files.newOutputStreamSupplier(tmpFile).getOutput();
+    CRC32 checksum = new CRC32();
+    CountingOutputStream counted = new CountingOutputStream(new CheckedOutputStream(out, checksum));
+    boolean threw = true;
+    try {
+      codecProvider.encode(counted, snapshot.withoutChangeSets());
+      counted.flush();
+      threw = false;
+    } finally {
+      Closeables.close(out, threw);
+    }
+
+    File finalFile = getFile(FileType.VISIBILITY, snapshot.getTimestamp());
+    if (!tmpFile.renameTo(finalFile)) {
+      throw new IOException("Failed renaming temporary visibility state file " + tmpFile.getName() + " to " +
+          finalFile.getName());
+    }
+
+    List<Entry> toRemove;
+    synchronized (manifestLock) {
+      TransactionStateManifest manifest = readManifest();
+      manifest.add(new Entry(FileType.VISIBILITY, snapshot.getTimestamp(), counted.getCount(), checksum.getValue()));
+      List<Entry> states = manifest.getEntries(FileType.VISIBILITY);
+      toRemove = states.subList(0, Math.max(0, states.size() - VISIBILITY_FILES_TO_KEEP));
+      manifest.removeAll(toRemove);
+      writeManifest(manifest);
+    }
+    LOG.debug("Completed visibility state to file {}", finalFile);
+
+    for (Entry entry : toRemove) {
+      if (!getFile(entry).delete()) {
+        LOG.warn("Failed deleting visibility state file {}", getFile(entry).getAbsolutePath());
+      }
     }
+  }
 
-    return new FileInputStream(mostRecent.getFile());
+  @Override
+  public TransactionSnapshot getLatestVisibilityState() throws IOException {
+    TransactionStateManifest manifest = readManifest();
+    Entry latestState = manifest.getLatest(FileType.VISIBILITY);
+    Entry latestSnapshot = manifest.getLatest(FileType.SNAPSHOT);
+    Entry latestDelta = manifest.getLatest(FileType.DELTA);
+    long snapshotTime = latestSnapshot == null ? -1 : latestSnapshot.getTimestamp();
+    if (latestSnapshot != null && latestDelta != null) {
+      snapshotTime = Math.max(snapshotTime, latestDelta.getTimestamp());
+    }
+    if (latestState != null && latestState.getTimestamp() >= snapshotTime) {
+      CheckedInputStream is = open(latestState);
+      try {
+        TransactionSnapshot state = codecProvider.decodeWithoutChangeSets(is);
+        latestState.verify(is);
+        return state;
+      } finally {
+        is.close();
+      }
+    }
+    if (latestSnapshot == null) {
+      LOG.info("No visibility state or snapshot files found in {}", snapshotDir.getAbsolutePath());
+      return null;
+    }
+    // a snapshot written without a visibility state, e.g. by an older version, is read without its change sets
+    TransactionSnapshot snapshot;
+    InputStream is = new FileInputStream(getFile(latestSnapshot));
+    try {
+      snapshot = codecProvider.decodeWithoutChangeSets(is);
+    } finally {
+      is.close();
+    }
+    return applyDeltas(manifest, snapshot, false);
   }
 
   private TransactionSnapshot readSnapshotFile(InputStream is) throws IOException {
     return codecProvider.decode(is);
   }
 
+  private File getFile(FileType type, long timestamp) {
+    return new File(snapshotDir, type.getFileName(timestamp));
+  }
+
+  private File getFile(Entry entry) {
+    return new File(snapshotDir, entry.getFileName());
+  }
+
+  /**
+   * Opens a cataloged file, computing the checksum of everything read from it.
+   */
+  private CheckedInputStream open(Entry entry) throws IOException {
+    return new CheckedInputStream(new FileInputStream(getFile(entry)), new CRC32());
+  }
+
+  /**
+   * Reads the manifest.  If there is no manifest yet, e.g. because the files were written by an older version, or if
+   * the manifest cannot be read, the files in the snapshot directory are cataloged instead.  The manifest is then
+   * written with the next update by the transaction manager.
+   */
+  private TransactionStateManifest readManifest() throws IOException {
+    File manifestFile = new File(snapshotDir, TransactionStateManifest.FILE_NAME);
+    InputStream is;
+    try {
+      is = new FileInputStream(manifestFile);
+    } catch (FileNotFoundException e) {
+      LOG.debug("No manifest found in {}, listing the directory", snapshotDir.getAbsolutePath());
+      return catalogFiles();
+    }
+    try {
+      return TransactionStateManifest.read(new BufferedInputStream(is));
+    } catch (IOException e) {
+      LOG.warn("Failed reading manifest {}, listing the directory", manifestFile.getAbsolutePath(), e);
+      return catalogFiles();
+    } finally {
+      is.close();
+    }
+  }
+
+  private TransactionStateManifest catalogFiles() {
+    TransactionStateManifest manifest = new TransactionStateManifest();
+    for (File file : snapshotDir.listFiles()) {
+      Entry entry = TransactionStateManifest.parse(file.getName(), file.length());
+      if (entry != null) {
+        manifest.add(entry);
+      }
+    }
+    return manifest;
+  }
+
+  private void writeManifest(TransactionStateManifest manifest) throws IOException {
+    File tmpFile = new File(snapshotDir, TransactionStateManifest.TMP_FILE_NAME);
+    OutputStream out = Files.newOutputStreamSupplier(tmpFile).getOutput();
+    boolean threw = true;
+    try {
+      manifest.write(out);
+      threw = false;
+    } finally {
+      Closeables.close(out, threw);
+    }
+
+    // replaces the previous manifest atomically, so that readers always find a complete manifest
+    File manifestFile = new File(snapshotDir, TransactionStateManifest.FILE_NAME);
+    if (!tmpFile.renameTo(manifestFile)) {
+      throw new IOException("Failed renaming temporary manifest file " + tmpFile.getName() + " to " +
+          manifestFile.getName());
+    }
+  }
+
+  private void addToManifest(Entry entry) throws IOException {
+    synchronized (manifestLock) {
+      TransactionStateManifest manifest = readManifest();
+      manifest.add(entry);
+      writeManifest(manifest);
+    }
+  }
+
+  private void removeFromManifest(List<Entry> entries) throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    synchronized (manifestLock) {
+      TransactionStateManifest manifest = readManifest();
+      manifest.removeAll(entries);
+      writeManifest(manifest);
+    }
+  }
+
   @Override
   public long deleteOldSnapshots(int numberToKeep) throws IOException {
-    File[] snapshotFiles = snapshotDir.listFiles(SNAPSHOT_FILE_FILTER);
-    if (snapshotFiles.length == 0) {
+    TransactionStateManifest manifest = readManifest();
+    List<Entry> snapshots = manifest.getEntries(FileType.SNAPSHOT);
+    if (snapshots.isEmpty()) {
       return -1;
     }
-    TimestampedFilename[] snapshotFilenames = new TimestampedFilename[snapshotFiles.length];
-    for (int i = 0; i < snapshotFiles.length; i++) {
-      snapshotFilenames[i] = new TimestampedFilename(snapshotFiles[i]);
-    }
-    Arrays.sort(snapshotFilenames, Collections.reverseOrder());
-    if (snapshotFilenames.length <= numberToKeep) {
-      // nothing to delete, just return the oldest timestamp
-      return snapshotFilenames[snapshotFilenames.length - 1].getTimestamp();
-    }
-    int toRemoveCount = snapshotFilenames.length - numberToKeep;
-    TimestampedFilename[] toRemove = new TimestampedFilename[toRemoveCount];
-    System.arraycopy(snapshotFilenames, numberToKeep, toRemove, 0, toRemoveCount);
+    int toRemoveCount = Math.max(0, snapshots.size() - numberToKeep);
+    // the oldest timestamp is the oldest snapshot that is kept
+    long oldestTimestamp = snapshots.get(toRemoveCount).getTimestamp();
+    List<Entry> toRemove = Lists.newArrayList(snapshots.subList(0, toRemoveCount));
+    // the delta snapshots based on the removed snapshots
+    toRemove.addAll(manifest.getEntries(FileType.DELTA, 0, oldestTimestamp));
+    // files are removed from the manifest first, so that readers never find a deleted file
+    removeFromManifest(toRemove);
+
     int removedCnt = 0;
-    for (int i = 0; i < toRemove.length; i++) {
-      File currentFile = toRemove[i].getFile();
-      LOG.debug("Removing old snapshot file {}", currentFile.getAbsolutePath());
-      if (!toRemove[i].getFile().delete()) {
-        LOG.error("Failed deleting snapshot file {}", currentFile.getAbsolutePath());
-      } else {
-        removedCnt++;
+    for (Entry entry : toRemove) {
+      File currentFile = getFile(entry);
+      if (entry.getType() == FileType.SNAPSHOT) {
+        LOG.debug("Removing old snapshot file {}", currentFile.getAbsolutePath());
+        if (!currentFile.delete()) {
+          LOG.error("Failed deleting snapshot file {}", currentFile.getAbsolutePath());
+        } else {
+          removedCnt++;
+        }
+      } else if (!currentFile.delete()) {
+        LOG.error("Failed deleting delta snapshot file {}", currentFile.getAbsolutePath());
       }
     }
-    long oldestTimestamp = snapshotFilenames[numberToKeep - 1].getTimestamp();
-    LOG.info("Removed {} out of {} expected snapshot files older than {}", removedCnt, toRemoveCount, oldestTimestamp);
+    if (toRemoveCount > 0) {
+      LOG.info("Removed {} out of {} expected snapshot files older than {}", removedCnt, toRemoveCount,
+               oldestTimestamp);
+    }
     return oldestTimestamp;
   }
 
   @Override
   public List<String> listSnapshots() throws IOException {
-    File[] snapshots = snapshotDir.listFiles(SNAPSHOT_FILE_FILTER);
-    return Lists.transform(Arrays.asList(snapshots), new Function<File, String>() {
+    return getFileNames(readManifest().getEntries(FileType.SNAPSHOT));
+  }
+
+  private static List<String> getFileNames(List<Entry> entries) {
+    return Lists.transform(entries, new Function<Entry, String>() {
       @Nullable
       @Override
-      public String apply(@Nullable File input) {
-        return input.getName();
+      public String apply(@Nullable Entry input) {
+        return input.getFileName();
       }
     });
   }
 
   @Override
   public List<TransactionLog> getLogsSince(long timestamp) throws IOException {
-    File[] logFiles = snapshotDir.listFiles(new LogFileFilter(timestamp, Long.MAX_VALUE));
-    TimestampedFilename[] timestampedFiles = new TimestampedFilename[logFiles.length];
-    for (int i = 0; i < logFiles.length; i++) {
-      timestampedFiles[i] = new TimestampedFilename(logFiles[i]);
-    }
-    // logs need to be processed in ascending order
-    Arrays.sort(timestampedFiles);
-    return Lists.transform(Arrays.asList(timestampedFiles), new Function<TimestampedFilename, TransactionLog>() {
+    // logs need to be processed in ascending order, in which the manifest returns them
+    List<Entry> logs = readManifest().getEntries(FileType.LOG, timestamp, Long.MAX_VALUE);
+    return Lists.transform(logs, new Function<Entry, TransactionLog>() {
       @Nullable
       @Override
-      public TransactionLog apply(@Nullable TimestampedFilename input) {
-        return new LocalFileTransactionLog(input.getFile(), input.getTimestamp());
+      public TransactionLog apply(@Nullable Entry input) {
+        File file = getFile(input);
+        // logs are written as segments or as a single file, depending on the configuration when they were created
+        if (file.isDirectory()) {
+          return new SegmentedLocalTransactionLog(file, input.getTimestamp(), logSegmentSize, recycleDir);
+        }
+        return new LocalFileTransactionLog(file, input.getTimestamp());
       }
     });
   }
 
   @Override
   public TransactionLog createLog(long timestamp) throws IOException {
-    File newLogFile = new File(snapshotDir, LOG_FILE_PREFIX + timestamp);
+    File newLogFile = getFile(FileType.LOG, timestamp);
     LOG.info("Creating new transaction log at {}", newLogFile.getAbsolutePath());
-    return new LocalFileTransactionLog(newLogFile, timestamp);
+    AbstractTransactionLog log = logSegmentSize > 0
+      ? new SegmentedLocalTransactionLog(newLogFile, timestamp, logSegmentSize, recycleDir)
+      : new LocalFileTransactionLog(newLogFile, timestamp);
+    addToManifest(new Entry(FileType.LOG, timestamp, TransactionStateManifest.UNKNOWN_SIZE,
+                            TransactionStateManifest.NO_CHECKSUM));
+    return logRingBufferSize > 0 ? new RingBufferTransactionLog(log, logRingBufferSize) : log;
   }
 
   @Override
   public void deleteLogsOlderThan(long timestamp) throws IOException {
-    File[] logFiles = snapshotDir.listFiles(new LogFileFilter(0, timestamp));
+    List<Entry> logs = readManifest().getEntries(FileType.LOG, 0, timestamp);
+    removeFromManifest(logs);
     int removedCnt = 0;
-    for (File file : logFiles) {
+    for (Entry entry : logs) {
+      File file = getFile(entry);
       LOG.debug("Removing old transaction log {}", file.getPath());
-      if (file.delete()) {
+      boolean removed = file.isDirectory()
+        ? SegmentedLocalTransactionLog.deleteSegments(file, recycleDir, logSegmentSize, maxRecycledSegments)
+        : file.delete();
+      if (removed) {
         removedCnt++;
       } else {
         LOG.warn("Failed to remove log file {}", file.getAbsolutePath());
@@ -242,83 +486,6 @@ public class LocalFileTransactionStateStorage extends AbstractTransactionStateSt
 
   @Override
   public List<String> listLogs() throws IOException {
-    File[] logs = snapshotDir.listFiles(new LogFileFilter(0, Long.MAX_VALUE));
-    return Lists.transform(Arrays.asList(logs), new Function<File, String>() {
-      @Nullable
-      @Override
-      public String apply(@Nullable File input) {
-        return input.getName();
-      }
-    });
-  }
-
-  private static class LogFileFilter implements FilenameFilter {
-    private final long startTime;
-    private final long endTime;
-
-    public LogFileFilter(long startTime, long endTime) {
-      this.startTime = startTime;
-      this.endTime = endTime;
-    }
-
-    @Override
-    public boolean accept(File file, String s) {
-      if (s.startsWith(LOG_FILE_PREFIX)) {
-        String[] parts = s.split("\\.");
-        if (parts.length == 2) {
-          try {
-            long fileTime = Long.parseLong(parts[1]);
-            return fileTime >= startTime && fileTime < endTime;
-          } catch (NumberFormatException ignored) {
-            LOG.warn("Filename {} did not match the expected pattern prefix.<timestamp>", s);
-          }
-        }
-      }
-      return false;
-    }
-  }
-
-
-  /**
-   * Represents a filename composed of a prefix and a ".timestamp" suffix.  This is useful for manipulating both
-   * snapshot and transaction log filenames.
-   */
-  private static class TimestampedFilename implements Comparable<TimestampedFilename> {
-    private File file;
-    private String prefix;
-    private long timestamp;
-
-    public TimestampedFilename(File file) {
-      this.file = file;
-      String[] parts = file.getName().split("\\.");
-      if (parts.length != 2) {
-        throw new IllegalArgumentException("Filename " + file.getName() +
-                                           " did not match the expected pattern prefix.timestamp");
-      }
-      prefix = parts[0];
-      timestamp = Long.parseLong(parts[1]);
-    }
-
-    public File getFile() {
-      return file;
-    }
-
-    public String getPrefix() {
-      return prefix;
-    }
-
-    public long getTimestamp() {
-      return timestamp;
-    }
-
-    @Override
-    public int compareTo(TimestampedFilename other) {
-      int res = prefix.compareTo(other.getPrefix());
-      if (res == 0) {
-        res = Longs.compare(timestamp, other.getTimestamp());
-      }
-      return res;
-    }
+    return getFileNames(readManifest().getEntries(FileType.LOG));
   }
-
 }
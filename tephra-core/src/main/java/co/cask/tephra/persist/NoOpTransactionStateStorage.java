@@ -55,11 +55,24 @@ public class NoOpTransactionStateStorage extends AbstractIdleService implements
   public void writeSnapshot(TransactionSnapshot snapshot) throws IOException {
   }
 
+  @Override
+  public void writeDeltaSnapshot(TransactionSnapshotDelta delta) throws IOException {
+  }
+
   @Override
   public TransactionSnapshot getLatestSnapshot() throws IOException {
     return null;
   }
 
+  @Override
+  public void writeVisibilityState(TransactionSnapshot snapshot) throws IOException {
+  }
+
+  @Override
+  public TransactionSnapshot getLatestVisibilityState() throws IOException {
+    return null;
+  }
+
   @Override
   public long deleteOldSnapshots(int numberToKeep) throws IOException {
     return 0;
@@ -137,5 +150,10 @@ public class NoOpTransactionStateStorage extends AbstractIdleService implements
         }
       };
     }
+
+    @Override
+    public TransactionLogReader getTailReader() {
+      return getReader();
+    }
   }
 }
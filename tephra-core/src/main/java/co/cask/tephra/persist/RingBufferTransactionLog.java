@@ -0,0 +1,306 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A transaction log that appends edits through a preallocated ring buffer, with the file writer of another
+ * transaction log, hence writing the same entries as that log.
+ *
+ * <p>
+ * Appending threads claim consecutive slots of the ring buffer by incrementing a sequence number, serialize their
+ * edits into the reusable buffers of these slots, and publish them, without taking any lock. A single writer
+ * thread writes all published edits in the order of their sequence numbers, syncs them, and then releases the
+ * threads that wait for any of them. A slot can be reused once the edit in it is synced, so that an appending
+ * thread only waits for a free slot if the writer falls behind by the size of the ring buffer.
+ * </p>
+ */
+public class RingBufferTransactionLog implements TransactionLog {
+  private static final Logger LOG = LoggerFactory.getLogger(RingBufferTransactionLog.class);
+
+  /** Time limit, in milliseconds, of an append to the transaction log before we log it as "slow". */
+  private static final long SLOW_APPEND_THRESHOLD = 1000L;
+  // upper bound for an appending thread, or for the writer thread once the log is closed, to wait before checking
+  // its condition again, in case a wake-up is missed
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  // how long a thread waits for a free slot before checking again, the writer does not wake it up
+  private static final long SLOT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final AbstractTransactionLog log;
+  private final Slot[] slots;
+  private final int mask;
+  // the next sequence number to claim
+  private final AtomicLong nextSequence = new AtomicLong();
+  // all edits up to this sequence number are synced
+  private volatile long syncedUpTo = -1L;
+  private volatile boolean initialized;
+  private volatile boolean closed;
+  // set once the writer thread terminated, after which no more edits are synced
+  private volatile boolean stopped;
+  private volatile IOException failure;
+  private volatile Thread writerThread;
+  private TransactionLogWriter writer;
+
+  /**
+   * Creates a new ring buffer transaction log.
+   * @param log the log to write to, only its writer is used
+   * @param size the number of slots of the ring buffer, rounded up to the next power of two
+   */
+  public RingBufferTransactionLog(AbstractTransactionLog log, int size) {
+    Preconditions.checkArgument(size > 0, "Ring buffer size must be positive but is %s", size);
+    this.log = log;
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) {
+      capacity <<= 1;
+    }
+    this.slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Opens the log file, and starts the writer thread. This is called with the first append if it has not been
+   * called before.
+   */
+  public synchronized void init() throws IOException {
+    if (initialized) {
+      return;
+    }
+    writer = log.createWriter();
+    writerThread = new Thread("tx-log-writer-" + log.getName()) {
+      @Override
+      public void run() {
+        writeEdits();
+      }
+    };
+    writerThread.setDaemon(true);
+    writerThread.start();
+    initialized = true;
+  }
+
+  @Override
+  public String getName() {
+    return log.getName();
+  }
+
+  @Override
+  public long getTimestamp() {
+    return log.getTimestamp();
+  }
+
+  @Override
+  public void append(TransactionEdit edit) throws IOException {
+    append(ImmutableList.of(edit));
+  }
+
+  @Override
+  public void append(List<TransactionEdit> edits) throws IOException {
+    if (edits.isEmpty()) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    ensureAvailable();
+
+    long sequence = nextSequence.getAndAdd(edits.size());
+    long last = sequence + edits.size() - 1;
+    IOException writeFailure = null;
+    for (TransactionEdit edit : edits) {
+      Slot slot = awaitSlot(sequence);
+      slot.buffer.reset();
+      // every claimed slot must be published, otherwise the writer would wait for it forever
+      if (writeFailure == null) {
+        try {
+          edit.write(slot.buffer);
+        } catch (IOException e) {
+          writeFailure = e;
+          slot.buffer.reset();
+        }
+      }
+      if (sequence == last) {
+        slot.waiter = Thread.currentThread();
+      }
+      slot.published = sequence++;
+    }
+    LockSupport.unpark(writerThread);
+    if (writeFailure != null) {
+      throw writeFailure;
+    }
+
+    // wait for sync to complete
+    while (syncedUpTo < last) {
+      checkNotStopped(last);
+      LockSupport.parkNanos(this, MAX_PARK_NANOS);
+    }
+    long durationMillis = (System.nanoTime() - startTime) / 1000000L;
+    if (durationMillis > SLOW_APPEND_THRESHOLD) {
+      LOG.info("Slow append to log " + getName() + ", took " + durationMillis + " msec.");
+    }
+  }
+
+  private void ensureAvailable() throws IOException {
+    if (closed) {
+      throw new IOException("Log " + getName() + " is already closed, cannot append!");
+    }
+    if (!initialized) {
+      init();
+    }
+  }
+
+  /**
+   * Waits until the slot for the given sequence number is free, that is, until the edit that used it before, one
+   * ring buffer size earlier, is synced.
+   */
+  private Slot awaitSlot(long sequence) throws IOException {
+    while (sequence - slots.length > syncedUpTo) {
+      checkNotStopped(sequence);
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(this, SLOT_PARK_NANOS);
+    }
+    return slots[(int) (sequence & mask)];
+  }
+
+  private void checkNotStopped(long sequence) throws IOException {
+    if (stopped && syncedUpTo < sequence) {
+      if (failure != null) {
+        throw new IOException("Failed to append to log " + getName(), failure);
+      }
+      throw new IOException("Log " + getName() + " is already closed, cannot append!");
+    }
+  }
+
+  /**
+   * Main loop of the writer thread.
+   */
+  private void writeEdits() {
+    long next = 0;
+    try {
+      while (true) {
+        long first = next;
+        // write all edits that are published, in the order of their sequence numbers
+        Slot slot = slots[(int) (next & mask)];
+        while (slot.published == next) {
+          if (slot.buffer.getLength() > 0) {
+            writer.appendRaw(next, slot.buffer.getData(), 0, slot.buffer.getLength());
+          }
+          slot = slots[(int) (++next & mask)];
+        }
+        if (next > first) {
+          writer.sync();
+          release(first, next - 1);
+        } else if (closed) {
+          if (next == nextSequence.get()) {
+            return;
+          }
+          // edits that were claimed before the log was closed are still being published
+          LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        } else {
+          // idle until the next edit is published: every append and close() unparks this thread after publishing,
+          // and a permit granted before parking makes it return immediately
+          LockSupport.park(this);
+        }
+      }
+    } catch (Throwable t) {
+      LOG.error("Failed to write to log " + getName(), t);
+      failure = t instanceof IOException ? (IOException) t : new IOException(t);
+    } finally {
+      stopped = true;
+      for (Slot slot : slots) {
+        Thread waiter = slot.waiter;
+        if (waiter != null) {
+          LockSupport.unpark(waiter);
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks the edits with the given sequence numbers as synced, and wakes up the threads waiting for them.
+   */
+  private void release(long first, long last) {
+    // the waiters must be taken from the slots before they can be reused
+    Thread[] waiters = null;
+    int numWaiters = 0;
+    for (long sequence = first; sequence <= last; sequence++) {
+      Slot slot = slots[(int) (sequence & mask)];
+      Thread waiter = slot.waiter;
+      if (waiter != null) {
+        slot.waiter = null;
+        if (waiters == null) {
+          waiters = new Thread[(int) (last - sequence + 1)];
+        }
+        waiters[numWaiters++] = waiter;
+      }
+    }
+    syncedUpTo = last;
+    for (int i = 0; i < numWaiters; i++) {
+      LockSupport.unpark(waiters[i]);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // NOTE: writer is lazy-inited, so it can be null
+    if (writerThread != null) {
+      // the writer thread terminates once all outstanding edits are synced
+      LockSupport.unpark(writerThread);
+      Uninterruptibles.joinUninterruptibly(writerThread);
+      writer.close();
+    }
+    if (failure != null) {
+      throw new IOException("Failed to write to log " + getName(), failure);
+    }
+  }
+
+  @Override
+  public TransactionLogReader getReader() throws IOException {
+    return log.getReader();
+  }
+
+  @Override
+  public TransactionLogReader getTailReader() throws IOException {
+    return log.getTailReader();
+  }
+
+  /**
+   * A slot of the ring buffer.
+   */
+  private static final class Slot {
+    private final DataOutputBuffer buffer = new DataOutputBuffer();
+    // the sequence number of the edit in the buffer, once it can be written
+    private volatile long published = -1L;
+    // the thread waiting for the edit in this slot to be synced, if any
+    private volatile Thread waiter;
+  }
+}
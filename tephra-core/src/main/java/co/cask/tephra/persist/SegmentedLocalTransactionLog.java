@@ -0,0 +1,424 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A transaction log on the local filesystem that is written to a directory of fixed-size, preallocated segment
+ * files through memory mappings, and synced to disk with every sync of the log.
+ *
+ * <p>
+ * As the segments are allocated in full before anything is written to them, syncing an edit only writes the data,
+ * but not the metadata of a growing file. Segments of deleted logs can be recycled for new logs, which saves the
+ * preallocation. Each edit is stored as a frame of its length, a CRC32 checksum, the sequence number and the
+ * serialized edit. The checksum is salted with the timestamp of the log and the index of the segment, so that the
+ * reader stops at the first frame that was not completely written, and does not read the stale frames of a recycled
+ * segment, or the zeros of a preallocated one. A segment that has no room for the next frame is terminated with an
+ * end marker, unless it is full.
+ * </p>
+ */
+public class SegmentedLocalTransactionLog extends AbstractTransactionLog {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentedLocalTransactionLog.class);
+
+  private static final String SEGMENT_FILE_PREFIX = "segment.";
+  // frame length and checksum
+  private static final int FRAME_HEADER_SIZE = Ints.BYTES + Ints.BYTES;
+  // marks the end of the frames in a segment that was not filled up
+  private static final int END_OF_SEGMENT = -1;
+  private static final int PREALLOCATE_CHUNK_SIZE = 65536;
+
+  private static final FileFilter SEGMENT_FILE_FILTER = new FileFilter() {
+    @Override
+    public boolean accept(File file) {
+      return file.getName().startsWith(SEGMENT_FILE_PREFIX);
+    }
+  };
+
+  private final File logDir;
+  private final int segmentSize;
+  private final File recycleDir;
+
+  /**
+   * Creates a new segmented transaction log.
+   * @param logDir the directory of the segment files
+   * @param timestamp the timestamp of the log
+   * @param segmentSize the size of every new segment, in bytes, which is only used to write the log
+   * @param recycleDir the directory that contains recycled segments to reuse, or {@code null} to always allocate
+   *                   new segments
+   */
+  public SegmentedLocalTransactionLog(File logDir, long timestamp, int segmentSize, @Nullable File recycleDir) {
+    super(timestamp);
+    this.logDir = logDir;
+    this.segmentSize = segmentSize;
+    this.recycleDir = recycleDir;
+  }
+
+  @Override
+  public String getName() {
+    return logDir.getAbsolutePath();
+  }
+
+  @Override
+  protected TransactionLogWriter createWriter() throws IOException {
+    if (!logDir.isDirectory() && !logDir.mkdirs()) {
+      throw new IOException("Failed to create directory " + logDir + " for transaction log segments");
+    }
+    // like a single log file, an existing log is overwritten
+    for (File segment : listSegments(logDir)) {
+      if (!segment.delete()) {
+        throw new IOException("Failed to remove existing log segment " + segment);
+      }
+    }
+    return new LogWriter();
+  }
+
+  @Override
+  public TransactionLogReader getReader() throws IOException {
+    // the log directory is only created with the first append
+    if (!logDir.isDirectory()) {
+      return null;
+    }
+    return new LogReader(listSegments(logDir), false);
+  }
+
+  @Override
+  public TransactionLogReader getTailReader() throws IOException {
+    if (!logDir.isDirectory()) {
+      return null;
+    }
+    // a partially written frame at the end of the last segment fails its checksum, and ends the edits
+    return new LogReader(listSegments(logDir), true);
+  }
+
+  /**
+   * Moves the segments of the given log directory into the given recycle directory, as long as that holds fewer
+   * than the given number of segments, and deletes the remaining segments and the log directory.
+   * @return whether the log directory was deleted
+   */
+  static boolean deleteSegments(File logDir, @Nullable File recycleDir, int segmentSize, int maxRecycled) {
+    File[] recycledSegments = recycleDir == null ? null : recycleDir.listFiles(SEGMENT_FILE_FILTER);
+    int recycled = recycledSegments == null ? maxRecycled : recycledSegments.length;
+    File[] segments = logDir.listFiles(SEGMENT_FILE_FILTER);
+    if (segments != null) {
+      for (File segment : segments) {
+        // oversized segments were allocated for single large edits, and are never reused
+        if (recycled < maxRecycled && segment.length() == segmentSize &&
+          segment.renameTo(new File(recycleDir, SEGMENT_FILE_PREFIX + logDir.getName() + "." + segment.getName()))) {
+          recycled++;
+        } else if (!segment.delete()) {
+          LOG.warn("Failed to remove log segment {}", segment.getAbsolutePath());
+        }
+      }
+    }
+    return logDir.delete();
+  }
+
+  /**
+   * Returns the segment files of the given log directory, in the order they were written.
+   */
+  private static File[] listSegments(File logDir) throws IOException {
+    File[] segments = logDir.listFiles(SEGMENT_FILE_FILTER);
+    if (segments == null) {
+      throw new IOException("Failed to list segments of transaction log " + logDir);
+    }
+    Arrays.sort(segments, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Ints.compare(getSegmentIndex(f1), getSegmentIndex(f2));
+      }
+    });
+    return segments;
+  }
+
+  private static int getSegmentIndex(File segment) {
+    return Integer.parseInt(segment.getName().substring(SEGMENT_FILE_PREFIX.length()));
+  }
+
+  /**
+   * Starts the checksum of a frame in the given segment of the given log.
+   */
+  private static void initChecksum(CRC32 checksum, long timestamp, int segmentIndex) {
+    checksum.reset();
+    checksum.update(Longs.toByteArray(timestamp));
+    checksum.update(Ints.toByteArray(segmentIndex));
+  }
+
+  private final class LogWriter implements TransactionLogWriter {
+    private final CRC32 checksum = new CRC32();
+    private final DataOutputBuffer editBuffer = new DataOutputBuffer();
+    private final byte[] keyBytes = new byte[Longs.BYTES];
+    private int segmentIndex = -1;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+
+    @Override
+    public void append(Entry entry) throws IOException {
+      editBuffer.reset();
+      entry.getEdit().write(editBuffer);
+      appendRaw(entry.getKey().get(), editBuffer.getData(), 0, editBuffer.getLength());
+    }
+
+    @Override
+    public void appendRaw(long sequence, byte[] edit, int offset, int length) throws IOException {
+      int frameLength = Longs.BYTES + length;
+      if (buffer == null || buffer.remaining() < FRAME_HEADER_SIZE + frameLength) {
+        nextSegment(FRAME_HEADER_SIZE + frameLength);
+      }
+      for (int i = keyBytes.length - 1; i >= 0; i--) {
+        keyBytes[i] = (byte) sequence;
+        sequence >>>= 8;
+      }
+      initChecksum(checksum, timestamp, segmentIndex);
+      checksum.update(keyBytes);
+      checksum.update(edit, offset, length);
+      buffer.putInt(frameLength);
+      buffer.putInt((int) checksum.getValue());
+      buffer.put(keyBytes);
+      buffer.put(edit, offset, length);
+    }
+
+    /**
+     * Terminates and syncs the current segment, and opens the next one, with room for at least the given number
+     * of bytes.
+     */
+    private void nextSegment(int minSize) throws IOException {
+      if (buffer != null) {
+        if (buffer.remaining() >= Ints.BYTES) {
+          buffer.putInt(END_OF_SEGMENT);
+        }
+        closeSegment();
+      }
+      segmentIndex++;
+      File segment = new File(logDir, SEGMENT_FILE_PREFIX + segmentIndex);
+      int size = Math.max(segmentSize, minSize);
+      if (!segment.exists() && size == segmentSize) {
+        reuseSegment(segment);
+      }
+      file = new RandomAccessFile(segment, "rw");
+      FileChannel channel = file.getChannel();
+      if (channel.size() < size) {
+        preallocate(channel, size);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Moves a recycled segment to the given file, if there is any.
+     */
+    private void reuseSegment(File segment) {
+      File[] recycled = recycleDir == null ? null : recycleDir.listFiles(SEGMENT_FILE_FILTER);
+      if (recycled == null) {
+        return;
+      }
+      for (File candidate : recycled) {
+        if (candidate.length() == segmentSize && candidate.renameTo(segment)) {
+          LOG.debug("Reusing recycled log segment {} as {}", candidate.getName(), segment.getAbsolutePath());
+          return;
+        }
+      }
+    }
+
+    /**
+     * Fills the given file with zeros up to the given size, so that its blocks are allocated, and syncs it
+     * including its metadata.
+     */
+    private void preallocate(FileChannel channel, int size) throws IOException {
+      LOG.debug("Preallocating {} bytes for log segment {} of {}", size, segmentIndex, getName());
+      ByteBuffer zeros = ByteBuffer.allocate(PREALLOCATE_CHUNK_SIZE);
+      long position = channel.size();
+      while (position < size) {
+        zeros.clear();
+        zeros.limit((int) Math.min(zeros.capacity(), size - position));
+        position += channel.write(zeros, position);
+      }
+      channel.force(true);
+    }
+
+    private void closeSegment() throws IOException {
+      buffer.force();
+      // the mapping is released once the buffer is garbage collected
+      buffer = null;
+      file.close();
+      file = null;
+    }
+
+    @Override
+    public void sync() throws IOException {
+      if (buffer != null) {
+        buffer.force();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (buffer != null) {
+        closeSegment();
+      }
+    }
+  }
+
+  private final class LogReader implements TransactionLogReader {
+    // whether the last segment is read again after its last frame once the end was reached, and new segments are
+    // listed, to continue with the edits that are appended to the log later
+    private final boolean tail;
+    private final CRC32 checksum = new CRC32();
+    private final DataInputBuffer frameInput = new DataInputBuffer();
+    private final Entry reuseEntry = new Entry();
+    private File[] segments;
+    private byte[] frame = new byte[256];
+    private int segmentIndex = -1;
+    private DataInputStream in;
+    private long remaining;
+    // the position in the current segment after the last frame that was read, and whether the segment was
+    // terminated with an end marker
+    private long position;
+    private boolean terminated;
+    private boolean reopen;
+
+    LogReader(File[] segments, boolean tail) {
+      this.segments = segments;
+      this.tail = tail;
+    }
+
+    @Override
+    public TransactionEdit next() throws IOException {
+      return next(new TransactionEdit());
+    }
+
+    @Override
+    public TransactionEdit next(TransactionEdit reuse) throws IOException {
+      while (true) {
+        if (in == null) {
+          if (reopen) {
+            reopenSegment();
+          } else if (!nextSegment()) {
+            return null;
+          }
+        }
+        if (readFrame()) {
+          reuseEntry.getKey().readFields(frameInput);
+          reuse.readFields(frameInput);
+          return reuse;
+        }
+        in.close();
+        in = null;
+        // the last segment may still be written, unless it was terminated
+        if (tail && !terminated && segmentIndex == segments.length - 1) {
+          reopen = true;
+          return null;
+        }
+      }
+    }
+
+    private boolean nextSegment() throws IOException {
+      if (tail && segmentIndex + 1 >= segments.length) {
+        segments = listSegments(logDir);
+      }
+      if (segmentIndex + 1 >= segments.length) {
+        return false;
+      }
+      segmentIndex++;
+      openSegment(0);
+      return true;
+    }
+
+    /**
+     * Opens the current segment again after the last frame that was read, once the segments were listed again.
+     */
+    private void reopenSegment() throws IOException {
+      segments = listSegments(logDir);
+      reopen = false;
+      openSegment(position);
+    }
+
+    private void openSegment(long start) throws IOException {
+      File segment = segments[segmentIndex];
+      FileInputStream fin = new FileInputStream(segment);
+      fin.getChannel().position(start);
+      in = new DataInputStream(new BufferedInputStream(fin, LocalFileTransactionStateStorage.BUFFER_SIZE));
+      remaining = segment.length() - start;
+      position = start;
+      terminated = false;
+    }
+
+    /**
+     * Reads the next frame of the current segment, and returns whether there is one.
+     */
+    private boolean readFrame() throws IOException {
+      if (remaining < FRAME_HEADER_SIZE) {
+        return false;
+      }
+      int frameLength = in.readInt();
+      if (frameLength == END_OF_SEGMENT) {
+        terminated = true;
+        return false;
+      }
+      boolean valid = frameLength >= Longs.BYTES && frameLength <= remaining - FRAME_HEADER_SIZE;
+      if (valid) {
+        int expectedChecksum = in.readInt();
+        if (frame.length < frameLength) {
+          frame = new byte[Math.max(frameLength, frame.length * 2)];
+        }
+        in.readFully(frame, 0, frameLength);
+        remaining -= FRAME_HEADER_SIZE + frameLength;
+        initChecksum(checksum, timestamp, getSegmentIndex(segments[segmentIndex]));
+        checksum.update(frame, 0, frameLength);
+        valid = (int) checksum.getValue() == expectedChecksum;
+      }
+      if (!valid) {
+        // only the last segment can end with a partially written frame, the others have been terminated
+        if (segmentIndex < segments.length - 1) {
+          throw new IOException("Invalid frame in segment " + segments[segmentIndex] + " of transaction log " +
+                                   getName());
+        }
+        return false;
+      }
+      frameInput.reset(frame, frameLength);
+      position += FRAME_HEADER_SIZE + frameLength;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+        in = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.LongWritable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * A transaction log in HDFS that is written to several stripe files in parallel, each through its own HDFS write
+ * pipeline, so that concurrent appends are synced in parallel instead of waiting for each other's syncs.
+ *
+ * <p>
+ * The stripes are written to the directory of the log as sequence files in the format of {@link HDFSTransactionLog},
+ * with the filenames "stripe.&lt;index&gt;". Every edit gets a sequence number that is unique across the stripes,
+ * and each append goes to the next stripe in turn. Appends to the same stripe are synced together, as with a single
+ * log file. An append only returns once all edits with lower sequence numbers are synced as well, so that the synced
+ * edits of all stripes always form a prefix of the log. The reader merges the stripes by sequence number, and stops
+ * at the first missing sequence number, which can only belong to an append that did not return.
+ * </p>
+ */
+public class StripedHDFSTransactionLog implements TransactionLog {
+  private static final Logger LOG = LoggerFactory.getLogger(StripedHDFSTransactionLog.class);
+
+  private static final String STRIPE_FILE_PREFIX = "stripe.";
+
+  private static final PathFilter STRIPE_FILE_FILTER = new PathFilter() {
+    @Override
+    public boolean accept(Path path) {
+      return path.getName().startsWith(STRIPE_FILE_PREFIX);
+    }
+  };
+
+  private final FileSystem fs;
+  private final Configuration hConf;
+  private final Path logDir;
+  private final long timestamp;
+  private final int numStripes;
+  // recovers the log together with the logs listed with it, if it was listed for reading
+  private final HDFSTransactionLogRecovery recovery;
+
+  // guarded by this
+  private Stripe[] stripes;
+  private long nextSequence;
+  private int nextStripe;
+  private boolean closed;
+
+  // guarded by syncedLock: all edits up to syncedUpTo are synced, and the synced edits after it by their first
+  // sequence number, with the last sequence number as value
+  private final Object syncedLock = new Object();
+  private long syncedUpTo = -1;
+  private final TreeMap<Long, Long> syncedRanges = Maps.newTreeMap();
+  private IOException failure;
+
+  /**
+   * Creates a new striped HDFS write-ahead log for storing transaction state.
+   * @param fs Open FileSystem instance for opening log files in HDFS.
+   * @param hConf HDFS cluster configuration.
+   * @param logDir Path to the directory of the stripe files.
+   * @param timestamp the timestamp of the log
+   * @param numStripes the number of stripes to write, which is only used to write the log
+   */
+  public StripedHDFSTransactionLog(FileSystem fs, Configuration hConf, Path logDir, long timestamp, int numStripes) {
+    this(fs, hConf, logDir, timestamp, numStripes, null);
+  }
+
+  StripedHDFSTransactionLog(FileSystem fs, Configuration hConf, Path logDir, long timestamp, int numStripes,
+                            @Nullable HDFSTransactionLogRecovery recovery) {
+    this.fs = fs;
+    this.hConf = hConf;
+    this.logDir = logDir;
+    this.timestamp = timestamp;
+    this.numStripes = numStripes;
+    this.recovery = recovery;
+    if (recovery != null) {
+      recovery.addStripedLog(logDir, timestamp, STRIPE_FILE_FILTER);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return logDir.getName();
+  }
+
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public void append(TransactionEdit edit) throws IOException {
+    append(Collections.singletonList(edit));
+  }
+
+  @Override
+  public void append(List<TransactionEdit> edits) throws IOException {
+    if (edits.isEmpty()) {
+      return;
+    }
+    Stripe stripe;
+    long first;
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Log " + getName() + " is already closed, cannot append!");
+      }
+      if (stripes == null) {
+        init();
+      }
+      stripe = stripes[nextStripe];
+      nextStripe = (nextStripe + 1) % stripes.length;
+      first = nextSequence;
+      // the edits of every stripe are in the order of their sequence numbers
+      for (TransactionEdit edit : edits) {
+        stripe.add(new AbstractTransactionLog.Entry(new LongWritable(nextSequence++), edit));
+      }
+    }
+    long last = first + edits.size() - 1;
+    try {
+      stripe.sync(last);
+    } catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+    awaitSynced(first, last);
+  }
+
+  private void init() throws IOException {
+    fs.mkdirs(logDir);
+    Stripe[] newStripes = new Stripe[numStripes];
+    for (int i = 0; i < numStripes; i++) {
+      newStripes[i] = new Stripe(new HDFSTransactionLog.LogWriter(fs, hConf,
+                                                                  new Path(logDir, STRIPE_FILE_PREFIX + i)));
+    }
+    stripes = newStripes;
+  }
+
+  /**
+   * Records the given range of edits as synced, and waits until all edits before it are synced as well.
+   */
+  private void awaitSynced(long first, long last) throws IOException {
+    synchronized (syncedLock) {
+      syncedRanges.put(first, last);
+      Map.Entry<Long, Long> range = syncedRanges.firstEntry();
+      while (range != null && range.getKey() == syncedUpTo + 1) {
+        syncedUpTo = range.getValue();
+        syncedRanges.pollFirstEntry();
+        range = syncedRanges.firstEntry();
+      }
+      syncedLock.notifyAll();
+      while (syncedUpTo < last) {
+        if (failure != null) {
+          throw new IOException("Failed syncing an earlier append to log " + getName(), failure);
+        }
+        try {
+          syncedLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for earlier appends to log " + getName());
+        }
+      }
+    }
+  }
+
+  /**
+   * Fails all appends that wait for earlier appends, as these will never be synced.
+   */
+  private void fail(IOException e) {
+    synchronized (syncedLock) {
+      if (failure == null) {
+        failure = e;
+      }
+      syncedLock.notifyAll();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    Stripe[] toClose;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      toClose = stripes;
+    }
+    // NOTE: the stripes are created with the first append, so they can be null
+    if (toClose == null) {
+      return;
+    }
+    IOException closeFailure = null;
+    for (Stripe stripe : toClose) {
+      try {
+        stripe.close();
+      } catch (IOException e) {
+        closeFailure = e;
+      }
+    }
+    if (closeFailure != null) {
+      throw closeFailure;
+    }
+  }
+
+  @Override
+  public TransactionLogReader getReader() throws IOException {
+    if (recovery != null) {
+      List<HDFSTransactionLog.LogReader> readers = recovery.open(logDir);
+      if (readers != null) {
+        return new MergingReader(readers, false);
+      }
+    }
+    FileStatus[] files = fs.listStatus(logDir, STRIPE_FILE_FILTER);
+    List<HDFSTransactionLog.LogReader> readers = Lists.newArrayListWithCapacity(files.length);
+    for (FileStatus file : files) {
+      HDFSTransactionLog.LogReader reader = new HDFSTransactionLog(fs, hConf, file.getPath(), timestamp).openReader();
+      if (reader != null) {
+        readers.add(reader);
+      }
+    }
+    return new MergingReader(readers, false);
+  }
+
+  @Override
+  public TransactionLogReader getTailReader() throws IOException {
+    MergingReader reader = new MergingReader(Lists.<HDFSTransactionLog.LogReader>newArrayList(), true);
+    if (!reader.openNewStripes()) {
+      return null;
+    }
+    return reader;
+  }
+
+  /**
+   * A stripe file, to which the edits appended concurrently are synced together.
+   */
+  private static final class Stripe {
+    private final HDFSTransactionLog.LogWriter writer;
+    // guarded by this
+    private List<AbstractTransactionLog.Entry> pending = Lists.newArrayList();
+    // guarded by writer: the highest sequence number that is synced
+    private long syncedUpTo = -1;
+    private boolean closed;
+
+    Stripe(HDFSTransactionLog.LogWriter writer) {
+      this.writer = writer;
+    }
+
+    synchronized void add(AbstractTransactionLog.Entry entry) {
+      pending.add(entry);
+    }
+
+    private synchronized List<AbstractTransactionLog.Entry> takePending() {
+      List<AbstractTransactionLog.Entry> taken = pending;
+      pending = Lists.newArrayList();
+      return taken;
+    }
+
+    /**
+     * Writes and syncs the pending edits, unless the edits up to the given sequence number were already synced by
+     * another append.
+     */
+    void sync(long sequence) throws IOException {
+      synchronized (writer) {
+        if (syncedUpTo >= sequence) {
+          return;
+        }
+        if (closed) {
+          throw new IOException("Stripe is already closed, cannot sync!");
+        }
+        syncPending();
+      }
+    }
+
+    // must hold the writer lock
+    private void syncPending() throws IOException {
+      List<AbstractTransactionLog.Entry> entries = takePending();
+      if (entries.isEmpty()) {
+        return;
+      }
+      for (AbstractTransactionLog.Entry entry : entries) {
+        writer.append(entry);
+      }
+      writer.sync();
+      syncedUpTo = entries.get(entries.size() - 1).getKey().get();
+    }
+
+    void close() throws IOException {
+      synchronized (writer) {
+        if (closed) {
+          return;
+        }
+        try {
+          // perform a final sync if any outstanding writes
+          syncPending();
+        } finally {
+          closed = true;
+          writer.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the edits of all stripes in the order of their sequence numbers.
+   */
+  private final class MergingReader implements TransactionLogReader {
+    private final List<HDFSTransactionLog.LogReader> readers;
+    // the next edit of each stripe that was not returned yet
+    private final PriorityQueue<Head> heads;
+    // whether the stripes may still be written, so that a missing edit may only not be synced yet
+    private final boolean tail;
+    // the readers that reached the end of their stripe, and the stripe files that are read, which are only tracked
+    // to continue with the edits that are synced to the stripes later
+    private final List<HDFSTransactionLog.LogReader> drained = Lists.newArrayList();
+    private final Set<Path> stripeFiles = Sets.newHashSet();
+    private long expectedSequence;
+    private boolean ended;
+
+    MergingReader(List<HDFSTransactionLog.LogReader> readers, boolean tail) throws IOException {
+      this.readers = readers;
+      this.tail = tail;
+      this.heads = new PriorityQueue<Head>(Math.max(1, readers.size()), new Comparator<Head>() {
+        @Override
+        public int compare(Head head1, Head head2) {
+          return Long.valueOf(head1.sequence).compareTo(head2.sequence);
+        }
+      });
+      for (HDFSTransactionLog.LogReader reader : readers) {
+        advance(reader);
+      }
+    }
+
+    private void advance(HDFSTransactionLog.LogReader reader) throws IOException {
+      TransactionEdit edit = reader.next(new TransactionEdit());
+      if (edit != null) {
+        heads.add(new Head(reader, edit, reader.getSequence()));
+      } else if (tail) {
+        drained.add(reader);
+      }
+    }
+
+    /**
+     * Opens tail readers for the stripe files that are not read yet.
+     * @return whether the log directory exists
+     */
+    private boolean openNewStripes() throws IOException {
+      FileStatus[] files;
+      try {
+        files = fs.listStatus(logDir, STRIPE_FILE_FILTER);
+      } catch (FileNotFoundException e) {
+        return false;
+      }
+      for (FileStatus file : files) {
+        if (stripeFiles.contains(file.getPath())) {
+          continue;
+        }
+        HDFSTransactionLog.LogReader reader =
+          new HDFSTransactionLog(fs, hConf, file.getPath(), timestamp).openTailReader();
+        // a stripe file without a synced header is opened again when the reader continues
+        if (reader != null) {
+          stripeFiles.add(file.getPath());
+          readers.add(reader);
+          advance(reader);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public TransactionEdit next() throws IOException {
+      if (ended) {
+        if (!tail) {
+          return null;
+        }
+        // continue with the edits that were synced since the end was reached
+        List<HDFSTransactionLog.LogReader> toAdvance = Lists.newArrayList(drained);
+        drained.clear();
+        for (HDFSTransactionLog.LogReader reader : toAdvance) {
+          advance(reader);
+        }
+        openNewStripes();
+        ended = false;
+      }
+      Head head = heads.poll();
+      if (head == null) {
+        ended = true;
+        return null;
+      }
+      if (head.sequence != expectedSequence) {
+        // the missing edit was never synced, so neither was its append acknowledged, nor any append after it
+        if (tail) {
+          // or it is not synced yet, and the edit is kept to be returned after it
+          heads.add(head);
+        } else {
+          LOG.warn("Log {} is missing the edit with sequence number {}, ignoring the edits after it",
+                   logDir, expectedSequence);
+        }
+        ended = true;
+        return null;
+      }
+      expectedSequence++;
+      advance(head.reader);
+      return head.edit;
+    }
+
+    /**
+     * Returns the next edit, without populating {@code reuse}, as the edits of the stripes are read ahead.
+     */
+    @Override
+    public TransactionEdit next(TransactionEdit reuse) throws IOException {
+      return next();
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOException closeFailure = null;
+      for (HDFSTransactionLog.LogReader reader : readers) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          closeFailure = e;
+        }
+      }
+      if (closeFailure != null) {
+        throw closeFailure;
+      }
+    }
+  }
+
+  private static final class Head {
+    private final HDFSTransactionLog.LogReader reader;
+    private final TransactionEdit edit;
+    private final long sequence;
+
+    Head(HDFSTransactionLog.LogReader reader, TransactionEdit edit, long sequence) {
+      this.reader = reader;
+      this.edit = edit;
+      this.sequence = sequence;
+    }
+  }
+}
@@ -21,22 +21,32 @@ import co.cask.tephra.TransactionManager;
 import co.cask.tephra.TransactionType;
 import com.google.common.base.Objects;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * Represents a transaction state change in the {@link TransactionLog}.
  */
 public class TransactionEdit implements Writable {
   // provides serde for current version
+  private static final TransactionEditCodec CODEC_V4 = new TransactionEditCodecV4();
+  private static final byte V4 = -4;
+  // provides serde for old but still supported version, should not be used for writing
   private static final TransactionEditCodec CODEC_V3 = new TransactionEditCodecV3();
   private static final byte V3 = -3;
-  // provides serde for old but still supported version, should not be used for writing
   private static final TransactionEditCodec CODEC_V2 = new TransactionEditCodecV2();
   private static final byte V2 = -2;
   private static final TransactionEditCodec CODEC_V1 = new TransactionEditCodecV1();
@@ -61,6 +71,8 @@ public class TransactionEdit implements Writable {
   private long expirationDate;
   private State state;
   private Set<ChangeId> changes;
+  /** Whether the changes are 8-byte fingerprints of the change keys, rather than the change keys. */
+  private boolean changeFingerprints;
   /** Whether or not the COMMITTED change should be fully committed. */
   private boolean canCommit;
   private TransactionType type;
@@ -69,8 +81,8 @@ public class TransactionEdit implements Writable {
 
   // for Writable
   public TransactionEdit() {
-    this.changes = Sets.newHashSet();
-    this.truncateInvalidTx = Sets.newHashSet();
+    this.changes = Collections.emptySet();
+    this.truncateInvalidTx = Collections.emptySet();
   }
 
   // package private for testing
@@ -123,6 +135,15 @@ public class TransactionEdit implements Writable {
     return changes;
   }
 
+  /**
+   * Returns whether the changes are 8-byte fingerprints of the changed row keys, which the transaction manager keeps
+   * instead of the row keys if {@link co.cask.tephra.TxConstants.Manager#FINGERPRINT_COLLISIONS_CONFLICT} is
+   * configured.  This is only populated for edits of type {@link State#COMMITTING} or {@link State#COMMITTED}.
+   */
+  public boolean hasChangeFingerprints() {
+    return changeFingerprints;
+  }
+
   /**
    * Returns the write pointer used to commit the row key change set.  This is only populated for edits of type
    * {@link State#COMMITTED}.
@@ -176,7 +197,19 @@ public class TransactionEdit implements Writable {
    * Creates a new instance in the {@link State#COMMITTING} state.
    */
   public static TransactionEdit createCommitting(long writePointer, Set<ChangeId> changes) {
-    return new TransactionEdit(writePointer, 0L, State.COMMITTING, 0L, changes, 0L, false, null, null, 0L);
+    return createCommitting(writePointer, changes, false);
+  }
+
+  /**
+   * Creates a new instance in the {@link State#COMMITTING} state.
+   * @param changeFingerprints whether the changes are fingerprints of the change keys
+   */
+  public static TransactionEdit createCommitting(long writePointer, Set<ChangeId> changes,
+                                                 boolean changeFingerprints) {
+    TransactionEdit edit = new TransactionEdit(writePointer, 0L, State.COMMITTING, 0L, changes, 0L, false, null,
+                                               null, 0L);
+    edit.changeFingerprints = changeFingerprints;
+    return edit;
   }
 
   /**
@@ -184,8 +217,19 @@ public class TransactionEdit implements Writable {
    */
   public static TransactionEdit createCommitted(long writePointer, Set<ChangeId> changes, long nextWritePointer,
                                                 boolean canCommit) {
-    return new TransactionEdit(writePointer, 0L, State.COMMITTED, 0L, changes, nextWritePointer, canCommit, null, 
-                               null, 0L);
+    return createCommitted(writePointer, changes, nextWritePointer, canCommit, false);
+  }
+
+  /**
+   * Creates a new instance in the {@link State#COMMITTED} state.
+   * @param changeFingerprints whether the changes are fingerprints of the change keys
+   */
+  public static TransactionEdit createCommitted(long writePointer, Set<ChangeId> changes, long nextWritePointer,
+                                                boolean canCommit, boolean changeFingerprints) {
+    TransactionEdit edit = new TransactionEdit(writePointer, 0L, State.COMMITTED, 0L, changes, nextWritePointer,
+                                               canCommit, null, null, 0L);
+    edit.changeFingerprints = changeFingerprints;
+    return edit;
   }
 
   /**
@@ -226,13 +270,18 @@ public class TransactionEdit implements Writable {
 
   @Override
   public void write(DataOutput out) throws IOException {
-    CODEC_V3.encode(this, out);
+    CODEC_V4.encode(this, out);
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
     byte version = in.readByte();
+    // only recorded by the current version
+    changeFingerprints = false;
     switch (version) {
+      case V4:
+        CODEC_V4.decode(this, in);
+        break;
       case V3:
         CODEC_V3.decode(this, in);
         break;
@@ -264,6 +313,7 @@ public class TransactionEdit implements Writable {
       Objects.equal(this.expirationDate, that.expirationDate) &&
       Objects.equal(this.state, that.state) &&
       Objects.equal(this.changes, that.changes) &&
+      Objects.equal(this.changeFingerprints, that.changeFingerprints) &&
       Objects.equal(this.canCommit, that.canCommit) &&
       Objects.equal(this.type, that.type) &&
       Objects.equal(this.truncateInvalidTx, that.truncateInvalidTx) &&
@@ -285,6 +335,7 @@ public class TransactionEdit implements Writable {
       .add("expiration", expirationDate)
       .add("state", state)
       .add("changesSize", changes != null ? changes.size() : 0)
+      .add("changeFingerprints", changeFingerprints)
       .add("canCommit", canCommit)
       .add("type", type)
       .add("truncateInvalidTx", truncateInvalidTx)
@@ -292,6 +343,17 @@ public class TransactionEdit implements Writable {
       .toString();
   }
 
+  /**
+   * Returns the given set cleared, if it can be reused to decode an edit into it, or a new set otherwise.
+   */
+  private static <T> Set<T> clearedSet(Set<T> set) {
+    if (!(set instanceof HashSet)) {
+      return Sets.newHashSet();
+    }
+    set.clear();
+    return set;
+  }
+
   // package-private for unit-test access
   static interface TransactionEditCodec {
     // doesn't read version field
@@ -305,11 +367,7 @@ public class TransactionEdit implements Writable {
   static class TransactionEditCodecV1 implements TransactionEditCodec {
     @Override
     public void decode(TransactionEdit src, DataInput in) throws IOException {
-      if (src.changes == null) {
-        src.changes = Sets.newHashSet();
-      } else {
-        src.changes.clear();
-      }
+      src.changes = clearedSet(src.changes);
 
       src.writePointer = in.readLong();
       // 1st version did not store this info. It is safe to set firstInProgress to 0, it may decrease performance until
@@ -333,7 +391,7 @@ public class TransactionEdit implements Writable {
       }
     }
 
-    /** @deprecated use {@link TransactionEditCodecV3} instead, it is still here for unit-tests only */
+    /** @deprecated use {@link TransactionEditCodecV4} instead, it is still here for unit-tests only */
     @Override
     @Deprecated
     public void encode(TransactionEdit src, DataOutput out) throws IOException {
@@ -364,11 +422,7 @@ public class TransactionEdit implements Writable {
   static class TransactionEditCodecV2 implements TransactionEditCodec {
     @Override
     public void decode(TransactionEdit dest, DataInput in) throws IOException {
-      if (dest.changes == null) {
-        dest.changes = Sets.newHashSet();
-      } else {
-        dest.changes.clear();
-      }
+      dest.changes = clearedSet(dest.changes);
 
       dest.writePointer = in.readLong();
       int stateIdx = in.readInt();
@@ -390,7 +444,7 @@ public class TransactionEdit implements Writable {
       dest.visibilityUpperBound = in.readLong();
     }
 
-    /** @deprecated use {@link TransactionEditCodecV3} instead, it is still here for unit-tests only */
+    /** @deprecated use {@link TransactionEditCodecV4} instead, it is still here for unit-tests only */
     @Override
     public void encode(TransactionEdit src, DataOutput out) throws IOException {
       out.writeByte(V2);
@@ -432,7 +486,7 @@ public class TransactionEdit implements Writable {
       dest.commitPointer = in.readLong();
       dest.canCommit = in.readBoolean();
       int changeSize = in.readInt();
-      dest.changes = emptySet(dest.changes);
+      dest.changes = clearedSet(dest.changes);
       for (int i = 0; i < changeSize; i++) {
         int currentLength = in.readInt();
         byte[] currentBytes = new byte[currentLength];
@@ -453,21 +507,14 @@ public class TransactionEdit implements Writable {
       }
       
       int truncateInvalidTxSize = in.readInt();
-      dest.truncateInvalidTx = emptySet(dest.truncateInvalidTx);
+      dest.truncateInvalidTx = clearedSet(dest.truncateInvalidTx);
       for (int i = 0; i < truncateInvalidTxSize; i++) {
         dest.truncateInvalidTx.add(in.readLong());
       }
       dest.truncateInvalidTxTime = in.readLong();
     }
     
-    private <T> Set<T> emptySet(Set<T> set) {
-      if (set == null) {
-        return Sets.newHashSet();
-      }
-      set.clear();
-      return set;
-    }
-
+    /** @deprecated use {@link TransactionEditCodecV4} instead, it is still here for unit-tests only */
     @Override
     public void encode(TransactionEdit src, DataOutput out) throws IOException {
       out.writeByte(V3);
@@ -506,4 +553,195 @@ public class TransactionEdit implements Writable {
       out.writeLong(src.truncateInvalidTxTime);
     }
   }
+
+  /**
+   * Writes only the fields of an edit that are set, which depend on its state, as variable-length numbers, with
+   * the pointers of an edit encoded as deltas against its write pointer. Every edit is framed with its length and a
+   * CRC32 checksum, so that a partially written edit is detected before any of its fields are decoded.
+   */
+  // package-private for unit-test access
+  static class TransactionEditCodecV4 implements TransactionEditCodec {
+    // flags for the fields that are written, all other fields have their default value
+    private static final int VISIBILITY_UPPER_BOUND = 1;
+    private static final int EXPIRATION = 1 << 1;
+    private static final int COMMIT_POINTER = 1 << 2;
+    private static final int CAN_COMMIT = 1 << 3;
+    private static final int TYPE = 1 << 4;
+    private static final int CHANGES = 1 << 5;
+    private static final int TRUNCATE_INVALID_TX = 1 << 6;
+    private static final int TRUNCATE_INVALID_TX_TIME = 1 << 7;
+    private static final int CHANGE_FINGERPRINTS = 1 << 8;
+    // the length of an edit is read before its checksum can be verified, hence it is bounded to avoid a huge
+    // allocation for a corrupt length
+    static final int MAX_EDIT_LENGTH = 256 << 20;
+
+    @Override
+    public void decode(TransactionEdit dest, DataInput in) throws IOException {
+      int length = WritableUtils.readVInt(in);
+      if (length <= 0 || length > MAX_EDIT_LENGTH) {
+        throw new CorruptTransactionEditException("Invalid length of edit: " + length);
+      }
+      int expectedChecksum = in.readInt();
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      if (checksum(bytes, length) != expectedChecksum) {
+        throw new CorruptTransactionEditException("Checksum mismatch for edit of " + length + " bytes");
+      }
+      try {
+        decodeFields(dest, new FieldReader(bytes));
+      } catch (ArrayIndexOutOfBoundsException e) {
+        throw new IOException("Edit of " + length + " bytes is truncated");
+      }
+    }
+
+    /**
+     * Decodes the fields directly from the buffer of the edit, which the changes of the edit then refer to.
+     */
+    private void decodeFields(TransactionEdit dest, FieldReader in) throws IOException {
+      int stateIdx = in.readByte();
+      try {
+        dest.state = TransactionEdit.State.values()[stateIdx];
+      } catch (ArrayIndexOutOfBoundsException e) {
+        throw new IOException("State enum ordinal value is out of range: " + stateIdx);
+      }
+      int flags = (int) in.readVLong();
+      dest.writePointer = in.readVLong();
+      dest.visibilityUpperBound = (flags & VISIBILITY_UPPER_BOUND) != 0 ? dest.writePointer - in.readVLong() : 0L;
+      dest.expirationDate = (flags & EXPIRATION) != 0 ? in.readVLong() : 0L;
+      dest.commitPointer = (flags & COMMIT_POINTER) != 0 ? dest.writePointer + in.readVLong() : 0L;
+      dest.canCommit = (flags & CAN_COMMIT) != 0;
+      dest.changeFingerprints = (flags & CHANGE_FINGERPRINTS) != 0;
+      dest.type = null;
+      if ((flags & TYPE) != 0) {
+        int typeIdx = in.readByte();
+        try {
+          dest.type = TransactionType.values()[typeIdx];
+        } catch (ArrayIndexOutOfBoundsException e) {
+          throw new IOException("Type enum ordinal value is out of range: " + typeIdx);
+        }
+      }
+
+      if ((flags & CHANGES) != 0) {
+        int changeSize = (int) in.readVLong();
+        // the changes are only skipped here, they are decoded when they are read from the set
+        int changesOffset = in.position;
+        for (int i = 0; i < changeSize; i++) {
+          int length = (int) in.readVLong();
+          in.position += length;
+        }
+        dest.changes = new EncodedChangeSet(in.bytes, changesOffset, in.position, changeSize);
+      } else {
+        dest.changes = Collections.emptySet();
+      }
+      dest.truncateInvalidTx = clearedSet(dest.truncateInvalidTx);
+      if ((flags & TRUNCATE_INVALID_TX) != 0) {
+        int truncateInvalidTxSize = (int) in.readVLong();
+        long id = 0L;
+        for (int i = 0; i < truncateInvalidTxSize; i++) {
+          id += in.readVLong();
+          dest.truncateInvalidTx.add(id);
+        }
+      }
+      dest.truncateInvalidTxTime = (flags & TRUNCATE_INVALID_TX_TIME) != 0 ? in.readVLong() : 0L;
+    }
+
+    @Override
+    public void encode(TransactionEdit src, DataOutput out) throws IOException {
+      DataOutputBuffer fields = new DataOutputBuffer(64);
+      encodeFields(src, fields);
+      if (fields.getLength() > MAX_EDIT_LENGTH) {
+        throw new IOException("Edit of " + fields.getLength() + " bytes exceeds the maximum length of " +
+                                MAX_EDIT_LENGTH + " bytes");
+      }
+      out.writeByte(V4);
+      WritableUtils.writeVInt(out, fields.getLength());
+      out.writeInt(checksum(fields.getData(), fields.getLength()));
+      out.write(fields.getData(), 0, fields.getLength());
+    }
+
+    /**
+     * Returns the checksum of an edit, which covers its length as well as its fields.
+     */
+    private static int checksum(byte[] fields, int length) {
+      CRC32 checksum = new CRC32();
+      checksum.update(Ints.toByteArray(length));
+      checksum.update(fields, 0, length);
+      return (int) checksum.getValue();
+    }
+
+    private void encodeFields(TransactionEdit src, DataOutput out) throws IOException {
+      boolean hasChanges = src.changes != null && !src.changes.isEmpty();
+      boolean hasTruncateInvalidTx = src.truncateInvalidTx != null && !src.truncateInvalidTx.isEmpty();
+      int flags = (src.visibilityUpperBound != 0L ? VISIBILITY_UPPER_BOUND : 0)
+        | (src.expirationDate != 0L ? EXPIRATION : 0)
+        | (src.commitPointer != 0L ? COMMIT_POINTER : 0)
+        | (src.canCommit ? CAN_COMMIT : 0)
+        | (src.type != null ? TYPE : 0)
+        | (hasChanges ? CHANGES : 0)
+        | (hasChanges && src.changeFingerprints ? CHANGE_FINGERPRINTS : 0)
+        | (hasTruncateInvalidTx ? TRUNCATE_INVALID_TX : 0)
+        | (src.truncateInvalidTxTime != 0L ? TRUNCATE_INVALID_TX_TIME : 0);
+
+      out.writeByte(src.state.ordinal());
+      WritableUtils.writeVInt(out, flags);
+      WritableUtils.writeVLong(out, src.writePointer);
+      // both pointers are usually close to the write pointer, and their deltas take only a byte or two
+      if ((flags & VISIBILITY_UPPER_BOUND) != 0) {
+        WritableUtils.writeVLong(out, src.writePointer - src.visibilityUpperBound);
+      }
+      if ((flags & EXPIRATION) != 0) {
+        WritableUtils.writeVLong(out, src.expirationDate);
+      }
+      if ((flags & COMMIT_POINTER) != 0) {
+        WritableUtils.writeVLong(out, src.commitPointer - src.writePointer);
+      }
+      if ((flags & TYPE) != 0) {
+        out.writeByte(src.type.ordinal());
+      }
+      if (hasChanges) {
+        WritableUtils.writeVInt(out, src.changes.size());
+        for (ChangeId c : src.changes) {
+          byte[] cKey = c.getKey();
+          WritableUtils.writeVInt(out, cKey.length);
+          out.write(cKey);
+        }
+      }
+      if (hasTruncateInvalidTx) {
+        // sorted, so that each id is written as a small delta to the previous one
+        long[] ids = Longs.toArray(src.truncateInvalidTx);
+        Arrays.sort(ids);
+        WritableUtils.writeVInt(out, ids.length);
+        long previous = 0L;
+        for (long id : ids) {
+          WritableUtils.writeVLong(out, id - previous);
+          previous = id;
+        }
+      }
+      if ((flags & TRUNCATE_INVALID_TX_TIME) != 0) {
+        WritableUtils.writeVLong(out, src.truncateInvalidTxTime);
+      }
+    }
+
+    /**
+     * Reads the fields of an edit from its buffer.
+     */
+    private static final class FieldReader {
+      private final byte[] bytes;
+      private int position;
+
+      FieldReader(byte[] bytes) {
+        this.bytes = bytes;
+      }
+
+      byte readByte() {
+        return bytes[position++];
+      }
+
+      long readVLong() throws IOException {
+        long value = WritableComparator.readVLong(bytes, position);
+        position += WritableUtils.decodeVIntSize(bytes[position]);
+        return value;
+      }
+    }
+  }
 }
@@ -18,6 +18,7 @@ package co.cask.tephra.persist;
 
 import java.io.IOException;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * Represents a log of transaction state changes.
@@ -35,4 +36,15 @@ public interface TransactionLog {
   void close() throws IOException;
 
   TransactionLogReader getReader() throws IOException;
+
+  /**
+   * Returns a reader for the edits that were synced to this log so far, while the log may still be appended to by
+   * a transaction manager in another process.  Unlike {@link #getReader()}, this does not recover the log from a
+   * failed writer, and the edits returned end before an edit that is only partially written.  Once the reader
+   * returned {@code null}, it continues after the last edit it returned with the next call, and returns the edits
+   * that were synced since then, so that it can be kept open to follow the log as it is written.
+   * @return the reader, or {@code null} if the log was not written to yet
+   */
+  @Nullable
+  TransactionLogReader getTailReader() throws IOException;
 }
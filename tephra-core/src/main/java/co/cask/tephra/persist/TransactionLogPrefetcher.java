@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads transaction logs ahead of the thread that replays their edits, with a pool of threads.
+ *
+ * <p>
+ * First, all logs are opened in parallel, which for logs in HDFS includes the recovery of their leases. Then every
+ * log is read and decoded by one of the pool threads, in the order of the logs, into a bounded queue of batches of
+ * edits, from which the reader of that log returns the edits in their original order. Hence the edits of as many
+ * logs as there are threads are decoded in parallel, while the edits of earlier logs are replayed, and at most a
+ * few batches of each log are kept in memory.
+ * </p>
+ */
+public class TransactionLogPrefetcher implements Closeable {
+  // number of edits passed to the replaying thread at once
+  private static final int BATCH_SIZE = 1024;
+  // number of batches of every log that are decoded ahead of the replaying thread
+  private static final int QUEUE_CAPACITY = 16;
+  // marks the end of a log in its queue
+  private static final List<TransactionEdit> END_OF_LOG = Collections.emptyList();
+
+  private final ExecutorService executor;
+
+  /**
+   * Creates a new prefetcher.
+   * @param numThreads the number of threads that open and decode logs
+   */
+  public TransactionLogPrefetcher(int numThreads) {
+    this.executor = Executors.newFixedThreadPool(Math.max(numThreads, 1), new ThreadFactoryBuilder()
+      .setNameFormat("tx-log-prefetch-%d")
+      .setDaemon(true)
+      .build());
+  }
+
+  /**
+   * Starts to read the given logs, and returns a reader for each of them, in the same order. A reader returns
+   * {@code null} from its first call to {@code next()} if the log does not exist or is empty. A failure to read a
+   * log is thrown by its reader after the edits that were read before it. The edits returned by the readers must be
+   * read in order, log by log.
+   */
+  public List<TransactionLogReader> prefetch(Collection<TransactionLog> logs) {
+    // all logs are opened before any is read
+    List<Future<TransactionLogReader>> openedReaders = Lists.newArrayListWithCapacity(logs.size());
+    for (final TransactionLog log : logs) {
+      openedReaders.add(executor.submit(new Callable<TransactionLogReader>() {
+        @Override
+        public TransactionLogReader call() throws Exception {
+          return log.getReader();
+        }
+      }));
+    }
+    List<TransactionLogReader> readers = Lists.newArrayListWithCapacity(logs.size());
+    for (Future<TransactionLogReader> openedReader : openedReaders) {
+      PrefetchingReader reader = new PrefetchingReader(openedReader);
+      executor.submit(reader);
+      readers.add(reader);
+    }
+    return readers;
+  }
+
+  /**
+   * Stops all threads, any log that is not completely read yet is closed.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Reads and decodes a log into a bounded queue, from which it returns the edits to the replaying thread.
+   */
+  private static final class PrefetchingReader implements TransactionLogReader, Runnable {
+    private final Future<TransactionLogReader> openedReader;
+    private final BlockingQueue<List<TransactionEdit>> queue =
+      new ArrayBlockingQueue<List<TransactionEdit>>(QUEUE_CAPACITY);
+    private volatile Throwable failure;
+    private List<TransactionEdit> batch = Collections.emptyList();
+    private int position;
+    private boolean done;
+
+    PrefetchingReader(Future<TransactionLogReader> openedReader) {
+      this.openedReader = openedReader;
+    }
+
+    @Override
+    public void run() {
+      try {
+        TransactionLogReader reader = openedReader.get();
+        // reader may be null in the case of an empty file
+        if (reader != null) {
+          try {
+            List<TransactionEdit> edits = Lists.newArrayListWithCapacity(BATCH_SIZE);
+            try {
+              TransactionEdit edit;
+              while ((edit = reader.next()) != null) {
+                edits.add(edit);
+                if (edits.size() == BATCH_SIZE) {
+                  queue.put(edits);
+                  edits = Lists.newArrayListWithCapacity(BATCH_SIZE);
+                }
+              }
+            } catch (IOException e) {
+              // the edits before the failure are returned before it, as the replaying thread may ignore a corrupt
+              // edit at the end of the last log
+              failure = e;
+            }
+            if (!edits.isEmpty()) {
+              queue.put(edits);
+            }
+          } finally {
+            reader.close();
+          }
+        }
+      } catch (InterruptedException e) {
+        // the prefetcher was closed, nobody reads from the queue anymore
+        return;
+      } catch (ExecutionException e) {
+        failure = e.getCause();
+      } catch (Throwable t) {
+        failure = t;
+      }
+      try {
+        queue.put(END_OF_LOG);
+      } catch (InterruptedException e) {
+        // the prefetcher was closed
+      }
+    }
+
+    @Override
+    public TransactionEdit next() throws IOException {
+      if (position == batch.size()) {
+        if (done) {
+          return null;
+        }
+        try {
+          batch = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while reading transaction log");
+        }
+        position = 0;
+        if (batch == END_OF_LOG) {
+          done = true;
+          if (failure != null) {
+            Throwables.propagateIfInstanceOf(failure, IOException.class);
+            throw Throwables.propagate(failure);
+          }
+          return null;
+        }
+      }
+      return batch.get(position++);
+    }
+
+    @Override
+    public TransactionEdit next(TransactionEdit reuse) throws IOException {
+      // the edits are decoded ahead, there is nothing to reuse
+      return next();
+    }
+
+    @Override
+    public void close() {
+      // the underlying reader is closed by the pool thread
+    }
+  }
+}
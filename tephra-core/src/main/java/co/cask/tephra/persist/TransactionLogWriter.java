@@ -32,6 +32,18 @@ public interface TransactionLogWriter extends Closeable {
    */
   void append(AbstractTransactionLog.Entry entry) throws IOException;
 
+  /**
+   * Adds a new transaction entry to the log, from an already serialized transaction edit. The written entry is the
+   * same as if the edit had been appended with {@link #append(AbstractTransactionLog.Entry)}.
+   *
+   * @param sequence The sequence number of the entry.
+   * @param edit A buffer holding the serialized transaction edit.
+   * @param offset The offset of the edit in the buffer.
+   * @param length The length of the edit.
+   * @throws IOException If an error occurs while writing the edit to storage.
+   */
+  void appendRaw(long sequence, byte[] edit, int offset, int length) throws IOException;
+
   /**
    * Syncs any pending transaction edits added through {@link #append(AbstractTransactionLog.Entry)},
    * but not yet flushed to durable storage.
@@ -18,11 +18,16 @@ package co.cask.tephra.persist;
 
 import co.cask.tephra.ChangeId;
 import co.cask.tephra.TransactionManager;
+import co.cask.tephra.util.InvalidTxSet;
 import com.google.common.base.Objects;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongLists;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -36,14 +41,34 @@ public class TransactionSnapshot {
   private long timestamp;
   private long readPointer;
   private long writePointer;
-  private Collection<Long> invalid;
+  // sorted, never modified
+  private long[] invalid;
   private NavigableMap<Long, TransactionManager.InProgressTx> inProgress;
   private Map<Long, Set<ChangeId>> committingChangeSets;
   private Map<Long, Set<ChangeId>> committedChangeSets;
+  private boolean changeFingerprints;
 
   public TransactionSnapshot(long timestamp, long readPointer, long writePointer, Collection<Long> invalid,
                              NavigableMap<Long, TransactionManager.InProgressTx> inProgress,
                              Map<Long, Set<ChangeId>> committing, Map<Long, Set<ChangeId>> committed) {
+    this(timestamp, readPointer, writePointer, toSortedArray(invalid), inProgress, committing, committed, false);
+  }
+
+  /**
+   * Creates a snapshot whose change sets may hold fingerprints of the changes, see {@link #hasChangeFingerprints()}.
+   */
+  public TransactionSnapshot(long timestamp, long readPointer, long writePointer, Collection<Long> invalid,
+                             NavigableMap<Long, TransactionManager.InProgressTx> inProgress,
+                             Map<Long, Set<ChangeId>> committing, Map<Long, Set<ChangeId>> committed,
+                             boolean changeFingerprints) {
+    this(timestamp, readPointer, writePointer, toSortedArray(invalid), inProgress, committing, committed,
+         changeFingerprints);
+  }
+
+  private TransactionSnapshot(long timestamp, long readPointer, long writePointer, long[] invalid,
+                              NavigableMap<Long, TransactionManager.InProgressTx> inProgress,
+                              Map<Long, Set<ChangeId>> committing, Map<Long, Set<ChangeId>> committed,
+                              boolean changeFingerprints) {
     this.timestamp = timestamp;
     this.readPointer = readPointer;
     this.writePointer = writePointer;
@@ -51,6 +76,7 @@ public class TransactionSnapshot {
     this.inProgress = inProgress;
     this.committingChangeSets = committing;
     this.committedChangeSets = committed;
+    this.changeFingerprints = changeFingerprints;
   }
 
   /**
@@ -75,9 +101,17 @@ public class TransactionSnapshot {
   }
 
   /**
-   * Returns the list of invalid write pointers at the time of the snapshot.
+   * Returns the sorted, unmodifiable list of invalid write pointers at the time of the snapshot.
    */
   public Collection<Long> getInvalid() {
+    return LongLists.unmodifiable(LongArrayList.wrap(invalid));
+  }
+
+  /**
+   * Returns the invalid write pointers at the time of the snapshot in ascending order. The returned array is shared
+   * and must not be modified.
+   */
+  public long[] getInvalidArray() {
     return invalid;
   }
 
@@ -110,6 +144,15 @@ public class TransactionSnapshot {
     return committedChangeSets;
   }
 
+  /**
+   * Returns whether the committing and committed change sets hold 8-byte fingerprints of the changed row keys, which
+   * the transaction manager keeps instead of the row keys if
+   * {@link co.cask.tephra.TxConstants.Manager#FINGERPRINT_COLLISIONS_CONFLICT} is configured.
+   */
+  public boolean hasChangeFingerprints() {
+    return changeFingerprints;
+  }
+
   /**
    * @return transaction id {@code X} such that any of the transactions newer than {@code X} might be invisible to
    *         some of the currently in-progress transactions or to those that will be started <p>
@@ -141,10 +184,11 @@ public class TransactionSnapshot {
     TransactionSnapshot other = (TransactionSnapshot) obj;
     return readPointer == other.readPointer &&
       writePointer == other.writePointer &&
-      invalid.equals(other.invalid) &&
+      Arrays.equals(invalid, other.invalid) &&
       inProgress.equals(other.inProgress) &&
       committingChangeSets.equals(other.committingChangeSets) &&
-      committedChangeSets.equals(other.committedChangeSets);
+      committedChangeSets.equals(other.committedChangeSets) &&
+      changeFingerprints == other.changeFingerprints;
   }
 
   @Override
@@ -153,16 +197,30 @@ public class TransactionSnapshot {
         .add("timestamp", timestamp)
         .add("readPointer", readPointer)
         .add("writePointer", writePointer)
-        .add("invalidSize", invalid.size())
+        .add("invalidSize", invalid.length)
         .add("inProgressSize", inProgress.size())
         .add("committingSize", committingChangeSets.size())
         .add("committedSize", committedChangeSets.size())
+        .add("changeFingerprints", changeFingerprints)
         .toString();
   }
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(readPointer, writePointer, invalid, inProgress, committingChangeSets, committedChangeSets);
+    return Objects.hashCode(readPointer, writePointer, Arrays.hashCode(invalid), inProgress, committingChangeSets,
+                            committedChangeSets, changeFingerprints);
+  }
+
+  /**
+   * Returns the visibility state of this snapshot, that is a snapshot with the same timestamp, pointers, invalid and
+   * in-progress transactions, but without any committing or committed change sets. This is all that is needed to
+   * determine which transactions are visible, and is typically much smaller than the full snapshot.
+   */
+  public TransactionSnapshot withoutChangeSets() {
+    Map<Long, Set<ChangeId>> noChanges = Collections.emptyMap();
+    return new TransactionSnapshot(timestamp, readPointer, writePointer, invalid,
+                                   new TreeMap<Long, TransactionManager.InProgressTx>(inProgress),
+                                   noChanges, noChanges, false);
   }
 
   /**
@@ -182,7 +240,7 @@ public class TransactionSnapshot {
                                              Map<Long, Set<ChangeId>> committing,
                                              NavigableMap<Long, Set<ChangeId>> committed) {
     // copy invalid IDs
-    Collection<Long> invalidCopy = Lists.newArrayList(invalid);
+    long[] invalidCopy = toSortedArray(invalid);
     // copy in-progress IDs and expirations
     NavigableMap<Long, TransactionManager.InProgressTx> inProgressCopy = Maps.newTreeMap(inProgress);
 
@@ -198,6 +256,42 @@ public class TransactionSnapshot {
     }
 
     return new TransactionSnapshot(snapshotTime, readPointer, writePointer,
-                                   invalidCopy, inProgressCopy, committingCopy, committedCopy);
+                                   invalidCopy, inProgressCopy, committingCopy, committedCopy, false);
+  }
+
+  /**
+   * Returns the given ids in ascending order without duplicates, in a new array unless they are an
+   * {@link InvalidTxSet}, whose sorted array is never modified.
+   */
+  private static long[] toSortedArray(Collection<Long> ids) {
+    if (ids instanceof InvalidTxSet) {
+      return ((InvalidTxSet) ids).toSortedArray();
+    }
+    long[] array;
+    if (ids instanceof LongCollection) {
+      array = ((LongCollection) ids).toLongArray();
+    } else {
+      array = new long[ids.size()];
+      int i = 0;
+      for (Long id : ids) {
+        array[i++] = id;
+      }
+    }
+    // ids read from a snapshot are usually sorted already
+    boolean ascending = true;
+    for (int i = 1; i < array.length && ascending; i++) {
+      ascending = array[i] > array[i - 1];
+    }
+    if (ascending) {
+      return array;
+    }
+    Arrays.sort(array);
+    int size = 1;
+    for (int i = 1; i < array.length; i++) {
+      if (array[i] != array[size - 1]) {
+        array[size++] = array[i];
+      }
+    }
+    return size == array.length ? array : Arrays.copyOf(array, size);
   }
 }
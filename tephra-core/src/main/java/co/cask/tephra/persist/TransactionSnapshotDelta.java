@@ -0,0 +1,257 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import co.cask.tephra.ChangeId;
+import co.cask.tephra.TransactionManager;
+import co.cask.tephra.util.InvalidTxSet;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Represents the changes of the transaction state between two snapshots: the pointers of the later snapshot, the
+ * invalid ids that were added and removed, and the in-progress transactions and change sets that were added or
+ * removed since the earlier snapshot, which is called the base of this delta. A full snapshot is restored by
+ * applying the chain of deltas to the full snapshot it starts with.
+ */
+public class TransactionSnapshotDelta {
+  private final long timestamp;
+  private final long baseTimestamp;
+  private final long readPointer;
+  private final long writePointer;
+  private final long[] addedInvalid;
+  private final long[] removedInvalid;
+  private final NavigableMap<Long, TransactionManager.InProgressTx> inProgress;
+  private final long[] removedInProgress;
+  private final Map<Long, Set<ChangeId>> committingChangeSets;
+  private final long[] removedCommitting;
+  private final NavigableMap<Long, Set<ChangeId>> committedChangeSets;
+  private final long[] removedCommitted;
+
+  public TransactionSnapshotDelta(long timestamp, long baseTimestamp, long readPointer, long writePointer,
+                                  long[] addedInvalid, long[] removedInvalid,
+                                  NavigableMap<Long, TransactionManager.InProgressTx> inProgress,
+                                  long[] removedInProgress,
+                                  Map<Long, Set<ChangeId>> committing, long[] removedCommitting,
+                                  NavigableMap<Long, Set<ChangeId>> committed, long[] removedCommitted) {
+    this.timestamp = timestamp;
+    this.baseTimestamp = baseTimestamp;
+    this.readPointer = readPointer;
+    this.writePointer = writePointer;
+    this.addedInvalid = sorted(addedInvalid);
+    this.removedInvalid = sorted(removedInvalid);
+    this.inProgress = inProgress;
+    this.removedInProgress = sorted(removedInProgress);
+    this.committingChangeSets = committing;
+    this.removedCommitting = sorted(removedCommitting);
+    this.committedChangeSets = committed;
+    this.removedCommitted = sorted(removedCommitted);
+  }
+
+  private static long[] sorted(long[] ids) {
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  /**
+   * Returns the timestamp of the snapshot this delta leads to.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Returns the timestamp of the snapshot this delta applies to, which is either a full snapshot or another delta.
+   */
+  public long getBaseTimestamp() {
+    return baseTimestamp;
+  }
+
+  public long getReadPointer() {
+    return readPointer;
+  }
+
+  public long getWritePointer() {
+    return writePointer;
+  }
+
+  /**
+   * Returns the sorted ids that were added to the invalid list.
+   */
+  public long[] getAddedInvalid() {
+    return addedInvalid;
+  }
+
+  /**
+   * Returns the sorted ids that were removed from the invalid list.
+   */
+  public long[] getRemovedInvalid() {
+    return removedInvalid;
+  }
+
+  /**
+   * Returns the in-progress transactions that were started or updated.
+   */
+  public NavigableMap<Long, TransactionManager.InProgressTx> getInProgress() {
+    return inProgress;
+  }
+
+  /**
+   * Returns the sorted ids of the in-progress transactions that were removed.
+   */
+  public long[] getRemovedInProgress() {
+    return removedInProgress;
+  }
+
+  /**
+   * Returns the committing change sets that were added or replaced.
+   */
+  public Map<Long, Set<ChangeId>> getCommittingChangeSets() {
+    return committingChangeSets;
+  }
+
+  public long[] getRemovedCommitting() {
+    return removedCommitting;
+  }
+
+  /**
+   * Returns the committed change sets that were added or replaced.
+   */
+  public NavigableMap<Long, Set<ChangeId>> getCommittedChangeSets() {
+    return committedChangeSets;
+  }
+
+  public long[] getRemovedCommitted() {
+    return removedCommitted;
+  }
+
+  /**
+   * Applies this delta to the snapshot it is based on.
+   * @param base the snapshot with the timestamp of {@link #getBaseTimestamp()}, which is not modified
+   * @return a new snapshot with the timestamp of this delta
+   */
+  public TransactionSnapshot applyTo(TransactionSnapshot base) {
+    Preconditions.checkArgument(base.getTimestamp() == baseTimestamp,
+                                "Delta snapshot %s is based on the snapshot %s, not on %s",
+                                timestamp, baseTimestamp, base.getTimestamp());
+    InvalidTxSet invalid = new InvalidTxSet(LongArrayList.wrap(base.getInvalidArray()));
+    invalid.removeAll(LongArrayList.wrap(removedInvalid));
+    invalid.addAll(LongArrayList.wrap(addedInvalid));
+
+    NavigableMap<Long, TransactionManager.InProgressTx> inProgressCopy =
+      new TreeMap<Long, TransactionManager.InProgressTx>(base.getInProgress());
+    apply(inProgressCopy, inProgress, removedInProgress);
+    Map<Long, Set<ChangeId>> committingCopy = new HashMap<Long, Set<ChangeId>>(base.getCommittingChangeSets());
+    apply(committingCopy, committingChangeSets, removedCommitting);
+    NavigableMap<Long, Set<ChangeId>> committedCopy =
+      new TreeMap<Long, Set<ChangeId>>(base.getCommittedChangeSets());
+    apply(committedCopy, committedChangeSets, removedCommitted);
+
+    // the deltas are taken by the same transaction manager as their base snapshot, with the same change sets
+    return new TransactionSnapshot(timestamp, readPointer, writePointer, invalid, inProgressCopy,
+                                   committingCopy, committedCopy, base.hasChangeFingerprints());
+  }
+
+  private static <V> void apply(Map<Long, V> target, Map<Long, V> updated, long[] removed) {
+    for (long id : removed) {
+      target.remove(id);
+    }
+    target.putAll(updated);
+  }
+
+  /**
+   * Computes the delta between two snapshots.
+   * @param base the earlier snapshot
+   * @param snapshot the later snapshot
+   * @return the delta that leads from {@code base} to {@code snapshot}
+   */
+  public static TransactionSnapshotDelta between(TransactionSnapshot base, TransactionSnapshot snapshot) {
+    LongOpenHashSet baseInvalid = new LongOpenHashSet(base.getInvalidArray());
+    LongOpenHashSet invalid = new LongOpenHashSet(snapshot.getInvalidArray());
+    LongArrayList addedInvalid = new LongArrayList();
+    for (long id : snapshot.getInvalidArray()) {
+      if (!baseInvalid.contains(id)) {
+        addedInvalid.add(id);
+      }
+    }
+    LongArrayList removedInvalid = new LongArrayList();
+    for (long id : base.getInvalidArray()) {
+      if (!invalid.contains(id)) {
+        removedInvalid.add(id);
+      }
+    }
+
+    NavigableMap<Long, TransactionManager.InProgressTx> inProgress =
+      new TreeMap<Long, TransactionManager.InProgressTx>();
+    long[] removedInProgress = diff(base.getInProgress(), snapshot.getInProgress(), inProgress);
+    Map<Long, Set<ChangeId>> committing = new HashMap<Long, Set<ChangeId>>();
+    long[] removedCommitting = diff(base.getCommittingChangeSets(), snapshot.getCommittingChangeSets(), committing);
+    NavigableMap<Long, Set<ChangeId>> committed = new TreeMap<Long, Set<ChangeId>>();
+    long[] removedCommitted = diff(base.getCommittedChangeSets(), snapshot.getCommittedChangeSets(), committed);
+
+    return new TransactionSnapshotDelta(snapshot.getTimestamp(), base.getTimestamp(), snapshot.getReadPointer(),
+                                        snapshot.getWritePointer(), addedInvalid.toLongArray(),
+                                        removedInvalid.toLongArray(), inProgress, removedInProgress,
+                                        committing, removedCommitting, committed, removedCommitted);
+  }
+
+  /**
+   * Adds the entries of {@code current} that are not equal in {@code base} to {@code updated}, and returns the
+   * keys of {@code base} that are missing in {@code current}.
+   */
+  private static <V> long[] diff(Map<Long, V> base, Map<Long, V> current, Map<Long, V> updated) {
+    for (Map.Entry<Long, V> entry : current.entrySet()) {
+      if (!entry.getValue().equals(base.get(entry.getKey()))) {
+        updated.put(entry.getKey(), entry.getValue());
+      }
+    }
+    LongArrayList removed = new LongArrayList();
+    for (Long id : base.keySet()) {
+      if (!current.containsKey(id)) {
+        removed.add(id);
+      }
+    }
+    return removed.toLongArray();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("timestamp", timestamp)
+        .add("baseTimestamp", baseTimestamp)
+        .add("readPointer", readPointer)
+        .add("writePointer", writePointer)
+        .add("addedInvalidSize", addedInvalid.length)
+        .add("removedInvalidSize", removedInvalid.length)
+        .add("inProgressSize", inProgress.size())
+        .add("removedInProgressSize", removedInProgress.length)
+        .add("committingSize", committingChangeSets.size())
+        .add("removedCommittingSize", removedCommitting.length)
+        .add("committedSize", committedChangeSets.size())
+        .add("removedCommittedSize", removedCommitted.length)
+        .toString();
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Catalogs the snapshots, delta snapshots, visibility states and transaction logs of a transaction state storage,
+ * so that readers locate the latest state with a single small read instead of listing the storage directory.
+ *
+ * The manifest is written by the transaction manager to a temporary file, which then atomically replaces the previous
+ * manifest.  A file is added to the manifest only after it is complete, and removed from the manifest before it is
+ * deleted, so that readers never see incomplete or deleted files.  Snapshot files are cataloged with their size and
+ * the CRC32 checksum of their contents.  Transaction logs are cataloged when they are created, and as they are still
+ * appended to, without a size or checksum.
+ */
+public class TransactionStateManifest {
+  public static final String FILE_NAME = "manifest";
+  public static final String TMP_FILE_NAME = ".in-progress.manifest";
+
+  /**
+   * Marks an entry without a checksum, for transaction logs and for files cataloged from a directory listing.
+   */
+  public static final long NO_CHECKSUM = -1L;
+
+  /**
+   * Marks an entry without a size, for transaction logs.
+   */
+  public static final long UNKNOWN_SIZE = -1L;
+
+  private static final int MAGIC = 0x54584d46;
+  private static final byte VERSION = 1;
+
+  /**
+   * The types of files cataloged by the manifest, with the prefix of their filenames.
+   */
+  public enum FileType {
+    SNAPSHOT("snapshot."),
+    DELTA("delta."),
+    VISIBILITY("visibility."),
+    LOG("txlog.");
+
+    private final String prefix;
+
+    FileType(String prefix) {
+      this.prefix = prefix;
+    }
+
+    public String getPrefix() {
+      return prefix;
+    }
+
+    public String getFileName(long timestamp) {
+      return prefix + timestamp;
+    }
+  }
+
+  /**
+   * A cataloged file.
+   */
+  public static final class Entry {
+    private final FileType type;
+    private final long timestamp;
+    private final long size;
+    private final long checksum;
+
+    public Entry(FileType type, long timestamp, long size, long checksum) {
+      this.type = type;
+      this.timestamp = timestamp;
+      this.size = size;
+      this.checksum = checksum;
+    }
+
+    public FileType getType() {
+      return type;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Returns the size of the file in bytes, or {@link #UNKNOWN_SIZE} if it is not known.
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Returns the CRC32 checksum of the file contents, or {@link #NO_CHECKSUM} if it is not known.
+     */
+    public long getChecksum() {
+      return checksum;
+    }
+
+    public String getFileName() {
+      return type.getFileName(timestamp);
+    }
+
+    /**
+     * Reads the rest of a file from the given stream, and checks the checksum of the whole file against this entry.
+     * @param in the stream the whole file was read from
+     * @throws IOException if the checksum does not match
+     */
+    public void verify(CheckedInputStream in) throws IOException {
+      if (checksum == NO_CHECKSUM) {
+        return;
+      }
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) >= 0) {
+        // only computes the checksum of the remaining bytes
+      }
+      long actual = in.getChecksum().getValue();
+      if (actual != checksum) {
+        throw new IOException("Checksum mismatch for file " + getFileName() + ": expected " + checksum +
+                                ", but found " + actual);
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry other = (Entry) o;
+      return type == other.type && timestamp == other.timestamp && size == other.size && checksum == other.checksum;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(type, timestamp, size, checksum);
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(this)
+          .add("type", type)
+          .add("timestamp", timestamp)
+          .add("size", size)
+          .add("checksum", checksum)
+          .toString();
+    }
+  }
+
+  private final Map<FileType, NavigableMap<Long, Entry>> entries = Maps.newEnumMap(FileType.class);
+
+  public TransactionStateManifest() {
+    for (FileType type : FileType.values()) {
+      entries.put(type, Maps.<Long, Entry>newTreeMap());
+    }
+  }
+
+  /**
+   * Parses the name of a cataloged file.
+   * @param name the filename
+   * @param size the size of the file, which is ignored for transaction logs
+   * @return an entry without checksum for the file, or {@code null} if the name is not the name of a cataloged file
+   */
+  @Nullable
+  public static Entry parse(String name, long size) {
+    for (FileType type : FileType.values()) {
+      if (name.startsWith(type.getPrefix())) {
+        try {
+          long timestamp = Long.parseLong(name.substring(type.getPrefix().length()));
+          return new Entry(type, timestamp, type == FileType.LOG ? UNKNOWN_SIZE : size, NO_CHECKSUM);
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds a file, replacing the entry of the same type with the same timestamp.
+   */
+  public void add(Entry entry) {
+    entries.get(entry.getType()).put(entry.getTimestamp(), entry);
+  }
+
+  public void remove(Entry entry) {
+    entries.get(entry.getType()).remove(entry.getTimestamp());
+  }
+
+  public void removeAll(Collection<Entry> toRemove) {
+    for (Entry entry : toRemove) {
+      remove(entry);
+    }
+  }
+
+  /**
+   * Returns the files of the given type, in ascending order of their timestamps.
+   */
+  public List<Entry> getEntries(FileType type) {
+    return Lists.newArrayList(entries.get(type).values());
+  }
+
+  /**
+   * Returns the files of the given type with timestamps in the given range, in ascending order of their timestamps.
+   * @param startTime the first timestamp to include
+   * @param endTime the first timestamp to exclude
+   */
+  public List<Entry> getEntries(FileType type, long startTime, long endTime) {
+    if (startTime >= endTime) {
+      return Lists.newArrayList();
+    }
+    return Lists.newArrayList(entries.get(type).subMap(startTime, true, endTime, false).values());
+  }
+
+  /**
+   * Returns the file of the given type with the latest timestamp, or {@code null} if there is no such file.
+   */
+  @Nullable
+  public Entry getLatest(FileType type) {
+    Map.Entry<Long, Entry> last = entries.get(type).lastEntry();
+    return last == null ? null : last.getValue();
+  }
+
+  /**
+   * Writes this manifest, followed by the checksum of its contents.
+   */
+  public void write(OutputStream out) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(MAGIC);
+    data.writeByte(VERSION);
+    int size = 0;
+    for (NavigableMap<Long, Entry> typeEntries : entries.values()) {
+      size += typeEntries.size();
+    }
+    data.writeInt(size);
+    for (NavigableMap<Long, Entry> typeEntries : entries.values()) {
+      for (Entry entry : typeEntries.values()) {
+        data.writeByte(entry.getType().ordinal());
+        data.writeLong(entry.getTimestamp());
+        data.writeLong(entry.getSize());
+        data.writeLong(entry.getChecksum());
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    data.writeLong(crc.getValue());
+    data.flush();
+    bytes.writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * Reads a manifest written by {@link #write(OutputStream)}.
+   * @throws IOException if the manifest is corrupt or was written by a newer version
+   */
+  public static TransactionStateManifest read(InputStream in) throws IOException {
+    CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+    DataInputStream data = new DataInputStream(checked);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a transaction state manifest");
+    }
+    byte version = data.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported transaction state manifest version " + version);
+    }
+    TransactionStateManifest manifest = new TransactionStateManifest();
+    FileType[] types = FileType.values();
+    int size = data.readInt();
+    for (int i = 0; i < size; i++) {
+      int type = data.readByte();
+      if (type < 0 || type >= types.length) {
+        throw new IOException("Unknown file type " + type + " in transaction state manifest");
+      }
+      manifest.add(new Entry(types[type], data.readLong(), data.readLong(), data.readLong()));
+    }
+    long expected = checked.getChecksum().getValue();
+    if (data.readLong() != expected) {
+      throw new IOException("Checksum mismatch in transaction state manifest");
+    }
+    return manifest;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("entries", entries)
+        .toString();
+  }
+}
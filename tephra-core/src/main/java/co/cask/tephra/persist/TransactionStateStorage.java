@@ -38,15 +38,37 @@ public interface TransactionStateStorage extends Service {
   public void writeSnapshot(TransactionSnapshot snapshot) throws IOException;
 
   /**
-   * Returns the most recent snapshot that has been successfully written.  Note that this may return {@code null}
-   * if no completed snapshot files are found.
+   * Persists a delta snapshot, which holds the changes since the previous full or delta snapshot.
+   * @throws UnsupportedOperationException if delta snapshots are not supported, e.g. by the configured codec
+   */
+  public void writeDeltaSnapshot(TransactionSnapshotDelta delta) throws IOException;
+
+  /**
+   * Returns the most recent snapshot that has been successfully written, with the chain of delta snapshots that
+   * were written after it applied.  Note that this may return {@code null} if no completed snapshot files are found.
    */
   public TransactionSnapshot getLatestSnapshot() throws IOException;
 
   /**
-   * Removes any snapshots prior to the {@code numberToKeep} most recent.
+   * Persists the visibility state of a snapshot, that is the snapshot without its committing and committed change
+   * sets (see {@link TransactionSnapshot#withoutChangeSets()}).  This is read by clients that only need to know which
+   * transactions are visible, such as the coprocessors, instead of the full snapshot.  Older visibility states may be
+   * removed.
+   */
+  public void writeVisibilityState(TransactionSnapshot snapshot) throws IOException;
+
+  /**
+   * Returns the most recent visibility state, as a snapshot without change sets.  If the latest snapshot is more
+   * recent than any visibility state that has been written, it is read without its change sets instead.  Note that
+   * this may return {@code null} if neither is found.
+   */
+  public TransactionSnapshot getLatestVisibilityState() throws IOException;
+
+  /**
+   * Removes any full snapshots prior to the {@code numberToKeep} most recent, and the delta snapshots that are
+   * based on them.
    *
-   * @param numberToKeep The number of most recent snapshots to keep.
+   * @param numberToKeep The number of most recent full snapshots to keep.
    * @throws IOException If an error occurs while deleting old snapshots.
    * @return The timestamp of the oldest snapshot kept.
    */
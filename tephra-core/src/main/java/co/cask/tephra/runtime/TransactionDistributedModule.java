@@ -38,11 +38,13 @@ final class TransactionDistributedModule extends AbstractModule {
   @Override
   protected void configure() {
     bind(SnapshotCodecProvider.class).in(Singleton.class);
+    // the transaction service uses a new transaction manager, with its own state storage, whenever it becomes the
+    // leader or a hot standby again, as neither can be started again once it was stopped
     bind(TransactionStateStorage.class).annotatedWith(Names.named("persist"))
-      .to(HDFSTransactionStateStorage.class).in(Singleton.class);
-    bind(TransactionStateStorage.class).toProvider(TransactionStateStorageProvider.class).in(Singleton.class);
+      .to(HDFSTransactionStateStorage.class);
+    bind(TransactionStateStorage.class).toProvider(TransactionStateStorageProvider.class);
 
-    bind(TransactionManager.class).in(Singleton.class);
+    bind(TransactionManager.class);
     bind(TransactionSystemClient.class).to(TransactionServiceClient.class).in(Singleton.class);
 
     install(new FactoryModuleBuilder()
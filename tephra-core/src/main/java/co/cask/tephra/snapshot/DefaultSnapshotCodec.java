@@ -20,9 +20,9 @@ import co.cask.tephra.ChangeId;
 import co.cask.tephra.TransactionManager;
 import co.cask.tephra.persist.TransactionSnapshot;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,7 +59,7 @@ public class DefaultSnapshotCodec implements SnapshotCodec {
       encoder.writeLong(snapshot.getTimestamp());
       encoder.writeLong(snapshot.getReadPointer());
       encoder.writeLong(snapshot.getWritePointer());
-      encodeInvalid(encoder, snapshot.getInvalid());
+      encodeInvalid(encoder, snapshot.getInvalidArray());
       encodeInProgress(encoder, snapshot.getInProgress());
       encodeChangeSets(encoder, snapshot.getCommittingChangeSets());
       encodeChangeSets(encoder, snapshot.getCommittedChangeSets());
@@ -91,10 +91,10 @@ public class DefaultSnapshotCodec implements SnapshotCodec {
     }
   }
 
-  private void encodeInvalid(BinaryEncoder encoder, Collection<Long> invalid) throws IOException {
-    if (!invalid.isEmpty()) {
-      encoder.writeInt(invalid.size());
-      for (long invalidTx : invalid) {
+  private void encodeInvalid(BinaryEncoder encoder, long[] invalidTxs) throws IOException {
+    if (invalidTxs.length > 0) {
+      encoder.writeInt(invalidTxs.length);
+      for (long invalidTx : invalidTxs) {
         encoder.writeLong(invalidTx);
       }
     }
@@ -103,7 +103,7 @@ public class DefaultSnapshotCodec implements SnapshotCodec {
 
   private Collection<Long> decodeInvalid(BinaryDecoder decoder) throws IOException {
     int size = decoder.readInt();
-    Collection<Long> invalid = Lists.newArrayListWithCapacity(size);
+    LongArrayList invalid = new LongArrayList(size);
     while (size != 0) { // zero denotes end of list as per AVRO spec
       for (int remaining = size; remaining > 0; --remaining) {
         invalid.add(decoder.readLong());
@@ -18,10 +18,13 @@ package co.cask.tephra.snapshot;
 
 import co.cask.tephra.TxConstants;
 import co.cask.tephra.persist.TransactionSnapshot;
+import co.cask.tephra.persist.TransactionSnapshotDelta;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,7 +59,8 @@ public class SnapshotCodecProvider implements SnapshotCodec {
     }
     for (Class<?> codecClass : codecClasses) {
       try {
-        SnapshotCodec codec = (SnapshotCodec) (codecClass.newInstance());
+        // passes the configuration to codecs that are configurable
+        SnapshotCodec codec = (SnapshotCodec) ReflectionUtils.newInstance(codecClass, configuration);
         codecs.put(codec.getVersion(), codec);
         LOG.debug("Using snapshot codec {} for snapshots of version {}", codecClass.getName(), codec.getVersion());
       } catch (Exception e) {
@@ -99,6 +103,28 @@ public class SnapshotCodecProvider implements SnapshotCodec {
 
   @Override
   public TransactionSnapshot decode(InputStream in) {
+    return readCodec(in).decode(in);
+  }
+
+  /**
+   * Decodes a transaction snapshot without its committing and committed change sets. These are skipped without
+   * decoding them if the snapshot was encoded with {@link SnapshotCodecV3}, whereas snapshots of older versions
+   * are decoded completely before the change sets are dropped.
+   * @param in the input stream to read from
+   * @return the decoded snapshot, with empty change sets
+   */
+  public TransactionSnapshot decodeWithoutChangeSets(InputStream in) {
+    SnapshotCodec codec = readCodec(in);
+    if (codec instanceof SnapshotCodecV3) {
+      return ((SnapshotCodecV3) codec).decodeWithoutChangeSets(in);
+    }
+    return codec.decode(in).withoutChangeSets();
+  }
+
+  /**
+   * Reads the version of a snapshot, and returns the codec for that version.
+   */
+  private SnapshotCodec readCodec(InputStream in) {
     // Picking at version to create appropriate codec
     BinaryDecoder decoder = new BinaryDecoder(in);
     int persistedVersion;
@@ -108,20 +134,53 @@ public class SnapshotCodecProvider implements SnapshotCodec {
       LOG.error("Unable to read transaction state version: ", e);
       throw Throwables.propagate(e);
     }
-    SnapshotCodec codec = getCodecForVersion(persistedVersion);
-    return codec.decode(in);
+    return getCodecForVersion(persistedVersion);
   }
 
   @Override
   public void encode(OutputStream out, TransactionSnapshot snapshot) {
     SnapshotCodec codec = getCurrentCodec();
+    // older codecs would write the fingerprints as if they were the changes
+    Preconditions.checkState(!snapshot.hasChangeFingerprints() || codec instanceof SnapshotCodecV3,
+                             "Snapshot codec version %s cannot encode change sets of fingerprints", codec.getVersion());
+    writeVersion(out, codec);
+    codec.encode(out, snapshot);
+  }
+
+  /**
+   * Encodes a delta snapshot, which is only supported by {@link SnapshotCodecV3}.
+   * @throws java.lang.UnsupportedOperationException if the current codec does not support delta snapshots
+   */
+  public void encodeDelta(OutputStream out, TransactionSnapshotDelta delta) {
+    SnapshotCodec codec = getCurrentCodec();
+    if (!(codec instanceof SnapshotCodecV3)) {
+      throw new UnsupportedOperationException("Delta snapshots are not supported by snapshot codec version " +
+                                                codec.getVersion());
+    }
+    writeVersion(out, codec);
+    ((SnapshotCodecV3) codec).encodeDelta(out, delta);
+  }
+
+  /**
+   * Decodes a delta snapshot.
+   * @param in the input stream to read from
+   * @param withChangeSets whether to decode the added committing and committed change sets
+   * @return the decoded delta
+   */
+  public TransactionSnapshotDelta decodeDelta(InputStream in, boolean withChangeSets) {
+    SnapshotCodec codec = readCodec(in);
+    Preconditions.checkState(codec instanceof SnapshotCodecV3,
+                             "Delta snapshots are not supported by snapshot codec version %s", codec.getVersion());
+    return ((SnapshotCodecV3) codec).decodeDelta(in, withChangeSets);
+  }
+
+  private void writeVersion(OutputStream out, SnapshotCodec codec) {
     try {
       new BinaryEncoder(out).writeInt(codec.getVersion());
     } catch (IOException e) {
       LOG.error("Unable to write transaction state version: ", e);
       throw Throwables.propagate(e);
     }
-    codec.encode(out, snapshot);
   }
 
 }
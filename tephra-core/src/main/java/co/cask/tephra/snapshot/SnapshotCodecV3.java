@@ -0,0 +1,679 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.snapshot;
+
+import co.cask.tephra.ChangeId;
+import co.cask.tephra.TransactionManager;
+import co.cask.tephra.TransactionType;
+import co.cask.tephra.TxConstants;
+import co.cask.tephra.persist.TransactionSnapshot;
+import co.cask.tephra.persist.TransactionSnapshotDelta;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Handles serialization/deserialization of a {@link co.cask.tephra.persist.TransactionSnapshot}
+ * and its elements to {@code byte[]}, in sections that can be skipped.
+ *
+ * <p>
+ * The snapshot is written as a sequence of sections, the pointers, the invalid list, the in-progress transactions,
+ * the committing and the committed change sets, and whether the change sets hold fingerprints of the changes,
+ * followed by an end marker. Every section starts with its id, and is written as a sequence of blocks of up to 64KB,
+ * followed by an empty block. Every block has a header of its length before compression, its flags, its length as
+ * stored, and the CRC32 checksum of its stored bytes. Hence sections of any size are written and read with a fixed
+ * amount of memory, a reader can skip the sections it does not need without decoding them, such as the change sets,
+ * which make up most of a snapshot, and detects corrupted blocks that it reads. Sections with an unknown id are
+ * skipped.
+ * </p>
+ *
+ * <p>
+ * Within a section, all transaction ids are written as sorted columns of zig-zag varint encoded deltas, and the
+ * other attributes of in-progress transactions and change sets as separate columns, which keeps them small also
+ * without compression. If {@link TxConstants.Persist#CFG_TX_SNAPSHOT_COMPRESSION} is enabled, blocks that are not
+ * tiny are compressed with a {@link Deflater}.
+ * </p>
+ *
+ * <p>
+ * A {@link TransactionSnapshotDelta} is written in the same sections, holding the added and updated entries, with an
+ * additional section for the timestamp of its base and the removed ids.
+ * </p>
+ */
+public class SnapshotCodecV3 implements SnapshotCodec, Configurable {
+  private static final Logger LOG = LoggerFactory.getLogger(SnapshotCodecV3.class);
+
+  private static final int SECTION_END = 0;
+  private static final int SECTION_POINTERS = 1;
+  private static final int SECTION_INVALID = 2;
+  private static final int SECTION_IN_PROGRESS = 3;
+  private static final int SECTION_COMMITTING = 4;
+  private static final int SECTION_COMMITTED = 5;
+  private static final int SECTION_DELTA = 6;
+  private static final int SECTION_CHANGE_FORMAT = 7;
+
+  // the change sets hold fingerprints of the changes
+  private static final int CHANGE_FORMAT_FINGERPRINTS = 1;
+
+  private static final int FLAG_DEFLATED = 1;
+  // sections are written in blocks of at most this size, which bounds the memory used to write and read them
+  private static final int MAX_BLOCK_LENGTH = 64 * 1024;
+  // blocks smaller than this are not worth compressing
+  private static final int MIN_COMPRESS_LENGTH = 512;
+  // written for in-progress transactions of unknown type, from snapshots before the type was stored
+  private static final int UNKNOWN_TYPE = -1;
+
+  private Configuration conf;
+  private boolean compress = TxConstants.Persist.DEFAULT_TX_SNAPSHOT_COMPRESSION;
+
+  @Override
+  public int getVersion() {
+    return 3;
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.compress = conf.getBoolean(TxConstants.Persist.CFG_TX_SNAPSHOT_COMPRESSION,
+                                    TxConstants.Persist.DEFAULT_TX_SNAPSHOT_COMPRESSION);
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public void encode(OutputStream out, TransactionSnapshot snapshot) {
+    try {
+      SectionOutputStream sectionOut = new SectionOutputStream(out, compress);
+      try {
+        BinaryEncoder encoder = new BinaryEncoder(sectionOut);
+
+        sectionOut.startSection(SECTION_POINTERS);
+        encoder.writeLong(snapshot.getTimestamp());
+        encoder.writeLong(snapshot.getReadPointer());
+        encoder.writeLong(snapshot.getWritePointer());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_INVALID);
+        encodeIds(encoder, snapshot.getInvalidArray());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_IN_PROGRESS);
+        encodeInProgress(encoder, snapshot.getInProgress());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_COMMITTING);
+        encodeChangeSets(encoder, snapshot.getCommittingChangeSets());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_COMMITTED);
+        encodeChangeSets(encoder, snapshot.getCommittedChangeSets());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_CHANGE_FORMAT);
+        encoder.writeInt(snapshot.hasChangeFingerprints() ? CHANGE_FORMAT_FINGERPRINTS : 0);
+        sectionOut.endSection();
+
+        sectionOut.finish();
+      } finally {
+        sectionOut.close();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to serialize transaction state: ", e);
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public TransactionSnapshot decode(InputStream in) {
+    return decode(in, true);
+  }
+
+  /**
+   * Decodes a transaction snapshot without its committing and committed change sets, which are skipped without
+   * reading them into memory. The returned snapshot has empty change sets.
+   * @param in the input stream to read from
+   * @return the decoded snapshot
+   */
+  public TransactionSnapshot decodeWithoutChangeSets(InputStream in) {
+    return decode(in, false);
+  }
+
+  private TransactionSnapshot decode(InputStream in, boolean withChangeSets) {
+    try {
+      Sections sections = decodeSections(in, withChangeSets);
+      if (sections.removed != null) {
+        throw new IOException("Transaction snapshot is a delta snapshot");
+      }
+      return new TransactionSnapshot(sections.pointers[0], sections.pointers[1], sections.pointers[2],
+                                     LongArrayList.wrap(sections.invalid), sections.inProgress,
+                                     sections.committing, sections.committed,
+                                     (sections.changeFormat & CHANGE_FORMAT_FINGERPRINTS) != 0);
+    } catch (IOException e) {
+      LOG.error("Unable to deserialize transaction state: ", e);
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Encodes a delta snapshot.
+   * @param out the output stream to write to
+   * @param delta the delta to encode
+   */
+  public void encodeDelta(OutputStream out, TransactionSnapshotDelta delta) {
+    try {
+      SectionOutputStream sectionOut = new SectionOutputStream(out, compress);
+      try {
+        BinaryEncoder encoder = new BinaryEncoder(sectionOut);
+
+        sectionOut.startSection(SECTION_POINTERS);
+        encoder.writeLong(delta.getTimestamp());
+        encoder.writeLong(delta.getReadPointer());
+        encoder.writeLong(delta.getWritePointer());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_DELTA);
+        encoder.writeLong(delta.getBaseTimestamp());
+        encodeIds(encoder, delta.getRemovedInvalid());
+        encodeIds(encoder, delta.getRemovedInProgress());
+        encodeIds(encoder, delta.getRemovedCommitting());
+        encodeIds(encoder, delta.getRemovedCommitted());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_INVALID);
+        encodeIds(encoder, delta.getAddedInvalid());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_IN_PROGRESS);
+        encodeInProgress(encoder, delta.getInProgress());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_COMMITTING);
+        encodeChangeSets(encoder, delta.getCommittingChangeSets());
+        sectionOut.endSection();
+
+        sectionOut.startSection(SECTION_COMMITTED);
+        encodeChangeSets(encoder, delta.getCommittedChangeSets());
+        sectionOut.endSection();
+
+        sectionOut.finish();
+      } finally {
+        sectionOut.close();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to serialize transaction state delta: ", e);
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Decodes a delta snapshot.
+   * @param in the input stream to read from
+   * @param withChangeSets whether to decode the committing and committed change sets, which are skipped otherwise;
+   *                       the removed change sets are always decoded
+   * @return the decoded delta
+   */
+  public TransactionSnapshotDelta decodeDelta(InputStream in, boolean withChangeSets) {
+    try {
+      Sections sections = decodeSections(in, withChangeSets);
+      if (sections.removed == null) {
+        throw new IOException("Transaction snapshot is not a delta snapshot");
+      }
+      return new TransactionSnapshotDelta(sections.pointers[0], sections.baseTimestamp, sections.pointers[1],
+                                          sections.pointers[2], sections.invalid, sections.removed[0],
+                                          sections.inProgress, sections.removed[1], sections.committing,
+                                          sections.removed[2], sections.committed, sections.removed[3]);
+    } catch (IOException e) {
+      LOG.error("Unable to deserialize transaction state delta: ", e);
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private Sections decodeSections(InputStream in, boolean withChangeSets) throws IOException {
+    SectionInputStream sectionIn = new SectionInputStream(in);
+    try {
+      return decodeSections(sectionIn, withChangeSets);
+    } finally {
+      sectionIn.close();
+    }
+  }
+
+  private Sections decodeSections(SectionInputStream sectionIn, boolean withChangeSets) throws IOException {
+    Sections sections = new Sections();
+    BinaryDecoder decoder = new BinaryDecoder(sectionIn);
+    int section;
+    while ((section = sectionIn.nextSection()) != SECTION_END) {
+      boolean changeSets = section == SECTION_COMMITTING || section == SECTION_COMMITTED;
+      if (section > SECTION_CHANGE_FORMAT || (changeSets && !withChangeSets)) {
+        sectionIn.skipSection();
+        continue;
+      }
+      switch (section) {
+        case SECTION_POINTERS:
+          sections.pointers = new long[] { decoder.readLong(), decoder.readLong(), decoder.readLong() };
+          break;
+        case SECTION_INVALID:
+          sections.invalid = decodeIds(decoder);
+          break;
+        case SECTION_IN_PROGRESS:
+          sections.inProgress = decodeInProgress(decoder);
+          break;
+        case SECTION_COMMITTING:
+          sections.committing = decodeChangeSets(decoder);
+          break;
+        case SECTION_COMMITTED:
+          sections.committed = decodeChangeSets(decoder);
+          break;
+        case SECTION_CHANGE_FORMAT:
+          sections.changeFormat = decoder.readInt();
+          break;
+        default:
+          sections.baseTimestamp = decoder.readLong();
+          sections.removed = new long[][] { decodeIds(decoder), decodeIds(decoder), decodeIds(decoder),
+                                            decodeIds(decoder) };
+          break;
+      }
+      // skips anything a later version may have appended to the section
+      sectionIn.skipSection();
+    }
+    if (sections.pointers == null) {
+      throw new IOException("Transaction snapshot has no pointers section");
+    }
+    return sections;
+  }
+
+  /**
+   * Writes the given sorted ids as their count followed by the deltas between them.
+   */
+  private static void encodeIds(BinaryEncoder encoder, long[] ids) throws IOException {
+    encoder.writeInt(ids.length);
+    long previous = 0;
+    for (long id : ids) {
+      encoder.writeLong(id - previous);
+      previous = id;
+    }
+  }
+
+  private static long[] decodeIds(BinaryDecoder decoder) throws IOException {
+    long[] ids = new long[decoder.readInt()];
+    long previous = 0;
+    for (int i = 0; i < ids.length; i++) {
+      previous += decoder.readLong();
+      ids[i] = previous;
+    }
+    return ids;
+  }
+
+  private static void encodeInProgress(BinaryEncoder encoder, Map<Long, TransactionManager.InProgressTx> inProgress)
+    throws IOException {
+
+    // the in-progress map is sorted by id, except for snapshots that were not created by the transaction manager
+    NavigableMap<Long, TransactionManager.InProgressTx> sorted = inProgress instanceof NavigableMap
+      ? (NavigableMap<Long, TransactionManager.InProgressTx>) inProgress
+      : new TreeMap<Long, TransactionManager.InProgressTx>(inProgress);
+    encodeIds(encoder, Longs.toArray(sorted.keySet()));
+    // the visibility upper bound of a transaction is close to its id
+    for (Map.Entry<Long, TransactionManager.InProgressTx> entry : sorted.entrySet()) {
+      encoder.writeLong(entry.getKey() - entry.getValue().getVisibilityUpperBound());
+    }
+    // transactions that started around the same time expire around the same time
+    long previous = 0;
+    for (TransactionManager.InProgressTx tx : sorted.values()) {
+      encoder.writeLong(tx.getExpiration() - previous);
+      previous = tx.getExpiration();
+    }
+    for (TransactionManager.InProgressTx tx : sorted.values()) {
+      encoder.writeInt(tx.getType() == null ? UNKNOWN_TYPE : tx.getType().ordinal());
+    }
+  }
+
+  private static NavigableMap<Long, TransactionManager.InProgressTx> decodeInProgress(BinaryDecoder decoder)
+    throws IOException {
+
+    long[] ids = decodeIds(decoder);
+    long[] visibilityUpperBounds = new long[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      visibilityUpperBounds[i] = ids[i] - decoder.readLong();
+    }
+    long[] expirations = new long[ids.length];
+    long previous = 0;
+    for (int i = 0; i < ids.length; i++) {
+      previous += decoder.readLong();
+      expirations[i] = previous;
+    }
+    NavigableMap<Long, TransactionManager.InProgressTx> inProgress =
+      new TreeMap<Long, TransactionManager.InProgressTx>();
+    for (int i = 0; i < ids.length; i++) {
+      int txTypeIdx = decoder.readInt();
+      TransactionType txType = null;
+      if (txTypeIdx != UNKNOWN_TYPE) {
+        try {
+          txType = TransactionType.values()[txTypeIdx];
+        } catch (ArrayIndexOutOfBoundsException e) {
+          throw new IOException("Type enum ordinal value is out of range: " + txTypeIdx);
+        }
+      }
+      inProgress.put(ids[i], new TransactionManager.InProgressTx(visibilityUpperBounds[i], expirations[i], txType));
+    }
+    return inProgress;
+  }
+
+  private static void encodeChangeSets(BinaryEncoder encoder, Map<Long, Set<ChangeId>> changeSets)
+    throws IOException {
+
+    long[] ids = Longs.toArray(changeSets.keySet());
+    Arrays.sort(ids);
+    encodeIds(encoder, ids);
+    for (long id : ids) {
+      encoder.writeInt(changeSets.get(id).size());
+    }
+    for (long id : ids) {
+      for (ChangeId change : changeSets.get(id)) {
+        encoder.writeBytes(change.getKey());
+      }
+    }
+  }
+
+  private static NavigableMap<Long, Set<ChangeId>> decodeChangeSets(BinaryDecoder decoder) throws IOException {
+    long[] ids = decodeIds(decoder);
+    int[] sizes = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      sizes[i] = decoder.readInt();
+    }
+    NavigableMap<Long, Set<ChangeId>> changeSets = new TreeMap<Long, Set<ChangeId>>();
+    for (int i = 0; i < ids.length; i++) {
+      Set<ChangeId> changes = Sets.newHashSetWithExpectedSize(sizes[i]);
+      for (int j = 0; j < sizes[i]; j++) {
+        changes.add(new ChangeId(decoder.readBytes()));
+      }
+      changeSets.put(ids[i], changes);
+    }
+    return changeSets;
+  }
+
+  /**
+   * The decoded sections of a snapshot or delta snapshot.
+   */
+  private static final class Sections {
+    private long[] pointers;
+    private long[] invalid = new long[0];
+    private NavigableMap<Long, TransactionManager.InProgressTx> inProgress =
+      new TreeMap<Long, TransactionManager.InProgressTx>();
+    private NavigableMap<Long, Set<ChangeId>> committing = new TreeMap<Long, Set<ChangeId>>();
+    private NavigableMap<Long, Set<ChangeId>> committed = new TreeMap<Long, Set<ChangeId>>();
+    // only written for full snapshots, deltas have the change format of their base
+    private int changeFormat;
+    // only set for delta snapshots
+    private long baseTimestamp;
+    private long[][] removed;
+  }
+
+  /**
+   * Writes sections as a sequence of blocks of at most {@code MAX_BLOCK_LENGTH} bytes, which are compressed
+   * and checksummed one at a time, so that a section of any size is written with a fixed amount of memory.
+   */
+  private static final class SectionOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final byte[] block = new byte[MAX_BLOCK_LENGTH];
+    private final byte[] deflated;
+    private final CRC32 crc = new CRC32();
+    private int count;
+
+    SectionOutputStream(OutputStream out, boolean compress) {
+      this.out = new DataOutputStream(out);
+      this.deflater = compress ? new Deflater() : null;
+      this.deflated = compress ? new byte[MAX_BLOCK_LENGTH] : null;
+    }
+
+    void startSection(int section) throws IOException {
+      out.writeByte(section);
+    }
+
+    void endSection() throws IOException {
+      if (count > 0) {
+        writeBlock();
+      }
+      out.writeInt(0);
+    }
+
+    void finish() throws IOException {
+      out.writeByte(SECTION_END);
+      out.flush();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == block.length) {
+        writeBlock();
+      }
+      block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == block.length) {
+          writeBlock();
+        }
+        int copied = Math.min(length, block.length - count);
+        System.arraycopy(bytes, offset, block, count, copied);
+        count += copied;
+        offset += copied;
+        length -= copied;
+      }
+    }
+
+    /**
+     * Releases the deflater, but leaves the underlying stream open.
+     */
+    @Override
+    public void close() {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+
+    private void writeBlock() throws IOException {
+      byte[] bytes = block;
+      int length = count;
+      int flags = 0;
+      if (deflater != null && count >= MIN_COMPRESS_LENGTH) {
+        deflater.reset();
+        deflater.setInput(block, 0, count);
+        deflater.finish();
+        // only keep the compressed block if that actually saves space
+        int deflatedLength = 0;
+        while (!deflater.finished() && deflatedLength < count - 1) {
+          deflatedLength += deflater.deflate(deflated, deflatedLength, count - 1 - deflatedLength);
+        }
+        if (deflater.finished()) {
+          bytes = deflated;
+          length = deflatedLength;
+          flags |= FLAG_DEFLATED;
+        }
+      }
+      crc.reset();
+      crc.update(bytes, 0, length);
+      out.writeInt(count);
+      out.writeByte(flags);
+      out.writeInt(length);
+      out.writeInt((int) crc.getValue());
+      out.write(bytes, 0, length);
+      count = 0;
+    }
+  }
+
+  /**
+   * Reads the blocks of a section, verifying and decompressing one block at a time.
+   */
+  private static final class SectionInputStream extends InputStream {
+    private final DataInputStream in;
+    private final byte[] block = new byte[MAX_BLOCK_LENGTH];
+    private final byte[] stored = new byte[MAX_BLOCK_LENGTH];
+    private final CRC32 crc = new CRC32();
+    private Inflater inflater;
+    private int section;
+    private int position;
+    private int limit;
+    private boolean ended;
+
+    SectionInputStream(InputStream in) {
+      this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Reads the id of the next section, and starts reading its blocks.
+     * @return the section id, which is {@code SECTION_END} after the last section
+     */
+    int nextSection() throws IOException {
+      section = in.readUnsignedByte();
+      position = 0;
+      limit = 0;
+      ended = section == SECTION_END;
+      return section;
+    }
+
+    /**
+     * Skips the rest of the current section without decompressing it.
+     */
+    void skipSection() throws IOException {
+      position = limit;
+      while (!ended) {
+        readBlock(false);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? block[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int copied = Math.min(length, limit - position);
+      System.arraycopy(block, position, bytes, offset, copied);
+      position += copied;
+      return copied;
+    }
+
+    /**
+     * Releases the inflater, but leaves the underlying stream open.
+     */
+    @Override
+    public void close() {
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+
+    private boolean fill() throws IOException {
+      while (position == limit) {
+        if (ended) {
+          return false;
+        }
+        readBlock(true);
+      }
+      return true;
+    }
+
+    private void readBlock(boolean decode) throws IOException {
+      int rawLength = in.readInt();
+      if (rawLength == 0) {
+        ended = true;
+        return;
+      }
+      int flags = in.readUnsignedByte();
+      int length = in.readInt();
+      int checksum = in.readInt();
+      boolean isDeflated = (flags & FLAG_DEFLATED) != 0;
+      // the lengths are checked before anything is allocated or read, as they are not covered by the checksum
+      if (rawLength < 0 || rawLength > MAX_BLOCK_LENGTH || length <= 0 ||
+        (isDeflated ? length >= rawLength : length != rawLength)) {
+        throw new IOException(String.format("Invalid block length %d (%d uncompressed) in section %d of " +
+                                              "transaction snapshot", length, rawLength, section));
+      }
+      if (!decode) {
+        ByteStreams.skipFully(in, length);
+        return;
+      }
+      byte[] bytes = isDeflated ? stored : block;
+      in.readFully(bytes, 0, length);
+      crc.reset();
+      crc.update(bytes, 0, length);
+      if ((int) crc.getValue() != checksum) {
+        throw new IOException("Checksum mismatch in section " + section + " of transaction snapshot");
+      }
+      if (isDeflated) {
+        inflate(length, rawLength);
+      }
+      position = 0;
+      limit = rawLength;
+    }
+
+    private void inflate(int length, int rawLength) throws IOException {
+      if (inflater == null) {
+        inflater = new Inflater();
+      }
+      inflater.reset();
+      inflater.setInput(stored, 0, length);
+      try {
+        int inflated = 0;
+        while (inflated < rawLength && !inflater.finished()) {
+          int count = inflater.inflate(block, inflated, rawLength - inflated);
+          if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          inflated += count;
+        }
+        if (inflated != rawLength || !inflater.finished()) {
+          throw new IOException("Compressed block in section " + section + " of transaction snapshot is truncated");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Compressed block in section " + section + " of transaction snapshot is corrupt", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.util;
+
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.AbstractLongSet;
+import it.unimi.dsi.fastutil.longs.LongBidirectionalIterator;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongRBTreeSet;
+
+import java.util.Collection;
+
+/**
+ * Set of invalid transaction ids, kept in a primitive red-black tree, with a cached sorted {@code long[]} view.
+ *
+ * <p>
+ * Membership checks, inserts and removals take logarithmic time. The sorted array returned by
+ * {@link #toSortedArray()}, which is what every new transaction carries as its list of invalid ids, is immutable
+ * and can be shared with any thread. It is created again on the first call after a modification, hence any number
+ * of modifications between two calls cost a single copy of the ids.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread-safe: both reads and modifications must be externally synchronized.
+ * </p>
+ */
+public class InvalidTxSet extends AbstractLongSet {
+  private static final long[] EMPTY = { };
+
+  private final LongRBTreeSet ids = new LongRBTreeSet();
+  // the ids in ascending order, or null if they were modified since the array was created
+  private long[] sorted = EMPTY;
+
+  public InvalidTxSet() {
+  }
+
+  /**
+   * Creates a set with the given transaction ids, which may be in any order and may contain duplicates.
+   */
+  public InvalidTxSet(Collection<Long> ids) {
+    addAll(ids);
+  }
+
+  /**
+   * Returns the invalid transaction ids in ascending order. The returned array is shared and must not be modified.
+   */
+  public long[] toSortedArray() {
+    if (sorted == null) {
+      sorted = ids.isEmpty() ? EMPTY : ids.toLongArray();
+    }
+    return sorted;
+  }
+
+  @Override
+  public int size() {
+    return ids.size();
+  }
+
+  @Override
+  public boolean contains(long id) {
+    return ids.contains(id);
+  }
+
+  @Override
+  public boolean add(long id) {
+    if (!ids.add(id)) {
+      return false;
+    }
+    sorted = null;
+    return true;
+  }
+
+  @Override
+  public boolean remove(long id) {
+    if (!ids.remove(id)) {
+      return false;
+    }
+    sorted = null;
+    return true;
+  }
+
+  @Override
+  public LongIterator iterator() {
+    final LongBidirectionalIterator iterator = ids.iterator();
+    return new AbstractLongIterator() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public long nextLong() {
+        return iterator.nextLong();
+      }
+
+      @Override
+      public void remove() {
+        iterator.remove();
+        sorted = null;
+      }
+    };
+  }
+
+  @Override
+  public void clear() {
+    ids.clear();
+    sorted = EMPTY;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Captures the entries of a concurrent map as of a point in time, in constant time, while the map keeps being
+ * modified. Instead of copying the map when it is captured, the previous value of every key is saved when the key
+ * is modified for the first time after that point, hence copying the captured entries can happen concurrently with
+ * modifications, without any locking.
+ *
+ * <p>
+ * {@link #beforeUpdate(Object)} must be called before every modification of the map, and the capture must be
+ * created while no modification happens, typically with the lock held that guards the modifications. The values
+ * in the map must not be modified in place, but only replaced.
+ * </p>
+ *
+ * <p>
+ * Once the captured entries were copied, {@link #discardValues()} turns the capture into a tracker of the keys that
+ * are updated after the capture, without holding on to their previous values.
+ * </p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class MapCapture<K, V> {
+  // saved for keys that were added after the capture
+  private static final Object ABSENT = new Object();
+  // saved instead of the previous value once values are discarded
+  private static final Object PRESENT = new Object();
+
+  private final Map<K, V> map;
+  private final ConcurrentMap<K, Object> previous = new ConcurrentHashMap<K, Object>();
+  private volatile boolean discardValues;
+
+  public MapCapture(Map<K, V> map) {
+    this.map = map;
+  }
+
+  /**
+   * Must be called before the value of the given key is added, replaced or removed.
+   */
+  public void beforeUpdate(K key) {
+    if (!previous.containsKey(key)) {
+      V value = map.get(key);
+      previous.putIfAbsent(key, value == null ? ABSENT : discardValues ? PRESENT : value);
+    }
+  }
+
+  /**
+   * Must be called before the map is cleared.
+   */
+  public void beforeClear() {
+    for (Map.Entry<K, V> entry : map.entrySet()) {
+      previous.putIfAbsent(entry.getKey(), discardValues ? PRESENT : entry.getValue());
+    }
+  }
+
+  /**
+   * Returns the value of the given key as of the time of the capture.
+   */
+  @SuppressWarnings("unchecked")
+  public V get(K key) {
+    // as in copyTo(), a value that is replaced after it was read has been saved before
+    V value = map.get(key);
+    Object saved = previous.get(key);
+    if (saved == null) {
+      return value;
+    }
+    Preconditions.checkState(saved != PRESENT, "Values of the capture were discarded");
+    return saved == ABSENT ? null : (V) saved;
+  }
+
+  /**
+   * Returns whether the map contained the given key at the time of the capture. Unlike {@link #get(Object)}, this
+   * may also be called after the values were discarded.
+   */
+  public boolean containedKey(K key) {
+    boolean contains = map.containsKey(key);
+    Object saved = previous.get(key);
+    return saved == null ? contains : saved != ABSENT;
+  }
+
+  /**
+   * Returns the keys that were updated after the capture. The returned set is only complete once no more updates
+   * are reported to this capture.
+   */
+  public Set<K> getUpdatedKeys() {
+    return Collections.unmodifiableSet(previous.keySet());
+  }
+
+  /**
+   * Drops the previous values that were saved, and stops saving the values of keys that are updated later, so
+   * that the capture only tracks which keys are updated. Afterwards, the captured entries can no longer be copied.
+   */
+  public void discardValues() {
+    discardValues = true;
+    for (Map.Entry<K, Object> entry : previous.entrySet()) {
+      if (entry.getValue() != ABSENT) {
+        entry.setValue(PRESENT);
+      }
+    }
+  }
+
+  /**
+   * Copies the entries of the map as of the time of the capture into the given map.
+   * @return the given map
+   */
+  @SuppressWarnings("unchecked")
+  public <M extends Map<K, V>> M copyTo(M target) {
+    Preconditions.checkState(!discardValues, "Values of the capture were discarded");
+    // a value that is replaced after it was copied has been saved before, and overrides the copied value. This
+    // does not use putAll(), which may rely on the size of the map while it is being updated, e.g. for a TreeMap
+    for (Map.Entry<K, V> entry : map.entrySet()) {
+      target.put(entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<K, Object> entry : previous.entrySet()) {
+      if (entry.getValue() == ABSENT) {
+        target.remove(entry.getKey());
+      } else {
+        target.put(entry.getKey(), (V) entry.getValue());
+      }
+    }
+    return target;
+  }
+}
@@ -68,7 +68,7 @@ public class TxUtils {
    */
   public static Transaction createDummyTransaction(TransactionSnapshot snapshot) {
     return new Transaction(snapshot.getReadPointer(), Long.MAX_VALUE,
-                           Longs.toArray(snapshot.getInvalid()),
+                           snapshot.getInvalidArray(),
                            Longs.toArray(snapshot.getInProgress().keySet()),
                            TxUtils.getFirstShortInProgress(snapshot.getInProgress()), TransactionType.SHORT);
   }
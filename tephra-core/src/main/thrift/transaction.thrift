@@ -16,7 +16,8 @@ namespace java co.cask.tephra.distributed.thrift
 
 enum TTransactionType {
   SHORT = 1,
-  LONG = 2
+  LONG = 2,
+  READ_ONLY = 3
 }
 
 struct TTransaction {
@@ -60,4 +61,5 @@ service TTransactionServer {
   TBoolean truncateInvalidTx(1: set<i64> txns),
   TBoolean truncateInvalidTxBefore(1: i64 time) throws (1: TInvalidTruncateTimeException e),
   i32 invalidTxSize(),
+  TTransaction startReadOnly(),
 }
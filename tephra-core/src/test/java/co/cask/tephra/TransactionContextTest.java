@@ -22,6 +22,7 @@ import co.cask.tephra.runtime.DiscoveryModules;
 import co.cask.tephra.runtime.TransactionModules;
 import co.cask.tephra.snapshot.DefaultSnapshotCodec;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
@@ -40,6 +41,9 @@ import org.junit.rules.TemporaryFolder;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import javax.annotation.Nullable;
 
 /**
@@ -454,6 +458,60 @@ public class TransactionContextTest {
     Assert.assertEquals(txClient.state, DummyTxClient.CommitState.Aborted);
   }
 
+  @Test
+  public void testReadOnlyWithChanges() throws TransactionFailureException, InterruptedException {
+    VersionedTxAware table = new VersionedTxAware();
+    TransactionContext context = newTransactionContext(table, ds1);
+    context.start();
+    table.write("committed");
+    long committedVersion = context.getCurrentTransaction().getWritePointer();
+    context.finish();
+
+    context.startReadOnly();
+    Assert.assertTrue(context.getCurrentTransaction().getReadPointer() >= committedVersion);
+    Assert.assertEquals("committed", table.read());
+    // a write made by mistake in the read-only transaction fails it
+    table.write("read-only");
+    try {
+      context.finish();
+      Assert.fail("read-only transaction has changes - exception should be thrown");
+    } catch (TransactionFailureException e) {
+      Assert.assertNull(e.getCause());
+    }
+    Assert.assertNull(context.getCurrentTransaction());
+    // the write is rolled back, but it neither overwrote nor rolled back the committed data at the read pointer
+    Assert.assertTrue(ds1.rolledBack);
+    Assert.assertEquals(ImmutableSet.of(committedVersion), table.versions.keySet());
+    context.start();
+    Assert.assertEquals("committed", table.read());
+    context.finish();
+  }
+
+  @Test
+  public void testReadOnlyExcludesStrayWrites() throws TransactionFailureException, InterruptedException {
+    VersionedTxAware table = new VersionedTxAware();
+    TransactionContext context = newTransactionContext(table);
+    context.start();
+    table.write("committed");
+    context.finish();
+
+    // a write of a read-only transaction that was never rolled back, as if its client crashed
+    context.startReadOnly();
+    long readOnlyVersion = context.getCurrentTransaction().getWritePointer();
+    table.versions.put(readOnlyVersion, "stray");
+    Assert.assertEquals("committed", table.read());
+    context.finish();
+
+    // is neither visible to later read-only transactions, nor to any other transaction
+    context.startReadOnly();
+    Assert.assertEquals(readOnlyVersion, context.getCurrentTransaction().getWritePointer());
+    Assert.assertEquals("committed", table.read());
+    context.finish();
+    context.start();
+    Assert.assertEquals("committed", table.read());
+    context.finish();
+  }
+
   enum InduceFailure { NoFailure, ReturnFalse, ThrowException }
 
   static class DummyTxAware implements TransactionAware {
@@ -550,6 +608,64 @@ public class TransactionContextTest {
     }
   }
 
+  /**
+   * A transaction-aware that keeps a single cell with a version per write pointer, like a table.
+   */
+  static class VersionedTxAware implements TransactionAware {
+    final NavigableMap<Long, String> versions = new TreeMap<Long, String>();
+    Transaction tx;
+    boolean written;
+
+    void write(String value) {
+      versions.put(tx.getWritePointer(), value);
+      written = true;
+    }
+
+    @Nullable
+    String read() {
+      for (Map.Entry<Long, String> version : versions.descendingMap().entrySet()) {
+        if (tx.isVisible(version.getKey())) {
+          return version.getValue();
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void startTx(Transaction tx) {
+      this.tx = tx;
+      written = false;
+    }
+
+    @Override
+    public Collection<byte[]> getTxChanges() {
+      return written ? ImmutableList.of(A) : ImmutableList.<byte[]>of();
+    }
+
+    @Override
+    public boolean commitTx() throws Exception {
+      return true;
+    }
+
+    @Override
+    public void postTxCommit() {
+      // nothing to do
+    }
+
+    @Override
+    public boolean rollbackTx() throws Exception {
+      if (written) {
+        versions.remove(tx.getWritePointer());
+      }
+      return true;
+    }
+
+    @Override
+    public String getTransactionAwareName() {
+      return "versioned";
+    }
+  }
+
   static class DummyTxClient extends InMemoryTxSystemClient {
 
     boolean failCanCommitOnce = false;
@@ -420,6 +420,45 @@ public class TransactionExecutorTest {
     Assert.assertEquals(txClient.state, DummyTxClient.CommitState.Aborted);
   }
 
+  @Test
+  public void testReadOnly() throws TransactionFailureException, InterruptedException {
+    TransactionExecutor executor = new DefaultTransactionExecutor(txClient, txAwares, RetryStrategies.noRetries(),
+                                                                  true);
+    // execute: read only
+    Integer result = executor.execute(new TransactionExecutor.Function<Integer, Integer>() {
+      @Override
+      public Integer apply(Integer input) {
+        return input * input;
+      }
+    }, 10);
+    Assert.assertTrue(100 == result);
+    Assert.assertEquals(TransactionType.READ_ONLY, ds1.tx.getType());
+    Assert.assertTrue(ds1.checked);
+    Assert.assertTrue(ds2.checked);
+    Assert.assertTrue(ds1.committed);
+    Assert.assertTrue(ds2.committed);
+    Assert.assertTrue(ds1.postCommitted);
+    Assert.assertTrue(ds2.postCommitted);
+    // the transaction is neither committed nor aborted in the transaction system
+    Assert.assertEquals(txClient.state, DummyTxClient.CommitState.Started);
+
+    // execute: add a change to ds1 and ds2
+    try {
+      executor.execute(testFunction, 10);
+      Assert.fail("read-only transaction has changes - exception should be thrown");
+    } catch (TransactionFailureException e) {
+      Assert.assertNull(e.getCause());
+    }
+    // verify both are rolled back, but nothing is aborted or invalidated
+    Assert.assertTrue(ds1.checked);
+    Assert.assertTrue(ds2.checked);
+    Assert.assertFalse(ds1.committed);
+    Assert.assertFalse(ds2.committed);
+    Assert.assertTrue(ds1.rolledBack);
+    Assert.assertTrue(ds2.rolledBack);
+    Assert.assertEquals(txClient.state, DummyTxClient.CommitState.Started);
+  }
+
   enum InduceFailure { NoFailure, ReturnFalse, ThrowException }
 
   static class DummyTxAware implements TransactionAware {
@@ -568,6 +607,12 @@ public class TransactionExecutorTest {
       return super.startShort(timeout);
     }
 
+    @Override
+    public Transaction startReadOnly() {
+      state = CommitState.Started;
+      return super.startReadOnly();
+    }
+
     @Override
     public void abort(Transaction tx) {
       state = CommitState.Aborted;
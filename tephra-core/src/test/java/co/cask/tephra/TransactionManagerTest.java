@@ -19,22 +19,43 @@ package co.cask.tephra;
 import co.cask.tephra.inmemory.InMemoryTxSystemClient;
 import co.cask.tephra.metrics.TxMetricsCollector;
 import co.cask.tephra.persist.InMemoryTransactionStateStorage;
+import co.cask.tephra.persist.TransactionSnapshot;
 import co.cask.tephra.persist.TransactionStateStorage;
+import co.cask.tephra.snapshot.SnapshotCodecProvider;
+import co.cask.tephra.snapshot.SnapshotCodecV3;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
 import org.apache.hadoop.conf.Configuration;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
  */
 public class TransactionManagerTest extends TransactionSystemTest {
+  private static final Logger LOG = LoggerFactory.getLogger(TransactionManagerTest.class);
 
   static Configuration conf = new Configuration();
 
@@ -180,7 +201,530 @@ public class TransactionManagerTest extends TransactionSystemTest {
       txm.stopAndWait();
     }
   }
-  
+
+  @Test
+  public void testPreciseTransactionCleanup() throws Exception {
+    conf.setInt(TxConstants.Manager.CFG_TX_CLEANUP_INTERVAL, 60);
+    conf.setBoolean(TxConstants.Manager.CFG_TX_CLEANUP_PRECISE, true);
+    InMemoryTransactionStateStorage storage = new InMemoryTransactionStateStorage();
+    TransactionManager txm1 = new TransactionManager(conf, storage, new TxMetricsCollector());
+    TransactionManager txm2 = null;
+    try {
+      txm1.startAndWait();
+      Transaction tx1 = txm1.startShort(1);
+      Transaction tx2 = txm1.startShort(60);
+      // expires long before the next periodic cleanup
+      TimeUnit.SECONDS.sleep(2);
+      Assert.assertEquals(ImmutableList.of(tx1.getWritePointer()), txm1.getCurrentState().getInvalid());
+
+      // the expiration of transactions recovered from the log must be tracked, too
+      Transaction tx3 = txm1.startShort(1);
+      txm2 = new TransactionManager(conf, storage, new TxMetricsCollector());
+      txm2.startAndWait();
+      TimeUnit.SECONDS.sleep(2);
+      Assert.assertEquals(ImmutableList.of(tx1.getWritePointer(), tx3.getWritePointer()),
+                          txm2.getCurrentState().getInvalid());
+      Assert.assertTrue(txm2.getCurrentState().getInProgress().containsKey(tx2.getWritePointer()));
+    } finally {
+      conf.setBoolean(TxConstants.Manager.CFG_TX_CLEANUP_PRECISE, false);
+      txm1.stopAndWait();
+      if (txm2 != null) {
+        txm2.stopAndWait();
+      }
+    }
+  }
+
+  @Test
+  public void testInProgressTracking() throws Exception {
+    Transaction tx1 = txManager.startLong();
+    Transaction tx2 = txManager.startShort();
+    Transaction tx3 = txManager.startLong();
+    Transaction tx4 = txManager.startShort();
+    Assert.assertArrayEquals(new long[] { tx1.getWritePointer(), tx2.getWritePointer(), tx3.getWritePointer() },
+                             tx4.getInProgress());
+    Assert.assertEquals(tx2.getWritePointer(), tx4.getFirstShortInProgress());
+
+    Assert.assertTrue(txManager.canCommit(tx2, Collections.singleton(C1)));
+    Assert.assertTrue(txManager.commit(tx2));
+    Transaction tx5 = txManager.startShort();
+    Assert.assertArrayEquals(new long[] { tx1.getWritePointer(), tx3.getWritePointer(), tx4.getWritePointer() },
+                             tx5.getInProgress());
+    Assert.assertEquals(tx4.getWritePointer(), tx5.getFirstShortInProgress());
+
+    txManager.abort(tx4);
+    txManager.invalidate(tx5.getWritePointer());
+    Transaction tx6 = txManager.startLong();
+    Assert.assertArrayEquals(new long[] { tx1.getWritePointer(), tx3.getWritePointer() }, tx6.getInProgress());
+    Assert.assertEquals(Transaction.NO_TX_IN_PROGRESS, tx6.getFirstShortInProgress());
+
+    txManager.abort(tx1);
+    Assert.assertTrue(txManager.commit(tx3));
+    Transaction tx7 = txManager.startShort();
+    Assert.assertArrayEquals(new long[] { tx6.getWritePointer() }, tx7.getInProgress());
+    Assert.assertEquals(Transaction.NO_TX_IN_PROGRESS, tx7.getFirstShortInProgress());
+    Transaction tx8 = txManager.startShort();
+    Assert.assertArrayEquals(new long[] { tx6.getWritePointer(), tx7.getWritePointer() }, tx8.getInProgress());
+    Assert.assertEquals(tx7.getWritePointer(), tx8.getFirstShortInProgress());
+    txManager.abort(tx6);
+    txManager.abort(tx7);
+    txManager.abort(tx8);
+  }
+
+  @Test
+  public void testCommittedChangeSetPruning() throws Exception {
+    // long running transactions ahead of the short ones must not hold back pruning
+    Transaction long1 = txManager.startLong();
+    Transaction short1 = txManager.startShort();
+    Transaction long2 = txManager.startLong();
+    Transaction short2 = txManager.startShort();
+    Transaction tx = txManager.startShort();
+    Assert.assertTrue(txManager.canCommit(tx, Collections.singleton(C1)));
+    Assert.assertTrue(txManager.commit(tx));
+    Assert.assertEquals(1, txManager.getCommittedSize());
+
+    // short2 started before tx committed, so its change set must still be kept
+    txManager.abort(short1);
+    Assert.assertEquals(1, txManager.getCommittedSize());
+    Assert.assertFalse(txManager.canCommit(short2, Collections.singleton(C1)));
+    txManager.abort(short2);
+    Assert.assertEquals(0, txManager.getCommittedSize());
+
+    tx = txManager.startShort();
+    Assert.assertTrue(txManager.canCommit(tx, Collections.singleton(C2)));
+    Assert.assertTrue(txManager.commit(tx));
+    Assert.assertEquals(0, txManager.getCommittedSize());
+
+    // replay prunes once per log, but must end up in the same state
+    TransactionManager txm2 = new TransactionManager(conf, txStateStorage, new TxMetricsCollector());
+    txm2.startAndWait();
+    try {
+      Assert.assertEquals(txManager.getCurrentState(), txm2.getCurrentState());
+      Assert.assertEquals(ImmutableSet.of(long1.getWritePointer(), long2.getWritePointer()),
+                          txm2.getCurrentState().getInProgress().keySet());
+    } finally {
+      txm2.stopAndWait();
+    }
+    txManager.abort(long1);
+    txManager.abort(long2);
+  }
+
+  @Test
+  public void testConflictDetectionAfterRecovery() throws Exception {
+    testConflictDetectionAfterRecovery(new Configuration(conf));
+  }
+
+  @Test
+  public void testFingerprintConflictDetection() throws Exception {
+    Configuration testConf = new Configuration(conf);
+    testConf.setBoolean(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_ENABLED, true);
+    testConf.set(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS,
+                 TxConstants.Manager.FINGERPRINT_COLLISIONS_CONFLICT);
+    testConf.set(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, SnapshotCodecV3.class.getName());
+    testConflictDetectionAfterRecovery(testConf);
+    // an 8-byte change key is its own fingerprint, use that to create a collision
+    byte[] collision = Longs.toByteArray(FingerprintSet.fingerprint(C1));
+    testFingerprintCollision(testConf, collision, true);
+
+    testConf.set(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS,
+                 TxConstants.Manager.FINGERPRINT_COLLISIONS_VERIFY);
+    testConflictDetectionAfterRecovery(testConf);
+    testFingerprintCollision(testConf, collision, false);
+  }
+
+  @Test
+  public void testChangeFingerprintsAfterRecovery() throws Exception {
+    Configuration keyConf = new Configuration(conf);
+    // No snapshots
+    keyConf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, -1);
+    Configuration verifyConf = new Configuration(keyConf);
+    verifyConf.setBoolean(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_ENABLED, true);
+    verifyConf.set(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS,
+                   TxConstants.Manager.FINGERPRINT_COLLISIONS_VERIFY);
+    Configuration fingerprintConf = new Configuration(verifyConf);
+    fingerprintConf.set(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS,
+                        TxConstants.Manager.FINGERPRINT_COLLISIONS_CONFLICT);
+
+    // snapshot codec V2 cannot record that the change sets hold fingerprints
+    try {
+      new TransactionManager(fingerprintConf, new InMemoryTransactionStateStorage(), new TxMetricsCollector());
+      Assert.fail("Expected fingerprints to require snapshot codec V3");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    fingerprintConf.set(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, SnapshotCodecV3.class.getName());
+
+    InMemoryTransactionStateStorage storage = new InMemoryTransactionStateStorage();
+    TransactionManager txm1 = new TransactionManager(fingerprintConf, storage, new TxMetricsCollector());
+    txm1.startAndWait();
+
+    TransactionManager txm2 = null;
+    TransactionManager txm3 = null;
+    try {
+      Transaction tx1 = txm1.startShort();
+      Transaction tx2 = txm1.startShort();
+      Assert.assertTrue(txm1.canCommit(tx1, ImmutableList.of(C1)));
+      Assert.assertTrue(txm1.commit(tx1));
+
+      // the fingerprints are recorded in the logs, and in the snapshots
+      for (boolean snapshot : new boolean[] { false, true }) {
+        if (snapshot) {
+          TimeUnit.MILLISECONDS.sleep(1);
+          storage.writeSnapshot(txm1.getCurrentState());
+          Assert.assertTrue(storage.getLatestSnapshot().hasChangeFingerprints());
+        }
+        // tx2 would not conflict with the recovered fingerprints if the change keys were compared
+        for (Configuration keyedConf : ImmutableList.of(keyConf, verifyConf)) {
+          TransactionManager txm = new TransactionManager(keyedConf, storage, new TxMetricsCollector());
+          try {
+            txm.startAndWait();
+            Assert.fail("Expected the recovered fingerprints to be detected");
+          } catch (Exception e) {
+            Assert.assertTrue(Throwables.getRootCause(e) instanceof IllegalStateException);
+          }
+        }
+      }
+
+      txm2 = new TransactionManager(fingerprintConf, storage, new TxMetricsCollector());
+      txm2.startAndWait();
+      Assert.assertFalse(txm2.canCommit(tx2, ImmutableList.of(C1)));
+      txm2.abort(tx2);
+
+      // with no transactions in progress, the fingerprints are not needed anymore
+      TimeUnit.MILLISECONDS.sleep(1);
+      storage.writeSnapshot(txm2.getCurrentState());
+      txm3 = new TransactionManager(keyConf, storage, new TxMetricsCollector());
+      txm3.startAndWait();
+      Assert.assertTrue(txm3.getCurrentState().getCommittedChangeSets().isEmpty());
+      Assert.assertFalse(txm3.getCurrentState().hasChangeFingerprints());
+      Transaction tx3 = txm3.startShort();
+      Transaction tx4 = txm3.startShort();
+      Assert.assertTrue(txm3.canCommit(tx3, ImmutableList.of(C1)));
+      Assert.assertTrue(txm3.commit(tx3));
+      Assert.assertFalse(txm3.canCommit(tx4, ImmutableList.of(C1)));
+      txm3.abort(tx4);
+    } finally {
+      txm1.stopAndWait();
+      if (txm2 != null) {
+        txm2.stopAndWait();
+      }
+      if (txm3 != null) {
+        txm3.stopAndWait();
+      }
+    }
+  }
+
+  @Test
+  public void testParallelConflictDetection() throws Exception {
+    Configuration testConf = new Configuration(conf);
+    testConf.setInt(TxConstants.Manager.CFG_TX_CONFLICT_PARALLEL_THRESHOLD, 1);
+    testConf.setInt(TxConstants.Manager.CFG_TX_CONFLICT_PARALLEL_THREADS, 3);
+    testConflictDetectionAfterRecovery(testConf);
+    testParallelConflictDetection(testConf);
+    testConf.setBoolean(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_ENABLED, true);
+    testConf.set(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, SnapshotCodecV3.class.getName());
+    testConflictDetectionAfterRecovery(testConf);
+    testParallelConflictDetection(testConf);
+  }
+
+  private void testParallelConflictDetection(Configuration testConf) throws Exception {
+    TransactionManager txm = new TransactionManager(testConf, new InMemoryTransactionStateStorage(),
+                                                    new TxMetricsCollector());
+    txm.startAndWait();
+    try {
+      Transaction tx1 = txm.startShort();
+      Transaction tx2 = txm.startShort();
+      Transaction tx3 = txm.startShort();
+      List<byte[]> changes1 = Lists.newArrayList();
+      List<byte[]> changes2 = Lists.newArrayList();
+      for (int i = 0; i < 1000; i++) {
+        changes1.add(Longs.toByteArray(i));
+        changes2.add(Longs.toByteArray(i + 1000));
+        // duplicates must be removed across the parts of the change set
+        changes2.add(Longs.toByteArray(i + 1000));
+      }
+      Assert.assertTrue(txm.canCommit(tx1, changes1));
+      Assert.assertTrue(txm.commit(tx1));
+      Assert.assertTrue(txm.canCommit(tx2, changes2));
+      Assert.assertEquals(1000, txm.getCurrentState().getCommittingChangeSets().get(tx2.getWritePointer()).size());
+      Assert.assertTrue(txm.commit(tx2));
+      // a single change in any part of the change set is a conflict
+      List<byte[]> changes3 = Lists.newArrayList();
+      for (int i = 0; i < 1000; i++) {
+        changes3.add(Longs.toByteArray(i + 2000));
+      }
+      Assert.assertTrue(txm.canCommit(tx3, changes3));
+      changes3.add(Longs.toByteArray(999));
+      Assert.assertFalse(txm.canCommit(tx3, changes3));
+      txm.abort(tx3);
+    } finally {
+      txm.stopAndWait();
+    }
+  }
+
+  private void testFingerprintCollision(Configuration testConf, byte[] collision,
+                                        boolean expectConflict) throws Exception {
+    TransactionManager txm = new TransactionManager(testConf, new InMemoryTransactionStateStorage(),
+                                                    new TxMetricsCollector());
+    txm.startAndWait();
+    try {
+      Transaction tx1 = txm.startShort();
+      Transaction tx2 = txm.startShort();
+      Assert.assertTrue(txm.canCommit(tx1, ImmutableList.of(C1)));
+      Assert.assertTrue(txm.commit(tx1));
+      Assert.assertEquals(!expectConflict, txm.canCommit(tx2, ImmutableList.of(collision)));
+      Assert.assertFalse(txm.canCommit(tx2, ImmutableList.of(C1)));
+      txm.abort(tx2);
+    } finally {
+      txm.stopAndWait();
+    }
+  }
+
+  private void testConflictDetectionAfterRecovery(Configuration testConf) throws Exception {
+    InMemoryTransactionStateStorage storage = new InMemoryTransactionStateStorage();
+    // No snapshots
+    testConf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, -1);
+    TransactionManager txm1 = new TransactionManager(testConf, storage, new TxMetricsCollector());
+    txm1.startAndWait();
+
+    TransactionManager txm2 = null;
+    TransactionManager txm3 = null;
+    try {
+      Transaction tx1 = txm1.startShort();
+      Transaction tx2 = txm1.startShort();
+      Transaction tx3 = txm1.startShort();
+      Assert.assertTrue(txm1.canCommit(tx1, ImmutableList.of(C1, C2)));
+      Assert.assertTrue(txm1.commit(tx1));
+      Assert.assertFalse(txm1.canCommit(tx2, ImmutableList.of(C2, C3)));
+
+      // the committed change index must be rebuilt by replaying the logs
+      txm2 = new TransactionManager(testConf, storage, new TxMetricsCollector());
+      txm2.startAndWait();
+      Assert.assertFalse(txm2.canCommit(tx2, ImmutableList.of(C2, C3)));
+      Assert.assertTrue(txm2.canCommit(tx3, ImmutableList.of(C3)));
+
+      // the committed change index must be rebuilt from the snapshot
+      TimeUnit.MILLISECONDS.sleep(1);
+      storage.writeSnapshot(txm2.getCurrentState());
+      txm3 = new TransactionManager(testConf, storage, new TxMetricsCollector());
+      txm3.startAndWait();
+      Assert.assertFalse(txm3.canCommit(tx2, ImmutableList.of(C1)));
+      Assert.assertTrue(txm3.commit(tx3));
+      Assert.assertFalse(txm3.canCommit(tx2, ImmutableList.of(C3)));
+      Assert.assertTrue(txm3.canCommit(tx2, ImmutableList.of(C4)));
+      Assert.assertTrue(txm3.commit(tx2));
+    } finally {
+      txm1.stopAndWait();
+      if (txm2 != null) {
+        txm2.stopAndWait();
+      }
+      if (txm3 != null) {
+        txm3.stopAndWait();
+      }
+    }
+  }
+
+  @Test
+  public void testSpillCommittedChangeSets() throws Exception {
+    Configuration testConf = new Configuration(conf);
+    testSpillCommittedChangeSets(testConf, false);
+    testConf.setBoolean(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_ENABLED, true);
+    testConf.set(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS,
+                 TxConstants.Manager.FINGERPRINT_COLLISIONS_CONFLICT);
+    testConf.set(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, SnapshotCodecV3.class.getName());
+    testSpillCommittedChangeSets(testConf, true);
+    testConf.set(TxConstants.Manager.CFG_TX_CHANGE_FINGERPRINT_COLLISIONS,
+                 TxConstants.Manager.FINGERPRINT_COLLISIONS_VERIFY);
+    testSpillCommittedChangeSets(testConf, false);
+  }
+
+  private void testSpillCommittedChangeSets(Configuration testConf, boolean expectCollisionConflict)
+    throws Exception {
+    File spillDir = Files.createTempDir();
+    testConf.set(TxConstants.Manager.CFG_TX_COMMITTED_SPILL_DIR, spillDir.getAbsolutePath());
+    // spills all change sets but the latest
+    testConf.setLong(TxConstants.Manager.CFG_TX_COMMITTED_HEAP_BUDGET, 1);
+    TransactionManager txm = new TransactionManager(testConf, new InMemoryTransactionStateStorage(),
+                                                    new TxMetricsCollector());
+    txm.startAndWait();
+    try {
+      // started before all commits, this holds back pruning
+      Transaction tx1 = txm.startShort();
+      for (int i = 0; i < 10; i++) {
+        Transaction tx = txm.startShort();
+        Assert.assertTrue(txm.canCommit(tx, ImmutableList.of(getSpillKey(i), getSpillKey(i + 100))));
+        Assert.assertTrue(txm.commit(tx));
+      }
+      Transaction tx2 = txm.startShort();
+      Transaction tx = txm.startShort();
+      Assert.assertTrue(txm.canCommit(tx, ImmutableList.of(getSpillKey(50))));
+      Assert.assertTrue(txm.commit(tx));
+
+      TransactionSnapshot state = txm.getCurrentState();
+      txm.spillCommittedChangeSets();
+      Assert.assertTrue(spillDir.list().length > 0);
+      // the spilled change sets are still part of the state
+      Assert.assertEquals(state, txm.getCurrentState());
+      Assert.assertEquals(11, txm.getCommittedSize());
+
+      // conflicts are found in the spilled change sets committed after a transaction started
+      for (int i = 0; i < 10; i++) {
+        Assert.assertFalse(txm.canCommit(tx1, ImmutableList.of(getSpillKey(200), getSpillKey(i + 100))));
+      }
+      Assert.assertTrue(txm.canCommit(tx1, ImmutableList.of(getSpillKey(200))));
+      byte[] collision = Longs.toByteArray(FingerprintSet.fingerprint(getSpillKey(3)));
+      Assert.assertEquals(!expectCollisionConflict, txm.canCommit(tx1, ImmutableList.of(collision)));
+      Assert.assertTrue(txm.canCommit(tx2, ImmutableList.of(getSpillKey(0), getSpillKey(100))));
+      Assert.assertFalse(txm.canCommit(tx2, ImmutableList.of(getSpillKey(50))));
+
+      // a change committed again after it was spilled is found in the index
+      Assert.assertTrue(txm.commit(tx2));
+      Assert.assertFalse(txm.canCommit(tx1, ImmutableList.of(getSpillKey(100))));
+
+      // the spilled change sets are pruned with their files
+      txm.abort(tx1);
+      Assert.assertEquals(0, txm.getCommittedSize());
+      Assert.assertEquals(0, spillDir.list().length);
+    } finally {
+      txm.stopAndWait();
+      Assert.assertTrue(spillDir.delete());
+    }
+  }
+
+  private static byte[] getSpillKey(int i) {
+    return ("spill" + i).getBytes(Charsets.UTF_8);
+  }
+
+  @Test
+  public void testConcurrentConflictDetection() throws Exception {
+    Configuration testConf = new Configuration(conf);
+    testConf.setInt(TxConstants.Manager.CFG_TX_CONFLICT_SHARDS, 4);
+    final TransactionManager txm = new TransactionManager(testConf, new InMemoryTransactionStateStorage(),
+                                                          new TxMetricsCollector());
+    txm.startAndWait();
+    ExecutorService executor = Executors.newFixedThreadPool(10);
+    try {
+      for (int round = 0; round < 10; round++) {
+        // all transactions are started before any of them commits, hence only one of those that change the
+        // shared key can commit, and all others must commit
+        List<Transaction> txs = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+          txs.add(txm.startShort());
+        }
+        List<Future<Boolean>> futures = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+          final Transaction tx = txs.get(i);
+          final List<byte[]> changes = Lists.newArrayList();
+          for (int j = 0; j < 10; j++) {
+            changes.add(new byte[] { (byte) round, (byte) i, (byte) j });
+          }
+          if (i % 2 == 0) {
+            changes.add(new byte[] { (byte) round });
+          }
+          futures.add(executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+              if (txm.canCommit(tx, changes) && txm.commit(tx)) {
+                return true;
+              }
+              txm.abort(tx);
+              return false;
+            }
+          }));
+        }
+        int committedShared = 0;
+        for (int i = 0; i < futures.size(); i++) {
+          boolean committed = futures.get(i).get();
+          if (i % 2 == 0) {
+            committedShared += committed ? 1 : 0;
+          } else {
+            Assert.assertTrue(committed);
+          }
+        }
+        Assert.assertEquals(1, committedShared);
+      }
+    } finally {
+      executor.shutdownNow();
+      txm.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    InMemoryTransactionStateStorage storage = new InMemoryTransactionStateStorage();
+    Configuration testConf = new Configuration(conf);
+    // No snapshots
+    testConf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, -1);
+    testConf.setBoolean(TxConstants.Manager.CFG_TX_GROUP_COMMIT_ENABLED, true);
+    testConf.setLong(TxConstants.Manager.CFG_TX_GROUP_COMMIT_LINGER, 1000);
+    final TransactionManager txm1 = new TransactionManager(testConf, storage, new TxMetricsCollector());
+    txm1.startAndWait();
+
+    TransactionManager txm2 = null;
+    ExecutorService executor = Executors.newFixedThreadPool(10);
+    try {
+      // concurrent clients, each one committing changes to its own keys
+      List<Future<Integer>> futures = Lists.newArrayList();
+      for (int i = 0; i < 10; i++) {
+        final byte client = (byte) i;
+        futures.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            int committed = 0;
+            for (int j = 0; j < 20; j++) {
+              Transaction tx = txm1.startShort();
+              if (txm1.canCommit(tx, Collections.singleton(new byte[] { client, (byte) j })) && txm1.commit(tx)) {
+                committed++;
+              } else {
+                txm1.abort(tx);
+              }
+            }
+            return committed;
+          }
+        }));
+      }
+      for (Future<Integer> future : futures) {
+        Assert.assertEquals(20, (int) future.get());
+      }
+
+      // conflicts are still detected
+      Transaction tx1 = txm1.startShort();
+      Transaction tx2 = txm1.startShort();
+      Assert.assertTrue(txm1.canCommit(tx1, Collections.singleton(C1)));
+      Assert.assertTrue(txm1.canCommit(tx2, Collections.singleton(C1)));
+      Assert.assertTrue(txm1.commit(tx1));
+      Assert.assertFalse(txm1.commit(tx2));
+      txm1.abort(tx2);
+      Transaction tx3 = txm1.startLong();
+      try {
+        txm1.commit(tx2);
+        Assert.fail("Expected TransactionNotInProgressException");
+      } catch (TransactionNotInProgressException e) {
+        // expected
+      }
+
+      // all edits of the batches must have been logged
+      txm2 = new TransactionManager(testConf, storage, new TxMetricsCollector());
+      txm2.startAndWait();
+      Assert.assertEquals(txm1.getCurrentState(), txm2.getCurrentState());
+      Assert.assertEquals(ImmutableSet.of(tx3.getWritePointer()), txm2.getCurrentState().getInProgress().keySet());
+
+      // changes are rejected once the manager is stopped
+      txm1.stopAndWait();
+      try {
+        txm1.startShort();
+        Assert.fail("Expected IllegalStateException");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    } finally {
+      executor.shutdownNow();
+      txm1.stopAndWait();
+      if (txm2 != null) {
+        txm2.stopAndWait();
+      }
+    }
+  }
+
   @Test
   public void testTruncateInvalid() throws Exception {
     InMemoryTransactionStateStorage storage = new InMemoryTransactionStateStorage();
@@ -339,4 +883,146 @@ public class TransactionManagerTest extends TransactionSystemTest {
       }
     }
   }
+
+  @Test
+  public void testSnapshotTriggers() throws Exception {
+    InMemoryTransactionStateStorage storage = new InMemoryTransactionStateStorage();
+    Configuration testConf = new Configuration(conf);
+    // only take snapshots by the number of logged edits
+    testConf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, -1);
+    testConf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_LOG_EDITS, 20);
+    TransactionManager txm = new TransactionManager(testConf, storage, new TxMetricsCollector());
+    txm.startAndWait();
+    try {
+      // every committed transaction logs three edits
+      for (int i = 0; i < 5; i++) {
+        Transaction tx = txm.startShort();
+        Assert.assertTrue(txm.canCommit(tx, Collections.singleton(new byte[] { (byte) i })));
+        Assert.assertTrue(txm.commit(tx));
+      }
+      TimeUnit.MILLISECONDS.sleep(1500);
+      Assert.assertNull(storage.getLatestSnapshot());
+      for (int i = 0; i < 5; i++) {
+        Transaction tx = txm.startShort();
+        Assert.assertTrue(txm.canCommit(tx, Collections.singleton(new byte[] { (byte) i })));
+        Assert.assertTrue(txm.commit(tx));
+      }
+      Assert.assertNotNull(waitForSnapshot(storage, 0));
+    } finally {
+      txm.stopAndWait();
+    }
+
+    // periodic snapshots are skipped while nothing is logged
+    storage = new InMemoryTransactionStateStorage();
+    testConf = new Configuration(conf);
+    testConf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, 1);
+    testConf.setBoolean(TxConstants.Manager.CFG_TX_SNAPSHOT_SKIP_UNCHANGED, true);
+    txm = new TransactionManager(testConf, storage, new TxMetricsCollector());
+    txm.startAndWait();
+    try {
+      long snapshotTime = waitForSnapshot(storage, 0).getTimestamp();
+      TimeUnit.MILLISECONDS.sleep(3000);
+      Assert.assertEquals(snapshotTime, storage.getLatestSnapshot().getTimestamp());
+      Transaction tx = txm.startShort();
+      txm.abort(tx);
+      Assert.assertTrue(waitForSnapshot(storage, snapshotTime).getTimestamp() > snapshotTime);
+    } finally {
+      txm.stopAndWait();
+    }
+  }
+
+  private TransactionSnapshot waitForSnapshot(InMemoryTransactionStateStorage storage,
+                                              long afterTime) throws Exception {
+    for (int i = 0; i < 100; i++) {
+      TransactionSnapshot snapshot = storage.getLatestSnapshot();
+      if (snapshot != null && snapshot.getTimestamp() > afterTime) {
+        return snapshot;
+      }
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    Assert.fail("No snapshot taken after " + afterTime);
+    return null;
+  }
+
+  @Test
+  public void testStartLatencyDuringSnapshots() throws Exception {
+    Configuration testConf = new Configuration(conf);
+    testConf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, -1);
+    final TransactionManager txm = new TransactionManager(testConf, new InMemoryTransactionStateStorage(),
+                                                          new TxMetricsCollector());
+    final SnapshotCodecProvider codecProvider = new SnapshotCodecProvider(testConf);
+    txm.startAndWait();
+    try {
+      // an open transaction keeps all committed change sets from being pruned
+      final Transaction first = txm.startShort();
+      final int numCommitted = 200;
+      Random random = new Random(0);
+      for (int i = 0; i < numCommitted; i++) {
+        Transaction tx = txm.startShort();
+        List<byte[]> changes = Lists.newArrayListWithCapacity(500);
+        for (int j = 0; j < 500; j++) {
+          byte[] change = new byte[16];
+          random.nextBytes(change);
+          changes.add(change);
+        }
+        Assert.assertTrue(txm.canCommit(tx, changes));
+        Assert.assertTrue(txm.commit(tx));
+      }
+
+      // take and serialize snapshots in a loop, while transactions are started
+      final int numSnapshots = 20;
+      final AtomicBoolean done = new AtomicBoolean();
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      Future<long[]> snapshotNanos = executor.submit(new Callable<long[]>() {
+        @Override
+        public long[] call() throws Exception {
+          long[] nanos = new long[numSnapshots];
+          try {
+            for (int i = 0; i < numSnapshots; i++) {
+              long startTime = System.nanoTime();
+              TransactionSnapshot snapshot = txm.getSnapshot();
+              codecProvider.encode(new ByteArrayOutputStream(), snapshot);
+              nanos[i] = System.nanoTime() - startTime;
+              // every snapshot is consistent, no matter how the state changed while it was taken
+              Assert.assertEquals(numCommitted, snapshot.getCommittedChangeSets().size());
+              Assert.assertTrue(snapshot.getInProgress().containsKey(first.getWritePointer()));
+              for (Long inProgress : snapshot.getInProgress().keySet()) {
+                Assert.assertTrue(inProgress <= snapshot.getWritePointer());
+              }
+            }
+          } finally {
+            done.set(true);
+          }
+          return nanos;
+        }
+      });
+      List<Long> startNanos = Lists.newArrayList();
+      while (!done.get()) {
+        long startTime = System.nanoTime();
+        Transaction tx = txm.startShort();
+        startNanos.add(System.nanoTime() - startTime);
+        txm.abort(tx);
+      }
+      long[] snapshots = snapshotNanos.get();
+      executor.shutdown();
+
+      Collections.sort(startNanos);
+      Arrays.sort(snapshots);
+      long p50 = percentile(startNanos, 50);
+      long p99 = percentile(startNanos, 99);
+      LOG.info("Started {} transactions during {} snapshots, start latency p50 = {} us, p99 = {} us, p99.9 = {} us, " +
+                 "max = {} us, median snapshot time = {} us", startNanos.size(), numSnapshots, p50 / 1000,
+               p99 / 1000, percentile(startNanos, 99.9) / 1000, startNanos.get(startNanos.size() - 1) / 1000,
+               snapshots[numSnapshots / 2] / 1000);
+      // starting a transaction must not wait for a snapshot to be copied and serialized
+      Assert.assertTrue(p99 < snapshots[numSnapshots / 2]);
+    } finally {
+      txm.stopAndWait();
+    }
+  }
+
+  private static long percentile(List<Long> sortedValues, double percentile) {
+    int index = (int) Math.ceil(percentile / 100 * sortedValues.size()) - 1;
+    return sortedValues.get(Math.max(index, 0));
+  }
 }
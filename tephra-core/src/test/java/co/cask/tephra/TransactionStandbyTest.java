@@ -0,0 +1,311 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra;
+
+import co.cask.tephra.distributed.TransactionService;
+import co.cask.tephra.metrics.TxMetricsCollector;
+import co.cask.tephra.persist.LocalFileTransactionStateStorage;
+import co.cask.tephra.persist.TransactionSnapshot;
+import co.cask.tephra.persist.TransactionStateStorage;
+import co.cask.tephra.runtime.ConfigModule;
+import co.cask.tephra.runtime.DiscoveryModules;
+import co.cask.tephra.runtime.TransactionClientModule;
+import co.cask.tephra.runtime.TransactionModules;
+import co.cask.tephra.runtime.ZKModule;
+import co.cask.tephra.snapshot.SnapshotCodecProvider;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.util.Modules;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.twill.internal.zookeeper.InMemoryZKServer;
+import org.apache.twill.zookeeper.ZKClientService;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests a transaction manager that runs as a hot standby of another transaction manager.
+ */
+public class TransactionStandbyTest {
+  private static final long TIMEOUT_MILLIS = 30000L;
+
+  private static final byte[] ROW1 = new byte[] { 'r', '1' };
+  private static final byte[] ROW2 = new byte[] { 'r', '2' };
+
+  @ClassRule
+  public static TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testPromoteStandby() throws Exception {
+    Configuration conf = getConfiguration();
+    // no snapshots, so that stopping the active transaction manager leaves its log as after a crash
+    conf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, 0);
+
+    TransactionManager active = createTransactionManager(conf);
+    active.startAndWait();
+    TransactionManager standby = createTransactionManager(conf);
+    standby.startStandby();
+
+    Transaction tx1 = active.startShort();
+    Transaction tx2 = active.startShort();
+    Assert.assertTrue(active.canCommit(tx1, Collections.singleton(ROW1)));
+    Assert.assertTrue(active.commit(tx1));
+    Transaction tx3 = active.startShort();
+    Assert.assertTrue(active.invalidate(tx3.getWritePointer()));
+    Transaction tx4 = active.startLong();
+    Transaction tx5 = active.startShort();
+    Assert.assertTrue(active.canCommit(tx5, Collections.singleton(ROW2)));
+
+    // the standby applies the edits while the active transaction manager is running
+    waitForState(active, standby);
+
+    Transaction tx6 = active.startShort();
+    Assert.assertTrue(active.canCommit(tx6, Collections.singleton(ROW2)));
+    Assert.assertTrue(active.commit(tx6));
+    active.abort(tx5);
+    TransactionSnapshot expected = active.getCurrentState();
+    active.stopAndWait();
+
+    standby.startAndWait();
+    try {
+      assertSameState(expected, standby.getCurrentState());
+      // new transactions start after those of the previous transaction manager
+      Transaction tx7 = standby.startShort();
+      Assert.assertTrue(tx7.getWritePointer() > tx6.getWritePointer());
+      Assert.assertTrue(Longs.contains(tx7.getInvalids(), tx3.getWritePointer()));
+      Assert.assertTrue(Longs.contains(tx7.getInProgress(), tx4.getWritePointer()));
+      // conflicts with the transactions committed by the previous transaction manager are detected
+      Assert.assertFalse(standby.canCommit(tx2, Collections.singleton(ROW1)));
+      standby.abort(tx2);
+      Assert.assertTrue(standby.canCommit(tx7, Collections.singleton(ROW1)));
+      Assert.assertTrue(standby.commit(tx7));
+      Assert.assertTrue(standby.commit(tx4));
+    } finally {
+      standby.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testStandbyAfterLogsRemoved() throws Exception {
+    Configuration conf = getConfiguration();
+    // a snapshot after every edit, removing all older snapshots and logs
+    conf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, 0);
+    conf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_LOG_EDITS, 1);
+    conf.setInt(TxConstants.Manager.CFG_TX_SNAPSHOT_RETAIN, 1);
+    // the standby only applies the edits when it is started and promoted
+    conf.setLong(TxConstants.Manager.CFG_TX_STANDBY_POLL_INTERVAL, TIMEOUT_MILLIS * 10);
+
+    TransactionStateStorage storage = createStorage(conf);
+    storage.startAndWait();
+    TransactionManager active = createTransactionManager(conf);
+    active.startAndWait();
+    TransactionManager standby = createTransactionManager(conf);
+    standby.startStandby();
+    List<String> logs = storage.listLogs();
+    Assert.assertEquals(1, logs.size());
+
+    Transaction tx1 = active.startShort();
+    Transaction tx2 = active.startShort();
+    Assert.assertTrue(active.canCommit(tx1, Collections.singleton(ROW1)));
+    Assert.assertTrue(active.commit(tx1));
+    // wait for the log that the standby tails to be removed
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (storage.listLogs().contains(logs.get(0))) {
+      Assert.assertTrue("Timed out waiting for a snapshot", System.currentTimeMillis() < deadline);
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    Transaction tx3 = active.startShort();
+    TransactionSnapshot expected = active.getCurrentState();
+    active.stopAndWait();
+
+    // the standby restores the latest snapshot again
+    standby.startAndWait();
+    try {
+      assertSameState(expected, standby.getCurrentState());
+      Assert.assertFalse(standby.canCommit(tx2, Collections.singleton(ROW1)));
+      Assert.assertTrue(standby.canCommit(tx3, Collections.singleton(ROW1)));
+      Assert.assertTrue(standby.commit(tx3));
+    } finally {
+      standby.stopAndWait();
+      storage.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testServiceFailover() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setDataDir(tmpFolder.newFolder()).build();
+    zkServer.startAndWait();
+    try {
+      Configuration conf = getConfiguration();
+      conf.set(TxConstants.Service.CFG_DATA_TX_ZOOKEEPER_QUORUM, zkServer.getConnectionStr());
+      conf.setInt(TxConstants.Service.CFG_DATA_TX_BIND_PORT, 0);
+      conf.setBoolean(TxConstants.Service.CFG_DATA_TX_STANDBY_ENABLED, true);
+      conf.set(TxConstants.Service.CFG_DATA_TX_CLIENT_RETRY_STRATEGY, "n-times");
+      conf.setInt(TxConstants.Service.CFG_DATA_TX_CLIENT_ATTEMPTS, 1);
+
+      List<TransactionManager> activeTxManagers = new CopyOnWriteArrayList<TransactionManager>();
+      List<TransactionManager> standbyTxManagers = new CopyOnWriteArrayList<TransactionManager>();
+      Injector activeInjector = createInjector(conf, activeTxManagers);
+      Injector standbyInjector = createInjector(conf, standbyTxManagers);
+      ZKClientService activeZKClient = activeInjector.getInstance(ZKClientService.class);
+      activeZKClient.startAndWait();
+      ZKClientService standbyZKClient = standbyInjector.getInstance(ZKClientService.class);
+      standbyZKClient.startAndWait();
+
+      TransactionService activeService = activeInjector.getInstance(TransactionService.class);
+      activeService.startAndWait();
+      TransactionManager active = waitForTxManager(activeTxManagers);
+      waitForRunning(active);
+      TransactionService standbyService = standbyInjector.getInstance(TransactionService.class);
+      standbyService.startAndWait();
+      TransactionManager standby = waitForTxManager(standbyTxManagers);
+      try {
+        TransactionSystemClient client = activeInjector.getInstance(TransactionSystemClient.class);
+        Transaction tx1 = client.startShort();
+        Transaction tx2 = client.startShort();
+        Assert.assertTrue(client.canCommit(tx1, Collections.singleton(ROW1)));
+        Assert.assertTrue(client.commit(tx1));
+        Transaction tx3 = client.startShort();
+        Assert.assertTrue(client.invalidate(tx3.getWritePointer()));
+        waitForState(active, standby);
+        Assert.assertEquals(Service.State.NEW, standby.state());
+
+        // the standby becomes the leader when the active service stops
+        activeService.stopAndWait();
+        waitForRunning(standby);
+
+        client = standbyInjector.getInstance(TransactionSystemClient.class);
+        Transaction tx4 = client.startShort();
+        Assert.assertTrue(tx4.getWritePointer() > tx3.getWritePointer());
+        Assert.assertTrue(Longs.contains(tx4.getInvalids(), tx3.getWritePointer()));
+        Assert.assertFalse(client.canCommit(tx2, Collections.singleton(ROW1)));
+        client.abort(tx2);
+        Assert.assertTrue(client.canCommit(tx4, Collections.singleton(ROW1)));
+        Assert.assertTrue(client.commit(tx4));
+        // the active service used a single transaction manager, and the standby service did not need another one
+        Assert.assertEquals(1, activeTxManagers.size());
+        Assert.assertEquals(1, standbyTxManagers.size());
+      } finally {
+        activeService.stopAndWait();
+        standbyService.stopAndWait();
+        activeZKClient.stopAndWait();
+        standbyZKClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  private static Configuration getConfiguration() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set(TxConstants.Manager.CFG_TX_SNAPSHOT_LOCAL_DIR, tmpFolder.newFolder().getAbsolutePath());
+    conf.setInt(TxConstants.Manager.CFG_TX_CLEANUP_INTERVAL, 0); // no cleanup thread
+    conf.setLong(TxConstants.Manager.CFG_TX_STANDBY_POLL_INTERVAL, 10);
+    return conf;
+  }
+
+  private static TransactionStateStorage createStorage(Configuration conf) {
+    return new LocalFileTransactionStateStorage(conf, new SnapshotCodecProvider(conf));
+  }
+
+  private static TransactionManager createTransactionManager(Configuration conf) {
+    return new TransactionManager(conf, createStorage(conf), new TxMetricsCollector());
+  }
+
+  /**
+   * Creates an injector for a transaction service, which adds the transaction managers it creates to the given list.
+   */
+  private static Injector createInjector(final Configuration conf, final List<TransactionManager> txManagers) {
+    return Guice.createInjector(
+      new ConfigModule(conf),
+      new ZKModule(),
+      new DiscoveryModules().getDistributedModules(),
+      Modules.override(new TransactionModules().getDistributedModules())
+        .with(new AbstractModule() {
+          @Override
+          protected void configure() {
+            bind(TransactionManager.class).toProvider(new Provider<TransactionManager>() {
+              @Override
+              public TransactionManager get() {
+                TransactionManager txManager = createTransactionManager(conf);
+                txManagers.add(txManager);
+                return txManager;
+              }
+            });
+          }
+        }),
+      new TransactionClientModule()
+    );
+  }
+
+  private static void waitForState(TransactionManager active, TransactionManager standby) throws Exception {
+    TransactionSnapshot expected = active.getCurrentState();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!isSameState(expected, standby.getCurrentState())) {
+      Assert.assertTrue("Timed out waiting for the standby to apply all edits",
+                        System.currentTimeMillis() < deadline);
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+  }
+
+  private static TransactionManager waitForTxManager(List<TransactionManager> txManagers) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (txManagers.isEmpty()) {
+      Assert.assertTrue("Timed out waiting for the transaction manager to be created",
+                        System.currentTimeMillis() < deadline);
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    return txManagers.get(0);
+  }
+
+  private static void waitForRunning(TransactionManager txManager) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!txManager.isRunning()) {
+      Assert.assertTrue("Timed out waiting for the transaction manager to start",
+                        System.currentTimeMillis() < deadline);
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+  }
+
+  private static boolean isSameState(TransactionSnapshot expected, TransactionSnapshot actual) {
+    return expected.getReadPointer() == actual.getReadPointer() &&
+      expected.getWritePointer() == actual.getWritePointer() &&
+      expected.getInvalid().equals(actual.getInvalid()) &&
+      expected.getInProgress().equals(actual.getInProgress()) &&
+      expected.getCommittingChangeSets().equals(actual.getCommittingChangeSets()) &&
+      expected.getCommittedChangeSets().equals(actual.getCommittedChangeSets());
+  }
+
+  private static void assertSameState(TransactionSnapshot expected, TransactionSnapshot actual) {
+    Assert.assertEquals(expected.getReadPointer(), actual.getReadPointer());
+    Assert.assertEquals(expected.getWritePointer(), actual.getWritePointer());
+    Assert.assertEquals(expected.getInvalid(), actual.getInvalid());
+    Assert.assertEquals(expected.getInProgress(), actual.getInProgress());
+    Assert.assertEquals(expected.getCommittingChangeSets(), actual.getCommittingChangeSets());
+    Assert.assertEquals(expected.getCommittedChangeSets(), actual.getCommittedChangeSets());
+  }
+}
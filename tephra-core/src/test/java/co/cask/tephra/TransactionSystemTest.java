@@ -87,6 +87,36 @@ public abstract class TransactionSystemTest {
     Assert.assertTrue(client5.canCommit(tx5, asList(C3)));
   }
 
+  @Test
+  public void testReadOnlyTransaction() throws Exception {
+    TransactionSystemClient client = getClient();
+    Transaction tx1 = client.startShort();
+    Transaction tx2 = client.startShort();
+    Assert.assertTrue(client.canCommit(tx2, asList(C1)));
+    Assert.assertTrue(client.commit(tx2));
+
+    Transaction readOnly = client.startReadOnly();
+    Assert.assertEquals(TransactionType.READ_ONLY, readOnly.getType());
+    // the write pointer of a read-only transaction is never the version of any data
+    Assert.assertEquals(Long.MAX_VALUE - 1, readOnly.getWritePointer());
+    Assert.assertFalse(readOnly.isVisible(readOnly.getWritePointer()));
+    Assert.assertTrue(readOnly.getReadPointer() >= tx2.getWritePointer());
+    Assert.assertTrue(readOnly.isVisible(tx2.getWritePointer()));
+    Assert.assertFalse(readOnly.isVisible(tx1.getWritePointer()));
+
+    // the read-only transaction is not in progress
+    Transaction tx3 = client.startShort();
+    Assert.assertArrayEquals(new long[] { tx1.getWritePointer() }, tx3.getInProgress());
+    // it cannot commit any changes, but needs neither to be committed nor aborted
+    Assert.assertTrue(client.canCommit(readOnly, asList()));
+    Assert.assertFalse(client.canCommit(readOnly, asList(C2)));
+    Assert.assertTrue(client.commit(readOnly));
+    client.abort(readOnly);
+    Assert.assertTrue(client.canCommit(tx3, asList(C2)));
+    Assert.assertTrue(client.commit(tx3));
+    client.abort(tx1);
+  }
+
   @Test
   public void testCommitTwice() throws Exception {
     TransactionSystemClient client = getClient();
@@ -22,8 +22,10 @@ import co.cask.tephra.TransactionManager;
 import co.cask.tephra.TransactionType;
 import co.cask.tephra.TxConstants;
 import co.cask.tephra.metrics.TxMetricsCollector;
+import co.cask.tephra.snapshot.SnapshotCodecV3;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -42,10 +44,16 @@ import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Commons tests to run against the {@link TransactionStateStorage} implementations.
@@ -76,6 +84,179 @@ public abstract class AbstractTransactionStateStorageTest {
     }
   }
 
+  @Test
+  public void testVisibilityState() throws Exception {
+    Configuration conf = getConfiguration("testVisibilityState");
+
+    TransactionSnapshot snapshot = createRandomSnapshot();
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      storage.startAndWait();
+      Assert.assertNull(storage.getLatestVisibilityState());
+
+      // without a visibility state, the latest snapshot is read without its change sets
+      storage.writeSnapshot(snapshot);
+      assertEquals(snapshot.withoutChangeSets(), storage.getLatestVisibilityState());
+
+      // the most recent visibility state is read
+      for (int i = 1; i <= 3; i++) {
+        storage.writeVisibilityState(withTimestamp(snapshot, snapshot.getTimestamp() + i));
+      }
+      TransactionSnapshot state = storage.getLatestVisibilityState();
+      assertEquals(withTimestamp(snapshot, snapshot.getTimestamp() + 3).withoutChangeSets(), state);
+      assertTrue(state.getCommittingChangeSets().isEmpty());
+      assertTrue(state.getCommittedChangeSets().isEmpty());
+
+      // unless a more recent snapshot was written without a visibility state
+      TransactionSnapshot newer = withTimestamp(snapshot, snapshot.getTimestamp() + 4);
+      storage.writeSnapshot(newer);
+      assertEquals(newer.withoutChangeSets(), storage.getLatestVisibilityState());
+      // writing the visibility state does not remove snapshots
+      assertEquals(2, storage.listSnapshots().size());
+    } finally {
+      storage.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testVisibilityStateWhileIdle() throws Exception {
+    Configuration conf = getConfiguration("testVisibilityStateWhileIdle");
+    conf.setInt(TxConstants.Manager.CFG_TX_CLEANUP_INTERVAL, 0); // no cleanup thread
+    conf.setInt(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, 1);
+    conf.setBoolean(TxConstants.Manager.CFG_TX_SNAPSHOT_SKIP_UNCHANGED, true);
+
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      TransactionManager txManager = new TransactionManager(conf, storage, new TxMetricsCollector());
+      txManager.startAndWait();
+      Transaction tx = txManager.startLong();
+      // wait for a periodic snapshot, after which nothing changes and snapshots are skipped
+      long start = System.currentTimeMillis();
+      TransactionSnapshot snapshot = storage.getLatestSnapshot();
+      while (snapshot == null || !snapshot.getInProgress().containsKey(tx.getWritePointer())) {
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        TimeUnit.MILLISECONDS.sleep(100);
+        snapshot = storage.getLatestSnapshot();
+      }
+
+      // the visibility state is still written at the snapshot interval, so that readers see it is current
+      TransactionSnapshot state = storage.getLatestVisibilityState();
+      while (state.getTimestamp() <= snapshot.getTimestamp() + 1000) {
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        TimeUnit.MILLISECONDS.sleep(100);
+        state = storage.getLatestVisibilityState();
+      }
+      assertEquals(snapshot.getTimestamp(), storage.getLatestSnapshot().getTimestamp());
+      assertEquals(snapshot.getInProgress(), state.getInProgress());
+      assertEquals(snapshot.getInvalid(), state.getInvalid());
+      txManager.stopAndWait();
+    } finally {
+      storage.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testDeltaSnapshots() throws Exception {
+    Configuration conf = new Configuration(getConfiguration("testDeltaSnapshots"));
+    conf.set(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, SnapshotCodecV3.class.getName());
+
+    TransactionSnapshot base = createRandomSnapshot();
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      storage.startAndWait();
+      storage.writeSnapshot(base);
+
+      // each delta removes an invalid id, completes an in-progress transaction and prunes committed change sets
+      TransactionSnapshot expected = base;
+      for (int i = 1; i <= 3; i++) {
+        TransactionSnapshot next = mutate(expected, expected.getTimestamp() + 1);
+        storage.writeDeltaSnapshot(TransactionSnapshotDelta.between(expected, next));
+        expected = next;
+      }
+      assertEquals(expected, storage.getLatestSnapshot());
+      assertEquals(expected.withoutChangeSets(), storage.getLatestVisibilityState());
+
+      // a delta that is not based on the latest delta ends the chain
+      TransactionSnapshot orphan = mutate(base, expected.getTimestamp() + 1);
+      storage.writeDeltaSnapshot(TransactionSnapshotDelta.between(base, orphan));
+      assertEquals(expected, storage.getLatestSnapshot());
+
+      // deltas are removed with the snapshot they are based on
+      TransactionSnapshot newer = withTimestamp(expected, expected.getTimestamp() + 2);
+      TransactionSnapshot newest = mutate(newer, newer.getTimestamp() + 1);
+      storage.writeSnapshot(newer);
+      storage.writeDeltaSnapshot(TransactionSnapshotDelta.between(newer, newest));
+      assertEquals(newer.getTimestamp(), storage.deleteOldSnapshots(1));
+      assertEquals(1, storage.listSnapshots().size());
+      assertEquals(newest, storage.getLatestSnapshot());
+    } finally {
+      storage.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testTransactionManagerDeltaSnapshots() throws Exception {
+    Configuration conf = new Configuration(getConfiguration("testTransactionManagerDeltaSnapshots"));
+    conf.setInt(TxConstants.Manager.CFG_TX_CLEANUP_INTERVAL, 0); // no cleanup thread
+    conf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_INTERVAL, 0);
+    // every round of transactions below logs 7 edits, and is followed by a snapshot
+    conf.setLong(TxConstants.Manager.CFG_TX_SNAPSHOT_LOG_EDITS, 7);
+    conf.setInt(TxConstants.Manager.CFG_TX_SNAPSHOT_DELTAS, 2);
+    conf.set(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, SnapshotCodecV3.class.getName());
+
+    TransactionStateStorage storage = getStorage(conf);
+    TransactionStateStorage storage2 = null;
+    try {
+      TransactionManager txManager = new TransactionManager(conf, storage, new TxMetricsCollector());
+      txManager.startAndWait();
+      long snapshotTime = 0;
+      for (int i = 0; i < 4; i++) {
+        Transaction committed = txManager.startShort();
+        Assert.assertTrue(txManager.canCommit(committed, Collections.singleton(new byte[] { (byte) i })));
+        Assert.assertTrue(txManager.commit(committed));
+        Transaction committing = txManager.startShort();
+        Assert.assertTrue(txManager.canCommit(committing, Collections.singleton(new byte[] { (byte) (i + 10) })));
+        Transaction invalidated = txManager.startShort();
+        Assert.assertTrue(txManager.invalidate(invalidated.getWritePointer()));
+        snapshotTime = waitForSnapshot(storage, snapshotTime).getTimestamp();
+      }
+      // the first and the last snapshot are full snapshots, the others are delta snapshots
+      assertEquals(2, storage.listSnapshots().size());
+
+      // the final snapshot is a delta snapshot as well
+      txManager.stopAndWait();
+      TransactionSnapshot origState = txManager.getCurrentState();
+      storage2 = getStorage(conf);
+      storage2.startAndWait();
+      assertEquals(origState, storage2.getLatestSnapshot());
+      assertEquals(2, storage2.listSnapshots().size());
+
+      txManager = new TransactionManager(conf, storage2, new TxMetricsCollector());
+      txManager.startAndWait();
+      TransactionSnapshot newState = txManager.getCurrentState();
+      txManager.stopAndWait();
+      assertEquals(origState, newState);
+    } finally {
+      storage.stopAndWait();
+      if (storage2 != null) {
+        storage2.stopAndWait();
+      }
+    }
+  }
+
+  private static TransactionSnapshot waitForSnapshot(TransactionStateStorage storage, long afterTime)
+    throws Exception {
+    for (int i = 0; i < 100; i++) {
+      TransactionSnapshot snapshot = storage.getLatestSnapshot();
+      if (snapshot != null && snapshot.getTimestamp() > afterTime) {
+        return snapshot;
+      }
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    Assert.fail("No snapshot taken after " + afterTime);
+    return null;
+  }
+
   @Test
   public void testLogWriteAndRead() throws Exception {
     Configuration conf = getConfiguration("testLogWriteAndRead");
@@ -115,6 +296,160 @@ public abstract class AbstractTransactionStateStorageTest {
     }
   }
 
+  @Test
+  public void testTailReaderContinues() throws Exception {
+    Configuration conf = getConfiguration("testTailReaderContinues");
+    List<TransactionEdit> edits = createRandomEdits(30);
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      long now = System.currentTimeMillis();
+      storage.startAndWait();
+      TransactionLog log = storage.createLog(now);
+      log.append(edits.subList(0, 10));
+      TransactionLogReader reader = Iterables.getOnlyElement(storage.getLogsSince(now)).getTailReader();
+      assertNotNull(reader);
+      try {
+        assertEquals(edits.subList(0, 10), readAvailable(reader));
+        assertTrue(readAvailable(reader).isEmpty());
+        // a reader that reached the end continues with the edits that were appended since then
+        log.append(edits.subList(10, 20));
+        assertEquals(edits.subList(10, 20), readAvailable(reader));
+        for (TransactionEdit edit : edits.subList(20, 30)) {
+          log.append(edit);
+        }
+        log.close();
+        assertEquals(edits.subList(20, 30), readAvailable(reader));
+        assertTrue(readAvailable(reader).isEmpty());
+      } finally {
+        reader.close();
+      }
+    } finally {
+      storage.stopAndWait();
+    }
+  }
+
+  /**
+   * Returns the edits of the given reader up to its current end, without closing it.
+   */
+  protected static List<TransactionEdit> readAvailable(TransactionLogReader reader) throws IOException {
+    List<TransactionEdit> edits = Lists.newArrayList();
+    TransactionEdit edit;
+    while ((edit = reader.next()) != null) {
+      edits.add(edit);
+    }
+    return edits;
+  }
+
+  @Test
+  public void testRingBufferLogWriteAndRead() throws Exception {
+    Configuration conf = getConfiguration("testRingBufferLogWriteAndRead");
+    // small enough for appends to wait for free slots
+    conf.setInt(TxConstants.Manager.CFG_TX_LOG_RING_BUFFER_SIZE, 8);
+
+    final List<List<TransactionEdit>> threadEdits = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      threadEdits.add(createRandomEdits(100));
+    }
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      long now = System.currentTimeMillis();
+      storage.startAndWait();
+      final TransactionLog log = storage.createLog(now);
+      assertTrue(log instanceof RingBufferTransactionLog);
+      ExecutorService executor = Executors.newFixedThreadPool(threadEdits.size());
+      List<Future<?>> futures = Lists.newArrayList();
+      for (final List<TransactionEdit> edits : threadEdits) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            // alternate between single edits and batches
+            for (int i = 0; i < edits.size(); i += 5) {
+              log.append(edits.get(i));
+              log.append(edits.subList(i + 1, i + 5));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      executor.shutdown();
+      // once idle, the writer thread waits for the next append without polling
+      Thread writerThread = null;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().equals("tx-log-writer-" + log.getName())) {
+          writerThread = thread;
+        }
+      }
+      assertNotNull(writerThread);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (writerThread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertEquals(Thread.State.WAITING, writerThread.getState());
+      log.close();
+
+      TransactionLogReader logReader = storage.getLogsSince(now).iterator().next().getReader();
+      List<TransactionEdit> readEdits = Lists.newArrayList();
+      TransactionEdit nextEdit;
+      while ((nextEdit = logReader.next()) != null) {
+        readEdits.add(nextEdit);
+      }
+      logReader.close();
+      assertEquals(400, readEdits.size());
+      // the edits of each thread must be in the order they were appended
+      for (List<TransactionEdit> edits : threadEdits) {
+        List<TransactionEdit> readThreadEdits = Lists.newArrayList();
+        for (TransactionEdit edit : readEdits) {
+          if (edits.contains(edit)) {
+            readThreadEdits.add(edit);
+          }
+        }
+        assertEquals(edits, readThreadEdits);
+      }
+    } finally {
+      storage.stopAndWait();
+      // the configuration may be shared with other tests
+      conf.unset(TxConstants.Manager.CFG_TX_LOG_RING_BUFFER_SIZE);
+    }
+  }
+
+  @Test
+  public void testPrefetchedLogs() throws Exception {
+    Configuration conf = getConfiguration("testPrefetchedLogs");
+    // more edits than fit into one batch, a few, and none
+    List<List<TransactionEdit>> logEdits = Lists.newArrayList();
+    logEdits.add(createRandomEdits(2500));
+    logEdits.add(createRandomEdits(10));
+    logEdits.add(Lists.<TransactionEdit>newArrayList());
+    TransactionStateStorage storage = getStorage(conf);
+    TransactionLogPrefetcher prefetcher = new TransactionLogPrefetcher(2);
+    try {
+      storage.startAndWait();
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < logEdits.size(); i++) {
+        TransactionLog log = storage.createLog(now + i);
+        log.append(logEdits.get(i));
+        log.close();
+      }
+
+      List<TransactionLogReader> readers = prefetcher.prefetch(storage.getLogsSince(now));
+      assertEquals(logEdits.size(), readers.size());
+      for (int i = 0; i < logEdits.size(); i++) {
+        List<TransactionEdit> readEdits = Lists.newArrayList();
+        TransactionEdit nextEdit;
+        while ((nextEdit = readers.get(i).next()) != null) {
+          readEdits.add(nextEdit);
+        }
+        assertEquals(logEdits.get(i), readEdits);
+      }
+    } finally {
+      prefetcher.close();
+      storage.stopAndWait();
+    }
+  }
+
   @Test
   public void testTransactionManagerPersistence() throws Exception {
     Configuration conf = getConfiguration("testTransactionManagerPersistence");
@@ -495,7 +830,7 @@ public abstract class AbstractTransactionStateStorageTest {
    * </ul>
    * @return a new snapshot of transaction state.
    */
-  private TransactionSnapshot createRandomSnapshot() {
+  protected TransactionSnapshot createRandomSnapshot() {
     // limit readPointer to a reasonable range, but make it > 1M so we can assign enough keys below
     long readPointer = (Math.abs(random.nextLong()) % 1000000L) + 1000000L;
     long writePointer = readPointer + 1000L;
@@ -540,7 +875,39 @@ public abstract class AbstractTransactionStateStorageTest {
                                    invalid, inProgress, committing, committed);
   }
 
-  private Set<ChangeId> generateChangeSet(int numEntries) {
+  /**
+   * Returns a copy of the given snapshot with some invalid ids, in-progress transactions and change sets removed,
+   * and some added.
+   */
+  private static TransactionSnapshot mutate(TransactionSnapshot snapshot, long timestamp) {
+    long writePointer = snapshot.getWritePointer() + 10;
+    LongArrayList invalid = new LongArrayList(snapshot.getInvalid());
+    invalid.removeLong(0);
+    invalid.add(writePointer - 1);
+    TreeMap<Long, TransactionManager.InProgressTx> inProgress =
+      new TreeMap<Long, TransactionManager.InProgressTx>(snapshot.getInProgress());
+    long completed = inProgress.firstKey();
+    inProgress.remove(completed);
+    inProgress.put(writePointer, new TransactionManager.InProgressTx(completed, timestamp + 30000L,
+                                                                     TransactionType.SHORT));
+    Map<Long, Set<ChangeId>> committing = Maps.newHashMap(snapshot.getCommittingChangeSets());
+    committing.put(writePointer - 2, generateChangeSet(5));
+    NavigableMap<Long, Set<ChangeId>> committed = Maps.newTreeMap();
+    committed.putAll(snapshot.getCommittedChangeSets());
+    committed.remove(committed.firstKey());
+    committed.put(completed, generateChangeSet(5));
+    return new TransactionSnapshot(timestamp, snapshot.getReadPointer() + 10, writePointer, invalid, inProgress,
+                                   committing, committed);
+  }
+
+  private static TransactionSnapshot withTimestamp(TransactionSnapshot snapshot, long timestamp) {
+    return new TransactionSnapshot(timestamp, snapshot.getReadPointer(), snapshot.getWritePointer(),
+                                   snapshot.getInvalid(),
+                                   new TreeMap<Long, TransactionManager.InProgressTx>(snapshot.getInProgress()),
+                                   snapshot.getCommittingChangeSets(), snapshot.getCommittedChangeSets());
+  }
+
+  private static Set<ChangeId> generateChangeSet(int numEntries) {
     Set<ChangeId> changes = Sets.newHashSet();
     for (int i = 0; i < numEntries; i++) {
       byte[] bytes = new byte[8];
@@ -558,7 +925,7 @@ public abstract class AbstractTransactionStateStorageTest {
    * @param numEntries how many entries to generate in the returned list.
    * @return a list of randomly generated transaction log edits.
    */
-  private List<TransactionEdit> createRandomEdits(int numEntries) {
+  protected List<TransactionEdit> createRandomEdits(int numEntries) {
     List<TransactionEdit> edits = Lists.newArrayListWithCapacity(numEntries);
     for (int i = 0; i < numEntries; i++) {
       TransactionEdit.State nextType = TransactionEdit.State.values()[random.nextInt(6)];
@@ -19,14 +19,27 @@ package co.cask.tephra.persist;
 import co.cask.tephra.TxConstants;
 import co.cask.tephra.snapshot.SnapshotCodecProvider;
 import co.cask.tephra.snapshot.SnapshotCodecV2;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.LongWritable;
 import org.junit.AfterClass;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
+import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -68,4 +81,179 @@ public class HDFSTransactionStateStorageTest extends AbstractTransactionStateSto
   protected AbstractTransactionStateStorage getStorage(Configuration conf) {
     return new HDFSTransactionStateStorage(conf, new SnapshotCodecProvider(conf));
   }
+
+  @Test
+  public void testStripedLog() throws Exception {
+    Configuration testConf = new Configuration(getConfiguration("testStripedLog"));
+    testConf.setInt(TxConstants.Manager.CFG_TX_LOG_HDFS_STRIPES, 3);
+    TransactionStateStorage storage = getStorage(testConf);
+    try {
+      storage.startAndWait();
+      long time = System.currentTimeMillis();
+      final TransactionLog log = storage.createLog(time);
+      Assert.assertTrue(log instanceof StripedHDFSTransactionLog);
+      List<TransactionEdit> edits = createRandomEdits(30);
+      // appends in turn are replayed in order
+      log.append(edits.subList(0, 5));
+      for (TransactionEdit edit : edits.subList(5, 10)) {
+        log.append(edit);
+      }
+      // concurrent appends are all replayed
+      final List<TransactionEdit> concurrentEdits = edits.subList(10, 30);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<?>> futures = Lists.newArrayList();
+        for (final TransactionEdit edit : concurrentEdits) {
+          futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              log.append(edit);
+              return null;
+            }
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      log.close();
+
+      List<TransactionEdit> replayed = readLog(Iterables.getOnlyElement(storage.getLogsSince(time)));
+      Assert.assertEquals(edits.subList(0, 10), replayed.subList(0, 10));
+      Assert.assertEquals(Sets.newHashSet(concurrentEdits), Sets.newHashSet(replayed.subList(10, replayed.size())));
+      Assert.assertEquals(30, replayed.size());
+
+      // the stripes are read up to the first missing sequence number
+      Path logDir = new Path(storage.getLocation(), "txlog." + (time + 1));
+      FileSystem fs = FileSystem.newInstance(FileSystem.getDefaultUri(testConf), testConf);
+      try {
+        writeStripe(fs, new Path(logDir, "stripe.0"), edits, 0, 2, 3);
+        writeStripe(fs, new Path(logDir, "stripe.1"), edits, 1, 5);
+        Assert.assertEquals(edits.subList(0, 4),
+                            readLog(new StripedHDFSTransactionLog(fs, testConf, logDir, time + 1, 3)));
+      } finally {
+        fs.close();
+      }
+    } finally {
+      storage.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testTailReader() throws Exception {
+    for (int stripes : new int[] { 1, 3 }) {
+      Configuration testConf = new Configuration(getConfiguration("testTailReader" + stripes));
+      testConf.setInt(TxConstants.Manager.CFG_TX_LOG_HDFS_STRIPES, stripes);
+      TransactionStateStorage storage = getStorage(testConf);
+      try {
+        storage.startAndWait();
+        long time = System.currentTimeMillis();
+        TransactionLog log = storage.createLog(time);
+        // nothing was written yet
+        Assert.assertNull(log.getTailReader());
+
+        // the synced edits are read while the log is still open
+        List<TransactionEdit> edits = createRandomEdits(10);
+        log.append(edits.subList(0, 5));
+        Assert.assertEquals(edits.subList(0, 5), readEdits(log.getTailReader()));
+        for (TransactionEdit edit : edits.subList(5, 10)) {
+          log.append(edit);
+        }
+        TransactionLog tailed = Iterables.getOnlyElement(storage.getLogsSince(time));
+        Assert.assertEquals(edits, readEdits(tailed.getTailReader()));
+
+        // a reader that is kept open continues with the edits of all stripes that are synced later
+        TransactionLogReader reader = tailed.getTailReader();
+        try {
+          Assert.assertEquals(edits, readAvailable(reader));
+          List<TransactionEdit> moreEdits = createRandomEdits(10);
+          for (TransactionEdit edit : moreEdits) {
+            log.append(edit);
+          }
+          Assert.assertEquals(moreEdits, readAvailable(reader));
+          edits.addAll(moreEdits);
+        } finally {
+          reader.close();
+        }
+        log.close();
+        Assert.assertEquals(edits, readEdits(tailed.getTailReader()));
+      } finally {
+        storage.stopAndWait();
+      }
+    }
+  }
+
+  @Test
+  public void testParallelLogRecovery() throws Exception {
+    for (int stripes : new int[] { 1, 3 }) {
+      Configuration testConf = new Configuration(getConfiguration("testParallelLogRecovery" + stripes));
+      testConf.setInt(TxConstants.Manager.CFG_TX_LOG_HDFS_STRIPES, stripes);
+      // every lease recovery waits at least this long for the blocks of an open file to be recovered
+      testConf.setInt("hbase.lease.recovery.first.pause", 1000);
+      testConf.setInt("hbase.lease.recovery.pause", 100);
+      TransactionStateStorage writer = getStorage(testConf);
+      TransactionStateStorage reader = getStorage(testConf);
+      try {
+        writer.startAndWait();
+        reader.startAndWait();
+        // the logs of a transaction manager that crashed, which are all still open
+        long time = System.currentTimeMillis();
+        int numLogs = 3;
+        List<List<TransactionEdit>> edits = Lists.newArrayList();
+        for (int i = 0; i < numLogs; i++) {
+          TransactionLog log = writer.createLog(time + i);
+          edits.add(createRandomEdits(10));
+          log.append(edits.get(i));
+        }
+
+        List<TransactionLog> logs = reader.getLogsSince(time);
+        Assert.assertEquals(numLogs, logs.size());
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numLogs; i++) {
+          Assert.assertEquals(edits.get(i), readLog(logs.get(i)));
+        }
+        // the leases of all files were recovered at the same time
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue("Recovery took " + elapsed + "ms", elapsed < numLogs * stripes * 1000L);
+
+        // the recovered logs are opened again for another reader
+        Assert.assertEquals(edits.get(0), readLog(logs.get(0)));
+        Assert.assertEquals(edits.get(numLogs - 1), readLog(reader.getLogsSince(time + numLogs - 1).get(0)));
+      } finally {
+        reader.stopAndWait();
+        writer.stopAndWait();
+      }
+    }
+  }
+
+  private static void writeStripe(FileSystem fs, Path path, List<TransactionEdit> edits,
+                                  long... sequences) throws IOException {
+    HDFSTransactionLog.LogWriter writer = new HDFSTransactionLog.LogWriter(fs, conf, path);
+    try {
+      for (long sequence : sequences) {
+        writer.append(new AbstractTransactionLog.Entry(new LongWritable(sequence), edits.get((int) sequence)));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static List<TransactionEdit> readLog(TransactionLog log) throws IOException {
+    return readEdits(log.getReader());
+  }
+
+  private static List<TransactionEdit> readEdits(TransactionLogReader reader) throws IOException {
+    List<TransactionEdit> edits = Lists.newArrayList();
+    try {
+      TransactionEdit edit;
+      while ((edit = reader.next()) != null) {
+        edits.add(edit);
+      }
+    } finally {
+      reader.close();
+    }
+    return edits;
+  }
 }
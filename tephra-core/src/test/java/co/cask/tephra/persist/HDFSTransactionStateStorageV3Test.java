@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import co.cask.tephra.TxConstants;
+import co.cask.tephra.snapshot.SnapshotCodecV3;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+
+/**
+ * Runs the tests of {@link HDFSTransactionStateStorageTest} with snapshots written by {@link SnapshotCodecV3},
+ * with compression.
+ */
+public class HDFSTransactionStateStorageV3Test extends HDFSTransactionStateStorageTest {
+
+  @Override
+  protected Configuration getConfiguration(String testName) throws IOException {
+    Configuration conf = super.getConfiguration(testName);
+    conf.set(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, SnapshotCodecV3.class.getName());
+    conf.setBoolean(TxConstants.Persist.CFG_TX_SNAPSHOT_COMPRESSION, true);
+    return conf;
+  }
+}
@@ -35,6 +35,7 @@ import javax.annotation.Nullable;
 public class InMemoryTransactionStateStorage extends AbstractIdleService implements TransactionStateStorage {
   // only keeps the most recent snapshot in memory
   private TransactionSnapshot lastSnapshot;
+  private TransactionSnapshot lastVisibilityState;
 
   private NavigableMap<Long, TransactionLog> logs = new TreeMap<Long, TransactionLog>();
 
@@ -45,6 +46,7 @@ public class InMemoryTransactionStateStorage extends AbstractIdleService impleme
   @Override
   protected void shutDown() throws Exception {
     lastSnapshot = null;
+    lastVisibilityState = null;
     logs = new TreeMap<Long, TransactionLog>();
   }
 
@@ -58,11 +60,30 @@ public class InMemoryTransactionStateStorage extends AbstractIdleService impleme
     lastSnapshot = snapshot;
   }
 
+  @Override
+  public void writeDeltaSnapshot(TransactionSnapshotDelta delta) throws IOException {
+    lastSnapshot = delta.applyTo(lastSnapshot);
+  }
+
   @Override
   public TransactionSnapshot getLatestSnapshot() throws IOException {
     return lastSnapshot;
   }
 
+  @Override
+  public void writeVisibilityState(TransactionSnapshot snapshot) throws IOException {
+    lastVisibilityState = snapshot.withoutChangeSets();
+  }
+
+  @Override
+  public TransactionSnapshot getLatestVisibilityState() throws IOException {
+    if (lastSnapshot != null &&
+      (lastVisibilityState == null || lastSnapshot.getTimestamp() > lastVisibilityState.getTimestamp())) {
+      return lastSnapshot.withoutChangeSets();
+    }
+    return lastVisibilityState;
+  }
+
   @Override
   public long deleteOldSnapshots(int numberToKeep) throws IOException {
     // always only keep the last snapshot
@@ -148,7 +169,7 @@ public class InMemoryTransactionStateStorage extends AbstractIdleService impleme
       if (isClosed) {
         throw new IOException("Log is closed");
       }
-      edits.addAll(edits);
+      this.edits.addAll(edits);
     }
 
     @Override
@@ -160,6 +181,28 @@ public class InMemoryTransactionStateStorage extends AbstractIdleService impleme
     public TransactionLogReader getReader() throws IOException {
       return new InMemoryLogReader(edits.iterator());
     }
+
+    @Override
+    public TransactionLogReader getTailReader() throws IOException {
+      // continues with the edits that are appended later
+      return new TransactionLogReader() {
+        private int position;
+
+        @Override
+        public TransactionEdit next() {
+          return position < edits.size() ? edits.get(position++) : null;
+        }
+
+        @Override
+        public TransactionEdit next(TransactionEdit reuse) {
+          return next();
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
   }
 
   private static class InMemoryLogReader implements TransactionLogReader {
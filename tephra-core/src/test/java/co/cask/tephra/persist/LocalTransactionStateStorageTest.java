@@ -24,10 +24,12 @@ import co.cask.tephra.metrics.TxMetricsCollector;
 import co.cask.tephra.snapshot.DefaultSnapshotCodec;
 import co.cask.tephra.snapshot.SnapshotCodecProvider;
 import co.cask.tephra.snapshot.SnapshotCodecV2;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import org.apache.hadoop.conf.Configuration;
 import org.junit.Assert;
 import org.junit.ClassRule;
@@ -37,7 +39,9 @@ import org.junit.rules.TemporaryFolder;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
@@ -211,6 +215,186 @@ public class LocalTransactionStateStorageTest extends AbstractTransactionStateSt
     }
   }
 
+  @Test
+  public void testSegmentedLog() throws Exception {
+    Configuration conf = getConfiguration("testSegmentedLog");
+    // small enough for every log to span several segments
+    conf.setInt(TxConstants.Manager.CFG_TX_LOG_LOCAL_SEGMENT_SIZE, 2048);
+    conf.setInt(TxConstants.Manager.CFG_TX_LOG_LOCAL_RECYCLED_SEGMENTS, 2);
+
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      storage.startAndWait();
+      long time1 = System.currentTimeMillis();
+      List<TransactionEdit> edits1 = createRandomEdits(100);
+      TransactionLog log = storage.createLog(time1);
+      Assert.assertTrue(log instanceof SegmentedLocalTransactionLog);
+      log.append(edits1.subList(0, 50));
+      for (TransactionEdit edit : edits1.subList(50, 100)) {
+        log.append(edit);
+      }
+      log.close();
+      File logDir = new File(log.getName());
+      Assert.assertTrue(logDir.isDirectory());
+      Assert.assertTrue(logDir.list().length > 2);
+      Assert.assertEquals(edits1, readLog(storage, time1));
+
+      // the segments of the deleted log are reused by the next one, which must not read their old edits
+      storage.deleteLogsOlderThan(time1 + 1);
+      Assert.assertFalse(logDir.exists());
+      File recycleDir = new File(storage.getLocation(), ".recycled-segments");
+      Assert.assertEquals(2, recycleDir.list().length);
+      long time2 = time1 + 1;
+      List<TransactionEdit> edits2 = createRandomEdits(10);
+      log = storage.createLog(time2);
+      // a tail reader continues with the edits of the segments that are written later
+      log.append(edits2.subList(0, 1));
+      TransactionLogReader reader = log.getTailReader();
+      try {
+        Assert.assertEquals(edits2.subList(0, 1), readAvailable(reader));
+        for (TransactionEdit edit : edits2.subList(1, 10)) {
+          log.append(edit);
+        }
+        Assert.assertEquals(edits2.subList(1, 10), readAvailable(reader));
+      } finally {
+        reader.close();
+      }
+      log.close();
+      Assert.assertEquals(1, recycleDir.list().length);
+      Assert.assertEquals(edits2, readLog(storage, time2));
+
+      // a frame that was not written completely, here with a wrong checksum, ends the log
+      RandomAccessFile segment = new RandomAccessFile(new File(log.getName(), "segment.0"), "rw");
+      try {
+        segment.seek(4);
+        segment.writeInt(0);
+      } finally {
+        segment.close();
+      }
+      Assert.assertTrue(readLog(storage, time2).isEmpty());
+    } finally {
+      storage.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testCorruptLastEditRecovery() throws Exception {
+    Configuration conf = getConfiguration("testCorruptLastEditRecovery");
+    long time = System.currentTimeMillis();
+    long wp1 = time * TxConstants.MAX_TX_PER_MS;
+    long wp2 = wp1 + 1;
+    long wp3 = wp1 + 2;
+    File log1;
+    File log2;
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      storage.startAndWait();
+      TransactionLog log = storage.createLog(time);
+      log.append(TransactionEdit.createStarted(wp1, wp1 - 1, time + 100000, TransactionType.LONG));
+      log.append(TransactionEdit.createInvalid(wp1));
+      log.close();
+      log1 = new File(log.getName());
+      log = storage.createLog(time + 1);
+      log.append(TransactionEdit.createStarted(wp2, wp2 - 1, time + 100000, TransactionType.LONG));
+      log.append(TransactionEdit.createInvalid(wp2));
+      log.append(TransactionEdit.createStarted(wp3, wp3 - 1, time + 100000, TransactionType.LONG));
+      log.close();
+      log2 = new File(log.getName());
+    } finally {
+      storage.stopAndWait();
+    }
+
+    // the last edit of both logs fails its checksum, which is only expected for the last log
+    flipLastByte(log1);
+    flipLastByte(log2);
+    TransactionManager txManager = new TransactionManager(conf, getStorage(conf), new TxMetricsCollector());
+    try {
+      txManager.startAndWait();
+      Assert.fail("Corrupt edit in a log that is not the last should fail recovery");
+    } catch (Exception e) {
+      // expected
+    }
+
+    // the last log ends before the edit that was not written completely
+    flipLastByte(log1);
+    txManager = new TransactionManager(conf, getStorage(conf), new TxMetricsCollector());
+    txManager.startAndWait();
+    try {
+      TransactionSnapshot state = txManager.getCurrentState();
+      Assert.assertEquals(ImmutableList.of(wp1, wp2), state.getInvalid());
+      Assert.assertTrue(state.getInProgress().isEmpty());
+      Assert.assertTrue(txManager.startShort().getWritePointer() > wp2);
+    } finally {
+      txManager.stopAndWait();
+    }
+  }
+
+  private static void flipLastByte(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xFF);
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void testManifest() throws Exception {
+    Configuration conf = getConfiguration("testManifest");
+    TransactionStateStorage storage = getStorage(conf);
+    try {
+      storage.startAndWait();
+      File manifestFile = new File(storage.getLocation(), TransactionStateManifest.FILE_NAME);
+      TransactionSnapshot snapshot = createRandomSnapshot();
+      storage.writeSnapshot(snapshot);
+      Assert.assertTrue(manifestFile.isFile());
+
+      // a file that is not cataloged, e.g. left by a failure before the manifest was updated, is ignored
+      File strayFile = new File(storage.getLocation(), "snapshot." + (snapshot.getTimestamp() + 1));
+      Files.write(new byte[] { 1, 2, 3 }, strayFile);
+      Assert.assertEquals(snapshot, storage.getLatestSnapshot());
+      Assert.assertEquals(1, storage.listSnapshots().size());
+      Assert.assertTrue(strayFile.delete());
+
+      // a cataloged file that was modified fails its checksum
+      File snapshotFile = new File(storage.getLocation(), "snapshot." + snapshot.getTimestamp());
+      Files.append("x", snapshotFile, Charsets.UTF_8);
+      try {
+        storage.getLatestSnapshot();
+        Assert.fail("Expected the modified snapshot to fail its checksum");
+      } catch (IOException expected) {
+        // expected
+      }
+
+      // without a manifest, e.g. for files written by an older version, the directory is listed
+      Assert.assertTrue(manifestFile.delete());
+      Assert.assertEquals(snapshot, storage.getLatestSnapshot());
+      storage.createLog(snapshot.getTimestamp()).close();
+      Assert.assertTrue(manifestFile.isFile());
+      Assert.assertEquals(ImmutableList.of(snapshotFile.getName()), storage.listSnapshots());
+      Assert.assertEquals(ImmutableList.of("txlog." + snapshot.getTimestamp()), storage.listLogs());
+    } finally {
+      storage.stopAndWait();
+    }
+  }
+
+  private List<TransactionEdit> readLog(TransactionStateStorage storage, long timestamp) throws IOException {
+    List<TransactionEdit> edits = Lists.newArrayList();
+    TransactionLogReader reader = storage.getLogsSince(timestamp).get(0).getReader();
+    try {
+      TransactionEdit edit;
+      while ((edit = reader.next()) != null) {
+        edits.add(edit);
+      }
+    } finally {
+      reader.close();
+    }
+    return edits;
+  }
+
   private void verifyInProgress(TransactionManager.InProgressTx inProgressTx, TransactionType type,
                                 long expiration) throws Exception {
     Assert.assertEquals(type, inProgressTx.getType());
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import co.cask.tephra.ChangeId;
+import co.cask.tephra.TransactionType;
+import co.cask.tephra.TxConstants;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the serialized size and the encoding and decoding throughput of the V3 and V4 {@link TransactionEdit}
+ * codecs, for the edits of a mix of short transactions. This is not run as part of the unit tests, run its main
+ * method instead, optionally with the number of transactions and the number of changes per transaction.
+ */
+public class TransactionEditCodecBenchmark {
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws IOException {
+    int numTx = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int numChanges = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    List<TransactionEdit> edits = createEdits(numTx, numChanges);
+    System.out.println("Edits of " + numTx + " transactions with " + numChanges + " changes each: " + edits.size());
+
+    TransactionEdit.TransactionEditCodec v3 = new TransactionEdit.TransactionEditCodecV3();
+    TransactionEdit.TransactionEditCodec v4 = new TransactionEdit.TransactionEditCodecV4();
+    for (TransactionEdit.State state : TransactionEdit.State.values()) {
+      TransactionEdit edit = findEdit(edits, state);
+      if (edit != null) {
+        System.out.printf("%-20s V3: %4d bytes, V4: %4d bytes%n", state, encode(v3, edit).getLength(),
+                          encode(v4, edit).getLength());
+      }
+    }
+    for (int round = 0; round < ROUNDS; round++) {
+      run("V3", v3, edits);
+      run("V4", v4, edits);
+    }
+  }
+
+  private static void run(String name, TransactionEdit.TransactionEditCodec codec,
+                          List<TransactionEdit> edits) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    long startTime = System.nanoTime();
+    for (TransactionEdit edit : edits) {
+      codec.encode(edit, out);
+    }
+    long encodeNanos = System.nanoTime() - startTime;
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    TransactionEdit reuse = new TransactionEdit();
+    startTime = System.nanoTime();
+    for (int i = 0; i < edits.size(); i++) {
+      reuse.readFields(in);
+    }
+    long decodeNanos = System.nanoTime() - startTime;
+    System.out.printf("%s: %8d bytes, %6.1f bytes/edit, encode %6.2f M edits/s, decode %6.2f M edits/s%n",
+                      name, out.getLength(), (double) out.getLength() / edits.size(),
+                      edits.size() * 1000d / encodeNanos, edits.size() * 1000d / decodeNanos);
+  }
+
+  private static DataOutputBuffer encode(TransactionEdit.TransactionEditCodec codec,
+                                         TransactionEdit edit) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    codec.encode(edit, out);
+    return out;
+  }
+
+  private static TransactionEdit findEdit(List<TransactionEdit> edits, TransactionEdit.State state) {
+    for (TransactionEdit edit : edits) {
+      if (edit.getState() == state) {
+        return edit;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Creates the edits written by short transactions, most of which commit, while some abort or are invalidated.
+   */
+  private static List<TransactionEdit> createEdits(int numTx, int numChanges) {
+    Random random = new Random(0);
+    List<TransactionEdit> edits = Lists.newArrayListWithCapacity(numTx * 3);
+    long writePointer = System.currentTimeMillis() * TxConstants.MAX_TX_PER_MS;
+    for (int i = 0; i < numTx; i++) {
+      writePointer += 1 + random.nextInt(100);
+      edits.add(TransactionEdit.createStarted(writePointer, writePointer - random.nextInt(1000),
+                                              System.currentTimeMillis() + 30000L, TransactionType.SHORT));
+      Set<ChangeId> changes = Sets.newHashSetWithExpectedSize(numChanges);
+      for (int j = 0; j < numChanges; j++) {
+        byte[] key = new byte[16 + random.nextInt(16)];
+        random.nextBytes(key);
+        changes.add(new ChangeId(key));
+      }
+      int outcome = random.nextInt(100);
+      if (outcome < 90) {
+        edits.add(TransactionEdit.createCommitting(writePointer, changes));
+        edits.add(TransactionEdit.createCommitted(writePointer, changes, writePointer + 1 + random.nextInt(10),
+                                                  true));
+      } else if (outcome < 99) {
+        edits.add(TransactionEdit.createAborted(writePointer, TransactionType.SHORT));
+      } else {
+        edits.add(TransactionEdit.createInvalid(writePointer));
+      }
+    }
+    edits.add(TransactionEdit.createMoveWatermark(writePointer));
+    edits.add(TransactionEdit.createTruncateInvalidTxBefore(System.currentTimeMillis()));
+    return edits;
+  }
+}
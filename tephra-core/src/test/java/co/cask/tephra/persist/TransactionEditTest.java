@@ -17,14 +17,23 @@
 package co.cask.tephra.persist;
 
 import co.cask.tephra.ChangeId;
+import co.cask.tephra.TransactionType;
+import co.cask.tephra.TxConstants;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import org.apache.hadoop.io.WritableUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 /**
  * test for {@link TransactionEdit}
@@ -53,6 +62,126 @@ public class TransactionEditTest {
       TransactionEdit.createCommitted(2L, Sets.newHashSet(new ChangeId(COL)), 3L, true), olderCodec);
   }
 
+  @Test
+  public void testV3SerdeCompat() throws Exception {
+    TransactionEdit.TransactionEditCodec olderCodec = new TransactionEdit.TransactionEditCodecV3();
+    for (TransactionEdit edit : createEdits()) {
+      verifyDecodingSupportsOlderVersion(edit, olderCodec);
+    }
+  }
+
+  @Test
+  public void testV4Serde() throws Exception {
+    TransactionEdit.TransactionEditCodec v3Codec = new TransactionEdit.TransactionEditCodecV3();
+    for (TransactionEdit edit : createEdits()) {
+      ByteArrayDataOutput out = ByteStreams.newDataOutput();
+      edit.write(out);
+      byte[] bytes = out.toByteArray();
+      TransactionEdit decodedEdit = new TransactionEdit();
+      decodedEdit.readFields(ByteStreams.newDataInput(bytes));
+      Assert.assertEquals(edit, decodedEdit);
+
+      // only the fields that are set are written
+      ByteArrayDataOutput v3Out = ByteStreams.newDataOutput();
+      v3Codec.encode(edit, v3Out);
+      Assert.assertTrue(bytes.length < v3Out.toByteArray().length);
+    }
+  }
+
+  @Test
+  public void testV4DecodesChangesLazily() throws Exception {
+    Set<ChangeId> changes = Sets.newHashSet(new ChangeId(COL), new ChangeId(new byte[0]), new ChangeId(new byte[300]));
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    TransactionEdit.createCommitted(2L, changes, 3L, true).write(out);
+    TransactionEdit decodedEdit = new TransactionEdit();
+    decodedEdit.readFields(ByteStreams.newDataInput(out.toByteArray()));
+
+    Set<ChangeId> decodedChanges = decodedEdit.getChanges();
+    Assert.assertTrue(decodedChanges instanceof EncodedChangeSet);
+    Assert.assertEquals(changes.size(), decodedChanges.size());
+    for (ChangeId change : changes) {
+      Assert.assertTrue(decodedChanges.contains(change));
+    }
+    Assert.assertFalse(decodedChanges.contains(new ChangeId(new byte[] {'d'})));
+    Assert.assertEquals(changes, Sets.newHashSet(decodedChanges));
+
+    // an edit can be reused for the next one, even though its changes cannot be modified
+    out = ByteStreams.newDataOutput();
+    new TransactionEdit.TransactionEditCodecV3().encode(TransactionEdit.createCommitting(4L, changes), out);
+    decodedEdit.readFields(ByteStreams.newDataInput(out.toByteArray()));
+    Assert.assertEquals(changes, decodedEdit.getChanges());
+  }
+
+  @Test
+  public void testV4ChangeFingerprints() throws Exception {
+    Set<ChangeId> fingerprints = Sets.newHashSet(new ChangeId(Longs.toByteArray(42L)));
+    for (TransactionEdit edit : ImmutableList.of(TransactionEdit.createCommitting(2L, fingerprints, true),
+                                                 TransactionEdit.createCommitted(2L, fingerprints, 3L, true, true))) {
+      ByteArrayDataOutput out = ByteStreams.newDataOutput();
+      edit.write(out);
+      TransactionEdit decodedEdit = new TransactionEdit();
+      decodedEdit.readFields(ByteStreams.newDataInput(out.toByteArray()));
+      Assert.assertTrue(decodedEdit.hasChangeFingerprints());
+      Assert.assertEquals(edit, decodedEdit);
+
+      // older versions do not record it, and a reused edit must not keep it
+      out = ByteStreams.newDataOutput();
+      new TransactionEdit.TransactionEditCodecV3().encode(edit, out);
+      decodedEdit.readFields(ByteStreams.newDataInput(out.toByteArray()));
+      Assert.assertFalse(decodedEdit.hasChangeFingerprints());
+    }
+  }
+
+  @Test
+  public void testV4DetectsCorruption() throws Exception {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    TransactionEdit.createCommitted(2L, Sets.newHashSet(new ChangeId(COL)), 3L, true).write(out);
+    byte[] bytes = out.toByteArray();
+    bytes[bytes.length - 1] ^= 1;
+    try {
+      new TransactionEdit().readFields(ByteStreams.newDataInput(bytes));
+      Assert.fail("Expected a checksum mismatch");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // a partially written edit is detected by its length
+    try {
+      new TransactionEdit().readFields(ByteStreams.newDataInput(Arrays.copyOf(bytes, bytes.length - 2)));
+      Assert.fail("Expected the end of the input");
+    } catch (IllegalStateException e) {
+      // expected, ByteArrayDataInput wraps the EOFException
+    }
+
+    // a corrupt length is rejected before any buffer is allocated for the edit
+    ByteArrayDataOutput corrupt = ByteStreams.newDataOutput();
+    corrupt.write(bytes[0]);
+    WritableUtils.writeVInt(corrupt, Integer.MAX_VALUE);
+    corrupt.write(bytes, 1, bytes.length - 1);
+    try {
+      new TransactionEdit().readFields(ByteStreams.newDataInput(corrupt.toByteArray()));
+      Assert.fail("Expected an invalid length");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private List<TransactionEdit> createEdits() {
+    long writePointer = System.currentTimeMillis() * TxConstants.MAX_TX_PER_MS;
+    return ImmutableList.of(
+      TransactionEdit.createStarted(writePointer, writePointer - 10, System.currentTimeMillis() + 30000L,
+                                    TransactionType.SHORT),
+      TransactionEdit.createStarted(writePointer, writePointer - 10, -1L, TransactionType.LONG),
+      TransactionEdit.createCommitting(writePointer, Sets.newHashSet(new ChangeId(COL), new ChangeId(new byte[20]))),
+      TransactionEdit.createCommitted(writePointer, Sets.newHashSet(new ChangeId(COL)), writePointer + 1, true),
+      TransactionEdit.createCommitted(writePointer, Collections.<ChangeId>emptySet(), writePointer + 5, false),
+      TransactionEdit.createAborted(writePointer, TransactionType.SHORT),
+      TransactionEdit.createInvalid(writePointer),
+      TransactionEdit.createMoveWatermark(writePointer),
+      TransactionEdit.createTruncateInvalidTx(Sets.newHashSet(writePointer, writePointer - 1000, 5L)),
+      TransactionEdit.createTruncateInvalidTxBefore(System.currentTimeMillis()));
+  }
+
   @SuppressWarnings("deprecation")
   private void verifyDecodingSupportsOlderVersion(TransactionEdit edit, 
                                                   TransactionEdit.TransactionEditCodec olderCodec)
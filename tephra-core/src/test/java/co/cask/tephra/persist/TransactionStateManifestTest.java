@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.persist;
+
+import co.cask.tephra.persist.TransactionStateManifest.Entry;
+import co.cask.tephra.persist.TransactionStateManifest.FileType;
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Tests the {@link TransactionStateManifest}.
+ */
+public class TransactionStateManifestTest {
+
+  @Test
+  public void testSerde() throws Exception {
+    TransactionStateManifest manifest = new TransactionStateManifest();
+    Entry snapshot1 = new Entry(FileType.SNAPSHOT, 1000L, 1234L, 42L);
+    Entry snapshot2 = new Entry(FileType.SNAPSHOT, 2000L, 2345L, 43L);
+    Entry delta = new Entry(FileType.DELTA, 2500L, 12L, 44L);
+    Entry log1 = new Entry(FileType.LOG, 1000L, TransactionStateManifest.UNKNOWN_SIZE,
+                           TransactionStateManifest.NO_CHECKSUM);
+    Entry log2 = new Entry(FileType.LOG, 2000L, TransactionStateManifest.UNKNOWN_SIZE,
+                           TransactionStateManifest.NO_CHECKSUM);
+    for (Entry entry : ImmutableList.of(snapshot2, delta, log2, snapshot1, log1)) {
+      manifest.add(entry);
+    }
+
+    TransactionStateManifest decoded = TransactionStateManifest.read(new ByteArrayInputStream(toBytes(manifest)));
+    Assert.assertEquals(ImmutableList.of(snapshot1, snapshot2), decoded.getEntries(FileType.SNAPSHOT));
+    Assert.assertEquals(snapshot2, decoded.getLatest(FileType.SNAPSHOT));
+    Assert.assertEquals(ImmutableList.of(delta), decoded.getEntries(FileType.DELTA, 2001L, Long.MAX_VALUE));
+    Assert.assertEquals(ImmutableList.of(log1), decoded.getEntries(FileType.LOG, 0L, 2000L));
+    Assert.assertNull(decoded.getLatest(FileType.VISIBILITY));
+
+    decoded.removeAll(ImmutableList.of(snapshot1, log1));
+    Assert.assertEquals(ImmutableList.of(snapshot2), decoded.getEntries(FileType.SNAPSHOT));
+    Assert.assertEquals(ImmutableList.of(log2), decoded.getEntries(FileType.LOG));
+  }
+
+  @Test
+  public void testDetectsCorruption() throws Exception {
+    TransactionStateManifest manifest = new TransactionStateManifest();
+    manifest.add(new Entry(FileType.VISIBILITY, 1000L, 100L, 42L));
+    byte[] bytes = toBytes(manifest);
+    bytes[bytes.length - 9] ^= 1;
+    try {
+      TransactionStateManifest.read(new ByteArrayInputStream(bytes));
+      Assert.fail("Expected the corrupted manifest to be detected");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testVerify() throws Exception {
+    byte[] contents = new byte[] { 1, 2, 3, 4, 5 };
+    CRC32 crc = new CRC32();
+    crc.update(contents);
+    Entry entry = new Entry(FileType.SNAPSHOT, 1000L, contents.length, crc.getValue());
+
+    // the part of the file that was not read yet is included
+    CheckedInputStream in = new CheckedInputStream(new ByteArrayInputStream(contents), new CRC32());
+    Assert.assertEquals(1, in.read());
+    entry.verify(in);
+
+    contents[4] = 6;
+    try {
+      entry.verify(new CheckedInputStream(new ByteArrayInputStream(contents), new CRC32()));
+      Assert.fail("Expected the modified file to fail its checksum");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParse() {
+    Assert.assertEquals(new Entry(FileType.SNAPSHOT, 1000L, 10L, TransactionStateManifest.NO_CHECKSUM),
+                        TransactionStateManifest.parse("snapshot.1000", 10L));
+    Assert.assertEquals(new Entry(FileType.LOG, 1000L, TransactionStateManifest.UNKNOWN_SIZE,
+                                  TransactionStateManifest.NO_CHECKSUM),
+                        TransactionStateManifest.parse("txlog.1000", 10L));
+    Assert.assertNull(TransactionStateManifest.parse(".in-progress.snapshot.1000", 10L));
+    Assert.assertNull(TransactionStateManifest.parse(TransactionStateManifest.FILE_NAME, 10L));
+    Assert.assertNull(TransactionStateManifest.parse("snapshot.abc", 10L));
+  }
+
+  private static byte[] toBytes(TransactionStateManifest manifest) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifest.write(out);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.snapshot;
+
+import co.cask.tephra.ChangeId;
+import co.cask.tephra.TransactionManager;
+import co.cask.tephra.TransactionType;
+import co.cask.tephra.TxConstants;
+import co.cask.tephra.persist.TransactionSnapshot;
+import co.cask.tephra.persist.TransactionSnapshotDelta;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Tests the encoding of transaction snapshots with {@link SnapshotCodecV3}.
+ */
+public class SnapshotCodecTest {
+  private static final Logger LOG = LoggerFactory.getLogger(SnapshotCodecTest.class);
+
+  @Test
+  public void testV3Serde() throws Exception {
+    TransactionSnapshot snapshot = createSnapshot(new Random(0), true);
+    // V2 cannot encode transactions of unknown type
+    byte[] v2 = encode(getCodecProvider(SnapshotCodecV2.class, false), createSnapshot(new Random(0), false));
+    byte[] v3 = encode(getCodecProvider(SnapshotCodecV3.class, false), snapshot);
+    byte[] v3Compressed = encode(getCodecProvider(SnapshotCodecV3.class, true), snapshot);
+    LOG.info("Snapshot size V2: {} bytes, V3: {} bytes, V3 compressed: {} bytes", v2.length, v3.length,
+             v3Compressed.length);
+    Assert.assertTrue(v3.length < v2.length);
+    Assert.assertTrue(v3Compressed.length < v3.length);
+
+    // any provider with the V3 codec decodes both compressed and uncompressed snapshots
+    SnapshotCodecProvider provider = getCodecProvider(SnapshotCodecV3.class, false);
+    Assert.assertEquals(snapshot, provider.decode(new ByteArrayInputStream(v3)));
+    Assert.assertEquals(snapshot, provider.decode(new ByteArrayInputStream(v3Compressed)));
+    TransactionSnapshot decoded = provider.decode(new ByteArrayInputStream(v3));
+    Assert.assertEquals(snapshot.getTimestamp(), decoded.getTimestamp());
+    Assert.assertNull(decoded.getInProgress().get(snapshot.getReadPointer() - 1).getType());
+
+    // an empty snapshot
+    TransactionSnapshot empty = new TransactionSnapshot(
+      1L, 2L, 3L, Lists.<Long>newArrayList(), Maps.<Long, TransactionManager.InProgressTx>newTreeMap(),
+      Maps.<Long, Set<ChangeId>>newHashMap(), Maps.<Long, Set<ChangeId>>newTreeMap());
+    Assert.assertEquals(empty, provider.decode(new ByteArrayInputStream(encode(provider, empty))));
+
+    // whether the change sets hold fingerprints is recorded, which older versions cannot do
+    TransactionSnapshot fingerprints = new TransactionSnapshot(
+      snapshot.getTimestamp(), snapshot.getReadPointer(), snapshot.getWritePointer(), snapshot.getInvalid(),
+      new TreeMap<Long, TransactionManager.InProgressTx>(snapshot.getInProgress()),
+      snapshot.getCommittingChangeSets(), snapshot.getCommittedChangeSets(), true);
+    TransactionSnapshot decodedFingerprints = provider.decode(new ByteArrayInputStream(encode(provider, fingerprints)));
+    Assert.assertTrue(decodedFingerprints.hasChangeFingerprints());
+    Assert.assertEquals(fingerprints, decodedFingerprints);
+    Assert.assertFalse(decoded.hasChangeFingerprints());
+    try {
+      encode(getCodecProvider(SnapshotCodecV2.class, false), fingerprints);
+      Assert.fail("Expected snapshot codec V2 to reject change sets of fingerprints");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testV3SkipsChangeSets() throws Exception {
+    TransactionSnapshot snapshot = createSnapshot(new Random(1), false);
+    SnapshotCodecProvider v2Provider = getCodecProvider(SnapshotCodecV2.class, false);
+    for (SnapshotCodecProvider provider : Lists.newArrayList(getCodecProvider(SnapshotCodecV3.class, true),
+                                                             v2Provider)) {
+      TransactionSnapshot decoded =
+        provider.decodeWithoutChangeSets(new ByteArrayInputStream(encode(provider, snapshot)));
+      Assert.assertEquals(snapshot.getTimestamp(), decoded.getTimestamp());
+      Assert.assertEquals(snapshot.getReadPointer(), decoded.getReadPointer());
+      Assert.assertEquals(snapshot.getWritePointer(), decoded.getWritePointer());
+      Assert.assertEquals(snapshot.getInvalid(), decoded.getInvalid());
+      Assert.assertEquals(snapshot.getInProgress(), decoded.getInProgress());
+      Assert.assertTrue(decoded.getCommittingChangeSets().isEmpty());
+      Assert.assertTrue(decoded.getCommittedChangeSets().isEmpty());
+    }
+  }
+
+  @Test
+  public void testV3DetectsCorruption() throws Exception {
+    TransactionSnapshot snapshot = createSnapshot(new Random(2), true);
+    for (boolean compress : new boolean[] { false, true }) {
+      SnapshotCodecProvider provider = getCodecProvider(SnapshotCodecV3.class, compress);
+      byte[] encoded = encode(provider, snapshot);
+      // the committed change sets are followed by their empty block, and by the last section, which has a single
+      // block of one byte, an empty block, and the end marker
+      encoded[encoded.length - 25] ^= 1;
+      try {
+        provider.decode(new ByteArrayInputStream(encoded));
+        Assert.fail("Expected the corrupted snapshot to be detected");
+      } catch (RuntimeException e) {
+        Assert.assertTrue(e.getCause() instanceof IOException);
+      }
+      // the corrupted section is not read if the change sets are skipped
+      TransactionSnapshot decoded = provider.decodeWithoutChangeSets(new ByteArrayInputStream(encoded));
+      Assert.assertEquals(snapshot.getInvalid(), decoded.getInvalid());
+    }
+  }
+
+  @Test
+  public void testV3RejectsInvalidBlockLengths() throws Exception {
+    TransactionSnapshot snapshot = createSnapshot(new Random(4), false);
+    SnapshotCodecProvider provider = getCodecProvider(SnapshotCodecV3.class, false);
+    byte[] encoded = encode(provider, snapshot);
+    // the version is followed by the id of the pointers section, and the lengths of its first block
+    int rawLengthOffset = 5;
+    int lengthOffset = rawLengthOffset + 5;
+    for (int offset : new int[] { rawLengthOffset, lengthOffset }) {
+      for (int length : new int[] { Integer.MAX_VALUE, -1 }) {
+        byte[] corrupted = encoded.clone();
+        ByteBuffer.wrap(corrupted).putInt(offset, length);
+        try {
+          provider.decode(new ByteArrayInputStream(corrupted));
+          Assert.fail("Expected the invalid block length to be detected");
+        } catch (RuntimeException e) {
+          Assert.assertTrue(e.getCause() instanceof IOException);
+          Assert.assertTrue(e.getCause().getMessage().startsWith("Invalid block length"));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testV3DeltaSerde() throws Exception {
+    Random random = new Random(3);
+    TransactionSnapshot base = createSnapshot(random, true);
+    TransactionSnapshot next = createSnapshot(random, false);
+    TransactionSnapshotDelta delta = TransactionSnapshotDelta.between(base, next);
+    for (boolean compress : new boolean[] { false, true }) {
+      SnapshotCodecProvider provider = getCodecProvider(SnapshotCodecV3.class, compress);
+      byte[] encoded = encodeDelta(provider, delta);
+      Assert.assertEquals(next, provider.decodeDelta(new ByteArrayInputStream(encoded), true).applyTo(base));
+
+      TransactionSnapshotDelta decoded = provider.decodeDelta(new ByteArrayInputStream(encoded), false);
+      Assert.assertEquals(base.getTimestamp(), decoded.getBaseTimestamp());
+      Assert.assertEquals(delta.getInProgress(), decoded.getInProgress());
+      Assert.assertArrayEquals(delta.getRemovedCommitted(), decoded.getRemovedCommitted());
+      Assert.assertTrue(decoded.getCommittedChangeSets().isEmpty());
+    }
+
+    // a delta with few changes is much smaller than the full snapshot
+    NavigableMap<Long, TransactionManager.InProgressTx> inProgress =
+      new TreeMap<Long, TransactionManager.InProgressTx>(base.getInProgress());
+    inProgress.put(base.getWritePointer() + 1, new TransactionManager.InProgressTx(
+      base.getReadPointer(), base.getTimestamp() + 30000L, TransactionType.SHORT));
+    NavigableMap<Long, Set<ChangeId>> committed = Maps.newTreeMap();
+    committed.putAll(base.getCommittedChangeSets());
+    committed.put(base.getWritePointer(), createChanges(random));
+    TransactionSnapshot small = new TransactionSnapshot(base.getTimestamp() + 1, base.getReadPointer(),
+                                                        base.getWritePointer() + 1, base.getInvalid(), inProgress,
+                                                        base.getCommittingChangeSets(), committed);
+    SnapshotCodecProvider provider = getCodecProvider(SnapshotCodecV3.class, false);
+    byte[] encoded = encodeDelta(provider, TransactionSnapshotDelta.between(base, small));
+    LOG.info("Delta snapshot size: {} bytes", encoded.length);
+    Assert.assertTrue(encoded.length * 100 < encode(provider, small).length);
+    Assert.assertEquals(small, provider.decodeDelta(new ByteArrayInputStream(encoded), true).applyTo(base));
+  }
+
+  private static SnapshotCodecProvider getCodecProvider(Class<? extends SnapshotCodec> codecClass,
+                                                        boolean compress) {
+    Configuration conf = new Configuration();
+    conf.setClass(TxConstants.Persist.CFG_TX_SNAPHOT_CODEC_CLASSES, codecClass, SnapshotCodec.class);
+    conf.setBoolean(TxConstants.Persist.CFG_TX_SNAPSHOT_COMPRESSION, compress);
+    return new SnapshotCodecProvider(conf);
+  }
+
+  private static byte[] encode(SnapshotCodecProvider provider, TransactionSnapshot snapshot) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    provider.encode(out, snapshot);
+    return out.toByteArray();
+  }
+
+  private static byte[] encodeDelta(SnapshotCodecProvider provider, TransactionSnapshotDelta delta) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    provider.encodeDelta(out, delta);
+    return out.toByteArray();
+  }
+
+  /**
+   * Creates a snapshot of a transaction manager that ran many short transactions, some of which are still in
+   * progress, committing or invalid, and optionally an old transaction of unknown type.
+   */
+  private static TransactionSnapshot createSnapshot(Random random, boolean withUnknownType) {
+    long writePointer = System.currentTimeMillis() * TxConstants.MAX_TX_PER_MS;
+    long now = System.currentTimeMillis();
+    List<Long> invalid = Lists.newArrayList();
+    NavigableMap<Long, TransactionManager.InProgressTx> inProgress = Maps.newTreeMap();
+    Map<Long, Set<ChangeId>> committing = Maps.newHashMap();
+    NavigableMap<Long, Set<ChangeId>> committed = Maps.newTreeMap();
+    if (withUnknownType) {
+      inProgress.put(writePointer - 1, new TransactionManager.InProgressTx(writePointer - 2, -1L));
+    }
+    long readPointer = writePointer;
+    for (int i = 0; i < 2000; i++) {
+      writePointer += 1 + random.nextInt(100);
+      int outcome = random.nextInt(100);
+      if (outcome < 2) {
+        invalid.add(writePointer);
+      } else if (outcome < 10) {
+        inProgress.put(writePointer, new TransactionManager.InProgressTx(
+          writePointer - random.nextInt(1000), now + 30000L + random.nextInt(1000), TransactionType.SHORT));
+        if (outcome < 5) {
+          committing.put(writePointer, createChanges(random));
+        }
+      } else {
+        committed.put(writePointer + 1, createChanges(random));
+      }
+    }
+    return new TransactionSnapshot(now, readPointer, writePointer, invalid, inProgress, committing, committed);
+  }
+
+  private static Set<ChangeId> createChanges(Random random) {
+    Set<ChangeId> changes = Sets.newHashSet();
+    for (int i = 0; i < 5; i++) {
+      // row keys with a common prefix, as written by most applications
+      byte[] key = new byte[24];
+      key[0] = 'r';
+      for (int j = 1; j < key.length; j++) {
+        key[j] = (byte) ('a' + random.nextInt(16));
+      }
+      changes.add(new ChangeId(key));
+    }
+    return changes;
+  }
+}
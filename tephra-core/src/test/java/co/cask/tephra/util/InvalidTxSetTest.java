@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link InvalidTxSet}.
+ */
+public class InvalidTxSetTest {
+  @Test
+  public void testSortedUpdates() {
+    InvalidTxSet invalid = new InvalidTxSet(ImmutableList.of(7L, 3L, 5L, 3L));
+    assertEquals(ImmutableSet.of(3L, 5L, 7L), invalid);
+    assertArrayEquals(new long[] { 3L, 5L, 7L }, invalid.toSortedArray());
+
+    assertTrue(invalid.add(4L));
+    // a set does not hold duplicates
+    assertFalse(invalid.add(5L));
+    assertTrue(invalid.add(1L));
+    assertTrue(invalid.add(9L));
+    assertArrayEquals(new long[] { 1L, 3L, 4L, 5L, 7L, 9L }, invalid.toSortedArray());
+
+    assertTrue(invalid.addAll(ImmutableList.of(8L, 2L, 9L)));
+    assertFalse(invalid.addAll(ImmutableList.of(1L, 2L)));
+    assertTrue(invalid.addAll(new LongArrayList(new long[] { 6L, 1L })));
+    assertTrue(invalid.removeAll(new LongArrayList(new long[] { 6L })));
+    assertArrayEquals(new long[] { 1L, 2L, 3L, 4L, 5L, 7L, 8L, 9L }, invalid.toSortedArray());
+
+    assertTrue(invalid.contains(4L));
+    assertFalse(invalid.contains(6L));
+
+    assertTrue(invalid.rem(4L));
+    assertFalse(invalid.rem(4L));
+    assertTrue(invalid.removeAll(ImmutableSet.of(1L, 9L, 10L)));
+    assertFalse(invalid.removeAll(ImmutableSet.of(6L)));
+    assertEquals(5, invalid.size());
+    assertArrayEquals(new long[] { 2L, 3L, 5L, 7L, 8L }, invalid.toSortedArray());
+
+    invalid.clear();
+    assertTrue(invalid.isEmpty());
+    assertEquals(0, invalid.toSortedArray().length);
+  }
+
+  @Test
+  public void testSortedArrayIsNotModified() {
+    InvalidTxSet invalid = new InvalidTxSet(ImmutableList.of(1L, 2L));
+    long[] before = invalid.toSortedArray();
+    // the array is only created again after a modification
+    assertSame(before, invalid.toSortedArray());
+    assertFalse(invalid.add(2L));
+    assertSame(before, invalid.toSortedArray());
+
+    invalid.add(3L);
+    invalid.rem(1L);
+    assertArrayEquals(new long[] { 1L, 2L }, before);
+    assertNotSame(before, invalid.toSortedArray());
+    assertArrayEquals(new long[] { 2L, 3L }, invalid.toSortedArray());
+  }
+}
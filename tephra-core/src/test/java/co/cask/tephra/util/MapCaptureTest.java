@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tephra.util;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for {@link MapCapture}.
+ */
+public class MapCaptureTest {
+  @Test
+  public void testCaptureWhileModified() {
+    NavigableMap<Long, String> map = new ConcurrentSkipListMap<Long, String>(ImmutableMap.of(1L, "a", 2L, "b",
+                                                                                             3L, "c"));
+    MapCapture<Long, String> capture = new MapCapture<Long, String>(map);
+
+    // replace, remove, add and re-add keys after the capture
+    capture.beforeUpdate(1L);
+    map.put(1L, "x");
+    capture.beforeUpdate(2L);
+    map.remove(2L);
+    capture.beforeUpdate(4L);
+    map.put(4L, "d");
+    capture.beforeUpdate(2L);
+    map.put(2L, "y");
+    capture.beforeUpdate(1L);
+    map.put(1L, "z");
+
+    assertEquals(ImmutableMap.of(1L, "a", 2L, "b", 3L, "c"), capture.copyTo(new TreeMap<Long, String>()));
+    assertEquals(ImmutableMap.of(1L, "z", 2L, "y", 3L, "c", 4L, "d"), map);
+
+    // a later capture sees the modifications, also when the map is cleared, and all captures must be notified
+    MapCapture<Long, String> later = new MapCapture<Long, String>(map);
+    capture.beforeClear();
+    later.beforeClear();
+    map.clear();
+    capture.beforeUpdate(5L);
+    later.beforeUpdate(5L);
+    map.put(5L, "e");
+    assertEquals(ImmutableMap.of(1L, "z", 2L, "y", 3L, "c", 4L, "d"), later.copyTo(new TreeMap<Long, String>()));
+    assertEquals(ImmutableMap.of(1L, "a", 2L, "b", 3L, "c"), capture.copyTo(new TreeMap<Long, String>()));
+  }
+
+  @Test
+  public void testCopyWhileRemoved() {
+    // removes the last entry whenever the size is read, like a concurrent update while the capture is copied
+    final List<MapCapture<Long, String>> captures = Lists.newArrayList();
+    NavigableMap<Long, String> map = new ConcurrentSkipListMap<Long, String>() {
+      @Override
+      public int size() {
+        int size = super.size();
+        if (!isEmpty()) {
+          for (MapCapture<Long, String> capture : captures) {
+            capture.beforeUpdate(lastKey());
+          }
+          remove(lastKey());
+        }
+        return size;
+      }
+    };
+    map.putAll(ImmutableMap.of(1L, "a", 2L, "b", 3L, "c"));
+    MapCapture<Long, String> capture = new MapCapture<Long, String>(map);
+    captures.add(capture);
+    assertEquals(ImmutableMap.of(1L, "a", 2L, "b", 3L, "c"), capture.copyTo(new TreeMap<Long, String>()));
+  }
+
+  @Test
+  public void testTrackUpdatedKeys() {
+    NavigableMap<Long, String> map = new ConcurrentSkipListMap<Long, String>(ImmutableMap.of(1L, "a", 2L, "b"));
+    MapCapture<Long, String> capture = new MapCapture<Long, String>(map);
+    capture.beforeUpdate(1L);
+    map.put(1L, "x");
+    assertEquals("a", capture.get(1L));
+    assertEquals("b", capture.get(2L));
+
+    // after discarding the values, only the updated keys are tracked
+    capture.discardValues();
+    capture.beforeUpdate(2L);
+    map.remove(2L);
+    capture.beforeUpdate(3L);
+    map.put(3L, "c");
+    capture.beforeUpdate(4L);
+    map.put(4L, "d");
+    capture.beforeUpdate(4L);
+    map.remove(4L);
+    assertEquals(ImmutableSet.of(1L, 2L, 3L, 4L), capture.getUpdatedKeys());
+    assertTrue(capture.containedKey(1L));
+    assertTrue(capture.containedKey(2L));
+    assertFalse(capture.containedKey(3L));
+    assertFalse(capture.containedKey(4L));
+    try {
+      capture.copyTo(new TreeMap<Long, String>());
+      fail("Expected the captured entries to be discarded");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+  }
+}